@@ -0,0 +1,95 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static zipkin2.reporter.stackdriver.zipkin.StackdriverEncoderBenchmarks.CLIENT_SPAN;
+
+/** Measures allocation of reading the spans in a received message. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class SpanMessageReceiverBenchmarks {
+  static final List<Span> SPANS = Collections.nCopies(100, CLIENT_SPAN);
+  static final PubsubMessage JSON_MESSAGE = received(SpanBytesEncoder.JSON_V2.encodeList(SPANS));
+  static final PubsubMessage PROTO3_MESSAGE = received(SpanBytesEncoder.PROTO3.encodeList(SPANS));
+
+  /** How messages were read before: the data is copied before it is decoded. */
+  @Benchmark public List<Span> decode_json_copy() {
+    return SpanBytesDecoder.JSON_V2.decodeList(JSON_MESSAGE.getData().toByteArray());
+  }
+
+  @Benchmark public List<Span> decode_json() throws IOException {
+    return SpanBytesDecoder.JSON_V2.decodeList(MessageDecompressor.body(JSON_MESSAGE));
+  }
+
+  @Benchmark public List<Span> decode_proto3_copy() {
+    return SpanBytesDecoder.PROTO3.decodeList(PROTO3_MESSAGE.getData().toByteArray());
+  }
+
+  @Benchmark public List<Span> decode_proto3() throws IOException {
+    return SpanBytesDecoder.PROTO3.decodeList(MessageDecompressor.body(PROTO3_MESSAGE));
+  }
+
+  /** The proto3 body is passed as an array to be transcoded by storage. */
+  @Benchmark public byte[] body_proto3_copy() {
+    return PROTO3_MESSAGE.getData().toByteArray();
+  }
+
+  @Benchmark public byte[] body_proto3() throws IOException {
+    ByteBuffer body = MessageDecompressor.body(PROTO3_MESSAGE);
+    return MessageDecompressor.toArray(body);
+  }
+
+  /** Parses the message like the subscriber does, so its data is backed the same way. */
+  static PubsubMessage received(byte[] data) {
+    byte[] serialized =
+        PubsubMessage.newBuilder().setData(ByteString.copyFrom(data)).build().toByteArray();
+    try {
+      return PubsubMessage.parseFrom(serialized);
+    } catch (InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanMessageReceiverBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.ManagedChannel;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.reporter.BytesMessageEncoder;
+import zipkin2.reporter.Encoding;
+import zipkin2.reporter.SpanBytesEncoder;
+
+import static zipkin2.reporter.stackdriver.zipkin.StackdriverEncoderBenchmarks.CLIENT_SPAN;
+
+/** Measures allocation of framing encoded spans into a message, before it is published. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class PubSubMessageBenchmarks {
+  static final List<byte[]> JSON_SPANS =
+      Collections.nCopies(100, SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN));
+  static final List<byte[]> PROTO3_SPANS =
+      Collections.nCopies(100, SpanBytesEncoder.PROTO3.encode(CLIENT_SPAN));
+
+  ManagedChannel channel;
+  PubSubSender jsonSender, proto3Sender, gzipSender;
+
+  @Setup(Level.Trial) public void setup() throws IOException {
+    channel = InProcessChannelBuilder.forName("unused").build(); // messages aren't published
+    jsonSender = PubSubSenderBenchmarks.newBuilder(channel, true).build();
+    proto3Sender = jsonSender.toBuilder().encoding(Encoding.PROTO3).build();
+    gzipSender = jsonSender.toBuilder().compression(Compression.GZIP).build();
+  }
+
+  @TearDown(Level.Trial) public void tearDown() {
+    jsonSender.close();
+    jsonSender.topicAdminClient.close();
+    channel.shutdownNow();
+  }
+
+  /** How messages were built before: the framed array is copied into the message. */
+  @Benchmark public PubsubMessage message_json_copy() {
+    return PubsubMessage.newBuilder()
+        .setData(ByteString.copyFrom(BytesMessageEncoder.JSON.encode(JSON_SPANS)))
+        .build();
+  }
+
+  @Benchmark public PubsubMessage message_json() throws IOException {
+    return jsonSender.message(JSON_SPANS, "");
+  }
+
+  @Benchmark public PubsubMessage message_proto3() throws IOException {
+    return proto3Sender.message(PROTO3_SPANS, "");
+  }
+
+  @Benchmark public PubsubMessage message_json_gzip() throws IOException {
+    return gzipSender.message(JSON_SPANS, "");
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + PubSubMessageBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
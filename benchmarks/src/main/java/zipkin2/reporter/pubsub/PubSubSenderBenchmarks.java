@@ -0,0 +1,139 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.pubsub.v1.stub.GrpcPublisherStub;
+import com.google.cloud.pubsub.v1.stub.PublisherStubSettings;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.reporter.SpanBytesEncoder;
+
+import static zipkin2.reporter.stackdriver.zipkin.StackdriverEncoderBenchmarks.CLIENT_SPAN;
+
+/**
+ * Measures the latency of sending a message with and without publisher batching, against an
+ * in-process Pub/Sub server. Divide the time by {@link #spanCount} for the cost per span.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class PubSubSenderBenchmarks {
+  static final String TOPIC = "projects/test-project/topics/zipkin";
+
+  /** One span is a message smaller than the default publisher batch size. */
+  @Param({"1", "10"})
+  public int spanCount;
+
+  @Param({"true", "false"})
+  public boolean publisherBatching;
+
+  Server server;
+  ManagedChannel channel;
+  PubSubSender sender;
+  List<byte[]> spans;
+
+  @Setup(Level.Trial) public void setup() throws IOException {
+    String serverName = InProcessServerBuilder.generateName();
+    server = InProcessServerBuilder.forName(serverName)
+        .directExecutor()
+        .addService(new PublisherGrpc.PublisherImplBase() {
+          @Override public void publish(PublishRequest request,
+              StreamObserver<PublishResponse> responseObserver) {
+            PublishResponse.Builder response = PublishResponse.newBuilder();
+            for (int i = 0; i < request.getMessagesCount(); i++) response.addMessageIds("1");
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+          }
+        })
+        .build()
+        .start();
+    channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+    sender = newBuilder(channel, publisherBatching).build();
+
+    spans = Collections.nCopies(spanCount, SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN));
+  }
+
+  @TearDown(Level.Trial) public void tearDown() throws Exception {
+    sender.close();
+    sender.publishers.get(0).awaitTermination(1, TimeUnit.SECONDS);
+    sender.topicAdminClient.close();
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  /** Returns a sender builder whose publisher and admin client use the channel. */
+  static PubSubSender.Builder newBuilder(ManagedChannel channel, boolean publisherBatching)
+      throws IOException {
+    TransportChannelProvider channelProvider =
+        FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel));
+
+    PubSubSender.Builder builder = PubSubSender.newBuilder().topic(TOPIC);
+    Publisher publisher = Publisher.newBuilder(TOPIC)
+        .setBatchingSettings(
+            PubSubSender.batchingSettings(publisherBatching, builder.messageMaxBytes))
+        .setChannelProvider(channelProvider)
+        .setCredentialsProvider(NoCredentialsProvider.create())
+        .build();
+    TopicAdminClient topicAdminClient =
+        TopicAdminClient.create(GrpcPublisherStub.create(PublisherStubSettings.newBuilder()
+            .setTransportChannelProvider(channelProvider)
+            .setCredentialsProvider(NoCredentialsProvider.create())
+            .build()));
+    return builder.publisher(publisher).topicAdminClient(topicAdminClient);
+  }
+
+  /** Waits for the publish response, so this is the end-to-end publish latency. */
+  @Benchmark public void send() throws IOException {
+    sender.send(spans);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + PubSubSenderBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
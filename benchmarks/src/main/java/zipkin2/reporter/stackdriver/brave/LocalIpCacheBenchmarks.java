@@ -0,0 +1,76 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import com.google.common.net.InetAddresses;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Compares classifying and normalizing the local IP of server spans. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class LocalIpCacheBenchmarks {
+  static final String IPV4 = "192.168.99.101", IPV6 = "2001:db8::c001";
+
+  final LocalIpCache cache = new LocalIpCache(LocalIpCache.DEFAULT_MAX_ENTRIES);
+
+  @Benchmark
+  public String inetAddress_ipv4() {
+    return InetAddresses.forString(IPV4).getHostAddress();
+  }
+
+  @Benchmark
+  public String inetAddress_ipv6() {
+    return InetAddresses.forString(IPV6).getHostAddress();
+  }
+
+  @Benchmark
+  public LocalIpCache.LocalIp parse_ipv4() {
+    return LocalIpCache.parse(IPV4);
+  }
+
+  @Benchmark
+  public LocalIpCache.LocalIp parse_ipv6() {
+    return LocalIpCache.parse(IPV6);
+  }
+
+  @Benchmark
+  public LocalIpCache.LocalIp get_ipv4() {
+    return cache.get(IPV4);
+  }
+
+  @Benchmark
+  public LocalIpCache.LocalIp get_ipv6() {
+    return cache.get(IPV6);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + LocalIpCacheBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
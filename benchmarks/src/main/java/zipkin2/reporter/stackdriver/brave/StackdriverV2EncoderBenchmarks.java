@@ -7,6 +7,7 @@ package zipkin2.reporter.stackdriver.brave;
 import brave.Tags;
 import brave.handler.MutableSpan;
 import brave.handler.MutableSpanBytesEncoder;
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
@@ -32,10 +33,14 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 @Threads(1)
 public class StackdriverV2EncoderBenchmarks {
   static final StackdriverV2Encoder encoder = new StackdriverV2Encoder(Tags.ERROR);
+  static final StackdriverV2Encoder typedEncoder =
+      new StackdriverV2Encoder(Tags.ERROR, RenameRules.DEFAULT, true);
   static final MutableSpanBytesEncoder braveEncoder =
       MutableSpanBytesEncoder.zipkinJsonV2(Tags.ERROR);
   static final MutableSpan CLIENT_SPAN = clientSpan();
 
+  final ByteBuffer buffer = ByteBuffer.allocate(1024);
+
   static MutableSpan clientSpan() {
     MutableSpan braveSpan = new MutableSpan();
     braveSpan.traceId("7180c278b62e8f6a216a2aea45d08fc9");
@@ -76,11 +81,33 @@ public class StackdriverV2EncoderBenchmarks {
     return encoder.encode(CLIENT_SPAN);
   }
 
+  /** Compare B/op with {@link #encodeClientSpan_json_stackdriver_proto3()}, run with -prof gc */
+  @Benchmark
+  public ByteBuffer encodeClientSpan_stackdriver_proto3_byteBuffer() {
+    buffer.clear();
+    encoder.encode(CLIENT_SPAN, buffer);
+    return buffer;
+  }
+
+  /** Compare B/op with {@link #encodeClientSpan_json_stackdriver_proto3()} for wire size. */
+  @Benchmark
+  public byte[] encodeClientSpan_stackdriver_proto3_typedAttributes() {
+    return typedEncoder.encode(CLIENT_SPAN);
+  }
+
+  /** AsyncReporter calls sizeInBytes when a span is reported, then encode when it is sent. */
+  @Benchmark
+  public byte[] sizeInBytesAndEncodeClientSpan_stackdriver_proto3() {
+    encoder.sizeInBytes(CLIENT_SPAN);
+    return encoder.encode(CLIENT_SPAN);
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt =
         new OptionsBuilder()
             .include(".*" + StackdriverV2EncoderBenchmarks.class.getSimpleName() + ".*")
+            .addProfiler("gc")
             .build();
 
     new Runner(opt).run();
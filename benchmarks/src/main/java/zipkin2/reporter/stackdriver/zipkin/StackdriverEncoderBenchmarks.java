@@ -68,6 +68,13 @@ public class StackdriverEncoderBenchmarks {
     return StackdriverEncoder.V2.encode(CLIENT_SPAN);
   }
 
+  /** AsyncReporter calls sizeInBytes when a span is reported, then encode when it is sent. */
+  @Benchmark
+  public byte[] sizeInBytesAndEncodeClientSpan_stackdriver_proto3() {
+    StackdriverEncoder.V2.sizeInBytes(CLIENT_SPAN);
+    return StackdriverEncoder.V2.encode(CLIENT_SPAN);
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt =
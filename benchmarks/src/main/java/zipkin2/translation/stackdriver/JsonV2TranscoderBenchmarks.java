@@ -0,0 +1,85 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static zipkin2.reporter.stackdriver.zipkin.StackdriverEncoderBenchmarks.CLIENT_SPAN;
+import static zipkin2.translation.stackdriver.SpanWriterBenchmarks.PROJECT_ID;
+import static zipkin2.translation.stackdriver.SpanWriterBenchmarks.SERVER_SPAN;
+
+/** Compares decoding and translating a list of spans with transcoding it. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class JsonV2TranscoderBenchmarks {
+  static final byte[] JSON_V2 =
+      SpanBytesEncoder.JSON_V2.encodeList(Arrays.asList(CLIENT_SPAN, SERVER_SPAN));
+  static final byte[] PROTO3 =
+      SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(CLIENT_SPAN, SERVER_SPAN));
+
+  static final JsonV2Transcoder JSON_V2_TRANSCODER = JsonV2Transcoder.create(PROJECT_ID);
+  static final Proto3Transcoder PROTO3_TRANSCODER = Proto3Transcoder.create(PROJECT_ID);
+
+  @Benchmark
+  public byte[] decodeAndTranslate_json() {
+    return translate(SpanBytesDecoder.JSON_V2, JSON_V2);
+  }
+
+  @Benchmark
+  public byte[] transcode_json() {
+    return JSON_V2_TRANSCODER.transcode(JSON_V2);
+  }
+
+  @Benchmark
+  public byte[] decodeAndTranslate_proto3() {
+    return translate(SpanBytesDecoder.PROTO3, PROTO3);
+  }
+
+  @Benchmark
+  public byte[] transcode_proto3() {
+    return PROTO3_TRANSCODER.transcode(PROTO3);
+  }
+
+  static byte[] translate(SpanBytesDecoder decoder, byte[] encoded) {
+    return BatchWriteSpansRequest.newBuilder()
+        .setName("projects/" + PROJECT_ID)
+        .addAllSpans(SpanTranslator.translate(PROJECT_ID, decoder.decodeList(encoded)))
+        .build()
+        .toByteArray();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + JsonV2TranscoderBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
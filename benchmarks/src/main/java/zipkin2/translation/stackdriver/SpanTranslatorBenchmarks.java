@@ -0,0 +1,67 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/** Run with {@code -prof gc} to see allocation per translated span. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanTranslatorBenchmarks {
+  static final String PROJECT_ID = "test-project";
+  /** A root HTTP server span with the tags typically added by instrumentation. */
+  static final List<Span> SERVER_SPAN = Collections.singletonList(Span.newBuilder()
+      .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+      .id("216a2aea45d08fc9")
+      .name("get /api/users/{id}")
+      .kind(Span.Kind.SERVER)
+      .localEndpoint(Endpoint.newBuilder().serviceName("frontend").ip("10.0.0.1").build())
+      .remoteEndpoint(Endpoint.newBuilder().ip("192.168.99.101").port(54321).build())
+      .timestamp(1_000_000L)
+      .duration(123_456L)
+      .putTag("http.method", "GET")
+      .putTag("http.path", "/api/users/42")
+      .putTag("http.route", "/api/users/{id}")
+      .putTag("http.status_code", "200")
+      .build());
+
+  @Benchmark
+  public com.google.devtools.cloudtrace.v2.Span translateServerSpan() {
+    return SpanTranslator.translate(PROJECT_ID, SERVER_SPAN).get(0);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanTranslatorBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
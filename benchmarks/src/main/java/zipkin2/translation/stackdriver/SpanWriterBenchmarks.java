@@ -0,0 +1,102 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+
+import static zipkin2.reporter.stackdriver.zipkin.StackdriverEncoderBenchmarks.CLIENT_SPAN;
+
+/** Compares translating to builders with writing the wire format directly. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class SpanWriterBenchmarks {
+  static final String PROJECT_ID = "test-project";
+  static final List<Span> CLIENT_SPANS = Collections.singletonList(CLIENT_SPAN);
+  static final Span SERVER_SPAN = SpanTranslatorBenchmarks.SERVER_SPAN.get(0);
+
+  @Benchmark
+  public byte[] translateClientSpan() {
+    return SpanTranslator.translate(PROJECT_ID, CLIENT_SPANS).get(0).toByteArray();
+  }
+
+  @Benchmark
+  public byte[] writeClientSpan() throws IOException {
+    byte[] result = new byte[SpanWriter.sizeInBytes(PROJECT_ID, CLIENT_SPAN)];
+    SpanWriter.write(PROJECT_ID, CLIENT_SPAN, CodedOutputStream.newInstance(result));
+    return result;
+  }
+
+  @Benchmark
+  public int sizeInBytesClientSpan_translate() {
+    return SpanTranslator.translate(PROJECT_ID, CLIENT_SPANS).get(0).getSerializedSize();
+  }
+
+  @Benchmark
+  public int sizeInBytesClientSpan_write() {
+    return SpanWriter.sizeInBytes(PROJECT_ID, CLIENT_SPAN);
+  }
+
+  /** The length of the result is the wire size of a typical server span. */
+  @Benchmark
+  public byte[] writeServerSpan() throws IOException {
+    byte[] result = new byte[SpanWriter.sizeInBytes(PROJECT_ID, SERVER_SPAN)];
+    SpanWriter.write(PROJECT_ID, SERVER_SPAN, CodedOutputStream.newInstance(result));
+    return result;
+  }
+
+  /** Compare B/op with {@link #writeServerSpan()} to see the effect on wire size. */
+  @Benchmark
+  public byte[] writeServerSpan_typedAttributes() throws IOException {
+    byte[] result =
+        new byte[SpanWriter.sizeInBytes(PROJECT_ID, SERVER_SPAN, RenameRules.DEFAULT, true)];
+    SpanWriter.write(PROJECT_ID, SERVER_SPAN, RenameRules.DEFAULT, true,
+        CodedOutputStream.newInstance(result));
+    return result;
+  }
+
+  @Benchmark
+  public int sizeInBytesServerSpan_write() {
+    return SpanWriter.sizeInBytes(PROJECT_ID, SERVER_SPAN);
+  }
+
+  @Benchmark
+  public int sizeInBytesServerSpan_write_typedAttributes() {
+    return SpanWriter.sizeInBytes(PROJECT_ID, SERVER_SPAN, RenameRules.DEFAULT, true);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(".*" + SpanWriterBenchmarks.class.getSimpleName() + ".*")
+        .addProfiler("gc")
+        .build();
+
+    new Runner(opt).run();
+  }
+}
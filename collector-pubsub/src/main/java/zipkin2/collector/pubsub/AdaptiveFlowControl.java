@@ -0,0 +1,107 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the count and size of messages received, but not yet stored, so that intake slows down
+ * with storage. {@link #acquire(int)} blocks until both are under their limit. Meanwhile, the
+ * subscriber extends the ack deadline of waiting messages, and stops pulling once its own flow
+ * control is exhausted.
+ *
+ * <p>The limit of messages adapts to storage: it grows by one for each write faster than the
+ * {@link #targetLatencyNanos}, and shrinks for a slower write or a failure, by half when storage
+ * is over capacity. Writes in flight at the same time usually fail together, so the limit shrinks
+ * at most once per target latency.
+ *
+ * <p>The size limit is a share of the heap, as it holds the messages. A message larger than it is
+ * allowed when nothing else is in flight, so that it can't block forever.
+ */
+final class AdaptiveFlowControl {
+  static final int MIN_LIMIT = 1, INITIAL_LIMIT = 100, MAX_LIMIT = 10_000;
+
+  static AdaptiveFlowControl create() {
+    return new AdaptiveFlowControl(TimeUnit.SECONDS.toNanos(1),
+        Runtime.getRuntime().maxMemory() / 10);
+  }
+
+  final long targetLatencyNanos;
+  final long maxBytes;
+
+  double limit = INITIAL_LIMIT; // guarded by this
+  int messages; // guarded by this
+  long bytes; // guarded by this
+  long lastDecreaseNanos; // guarded by this
+  boolean decreased; // guarded by this
+
+  AdaptiveFlowControl(long targetLatencyNanos, long maxBytes) {
+    this.targetLatencyNanos = targetLatencyNanos;
+    this.maxBytes = maxBytes;
+  }
+
+  synchronized void acquire(int messageBytes) throws InterruptedException {
+    while (messages > 0 && (messages >= (int) limit || bytes + messageBytes > maxBytes)) {
+      wait();
+    }
+    messages++;
+    bytes += messageBytes;
+  }
+
+  synchronized void release(int messageBytes) {
+    messages--;
+    bytes -= messageBytes;
+    notifyAll();
+  }
+
+  /** Returns a consumer that releases the message when it is acked or nacked. */
+  AckReplyConsumer releaseOnReply(AckReplyConsumer ackReplyConsumer, int messageBytes) {
+    return new AckReplyConsumer() {
+      @Override public void ack() {
+        release(messageBytes);
+        ackReplyConsumer.ack();
+      }
+
+      @Override public void nack() {
+        release(messageBytes);
+        ackReplyConsumer.nack();
+      }
+    };
+  }
+
+  synchronized void onStored(long latencyNanos, long nowNanos) {
+    if (latencyNanos > targetLatencyNanos) {
+      decrease(0.9, nowNanos);
+      return;
+    }
+    limit = Math.min(MAX_LIMIT, limit + 1);
+    notifyAll();
+  }
+
+  synchronized void onStorageError(boolean overCapacity, long nowNanos) {
+    decrease(overCapacity ? 0.5 : 0.9, nowNanos);
+  }
+
+  void decrease(double factor, long nowNanos) { // guarded by this
+    if (decreased && nowNanos - lastDecreaseNanos < targetLatencyNanos) return;
+    decreased = true;
+    lastDecreaseNanos = nowNanos;
+    limit = Math.max(MIN_LIMIT, limit * factor);
+  }
+
+  synchronized int limit() {
+    return (int) limit;
+  }
+
+  synchronized int messages() {
+    return messages;
+  }
+
+  @Override public synchronized String toString() {
+    return "AdaptiveFlowControl{limit=" + (int) limit + ", messages=" + messages + ", bytes="
+        + bytes + "}";
+  }
+}
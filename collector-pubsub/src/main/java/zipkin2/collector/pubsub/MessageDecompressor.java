@@ -0,0 +1,124 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses message bodies compressed by the Zipkin PubSub sender, which sets the attribute
+ * {@value #CONTENT_ENCODING_ATTRIBUTE} to "gzip" or "zstd".
+ */
+final class MessageDecompressor {
+  /** Same as {@code PubSubSender.CONTENT_ENCODING_ATTRIBUTE}. */
+  static final String CONTENT_ENCODING_ATTRIBUTE = "content-encoding";
+  /** Guards against a small message decompressing into more than the collector can hold. */
+  static final int MAX_DECOMPRESSED_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * Returns the body of the message, decompressed if it was compressed. An uncompressed body
+   * wraps the data of the message instead of copying it, so must not be written to.
+   */
+  static ByteBuffer body(PubsubMessage message) throws IOException {
+    String contentEncoding = message.getAttributesOrDefault(CONTENT_ENCODING_ATTRIBUTE, null);
+    if (contentEncoding == null) return wrap(message.getData());
+    switch (contentEncoding) {
+      case "gzip":
+        return ByteBuffer.wrap(decompress(new GZIPInputStream(message.getData().newInput())));
+      case "zstd":
+        return ByteBuffer.wrap(decompress(Zstd.newInput(message.getData())));
+      default:
+        throw new IOException("Unsupported " + CONTENT_ENCODING_ATTRIBUTE + ": " + contentEncoding);
+    }
+  }
+
+  /**
+   * Isolates the optional zstd-jni dependency. Otherwise, linking this class fails without it, even
+   * when messages aren't compressed.
+   */
+  static final class Zstd {
+    static InputStream newInput(ByteString data) throws IOException {
+      return new ZstdInputStream(data.newInput());
+    }
+  }
+
+  static byte[] decompress(InputStream in) throws IOException {
+    try (in) {
+      byte[] result = in.readNBytes(MAX_DECOMPRESSED_BYTES);
+      if (in.read() != -1) {
+        throw new IOException("Decompressed message larger than " + MAX_DECOMPRESSED_BYTES);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Wraps the array backing the data, so that spans are decoded from it without a copy. A read-only
+   * buffer hides its array, which makes decoding slower, so this asks the data for its array.
+   * Data without a single backing array is copied.
+   */
+  static ByteBuffer wrap(ByteString data) {
+    BackingBuffer backingBuffer = new BackingBuffer();
+    try {
+      UnsafeByteOperations.unsafeWriteTo(data, backingBuffer);
+    } catch (IOException e) {
+      throw new AssertionError(e); // BackingBuffer doesn't throw
+    }
+    ByteBuffer result = backingBuffer.result;
+    return result != null && !backingBuffer.copy ? result : ByteBuffer.wrap(data.toByteArray());
+  }
+
+  /** Returns the array backing the body if it is exactly that array, or a copy. */
+  static byte[] toArray(ByteBuffer body) {
+    if (body.hasArray() && body.arrayOffset() == 0 && body.position() == 0
+        && body.remaining() == body.array().length) {
+      return body.array();
+    }
+    byte[] result = new byte[body.remaining()];
+    body.duplicate().get(result);
+    return result;
+  }
+
+  /** Receives the backing array of a byte string, unless it has more than one or is eager. */
+  static final class BackingBuffer extends ByteOutput {
+    ByteBuffer result; // null until written
+    boolean copy; // true when the result can't be wrapped
+
+    @Override public void write(byte value) {
+      copy = true;
+    }
+
+    @Override public void write(byte[] value, int offset, int length) {
+      copy = true;
+    }
+
+    @Override public void writeLazy(byte[] value, int offset, int length) {
+      set(ByteBuffer.wrap(value, offset, length));
+    }
+
+    @Override public void write(ByteBuffer value) {
+      copy = true;
+    }
+
+    @Override public void writeLazy(ByteBuffer value) {
+      set(value.slice());
+    }
+
+    void set(ByteBuffer value) {
+      if (result != null) copy = true;
+      result = value;
+    }
+  }
+
+  MessageDecompressor() {
+  }
+}
@@ -5,10 +5,17 @@
 package zipkin2.collector.pubsub;
 
 import com.google.api.gax.core.ExecutorProvider;
+import com.google.api.gax.core.FixedExecutorProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.api.gax.rpc.ApiException;
 import com.google.cloud.pubsub.v1.Subscriber;
 import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import zipkin2.CheckResult;
 import zipkin2.codec.Encoding;
 import zipkin2.collector.Collector;
@@ -21,24 +28,34 @@ public class PubSubCollector extends CollectorComponent {
 
   public static final class Builder extends CollectorComponent.Builder {
 
-    String subscription;
+    List<String> subscriptions;
     Encoding encoding = Encoding.JSON;
     ExecutorProvider executorProvider;
     SubscriptionAdminClient subscriptionAdminClient;
     SubscriberSettings subscriberSettings;
+    long batchLingerNanos;
+    int batchMaxSpans = 1000;
+    int batchMaxBytes = 1024 * 1024;
+    boolean adaptiveFlowControl;
 
     Collector.Builder delegate = Collector.newBuilder(PubSubCollector.class);
     CollectorMetrics metrics = CollectorMetrics.NOOP_METRICS;
+    StorageComponent storage; // null until set
+    CollectorSampler sampler; // null when the default, which keeps all spans
 
     public Builder(PubSubCollector pubSubCollector) {
-      this.subscription = pubSubCollector.subscription;
+      this.subscriptions = pubSubCollector.subscriptions;
       this.encoding = pubSubCollector.encoding;
       this.executorProvider = pubSubCollector.executorProvider;
+      this.batchLingerNanos = pubSubCollector.batchLingerNanos;
+      this.batchMaxSpans = pubSubCollector.batchMaxSpans;
+      this.batchMaxBytes = pubSubCollector.batchMaxBytes;
+      this.adaptiveFlowControl = pubSubCollector.flowControl != null;
     }
 
     @Override
     public Builder storage(StorageComponent storageComponent) {
-      delegate.storage(storageComponent);
+      delegate.storage(this.storage = storageComponent);
       return this;
     }
 
@@ -51,22 +68,38 @@ public class PubSubCollector extends CollectorComponent {
 
     @Override
     public Builder sampler(CollectorSampler collectorSampler) {
-      delegate.sampler(collectorSampler);
+      delegate.sampler(this.sampler = collectorSampler);
       return this;
     }
 
     /** PubSub subscription to receive spans. */
     public Builder subscription(String subscription) {
       if (subscription == null) throw new NullPointerException("subscription == null");
-      this.subscription = subscription;
+      this.subscriptions = Collections.singletonList(subscription);
       return this;
     }
 
     /**
-     * Use this to change the encoding used in messages. Default is {@linkplain Encoding#JSON}
+     * PubSub subscriptions to receive spans, such as one for each topic a sender spreads spans
+     * across. Their subscribers share one executor.
+     */
+    public Builder subscriptions(List<String> subscriptions) {
+      if (subscriptions == null) throw new NullPointerException("subscriptions == null");
+      if (subscriptions.isEmpty()) throw new IllegalArgumentException("subscriptions is empty");
+      for (String subscription : subscriptions) {
+        if (subscription == null) throw new NullPointerException("subscription == null");
+      }
+      this.subscriptions = Collections.unmodifiableList(new ArrayList<>(subscriptions));
+      return this;
+    }
+
+    /**
+     * Has no effect, as the encoding of each message is detected. Senders can move to another
+     * encoding, such as {@linkplain Encoding#PROTO3}, without changing the collector.
      *
-     * <p>Note: If ultimately sending to Zipkin, version 2.8+ is required to process protobuf.
+     * @deprecated the encoding of messages needn't be configured
      */
+    @Deprecated
     public Builder encoding(Encoding encoding) {
       if (encoding == null) throw new NullPointerException("encoding == null");
       this.encoding = encoding;
@@ -94,6 +127,66 @@ public class PubSubCollector extends CollectorComponent {
       return this;
     }
 
+    /**
+     * How long to wait for more messages before storing the spans received, or zero to store each
+     * message separately. Default is zero.
+     *
+     * <p>When positive, spans of many messages are stored in one write, bounded by {@link
+     * #batchMaxSpans(int)} and {@link #batchMaxBytes(int)}. This reduces storage requests when
+     * messages are small. The messages of a batch are acked or nacked together, in the same way
+     * as when stored separately. Malformed messages are dropped before they are batched.
+     */
+    public Builder batchLinger(long linger, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (linger < 0) throw new IllegalArgumentException("linger < 0");
+      this.batchLingerNanos = unit.toNanos(linger);
+      return this;
+    }
+
+    /** Count of spans that completes a batch, when {@link #batchLinger}. Default is 1000. */
+    public Builder batchMaxSpans(int batchMaxSpans) {
+      if (batchMaxSpans <= 0) throw new IllegalArgumentException("batchMaxSpans <= 0");
+      this.batchMaxSpans = batchMaxSpans;
+      return this;
+    }
+
+    /**
+     * Maximum size of decompressed messages in a batch, when {@link #batchLinger}. A larger
+     * message is stored alone. Default is 1MB.
+     */
+    public Builder batchMaxBytes(int batchMaxBytes) {
+      if (batchMaxBytes <= 0) throw new IllegalArgumentException("batchMaxBytes <= 0");
+      this.batchMaxBytes = batchMaxBytes;
+      return this;
+    }
+
+    /**
+     * When true, messages are only received while storage keeps up. Default is false.
+     *
+     * <p>This limits messages received, but not yet stored, to a count that adapts to storage
+     * latency and errors, including when it {@linkplain StorageComponent#isOverCapacity is over
+     * capacity}. Their size is limited to a tenth of the heap. Once a limit is reached, receiving
+     * blocks, and the subscriber extends the ack deadline of messages it holds.
+     *
+     * <p>To see when storage completes, messages are acked once their spans are stored, or
+     * nacked if that fails, so that they are redelivered. Otherwise, they are acked once passed
+     * to storage.
+     *
+     * <p>Note: {@link SubscriberSettings#setFlowControlSettings} still bounds messages held by
+     * the subscriber, so should be high enough to not limit throughput first.
+     *
+     * <p>Note: Receiving blocks a thread of the subscriber's executor while waiting. The client's
+     * default executor has only a few threads per subscription, so subscribers instead share one
+     * of {@code 5 * availableProcessors} threads, unless an {@linkplain
+     * #executorProvider(ExecutorProvider) executor provider} is configured. A configured executor
+     * should also have threads to spare, as acks and deadline extensions of the subscriber's
+     * other messages can wait behind blocked threads.
+     */
+    public Builder adaptiveFlowControl(boolean adaptiveFlowControl) {
+      this.adaptiveFlowControl = adaptiveFlowControl;
+      return this;
+    }
+
     @Override
     public PubSubCollector build() {
       return new PubSubCollector(this);
@@ -105,32 +198,83 @@ public class PubSubCollector extends CollectorComponent {
 
   final Collector collector;
   final CollectorMetrics metrics;
-  final String subscription;
+  final StackdriverProto3Consumer proto3Consumer; // null when messages are always decoded
+  final List<String> subscriptions;
   final Encoding encoding;
-  Subscriber subscriber;
+  final List<Subscriber> subscribers = new ArrayList<>();
+  ScheduledExecutorService sharedExecutor; // null unless created for several or blocking receivers
+  SpanBatcher batcher; // null unless started with batchLinger
   final ExecutorProvider executorProvider;
   final SubscriptionAdminClient subscriptionAdminClient;
   final SubscriberSettings subscriberSettings;
+  final long batchLingerNanos;
+  final int batchMaxSpans, batchMaxBytes;
+  final AdaptiveFlowControl flowControl; // null when not adaptive
+  final StoringSpanConsumer spanConsumer; // null when not adaptive
 
   PubSubCollector(Builder builder) {
     this.collector = builder.delegate.build();
     this.metrics = builder.metrics;
-    this.subscription = builder.subscription;
+    this.flowControl = builder.adaptiveFlowControl ? AdaptiveFlowControl.create() : null;
+    this.spanConsumer = flowControl != null
+        ? new StoringSpanConsumer(builder.storage, builder.sampler, metrics, flowControl)
+        : null;
+    // Check the class name first, so that the optional storage dependency is only loaded when used
+    this.proto3Consumer = builder.storage != null
+        && builder.storage.getClass().getName().equals(StackdriverProto3Consumer.STORAGE_CLASS_NAME)
+        ? StackdriverProto3Consumer.create(builder.storage, builder.sampler, flowControl)
+        : null;
+    this.subscriptions = builder.subscriptions;
     this.encoding = builder.encoding;
     this.executorProvider = builder.executorProvider;
     this.subscriptionAdminClient = builder.subscriptionAdminClient;
     this.subscriberSettings = builder.subscriberSettings;
+    this.batchLingerNanos = builder.batchLingerNanos;
+    this.batchMaxSpans = builder.batchMaxSpans;
+    this.batchMaxBytes = builder.batchMaxBytes;
   }
 
   @Override
   public CollectorComponent start() {
-    Subscriber.Builder builder =
-        Subscriber.newBuilder(subscription, new SpanMessageReceiver(collector, metrics));
-    subscriber = applyConfigurations(builder).build();
-    subscriber.startAsync().awaitRunning();
+    if (batchLingerNanos > 0) {
+      batcher = new SpanBatcher(collector, metrics, proto3Consumer, spanConsumer,
+          batchLingerNanos, batchMaxSpans, batchMaxBytes);
+    }
+    SpanMessageReceiver receiver = new SpanMessageReceiver(collector, metrics, proto3Consumer,
+        batcher, flowControl, spanConsumer);
+    // Blocked receivers would otherwise exhaust the client's few default threads
+    ExecutorProvider sharedExecutorProvider =
+        subscriptions.size() > 1 || flowControl != null ? sharedExecutorProvider() : null;
+    for (String subscription : subscriptions) {
+      Subscriber.Builder builder =
+          applyConfigurations(Subscriber.newBuilder(subscription, receiver));
+      if (sharedExecutorProvider != null) builder.setExecutorProvider(sharedExecutorProvider);
+      Subscriber subscriber = builder.build();
+      subscribers.add(subscriber);
+      subscriber.startAsync();
+    }
+    for (Subscriber subscriber : subscribers) subscriber.awaitRunning();
     return this;
   }
 
+  /**
+   * Returns a provider of one executor for all subscribers, instead of each creating their own.
+   * The executor is shut down on close if it came from an auto-closing provider.
+   */
+  ExecutorProvider sharedExecutorProvider() {
+    ExecutorProvider provider = subscriberSettings != null
+        ? subscriberSettings.getExecutorProvider().orElse(executorProvider)
+        : executorProvider;
+    if (provider == null) {
+      provider = InstantiatingExecutorProvider.newBuilder()
+          .setExecutorThreadCount(5 * Runtime.getRuntime().availableProcessors())
+          .build();
+    }
+    ScheduledExecutorService executor = provider.getExecutor();
+    if (provider.shouldAutoClose()) sharedExecutor = executor;
+    return FixedExecutorProvider.create(executor);
+  }
+
   private Subscriber.Builder applyConfigurations(Subscriber.Builder builder) {
     if (subscriberSettings == null) {
       return builder;
@@ -155,7 +299,9 @@ public class PubSubCollector extends CollectorComponent {
   @Override
   public CheckResult check() {
     try {
-      subscriptionAdminClient.getSubscription(subscription);
+      for (String subscription : subscriptions) {
+        subscriptionAdminClient.getSubscription(subscription);
+      }
       return CheckResult.OK;
     } catch (ApiException e) {
       return CheckResult.failed(e);
@@ -164,6 +310,9 @@ public class PubSubCollector extends CollectorComponent {
 
   @Override
   public void close() throws IOException {
-    subscriber.stopAsync().awaitTerminated();
+    for (Subscriber subscriber : subscribers) subscriber.stopAsync();
+    for (Subscriber subscriber : subscribers) subscriber.awaitTerminated();
+    if (batcher != null) batcher.close(); // subscribers wait for batched messages to be acked
+    if (sharedExecutor != null) sharedExecutor.shutdown();
   }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.collector.Collector;
+import zipkin2.collector.CollectorMetrics;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Gathers the spans of many messages into one storage write, instead of one per message. A batch
+ * is written once it reaches the max spans or bytes, or after the linger time. The messages of a
+ * batch are acked or nacked together, in the same way as a message stored separately.
+ *
+ * <p>Proto3 messages transcoded by storage are batched separately. Concatenated proto3 lists of
+ * spans are a list of all their spans, so they are written as one message.
+ */
+final class SpanBatcher implements Closeable {
+  static final Logger LOG = LoggerFactory.getLogger(PubSubCollector.class);
+
+  final Collector collector;
+  final CollectorMetrics metrics;
+  final StackdriverProto3Consumer proto3Consumer; // null when messages are always decoded
+  final StoringSpanConsumer spanConsumer; // null unless adaptive flow control
+  final long lingerNanos;
+  final int maxSpans, maxBytes;
+  final ScheduledThreadPoolExecutor scheduler;
+
+  // guarded by this
+  Batch spans = new Batch(false), proto3 = new Batch(true);
+  boolean closed;
+
+  SpanBatcher(Collector collector, CollectorMetrics metrics,
+      StackdriverProto3Consumer proto3Consumer, long lingerNanos, int maxSpans, int maxBytes) {
+    this(collector, metrics, proto3Consumer, null, lingerNanos, maxSpans, maxBytes);
+  }
+
+  SpanBatcher(Collector collector, CollectorMetrics metrics,
+      StackdriverProto3Consumer proto3Consumer, StoringSpanConsumer spanConsumer,
+      long lingerNanos, int maxSpans, int maxBytes) {
+    this.collector = collector;
+    this.metrics = metrics;
+    this.proto3Consumer = proto3Consumer;
+    this.spanConsumer = spanConsumer;
+    this.lingerNanos = lingerNanos;
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+    this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "zipkin-pubsub-batcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  /** Decodes the message, and adds its spans to a batch. */
+  void acceptSpans(ByteBuffer body, SpanBytesDecoder decoder, AckReplyConsumer ackReplyConsumer) {
+    int bytes = body.remaining();
+    List<Span> decoded;
+    try {
+      decoded = decoder.decodeList(body);
+    } catch (RuntimeException e) {
+      drop(e, ackReplyConsumer);
+      return;
+    }
+    add(decoded, null, decoded.size(), bytes, ackReplyConsumer);
+  }
+
+  /** Like {@link StackdriverProto3Consumer#accept}, checking the message before it is batched. */
+  void acceptProto3(byte[] listOfSpans, AckReplyConsumer ackReplyConsumer) {
+    int spanCount;
+    try {
+      spanCount = proto3Consumer.spanCount(listOfSpans);
+    } catch (RuntimeException e) {
+      drop(e, ackReplyConsumer);
+      return;
+    }
+    add(null, listOfSpans, spanCount, listOfSpans.length, ackReplyConsumer);
+  }
+
+  /**
+   * A malformed message is dropped alone, so that it doesn't fail the rest of its batch. Like
+   * {@link StoringSpanConsumer}, it is acked, as redelivery can't fix it.
+   */
+  void drop(RuntimeException e, AckReplyConsumer ackReplyConsumer) {
+    metrics.incrementMessagesDropped();
+    LOG.warn("Dropped spans that could not be decoded: {}", e.getMessage(), e);
+    ackReplyConsumer.ack();
+  }
+
+  /**
+   * Adds decoded spans or a proto3 list of spans to the batch of its kind. A batch that would
+   * exceed the max bytes is written first.
+   *
+   * @param decoded null when listOfSpans is not
+   * @param listOfSpans null when decoded is not
+   */
+  void add(List<Span> decoded, byte[] listOfSpans, int spanCount, int bytes,
+      AckReplyConsumer ackReplyConsumer) {
+    Batch overflow = null, full = null;
+    synchronized (this) {
+      Batch batch = listOfSpans != null ? proto3 : spans;
+      if (!batch.ackReplyConsumers.isEmpty() && batch.bytes + bytes > maxBytes) {
+        overflow = batch;
+        batch = next(batch);
+      }
+      if (decoded != null) batch.spans.addAll(decoded);
+      if (listOfSpans != null) batch.listsOfSpans.add(listOfSpans);
+      batch.add(spanCount, bytes, ackReplyConsumer);
+      if (closed || batch.spanCount >= maxSpans || batch.bytes >= maxBytes) {
+        full = batch;
+        next(batch);
+      } else if (batch.ackReplyConsumers.size() == 1) {
+        Batch scheduled = batch;
+        batch.linger = scheduler.schedule(() -> flush(scheduled), lingerNanos, NANOSECONDS);
+      }
+    }
+    if (overflow != null) write(overflow);
+    if (full != null) write(full);
+  }
+
+  /** Replaces the batch with an empty one, cancelling its linger, and returns the new batch. */
+  Batch next(Batch batch) { // guarded by this
+    if (batch.linger != null) batch.linger.cancel(false);
+    Batch next = new Batch(batch.isProto3);
+    if (batch.isProto3) {
+      proto3 = next;
+    } else {
+      spans = next;
+    }
+    return next;
+  }
+
+  /** Writes the batch after its linger, unless it was already written. */
+  void flush(Batch batch) {
+    synchronized (this) {
+      if (batch != spans && batch != proto3) return;
+      next(batch);
+    }
+    write(batch);
+  }
+
+  void write(Batch batch) {
+    if (batch.isProto3) {
+      proto3Consumer.accept(batch.concatProto3(), metrics, batch);
+    } else if (spanConsumer != null) {
+      spanConsumer.accept(batch.spans, batch);
+    } else {
+      collector.accept(batch.spans, new SpanCallback(batch), Runnable::run);
+    }
+  }
+
+  /** Writes any pending batches, and writes later messages without batching. */
+  @Override public void close() {
+    Batch pendingSpans, pendingProto3;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      pendingSpans = spans;
+      pendingProto3 = proto3;
+      next(pendingSpans);
+      next(pendingProto3);
+    }
+    if (!pendingSpans.ackReplyConsumers.isEmpty()) write(pendingSpans);
+    if (!pendingProto3.ackReplyConsumers.isEmpty()) write(pendingProto3);
+    scheduler.shutdown();
+  }
+
+  /** Acks or nacks all messages in the batch together. */
+  static final class Batch implements AckReplyConsumer {
+    final boolean isProto3;
+    final List<AckReplyConsumer> ackReplyConsumers = new ArrayList<>();
+    final List<Span> spans = new ArrayList<>(); // empty when isProto3
+    final List<byte[]> listsOfSpans = new ArrayList<>(); // empty unless isProto3
+    int spanCount, bytes;
+    ScheduledFuture<?> linger; // null until the first message is added
+
+    Batch(boolean isProto3) {
+      this.isProto3 = isProto3;
+    }
+
+    void add(int spanCount, int bytes, AckReplyConsumer ackReplyConsumer) {
+      this.spanCount += spanCount;
+      this.bytes += bytes;
+      ackReplyConsumers.add(ackReplyConsumer);
+    }
+
+    /** Concatenates the messages, copying unless there is only one. */
+    byte[] concatProto3() {
+      if (listsOfSpans.size() == 1) return listsOfSpans.get(0);
+      byte[] result = new byte[bytes];
+      int pos = 0;
+      for (byte[] listOfSpans : listsOfSpans) {
+        System.arraycopy(listOfSpans, 0, result, pos, listOfSpans.length);
+        pos += listOfSpans.length;
+      }
+      return result;
+    }
+
+    @Override public void ack() {
+      for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) ackReplyConsumer.ack();
+    }
+
+    @Override public void nack() {
+      for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) ackReplyConsumer.nack();
+    }
+  }
+}
@@ -7,24 +7,141 @@ package zipkin2.collector.pubsub;
 import com.google.cloud.pubsub.v1.AckReplyConsumer;
 import com.google.cloud.pubsub.v1.MessageReceiver;
 import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.SpanBytesDecoderDetector;
+import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.collector.Collector;
 import zipkin2.collector.CollectorMetrics;
 
 final class SpanMessageReceiver implements MessageReceiver {
+  static final Logger LOG = LoggerFactory.getLogger(PubSubCollector.class);
+  /** Same as {@code PubSubSender.ENCODING_ATTRIBUTE}. */
+  static final String ENCODING_ATTRIBUTE = "zipkin_encoding";
+  /** Encoding of {@code PubSubSender.Builder.traceIdPrefixedSpans}. */
+  static final String STACKDRIVER_ENCODING = "stackdriver";
 
   final Collector collector;
   final CollectorMetrics metrics;
+  final StackdriverProto3Consumer proto3Consumer; // null when messages are always decoded
+  final SpanBatcher batcher; // null when each message is stored separately
+  final AdaptiveFlowControl flowControl; // null when not adaptive
+  final StoringSpanConsumer spanConsumer; // null when not adaptive
 
-  public SpanMessageReceiver(Collector collector, CollectorMetrics metrics) {
+  public SpanMessageReceiver(Collector collector, CollectorMetrics metrics,
+      StackdriverProto3Consumer proto3Consumer) {
+    this(collector, metrics, proto3Consumer, null, null, null);
+  }
+
+  SpanMessageReceiver(Collector collector, CollectorMetrics metrics,
+      StackdriverProto3Consumer proto3Consumer, SpanBatcher batcher,
+      AdaptiveFlowControl flowControl, StoringSpanConsumer spanConsumer) {
     this.collector = collector;
     this.metrics = metrics;
+    this.proto3Consumer = proto3Consumer;
+    this.batcher = batcher;
+    this.flowControl = flowControl;
+    this.spanConsumer = spanConsumer;
   }
 
   @Override
-  public void receiveMessage(PubsubMessage pubsubMessage, AckReplyConsumer ackReplyConsumer) {
-    byte[] serialized = pubsubMessage.getData().toByteArray();
+  public void receiveMessage(PubsubMessage pubsubMessage, AckReplyConsumer reply) {
+    AckReplyConsumer ackReplyConsumer = reply;
     metrics.incrementMessages();
-    metrics.incrementBytes(serialized.length);
-    collector.acceptSpans(serialized, new SpanCallback(ackReplyConsumer));
+    metrics.incrementBytes(pubsubMessage.getData().size()); // compressed size, as billed
+    ByteBuffer serialized;
+    try {
+      serialized = MessageDecompressor.body(pubsubMessage);
+    } catch (IOException | RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped message {} that could not be decompressed: {}",
+          pubsubMessage.getMessageId(), e.getMessage());
+      ackReplyConsumer.ack(); // as redelivery can't fix a corrupt or unsupported body
+      return;
+    } catch (LinkageError e) { // without zstd-jni, which a redeploy can add
+      metrics.incrementMessagesDropped();
+      LOG.warn("Cannot decompress message {} due to {}", pubsubMessage.getMessageId(),
+          e.getMessage());
+      ackReplyConsumer.nack();
+      return;
+    }
+    boolean traceIdPrefixedSpans = STACKDRIVER_ENCODING.equals(
+        pubsubMessage.getAttributesOrDefault(ENCODING_ATTRIBUTE, ""));
+    if (traceIdPrefixedSpans && proto3Consumer == null) {
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped message {} of Stackdriver spans, which are only stored as is, by "
+          + "StackdriverStorage without sampling", pubsubMessage.getMessageId());
+      ackReplyConsumer.ack(); // as redelivery can't change this
+      return;
+    }
+    SpanBytesDecoder decoder = null;
+    try {
+      if (!traceIdPrefixedSpans) decoder = decoder(pubsubMessage, serialized);
+    } catch (RuntimeException e) { // detected like Collector.acceptSpans(byte[], Callback)
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped message {} that matches no encoding: {}", pubsubMessage.getMessageId(),
+          e.getMessage());
+      ackReplyConsumer.ack(); // as redelivery can't change its encoding
+      return;
+    }
+    if (flowControl != null) {
+      int bytes = serialized.remaining();
+      try {
+        flowControl.acquire(bytes);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        ackReplyConsumer.nack();
+        return;
+      }
+      ackReplyConsumer = flowControl.releaseOnReply(ackReplyConsumer, bytes);
+    }
+    if (traceIdPrefixedSpans) { // not batched, as a batch holds spans of one format
+      proto3Consumer.acceptTraceIdPrefixedSpans(MessageDecompressor.toArray(serialized), metrics,
+          ackReplyConsumer);
+      return;
+    }
+    if (proto3Consumer != null && decoder == SpanBytesDecoder.PROTO3) {
+      byte[] listOfSpans = MessageDecompressor.toArray(serialized);
+      if (batcher != null) {
+        batcher.acceptProto3(listOfSpans, ackReplyConsumer);
+      } else {
+        proto3Consumer.accept(listOfSpans, metrics, ackReplyConsumer);
+      }
+      return;
+    }
+    // Batched JSON is decoded instead, so that it can be written with spans of other encodings.
+    if (proto3Consumer != null && batcher == null && decoder == SpanBytesDecoder.JSON_V2) {
+      proto3Consumer.acceptJsonV2(MessageDecompressor.toArray(serialized), metrics,
+          ackReplyConsumer);
+      return;
+    }
+    if (batcher != null) {
+      batcher.acceptSpans(serialized, decoder, ackReplyConsumer);
+      return;
+    }
+    if (spanConsumer != null) {
+      spanConsumer.acceptSpans(serialized, decoder, ackReplyConsumer);
+      return;
+    }
+    // Decodes from the message data, instead of a copy of it
+    collector.acceptSpans(serialized, decoder, new SpanCallback(ackReplyConsumer), Runnable::run);
+  }
+
+  /**
+   * Returns the decoder for this message, so that senders can use different encodings on the
+   * same subscription. This uses the {@value #ENCODING_ATTRIBUTE} attribute of the Zipkin PubSub
+   * sender when present, or otherwise detects the encoding from the first bytes of the message.
+   */
+  static SpanBytesDecoder decoder(PubsubMessage message, ByteBuffer body) {
+    switch (message.getAttributesOrDefault(ENCODING_ATTRIBUTE, "")) {
+      case "proto3":
+        return SpanBytesDecoder.PROTO3;
+      case "thrift":
+        return SpanBytesDecoder.THRIFT;
+      default: // JSON is detected, as it could be v1 or v2
+        return (SpanBytesDecoder) SpanBytesDecoderDetector.decoderForListMessage(body);
+    }
   }
 }
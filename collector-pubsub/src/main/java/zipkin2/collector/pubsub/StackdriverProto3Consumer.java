@@ -0,0 +1,142 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.storage.StorageComponent;
+import zipkin2.storage.stackdriver.StackdriverStorage;
+import zipkin2.translation.stackdriver.JsonV2Transcoder;
+import zipkin2.translation.stackdriver.Proto3Transcoder;
+import zipkin2.translation.stackdriver.TraceIdPrefixedSpans;
+
+/**
+ * Stores proto3 messages with {@link StackdriverStorage#acceptProto3(byte[])}, which transcodes
+ * them to Stackdriver Trace requests instead of decoding them into spans first. JSON v2 messages
+ * are likewise transcoded by {@link StackdriverStorage#acceptJsonV2(byte[])}. Messages of spans
+ * already in Stackdriver format are stored with {@link
+ * StackdriverStorage#acceptTraceIdPrefixedSpans(byte[])}, which neither decodes nor translates.
+ *
+ * <p>This class must only be loaded when the storage is {@link StackdriverStorage}, as that
+ * dependency is optional. Check {@link #STORAGE_CLASS_NAME} first.
+ */
+final class StackdriverProto3Consumer {
+  static final Logger LOG = LoggerFactory.getLogger(PubSubCollector.class);
+  static final String STORAGE_CLASS_NAME = "zipkin2.storage.stackdriver.StackdriverStorage";
+
+  /**
+   * Returns null unless all spans are kept, as sampling requires decoding the spans.
+   *
+   * @param storage an instance of {@link #STORAGE_CLASS_NAME}
+   * @param sampler null when the collector default, which keeps all spans
+   */
+  static StackdriverProto3Consumer create(StorageComponent storage, CollectorSampler sampler,
+      AdaptiveFlowControl flowControl) {
+    if (sampler != null && sampler != CollectorSampler.ALWAYS_SAMPLE) return null;
+    return new StackdriverProto3Consumer((StackdriverStorage) storage, flowControl);
+  }
+
+  final StackdriverStorage storage;
+  final AdaptiveFlowControl flowControl; // null when not adaptive
+
+  StackdriverProto3Consumer(StackdriverStorage storage) {
+    this(storage, null);
+  }
+
+  StackdriverProto3Consumer(StackdriverStorage storage, AdaptiveFlowControl flowControl) {
+    this.storage = storage;
+    this.flowControl = flowControl;
+  }
+
+  /** Returns the count of spans in the message, or throws if it is malformed. */
+  int spanCount(byte[] listOfSpans) {
+    return Proto3Transcoder.spanCount(listOfSpans);
+  }
+
+  /**
+   * Like {@link zipkin2.collector.Collector#acceptSpans(byte[], Callback)}, including metrics. A
+   * malformed message is acked and dropped, and only a storage error is nacked.
+   */
+  void accept(byte[] listOfSpans, CollectorMetrics metrics, AckReplyConsumer ackReplyConsumer) {
+    int spanCount;
+    Call<Void> call;
+    try {
+      spanCount = Proto3Transcoder.spanCount(listOfSpans);
+      call = storage.acceptProto3(listOfSpans);
+    } catch (RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped spans that could not be decoded: {}", e.getMessage(), e);
+      ackReplyConsumer.ack(); // as redelivery can't fix a malformed message
+      return;
+    }
+    store(call, spanCount, metrics, ackReplyConsumer);
+  }
+
+  /** Like {@link #accept}, except for a JSON v2 message. */
+  void acceptJsonV2(byte[] json, CollectorMetrics metrics, AckReplyConsumer ackReplyConsumer) {
+    int spanCount;
+    Call<Void> call;
+    try {
+      spanCount = JsonV2Transcoder.spanCount(json);
+      call = storage.acceptJsonV2(json);
+    } catch (RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped spans that could not be decoded: {}", e.getMessage(), e);
+      ackReplyConsumer.ack(); // as redelivery can't fix a malformed message
+      return;
+    }
+    store(call, spanCount, metrics, ackReplyConsumer);
+  }
+
+  /** Like {@link #accept}, except for a message of spans already in Stackdriver format. */
+  void acceptTraceIdPrefixedSpans(byte[] traceIdPrefixedSpans, CollectorMetrics metrics,
+      AckReplyConsumer ackReplyConsumer) {
+    int spanCount;
+    Call<Void> call;
+    try {
+      spanCount = TraceIdPrefixedSpans.spanCount(traceIdPrefixedSpans);
+      call = storage.acceptTraceIdPrefixedSpans(traceIdPrefixedSpans);
+    } catch (RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped Stackdriver spans that could not be read: {}", e.getMessage(), e);
+      ackReplyConsumer.ack(); // as redelivery can't fix a malformed message
+      return;
+    }
+    store(call, spanCount, metrics, ackReplyConsumer);
+  }
+
+  void store(Call<Void> call, int spanCount, CollectorMetrics metrics,
+      AckReplyConsumer ackReplyConsumer) {
+    metrics.incrementSpans(spanCount);
+    long startNanos = System.nanoTime();
+    call.enqueue(new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        if (flowControl != null) {
+          long nowNanos = System.nanoTime();
+          flowControl.onStored(nowNanos - startNanos, nowNanos);
+        }
+        ackReplyConsumer.ack();
+      }
+
+      @Override public void onError(Throwable t) {
+        metrics.incrementSpansDropped(spanCount);
+        if (flowControl != null) {
+          flowControl.onStorageError(storage.isOverCapacity(t), System.nanoTime());
+        }
+        LOG.warn("Cannot store {} spans due to {}", spanCount, t.getMessage(), t);
+        ackReplyConsumer.nack();
+      }
+    });
+  }
+
+  @Override public String toString() {
+    return "StackdriverProto3Consumer{" + storage + "}";
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.collector.CollectorMetrics;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Stores decoded spans like {@link zipkin2.collector.Collector#accept(List, Callback)}, including
+ * sampling and metrics. The difference is that messages are acked once storage completes, instead
+ * of when spans are passed to it, and that the result is reported to {@link AdaptiveFlowControl}.
+ */
+final class StoringSpanConsumer {
+  static final Logger LOG = LoggerFactory.getLogger(PubSubCollector.class);
+
+  final StorageComponent storage;
+  final CollectorSampler sampler; // null when the default, which keeps all spans
+  final CollectorMetrics metrics;
+  final AdaptiveFlowControl flowControl;
+
+  StoringSpanConsumer(StorageComponent storage, CollectorSampler sampler,
+      CollectorMetrics metrics, AdaptiveFlowControl flowControl) {
+    this.storage = storage;
+    this.sampler = sampler;
+    this.metrics = metrics;
+    this.flowControl = flowControl;
+  }
+
+  /**
+   * Decodes the message, and stores its spans. A malformed message is acked and dropped, as
+   * redelivery can't fix it. Only storage failures are nacked.
+   */
+  void acceptSpans(ByteBuffer body, SpanBytesDecoder decoder, AckReplyConsumer ackReplyConsumer) {
+    List<Span> spans;
+    try {
+      spans = decoder.decodeList(body);
+    } catch (RuntimeException e) {
+      metrics.incrementMessagesDropped();
+      LOG.warn("Dropped spans that could not be decoded: {}", e.getMessage(), e);
+      ackReplyConsumer.ack();
+      return;
+    }
+    accept(spans, ackReplyConsumer);
+  }
+
+  void accept(List<Span> spans, AckReplyConsumer ackReplyConsumer) {
+    metrics.incrementSpans(spans.size());
+    List<Span> sampled = sample(spans);
+    if (sampled.isEmpty()) {
+      ackReplyConsumer.ack();
+      return;
+    }
+    long startNanos = System.nanoTime();
+    try {
+      storage.spanConsumer().accept(sampled).enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          long nowNanos = System.nanoTime();
+          flowControl.onStored(nowNanos - startNanos, nowNanos);
+          ackReplyConsumer.ack();
+        }
+
+        @Override public void onError(Throwable t) {
+          onStorageError(sampled.size(), t, ackReplyConsumer);
+        }
+      });
+    } catch (RuntimeException e) {
+      onStorageError(sampled.size(), e, ackReplyConsumer);
+    }
+  }
+
+  void onStorageError(int spanCount, Throwable t, AckReplyConsumer ackReplyConsumer) {
+    metrics.incrementSpansDropped(spanCount);
+    flowControl.onStorageError(storage.isOverCapacity(t), System.nanoTime());
+    LOG.warn("Cannot store {} spans due to {}", spanCount, t.getMessage(), t);
+    ackReplyConsumer.nack();
+  }
+
+  List<Span> sample(List<Span> spans) {
+    if (sampler == null || sampler == CollectorSampler.ALWAYS_SAMPLE) return spans;
+    List<Span> sampled = new ArrayList<>(spans.size());
+    for (Span span : spans) {
+      if (sampler.isSampled(span.traceId(), Boolean.TRUE.equals(span.debug()))) sampled.add(span);
+    }
+    int dropped = spans.size() - sampled.size();
+    if (dropped > 0) metrics.incrementSpansDropped(dropped);
+    return sampled;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class AdaptiveFlowControlTest {
+  static final long TARGET = TimeUnit.SECONDS.toNanos(1);
+
+  AdaptiveFlowControl flowControl = new AdaptiveFlowControl(TARGET, 1000);
+
+  @Test void growsWhileFasterThanTarget() {
+    flowControl.onStored(TARGET, 0);
+    flowControl.onStored(TARGET / 2, 0);
+
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.INITIAL_LIMIT + 2);
+  }
+
+  @Test void shrinksWhenSlowerThanTarget() {
+    flowControl.onStored(TARGET + 1, 0);
+
+    assertThat(flowControl.limit()).isEqualTo(90);
+  }
+
+  @Test void halvesWhenOverCapacity() {
+    flowControl.onStorageError(true, 0);
+
+    assertThat(flowControl.limit()).isEqualTo(50);
+  }
+
+  /** Writes in flight together report the same congestion. */
+  @Test void shrinksOncePerTargetLatency() {
+    flowControl.onStorageError(true, 0);
+    flowControl.onStorageError(true, TARGET - 1);
+    assertThat(flowControl.limit()).isEqualTo(50);
+
+    flowControl.onStorageError(true, TARGET);
+    assertThat(flowControl.limit()).isEqualTo(25);
+  }
+
+  @Test void staysWithinBounds() {
+    for (int i = 0; i < 20; i++) flowControl.onStorageError(true, i * TARGET);
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.MIN_LIMIT);
+
+    for (int i = 0; i < AdaptiveFlowControl.MAX_LIMIT * 2; i++) flowControl.onStored(0, 0);
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.MAX_LIMIT);
+  }
+
+  @Test void acquire_blocksAtLimit() throws Exception {
+    for (int i = 0; i < 20; i++) flowControl.onStorageError(true, i * TARGET); // limit is 1
+    flowControl.acquire(1);
+
+    CompletableFuture<Void> acquired = CompletableFuture.runAsync(() -> {
+      try {
+        flowControl.acquire(1);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    Thread.sleep(100);
+    assertThat(acquired).isNotDone();
+
+    flowControl.release(1);
+    acquired.get(10, TimeUnit.SECONDS);
+    assertThat(flowControl.messages()).isEqualTo(1);
+  }
+
+  @Test void acquire_blocksAtMaxBytes() throws Exception {
+    flowControl.acquire(600);
+
+    CompletableFuture<Void> acquired = CompletableFuture.runAsync(() -> {
+      try {
+        flowControl.acquire(600);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    });
+    Thread.sleep(100);
+    assertThat(acquired).isNotDone();
+
+    flowControl.release(600);
+    acquired.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test void acquire_largeMessageWhenNothingInFlight() throws Exception {
+    flowControl.acquire(2000);
+
+    assertThat(flowControl.messages()).isEqualTo(1);
+  }
+
+  @Test void releaseOnReply() throws Exception {
+    AckReplyConsumer ackReplyConsumer = mock(AckReplyConsumer.class);
+    flowControl.acquire(10);
+    flowControl.acquire(10);
+
+    flowControl.releaseOnReply(ackReplyConsumer, 10).ack();
+    flowControl.releaseOnReply(ackReplyConsumer, 10).nack();
+
+    verify(ackReplyConsumer).ack();
+    verify(ackReplyConsumer).nack();
+    assertThat(flowControl.messages()).isZero();
+  }
+}
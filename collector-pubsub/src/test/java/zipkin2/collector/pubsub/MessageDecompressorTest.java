@@ -0,0 +1,51 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageDecompressorTest {
+  byte[] bytes = {1, 2, 3, 4, 5};
+
+  @Test void wrap_backingArray() {
+    ByteBuffer wrapped = MessageDecompressor.wrap(UnsafeByteOperations.unsafeWrap(bytes));
+
+    assertThat(wrapped.array()).isSameAs(bytes);
+    assertThat(MessageDecompressor.toArray(wrapped)).isSameAs(bytes);
+  }
+
+  @Test void wrap_substring() {
+    ByteBuffer wrapped =
+        MessageDecompressor.wrap(UnsafeByteOperations.unsafeWrap(bytes).substring(1, 4));
+
+    assertThat(wrapped.array()).isSameAs(bytes);
+    assertThat(MessageDecompressor.toArray(wrapped)).containsExactly(2, 3, 4);
+  }
+
+  @Test void wrap_directBuffer() {
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+
+    ByteBuffer wrapped = MessageDecompressor.wrap(UnsafeByteOperations.unsafeWrap(direct));
+
+    assertThat(wrapped.isDirect()).isTrue();
+    assertThat(MessageDecompressor.toArray(wrapped)).containsExactly(bytes);
+  }
+
+  /** A large concatenation has no single backing array, so it is copied. */
+  @Test void wrap_copiesConcatenation() {
+    byte[] large = new byte[1024];
+    ByteString data = UnsafeByteOperations.unsafeWrap(large).concat(ByteString.copyFrom(bytes));
+
+    ByteBuffer wrapped = MessageDecompressor.wrap(data);
+
+    assertThat(wrapped.array()).isNotSameAs(large).hasSize(large.length + bytes.length);
+    assertThat(ByteString.copyFrom(wrapped)).isEqualTo(data);
+  }
+}
@@ -31,11 +31,15 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import zipkin2.Span;
 import zipkin2.codec.Encoding;
 import zipkin2.collector.CollectorComponent;
+import zipkin2.collector.CollectorSampler;
 import zipkin2.collector.InMemoryCollectorMetrics;
 import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.stackdriver.StackdriverStorage;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
 import static zipkin2.TestObjects.CLIENT_SPAN;
 import static zipkin2.TestObjects.LOTS_OF_SPANS;
 
@@ -48,12 +52,29 @@ class PubSubCollectorTest {
   private QueueBasedSubscriberImpl subImplTest = new QueueBasedSubscriberImpl();
 
   @BeforeEach void initCollector(Resources resources) throws IOException {
+    store = InMemoryStorage.newBuilder().build();
+    metrics = new InMemoryCollectorMetrics();
+
+    collector = new PubSubCollector.Builder()
+        .subscription(SubscriptionName.format("test-project", "test-subscription"))
+        .storage(store)
+        .encoding(Encoding.JSON)
+        .executorProvider(testExecutorProvider())
+        .subscriberSettings(subscriberSettings(resources, subImplTest))
+        .metrics(metrics)
+        .build()
+        .start();
+    metrics = metrics.forTransport("pubsub");
+  }
+
+  SubscriberSettings subscriberSettings(Resources resources, QueueBasedSubscriberImpl subImpl)
+      throws IOException {
     String serverName = InProcessServerBuilder.generateName();
 
     Server server = InProcessServerBuilder
         .forName(serverName)
         .directExecutor()
-        .addService(subImplTest)
+        .addService(subImpl)
         .build().start();
     resources.register(server, Duration.ofSeconds(10)); // shutdown deadline
 
@@ -66,26 +87,13 @@ class PubSubCollectorTest {
 
     ExecutorProvider executorProvider = testExecutorProvider();
 
-    store = InMemoryStorage.newBuilder().build();
-    metrics = new InMemoryCollectorMetrics();
-
     SubscriberSettings subscriberSettings = new SubscriberSettings();
     subscriberSettings.setChannelProvider(transportChannelProvider);
     subscriberSettings.setExecutorProvider(executorProvider);
     subscriberSettings.setCredentialsProvider(new NoCredentialsProvider());
     subscriberSettings.setFlowControlSettings(
         FlowControlSettings.newBuilder().setMaxOutstandingElementCount(1000L).build());
-
-    collector = new PubSubCollector.Builder()
-        .subscription(SubscriptionName.format("test-project", "test-subscription"))
-        .storage(store)
-        .encoding(Encoding.JSON)
-        .executorProvider(executorProvider)
-        .subscriberSettings(subscriberSettings)
-        .metrics(metrics)
-        .build()
-        .start();
-    metrics = metrics.forTransport("pubsub");
+    return subscriberSettings;
   }
 
   @Test void collectSpans() throws Exception {
@@ -94,11 +102,123 @@ class PubSubCollectorTest {
     assertSpansAccepted(spans);
   }
 
+  /** Uses a separate server, as the stream of the other collector would take a span. */
+  @Test void collectSpans_multipleSubscriptions(Resources resources) throws Exception {
+    QueueBasedSubscriberImpl subImpl = new QueueBasedSubscriberImpl();
+    metrics = new InMemoryCollectorMetrics();
+    PubSubCollector multiple = new PubSubCollector.Builder()
+        .subscriptions(List.of(
+            SubscriptionName.format("test-project", "test-subscription-a"),
+            SubscriptionName.format("test-project", "test-subscription-b")))
+        .storage(store)
+        .subscriberSettings(subscriberSettings(resources, subImpl))
+        .metrics(metrics)
+        .build();
+    multiple.start();
+    metrics = metrics.forTransport("pubsub");
+
+    try {
+      assertThat(multiple.subscribers).hasSize(2);
+      assertThat(multiple.sharedExecutor).isNotNull();
+
+      List<Span> spans = Arrays.asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]);
+      subImpl.addSpans(spans);
+      assertSpansAccepted(spans);
+    } finally {
+      multiple.close();
+    }
+    assertThat(multiple.sharedExecutor.isShutdown()).isTrue();
+  }
+
+  /** Uses a separate server, as the stream of the other collector would take a span. */
+  @Test void collectSpans_batched(Resources resources) throws Exception {
+    QueueBasedSubscriberImpl subImpl = new QueueBasedSubscriberImpl();
+    metrics = new InMemoryCollectorMetrics();
+    PubSubCollector batched = new PubSubCollector.Builder()
+        .subscription(SubscriptionName.format("test-project", "test-subscription-batched"))
+        .storage(store)
+        .subscriberSettings(subscriberSettings(resources, subImpl))
+        .metrics(metrics)
+        .batchLinger(10, TimeUnit.MILLISECONDS)
+        .build();
+    batched.start();
+    metrics = metrics.forTransport("pubsub");
+
+    try {
+      assertThat(batched.batcher).isNotNull();
+
+      List<Span> spans = Arrays.asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]);
+      subImpl.addSpans(spans);
+      assertSpansAccepted(spans);
+    } finally {
+      batched.close();
+    }
+    assertThat(batched.batcher.scheduler.isShutdown()).isTrue();
+  }
+
+  /** Receivers block on flow control, so they need threads beyond the client's defaults. */
+  @Test void collectSpans_adaptiveFlowControl(Resources resources) throws Exception {
+    QueueBasedSubscriberImpl subImpl = new QueueBasedSubscriberImpl();
+    metrics = new InMemoryCollectorMetrics();
+    PubSubCollector adaptive = new PubSubCollector.Builder()
+        .subscription(SubscriptionName.format("test-project", "test-subscription-adaptive"))
+        .storage(store)
+        .subscriberSettings(subscriberSettings(resources, subImpl))
+        .metrics(metrics)
+        .adaptiveFlowControl(true)
+        .build();
+    adaptive.start();
+    metrics = metrics.forTransport("pubsub");
+
+    try {
+      assertThat(adaptive.sharedExecutor).isNotNull();
+
+      List<Span> spans = Arrays.asList(LOTS_OF_SPANS[0], LOTS_OF_SPANS[1], LOTS_OF_SPANS[2]);
+      subImpl.addSpans(spans);
+      assertSpansAccepted(spans);
+    } finally {
+      adaptive.close();
+    }
+    assertThat(adaptive.sharedExecutor.isShutdown()).isTrue();
+  }
+
+  @Test void adaptiveFlowControl() {
+    PubSubCollector adaptive =
+        new PubSubCollector.Builder().storage(store).adaptiveFlowControl(true).build();
+
+    assertThat(adaptive.flowControl).isNotNull();
+    assertThat(adaptive.spanConsumer.flowControl).isSameAs(adaptive.flowControl);
+    assertThat(new PubSubCollector.Builder().storage(store).build().flowControl).isNull();
+  }
+
+  @Test void batch_invalid() {
+    PubSubCollector.Builder builder = new PubSubCollector.Builder().storage(store);
+    assertThatThrownBy(() -> builder.batchLinger(-1, TimeUnit.MILLISECONDS))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> builder.batchMaxSpans(0))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> builder.batchMaxBytes(0))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThat(builder.build().batchLingerNanos).isZero();
+  }
+
   @Test void testNow() {
     subImplTest.addSpan(CLIENT_SPAN);
     await().atMost(10, TimeUnit.SECONDS).until(() -> store.acceptedSpanCount() == 1);
   }
 
+  @Test void proto3Consumer_onlyWithStackdriverStorageAndNoSampling() {
+    StackdriverStorage stackdriverStorage = mock(StackdriverStorage.class);
+
+    assertThat(new PubSubCollector.Builder().storage(store).build().proto3Consumer).isNull();
+    assertThat(new PubSubCollector.Builder().storage(stackdriverStorage).build().proto3Consumer)
+        .isNotNull();
+    assertThat(new PubSubCollector.Builder()
+        .storage(stackdriverStorage)
+        .sampler(CollectorSampler.create(0.5f))
+        .build().proto3Consumer).isNull();
+  }
+
   @AfterEach void teardown() throws Exception {
     store.close();
     collector.close();
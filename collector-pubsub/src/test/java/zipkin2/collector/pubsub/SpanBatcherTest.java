@@ -0,0 +1,203 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.Collector;
+import zipkin2.collector.InMemoryCollectorMetrics;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+import zipkin2.storage.stackdriver.StackdriverStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.TRACE;
+
+class SpanBatcherTest {
+  static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  SpanConsumer spanConsumer = mock(SpanConsumer.class);
+  StorageComponent storage = mock(StorageComponent.class);
+  Collector collector;
+  StackdriverStorage stackdriverStorage = mock(StackdriverStorage.class);
+  StackdriverProto3Consumer proto3Consumer = new StackdriverProto3Consumer(stackdriverStorage);
+  List<AckReplyConsumer> ackReplyConsumers = new ArrayList<>();
+  SpanBatcher batcher;
+
+  SpanBatcherTest() {
+    when(storage.spanConsumer()).thenReturn(spanConsumer);
+    collector = Collector.newBuilder(PubSubCollector.class).storage(storage).metrics(metrics)
+        .build();
+  }
+
+  @AfterEach void close() {
+    if (batcher != null) batcher.close();
+  }
+
+  @Test void batchesUntilMaxSpans() {
+    when(spanConsumer.accept(any())).thenReturn(Call.create(null));
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, TRACE.size() * 2, 1 << 20);
+
+    acceptSpans(TRACE);
+    verify(spanConsumer, never()).accept(any());
+    acceptSpans(TRACE);
+
+    List<Span> expected = new ArrayList<>(TRACE);
+    expected.addAll(TRACE);
+    verify(spanConsumer).accept(expected);
+    for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size() * 2);
+  }
+
+  @Test void writesAfterLinger() {
+    when(spanConsumer.accept(any())).thenReturn(Call.create(null));
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer,
+        TimeUnit.MILLISECONDS.toNanos(10), 1000, 1 << 20);
+
+    acceptSpans(TRACE);
+
+    await().untilAsserted(() -> verify(ackReplyConsumers.get(0)).ack());
+    verify(spanConsumer).accept(TRACE);
+  }
+
+  /** A batch that would exceed the max bytes is written before adding the next message. */
+  @Test void writesBeforeMaxBytes() {
+    when(spanConsumer.accept(any())).thenReturn(Call.create(null));
+    int bytes = SpanBytesEncoder.JSON_V2.encodeList(TRACE).length;
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, 1000, bytes * 2 - 1);
+
+    acceptSpans(TRACE);
+    acceptSpans(TRACE);
+
+    verify(spanConsumer).accept(TRACE);
+    verify(ackReplyConsumers.get(0)).ack();
+    verify(ackReplyConsumers.get(1), never()).ack();
+  }
+
+  /** Like Collector.acceptSpans, messages are acked once their spans are passed to storage. */
+  @Test void storageError_acksAll() {
+    Call<Void> failedCall = failedCall();
+    when(spanConsumer.accept(any())).thenReturn(failedCall);
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, TRACE.size() * 2, 1 << 20);
+
+    acceptSpans(TRACE);
+    acceptSpans(TRACE);
+
+    for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) verify(ackReplyConsumer).ack();
+    assertThat(metrics.spansDropped()).isEqualTo(TRACE.size() * 2);
+  }
+
+  @Test void proto3_storageError_nacksAll() {
+    Call<Void> failedCall = failedCall();
+    when(stackdriverStorage.acceptProto3(any())).thenReturn(failedCall);
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, TRACE.size() * 2, 1 << 20);
+
+    acceptProto3(SpanBytesEncoder.PROTO3.encodeList(TRACE));
+    acceptProto3(SpanBytesEncoder.PROTO3.encodeList(TRACE));
+
+    for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) verify(ackReplyConsumer).nack();
+    assertThat(metrics.spansDropped()).isEqualTo(TRACE.size() * 2);
+  }
+
+  /** Like StoringSpanConsumer, a malformed message is acked, as redelivery can't fix it. */
+  @Test void malformed_ackedAndDroppedAlone() {
+    when(spanConsumer.accept(any())).thenReturn(Call.create(null));
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, TRACE.size(), 1 << 20);
+
+    AckReplyConsumer malformed = mock(AckReplyConsumer.class);
+    batcher.acceptSpans(ByteBuffer.wrap(new byte[] {'[', '{'}), SpanBytesDecoder.JSON_V2,
+        malformed);
+    acceptSpans(TRACE);
+
+    verify(malformed).ack();
+    verify(malformed, never()).nack();
+    verify(ackReplyConsumers.get(0)).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  /** Proto3 lists of spans are concatenated into one, which storage transcodes at once. */
+  @Test void proto3_concatenated() {
+    byte[] listOfSpans = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    when(stackdriverStorage.acceptProto3(any())).thenReturn(Call.create(null));
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, TRACE.size() * 2, 1 << 20);
+
+    acceptProto3(listOfSpans);
+    acceptProto3(listOfSpans);
+
+    ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+    verify(stackdriverStorage).acceptProto3(captor.capture());
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(captor.getValue()))
+        .hasSize(TRACE.size() * 2);
+    for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size() * 2);
+  }
+
+  @Test void proto3_malformed_ackedAndDroppedAlone() {
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, 1000, 1 << 20);
+
+    acceptProto3(new byte[] {10, 100});
+
+    verify(ackReplyConsumers.get(0)).ack();
+    verify(ackReplyConsumers.get(0), never()).nack();
+    verify(stackdriverStorage, never()).acceptProto3(any());
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void close_writesPending() {
+    when(spanConsumer.accept(any())).thenReturn(Call.create(null));
+    batcher = new SpanBatcher(collector, metrics, proto3Consumer, HOUR, 1000, 1 << 20);
+    acceptSpans(TRACE);
+
+    batcher.close();
+    acceptSpans(TRACE); // written immediately after close
+
+    verify(spanConsumer, times(2)).accept(TRACE);
+    for (AckReplyConsumer ackReplyConsumer : ackReplyConsumers) verify(ackReplyConsumer).ack();
+    assertThat(batcher.scheduler.isShutdown()).isTrue();
+  }
+
+  void acceptSpans(List<Span> spans) {
+    AckReplyConsumer ackReplyConsumer = mock(AckReplyConsumer.class);
+    ackReplyConsumers.add(ackReplyConsumer);
+    batcher.acceptSpans(ByteBuffer.wrap(SpanBytesEncoder.JSON_V2.encodeList(spans)),
+        SpanBytesDecoder.JSON_V2, ackReplyConsumer);
+  }
+
+  void acceptProto3(byte[] listOfSpans) {
+    AckReplyConsumer ackReplyConsumer = mock(AckReplyConsumer.class);
+    ackReplyConsumers.add(ackReplyConsumer);
+    batcher.acceptProto3(listOfSpans, ackReplyConsumer);
+  }
+
+  static Call<Void> failedCall() {
+    Call<Void> call = mock(Call.class);
+    doAnswer(invocation -> {
+      invocation.<Callback<Void>>getArgument(0).onError(new IOException("unavailable"));
+      return null;
+    }).when(call).enqueue(any());
+    return call;
+  }
+}
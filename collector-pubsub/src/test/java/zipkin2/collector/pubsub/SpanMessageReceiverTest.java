@@ -0,0 +1,318 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.github.luben.zstd.Zstd;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.Collector;
+import zipkin2.collector.InMemoryCollectorMetrics;
+import zipkin2.storage.InMemoryStorage;
+import zipkin2.storage.stackdriver.StackdriverStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.TRACE;
+
+class SpanMessageReceiverTest {
+  InMemoryStorage inMemoryStorage = InMemoryStorage.newBuilder().build();
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  Collector collector = Collector.newBuilder(PubSubCollector.class)
+      .storage(inMemoryStorage)
+      .metrics(metrics)
+      .build();
+  StackdriverStorage stackdriverStorage = mock(StackdriverStorage.class);
+  AckReplyConsumer ackReplyConsumer = mock(AckReplyConsumer.class);
+
+  SpanMessageReceiver receiver = new SpanMessageReceiver(collector, metrics,
+      new StackdriverProto3Consumer(stackdriverStorage));
+
+  @Test void proto3_transcodedByStorage() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    when(stackdriverStorage.acceptProto3(message)).thenReturn(Call.create(null));
+
+    receiver.receiveMessage(message(message), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messages()).isEqualTo(1);
+    assertThat(metrics.bytes()).isEqualTo(message.length);
+    assertThat(metrics.spans()).isEqualTo(TRACE.size());
+    assertThat(inMemoryStorage.acceptedSpanCount()).isZero();
+  }
+
+  @Test void proto3_malformed() {
+    byte[] message = {10, 100};
+    when(stackdriverStorage.acceptProto3(message)).thenThrow(new IllegalArgumentException());
+
+    receiver.receiveMessage(message(message), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void proto3_storageError() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    Call<Void> call = mock(Call.class);
+    doAnswer(invocation -> {
+      invocation.<Callback<Void>>getArgument(0).onError(new IOException("unavailable"));
+      return null;
+    }).when(call).enqueue(any());
+    when(stackdriverStorage.acceptProto3(message)).thenReturn(call);
+
+    receiver.receiveMessage(message(message), ackReplyConsumer);
+
+    verify(ackReplyConsumer).nack();
+    assertThat(metrics.spansDropped()).isEqualTo(TRACE.size());
+  }
+
+  @Test void jsonV2_transcodedByStorage() {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+    when(stackdriverStorage.acceptJsonV2(message)).thenReturn(Call.create(null));
+
+    receiver.receiveMessage(message(message), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size());
+    assertThat(inMemoryStorage.acceptedSpanCount()).isZero();
+  }
+
+  @Test void jsonV2_malformed() {
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+    byte[] message = Arrays.copyOf(json, json.length - 2); // detected as v2, but truncated
+
+    receiver.receiveMessage(message(message), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    verify(stackdriverStorage, never()).acceptJsonV2(any());
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  /** JSON v1 can't be transcoded. */
+  @Test void jsonV1_acceptedByCollector() {
+    receiver.receiveMessage(message(SpanBytesEncoder.JSON_V1.encodeList(TRACE)), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    verifyNoInteractions(stackdriverStorage);
+    assertThat(inMemoryStorage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+
+  @Test void proto3_acceptedByCollectorWithoutStackdriverStorage() {
+    receiver = new SpanMessageReceiver(collector, metrics, null);
+
+    receiver.receiveMessage(message(SpanBytesEncoder.PROTO3.encodeList(TRACE)), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(inMemoryStorage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+
+  /** Two spans framed as field 1, which are only read by storage. */
+  static final byte[] TRACE_ID_PREFIXED_SPANS = {10, 1, 'a', 10, 1, 'b'};
+
+  @Test void stackdriver_storedAsIs() {
+    when(stackdriverStorage.acceptTraceIdPrefixedSpans(TRACE_ID_PREFIXED_SPANS))
+        .thenReturn(Call.create(null));
+
+    receiver.receiveMessage(stackdriverMessage(TRACE_ID_PREFIXED_SPANS), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(2);
+    assertThat(inMemoryStorage.acceptedSpanCount()).isZero();
+  }
+
+  @Test void stackdriver_malformed() {
+    when(stackdriverStorage.acceptTraceIdPrefixedSpans(TRACE_ID_PREFIXED_SPANS))
+        .thenThrow(new IllegalArgumentException());
+
+    receiver.receiveMessage(stackdriverMessage(TRACE_ID_PREFIXED_SPANS), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  /** These spans can't be decoded, so are only stored by StackdriverStorage. */
+  @Test void stackdriver_droppedWithoutStackdriverStorage() {
+    receiver = new SpanMessageReceiver(collector, metrics, null);
+
+    receiver.receiveMessage(stackdriverMessage(TRACE_ID_PREFIXED_SPANS), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+    assertThat(inMemoryStorage.acceptedSpanCount()).isZero();
+  }
+
+  /** Senders can use different encodings on the same subscription. */
+  @Test void encodingDetectedPerMessage() {
+    receiver = new SpanMessageReceiver(collector, metrics, null);
+
+    receiver.receiveMessage(message(SpanBytesEncoder.JSON_V2.encodeList(TRACE)), ackReplyConsumer);
+    receiver.receiveMessage(message(SpanBytesEncoder.PROTO3.encodeList(TRACE)), ackReplyConsumer);
+    receiver.receiveMessage(message(SpanBytesEncoder.THRIFT.encodeList(TRACE)), ackReplyConsumer);
+    receiver.receiveMessage(message(SpanBytesEncoder.JSON_V1.encodeList(TRACE)), ackReplyConsumer);
+
+    verify(ackReplyConsumer, times(4)).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size() * 4);
+    assertThat(metrics.messagesDropped()).isZero();
+  }
+
+  @Test void encodingAttribute() {
+    receiver = new SpanMessageReceiver(collector, metrics, null);
+
+    receiver.receiveMessage(message(SpanBytesEncoder.THRIFT.encodeList(TRACE)).toBuilder()
+        .putAttributes(SpanMessageReceiver.ENCODING_ATTRIBUTE, "thrift")
+        .build(), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(inMemoryStorage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+
+  /** The attribute is trusted, so the message isn't checked before it is passed to storage. */
+  @Test void encodingAttribute_proto3TranscodedByStorage() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    when(stackdriverStorage.acceptProto3(message)).thenReturn(Call.create(null));
+
+    receiver.receiveMessage(message(message).toBuilder()
+        .putAttributes(SpanMessageReceiver.ENCODING_ATTRIBUTE, "proto3")
+        .build(), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size());
+  }
+
+  @Test void encodingAttribute_mismatched() {
+    receiver.receiveMessage(message(SpanBytesEncoder.JSON_V2.encodeList(TRACE)).toBuilder()
+        .putAttributes(SpanMessageReceiver.ENCODING_ATTRIBUTE, "thrift")
+        .build(), ackReplyConsumer);
+
+    verify(ackReplyConsumer).nack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void gzip_decompressed() throws IOException {
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+      gzip.write(json);
+    }
+    receiver = new SpanMessageReceiver(collector, metrics, null);
+
+    receiver.receiveMessage(message(gzipped.toByteArray(), "gzip"), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.bytes()).isEqualTo(gzipped.size());
+    assertThat(inMemoryStorage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+
+  /** Proto3 is detected after decompression, so it is still transcoded. */
+  @Test void zstd_decompressed() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    when(stackdriverStorage.acceptProto3(message)).thenReturn(Call.create(null));
+
+    receiver.receiveMessage(message(Zstd.compress(message), "zstd"), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size());
+  }
+
+  @Test void compressed_malformed() {
+    receiver.receiveMessage(message(new byte[] {1, 2, 3}, "gzip"), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void compressed_unsupportedEncoding() {
+    receiver.receiveMessage(message(new byte[] {1, 2, 3}, "br"), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void json_decodedFromSubstring() {
+    byte[] json = SpanBytesEncoder.JSON_V2.encodeList(TRACE);
+    ByteString data = ByteString.copyFrom(new byte[] {1}).concat(ByteString.copyFrom(json))
+        .concat(ByteString.copyFrom(new byte[] {2}))
+        .substring(1, json.length + 1);
+    receiver = new SpanMessageReceiver(collector, metrics, null);
+
+    receiver.receiveMessage(PubsubMessage.newBuilder().setData(data).build(), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(inMemoryStorage.acceptedSpanCount()).isEqualTo(TRACE.size());
+  }
+
+  @Test void empty() {
+    receiver.receiveMessage(message(new byte[0]), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void unknownEncoding() {
+    receiver.receiveMessage(message(new byte[] {'x'}), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void adaptiveFlowControl_releasedOnceStored() {
+    AdaptiveFlowControl flowControl = AdaptiveFlowControl.create();
+    receiver = new SpanMessageReceiver(collector, metrics, null, null, flowControl,
+        new StoringSpanConsumer(inMemoryStorage, null, metrics, flowControl));
+
+    receiver.receiveMessage(message(SpanBytesEncoder.JSON_V2.encodeList(TRACE)), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(inMemoryStorage.acceptedSpanCount()).isEqualTo(TRACE.size());
+    assertThat(flowControl.messages()).isZero();
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.INITIAL_LIMIT + 1);
+  }
+
+  @Test void adaptiveFlowControl_proto3() {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    when(stackdriverStorage.acceptProto3(message)).thenReturn(Call.create(null));
+    AdaptiveFlowControl flowControl = AdaptiveFlowControl.create();
+    receiver = new SpanMessageReceiver(collector, metrics,
+        new StackdriverProto3Consumer(stackdriverStorage, flowControl), null, flowControl,
+        new StoringSpanConsumer(inMemoryStorage, null, metrics, flowControl));
+
+    receiver.receiveMessage(message(message), ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(flowControl.messages()).isZero();
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.INITIAL_LIMIT + 1);
+  }
+
+  static PubsubMessage message(byte[] data, String contentEncoding) {
+    return message(data).toBuilder()
+        .putAttributes(MessageDecompressor.CONTENT_ENCODING_ATTRIBUTE, contentEncoding)
+        .build();
+  }
+
+  static PubsubMessage stackdriverMessage(byte[] data) {
+    return message(data).toBuilder()
+        .putAttributes(SpanMessageReceiver.ENCODING_ATTRIBUTE, "stackdriver")
+        .build();
+  }
+
+  static PubsubMessage message(byte[] data) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFrom(data)).build();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.collector.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.InMemoryCollectorMetrics;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.TRACE;
+
+class StoringSpanConsumerTest {
+  InMemoryCollectorMetrics metrics = new InMemoryCollectorMetrics();
+  SpanConsumer spanConsumer = mock(SpanConsumer.class);
+  StorageComponent storage = mock(StorageComponent.class);
+  AdaptiveFlowControl flowControl =
+      new AdaptiveFlowControl(TimeUnit.SECONDS.toNanos(1), Long.MAX_VALUE);
+  AckReplyConsumer ackReplyConsumer = mock(AckReplyConsumer.class);
+  StoringSpanConsumer consumer =
+      new StoringSpanConsumer(storage, null, metrics, flowControl);
+
+  StoringSpanConsumerTest() {
+    when(storage.spanConsumer()).thenReturn(spanConsumer);
+  }
+
+  @Test void acksOnceStored() {
+    when(spanConsumer.accept(TRACE)).thenReturn(Call.create(null));
+
+    consumer.accept(TRACE, ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.spans()).isEqualTo(TRACE.size());
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.INITIAL_LIMIT + 1);
+  }
+
+  /** Unlike Collector.accept, the message is redelivered when storage fails. */
+  @Test void nacksWhenStorageFails() {
+    IOException overCapacity = new IOException("RESOURCE_EXHAUSTED");
+    Call<Void> call = mock(Call.class);
+    doAnswer(invocation -> {
+      invocation.<Callback<Void>>getArgument(0).onError(overCapacity);
+      return null;
+    }).when(call).enqueue(any());
+    when(spanConsumer.accept(TRACE)).thenReturn(call);
+    when(storage.isOverCapacity(overCapacity)).thenReturn(true);
+
+    consumer.accept(TRACE, ackReplyConsumer);
+
+    verify(ackReplyConsumer).nack();
+    assertThat(metrics.spansDropped()).isEqualTo(TRACE.size());
+    assertThat(flowControl.limit()).isEqualTo(AdaptiveFlowControl.INITIAL_LIMIT / 2);
+  }
+
+  @Test void sampled() {
+    consumer = new StoringSpanConsumer(storage, CollectorSampler.create(0.0f), metrics,
+        flowControl);
+
+    consumer.accept(TRACE, ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    verifyNoInteractions(spanConsumer);
+    assertThat(metrics.spansDropped()).isEqualTo(TRACE.size());
+  }
+
+  @Test void acceptSpans_malformed() {
+    consumer.acceptSpans(ByteBuffer.wrap(new byte[] {'[', '{'}), SpanBytesDecoder.JSON_V2,
+        ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+  }
+
+  @Test void acceptSpans() {
+    when(spanConsumer.accept(TRACE)).thenReturn(Call.create(null));
+
+    consumer.acceptSpans(ByteBuffer.wrap(SpanBytesEncoder.JSON_V2.encodeList(TRACE)),
+        SpanBytesDecoder.JSON_V2, ackReplyConsumer);
+
+    verify(ackReplyConsumer).ack();
+  }
+}
@@ -7,15 +7,22 @@ package zipkin2.reporter.stackdriver.brave;
 import brave.Span;
 import brave.Tag;
 import brave.handler.MutableSpan;
-import com.google.common.net.InetAddresses;
 import com.google.devtools.cloudtrace.v2.AttributeValue;
 import com.google.devtools.cloudtrace.v2.Span.Attributes;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
-import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.Map;
-
+import java.util.Set;
+import zipkin2.reporter.stackdriver.brave.LocalIpCache.LocalIp;
+
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ATTRIBUTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ATTRIBUTE_KEY_BYTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.isBool;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.isInt64;
 import static zipkin2.reporter.stackdriver.brave.SpanUtil.toTruncatableString;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.truncatedLength;
 
 /**
  * LabelExtractor extracts the set of Stackdriver Span labels equivalent to the annotations in a
@@ -34,16 +41,43 @@ import static zipkin2.reporter.stackdriver.brave.SpanUtil.toTruncatableString;
  */
 final class AttributesExtractor {
 
-  private static final String kAgentLabelKey = "/agent";
-  private static final String kComponentLabelKey = "/component";
-  private static final String kKindLabelKey = "/kind";
+  static final String kAgentLabelKey = "/agent";
+  static final String kComponentLabelKey = "/component";
+  static final String kKindLabelKey = "/kind";
+
+  /** Labels whose values are low cardinality, so worth caching along with the service name. */
+  static final Set<String> CACHED_LABELS = new HashSet<>(Arrays.asList(
+      "http.method", "http.status_code", "/http/method", "/http/status_code", "method", "status"));
+  static final AttributeValueCache VALUE_CACHE = new AttributeValueCache(
+      AttributeValueCache.DEFAULT_MAX_ENTRIES, AttributeValueCache.DEFAULT_MAX_VALUE_LENGTH);
+  /** Like {@link #VALUE_CACHE}, except for {@link #typedAttributes} */
+  static final AttributeValueCache TYPED_VALUE_CACHE = new AttributeValueCache(
+      AttributeValueCache.DEFAULT_MAX_ENTRIES, AttributeValueCache.DEFAULT_MAX_VALUE_LENGTH,
+      AttributesExtractor::toTypedAttributeValue);
+  static final AttributeValue TRUE_VALUE = AttributeValue.newBuilder().setBoolValue(true).build();
+  static final AttributeValue FALSE_VALUE = AttributeValue.newBuilder().setBoolValue(false).build();
+  static final Map<Span.Kind, AttributeValue> KIND_VALUES = new EnumMap<>(Span.Kind.class);
+  static final LocalIpCache LOCAL_IPS = new LocalIpCache(LocalIpCache.DEFAULT_MAX_ENTRIES);
+
+  static {
+    for (Span.Kind kind : Span.Kind.values()) {
+      KIND_VALUES.put(kind, toAttributeValue(kindLabel(kind)));
+    }
+  }
+
+  /** Read once, as looking up a system property for each root span is relatively expensive. */
+  static final String AGENT_NAME =
+      System.getProperty("stackdriver.trace.zipkin.agent", "zipkin-java");
+  static final AttributeValue AGENT_VALUE = toAttributeValue(AGENT_NAME);
 
-  private final Tag<Throwable> errorTag;
-  private final Map<String, String> renamedLabels;
+  final Tag<Throwable> errorTag;
+  final RenameRules renameRules;
+  final boolean typedAttributes;
 
-  AttributesExtractor(Tag<Throwable> errorTag, Map<String, String> renamedLabels) {
+  AttributesExtractor(Tag<Throwable> errorTag, RenameRules renameRules, boolean typedAttributes) {
     this.errorTag = errorTag;
-    this.renamedLabels = renamedLabels;
+    this.renameRules = renameRules;
+    this.typedAttributes = typedAttributes;
   }
 
   /**
@@ -55,66 +89,136 @@ final class AttributesExtractor {
   Attributes extract(MutableSpan braveSpan) {
     Attributes.Builder attributes = Attributes.newBuilder();
 
-    // Add Kind as a tag for now since there is no structured way of sending it with Stackdriver
-    // Trace API V2
-    if (braveSpan.kind() != null) {
-      attributes.putAttributeMap(kKindLabelKey, toAttributeValue(kindLabel(braveSpan.kind())));
+    // Add Kind as a tag unless sent as the span_kind field.
+    if (braveSpan.kind() != null && !typedAttributes) {
+      attributes.putAttributeMap(kKindLabelKey, KIND_VALUES.get(braveSpan.kind()));
     }
 
+    int dropped = 0;
     String errorValue = errorTag.value(braveSpan.error(), null);
     if (errorValue != null) {
-      attributes.putAttributeMap(getLabelName("error"), toAttributeValue(errorValue));
+      String labelName = renameRules.attributeName("error");
+      if (isValidKey(labelName)) {
+        attributes.putAttributeMap(labelName, tagValue(labelName, errorValue));
+      } else {
+        dropped++;
+      }
     }
 
-    braveSpan.forEachTag(this::addTag, attributes);
-
-    // Only use server receive spans to extract endpoint data as spans
-    // will be rewritten into multiple single-host Stackdriver spans. A client send
-    // trace might not show the final destination.
-    if (braveSpan.localServiceName() != null && braveSpan.kind() == Span.Kind.SERVER) {
-      if (braveSpan.localIp() != null) {
-        // Create an IP without querying DNS
-        InetAddress ip = InetAddresses.forString(braveSpan.localIp());
-        if (ip instanceof Inet4Address) {
-          attributes.putAttributeMap(
-              getLabelName("endpoint.ipv4"), toAttributeValue(ip.getHostAddress()));
-        } else if (ip instanceof Inet6Address) {
-          attributes.putAttributeMap(
-              getLabelName("endpoint.ipv6"), toAttributeValue(ip.getHostAddress()));
-        }
+    // Stackdriver only accepts MAX_ATTRIBUTES, so tags are capped to what remains after the labels
+    // we add ourselves. Tags past the cap, or with keys that are too long, are counted as dropped.
+    LocalIp ip = serverIp(braveSpan);
+    int tagBudget =
+        MAX_ATTRIBUTES - reservedAttributeCount(braveSpan, errorValue, ip, typedAttributes);
+    for (int i = 0, length = braveSpan.tagCount(); i < length; i++) {
+      String key = braveSpan.tagKeyAt(i), value = braveSpan.tagValueAt(i);
+      RenameRules.Rule rule = renameRules.rule(key);
+      if (rule != null) {
+        if (rule.drop) continue;
+        value = rule.value(value);
+      }
+      String labelName = rule != null ? rule.attributeName : key;
+      if (tagBudget > 0 && isValidKey(labelName)) {
+        attributes.putAttributeMap(labelName, tagValue(labelName, value));
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+
+      String copyLabelName = rule != null ? rule.copyAttributeName(braveSpan.name()) : null;
+      if (copyLabelName == null) continue;
+      if (tagBudget > 0 && isValidKey(copyLabelName)) {
+        attributes.putAttributeMap(copyLabelName, tagValue(copyLabelName, value));
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+    }
+
+    if (ip != null) {
+      String labelName = renameRules.attributeName(ip.ipv6 ? "endpoint.ipv6" : "endpoint.ipv4");
+      if (isValidKey(labelName)) {
+        attributes.putAttributeMap(labelName, ip.value);
+      } else {
+        dropped++;
       }
     }
 
     if (braveSpan.localServiceName() != null &&
         !braveSpan.localServiceName().isEmpty()) {
       attributes.putAttributeMap(
-          kComponentLabelKey, toAttributeValue(braveSpan.localServiceName()));
+          kComponentLabelKey, VALUE_CACHE.get(braveSpan.localServiceName()));
     }
 
     if (braveSpan.parentId() == null) {
-      String agentName = System.getProperty("stackdriver.trace.zipkin.agent", "zipkin-java");
-      attributes.putAttributeMap(kAgentLabelKey, toAttributeValue(agentName));
+      attributes.putAttributeMap(kAgentLabelKey, AGENT_VALUE);
     }
 
+    if (dropped > 0) attributes.setDroppedAttributesCount(dropped);
     return attributes.build();
   }
 
-  void addTag(Attributes.Builder target, String key, String value) {
-    target.putAttributeMap(getLabelName(key), toAttributeValue(value));
+  /**
+   * Returns the local IP added as an attribute, or null if there is none or it isn't an IP
+   * literal.
+   *
+   * <p>Only server spans are used to extract endpoint data, as spans will be rewritten into
+   * multiple single-host Stackdriver spans. A client span might not show the final destination.
+   */
+  static LocalIp serverIp(MutableSpan braveSpan) {
+    if (braveSpan.localServiceName() == null || braveSpan.kind() != Span.Kind.SERVER) return null;
+    String localIp = braveSpan.localIp();
+    return localIp != null ? LOCAL_IPS.get(localIp) : null;
+  }
+
+  /**
+   * Returns the count of attributes added regardless of tags: the span kind, error, server address,
+   * component and agent. These are always kept, so tags are what's dropped when over the limit.
+   *
+   * @param serverIp the result of {@link #serverIp(MutableSpan)}
+   */
+  static int reservedAttributeCount(MutableSpan braveSpan, String errorValue, LocalIp serverIp,
+      boolean typedAttributes) {
+    int count = 0;
+    if (braveSpan.kind() != null && !typedAttributes) count++;
+    if (errorValue != null) count++;
+    if (serverIp != null) count++;
+    String localServiceName = braveSpan.localServiceName();
+    if (localServiceName != null && !localServiceName.isEmpty()) count++;
+    if (braveSpan.parentId() == null) count++;
+    return count;
+  }
+
+  /** Stackdriver rejects attribute keys longer than {@link SpanUtil#MAX_ATTRIBUTE_KEY_BYTES}. */
+  static boolean isValidKey(String key) {
+    return truncatedLength(key, MAX_ATTRIBUTE_KEY_BYTES) == key.length();
   }
 
   static AttributeValue toAttributeValue(String text) {
     return AttributeValue.newBuilder()
-        .setStringValue(toTruncatableString(text))
+        .setStringValue(toTruncatableString(text, MAX_ATTRIBUTE_VALUE_BYTES))
         .build();
   }
 
-  private String getLabelName(String zipkinName) {
-    String renamed = renamedLabels.get(zipkinName);
-    return renamed != null ? renamed : zipkinName;
+  /** Returns a cached value when the label is in {@link #CACHED_LABELS}. */
+  static AttributeValue toAttributeValue(String labelName, String text) {
+    return CACHED_LABELS.contains(labelName) ? VALUE_CACHE.get(text) : toAttributeValue(text);
+  }
+
+  /** Returns an int or bool value when the text is one, or a string value otherwise. */
+  static AttributeValue toTypedAttributeValue(String text) {
+    if (isInt64(text)) return AttributeValue.newBuilder().setIntValue(Long.parseLong(text)).build();
+    if (isBool(text)) return text.equals("true") ? TRUE_VALUE : FALSE_VALUE;
+    return toAttributeValue(text);
+  }
+
+  AttributeValue tagValue(String labelName, String text) {
+    if (!typedAttributes) return toAttributeValue(labelName, text);
+    return CACHED_LABELS.contains(labelName)
+        ? TYPED_VALUE_CACHE.get(text) : toTypedAttributeValue(text);
   }
 
-  private String kindLabel(Span.Kind kind) {
+  static String kindLabel(Span.Kind kind) {
     switch (kind) {
       case CLIENT:
         return "client";
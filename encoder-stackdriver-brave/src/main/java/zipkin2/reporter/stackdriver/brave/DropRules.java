@@ -0,0 +1,162 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rules that decide which Brave spans aren't sent to Stackdriver, such as health checks. These are
+ * compiled into lookups by span name, kind and tag, so that a span is checked with at most one pass
+ * over its tags, before it is translated.
+ *
+ * <pre>{@code
+ * dropRules = DropRules.newBuilder()
+ *   .spanName("get /health")
+ *   .tag("http.path", "/health")
+ *   .build();
+ * }</pre>
+ *
+ * <p>A span is dropped when any rule matches. To change tags of spans that are kept, use {@link
+ * RenameRules.Builder#drop(String)} or {@link RenameRules.Builder#redact(String, String)}.
+ */
+public final class DropRules {
+  /** Matches no spans. */
+  public static final DropRules NONE = newBuilder().build();
+
+  /** Marks a tag key that matches regardless of its value. */
+  static final Set<String> ANY_VALUE = Collections.emptySet();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    final Set<String> spanNames = new LinkedHashSet<>();
+    final Set<Kind> kinds = EnumSet.noneOf(Kind.class);
+    final Map<String, Set<String>> tags = new LinkedHashMap<>();
+
+    Builder() {
+    }
+
+    Builder(DropRules source) {
+      spanNames.addAll(source.spanNames);
+      kinds.addAll(source.kinds);
+      for (Map.Entry<String, Set<String>> entry : source.tags.entrySet()) {
+        Set<String> values = entry.getValue();
+        tags.put(entry.getKey(), values == ANY_VALUE ? ANY_VALUE : new LinkedHashSet<>(values));
+      }
+    }
+
+    /** Drops spans with exactly this name. */
+    public Builder spanName(String spanName) {
+      if (spanName == null) throw new NullPointerException("spanName == null");
+      spanNames.add(spanName);
+      return this;
+    }
+
+    /** Drops spans of this kind. */
+    public Builder kind(Kind kind) {
+      if (kind == null) throw new NullPointerException("kind == null");
+      kinds.add(kind);
+      return this;
+    }
+
+    /** Drops spans that have this tag, regardless of its value. */
+    public Builder tagKey(String tagKey) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      tags.put(tagKey, ANY_VALUE);
+      return this;
+    }
+
+    /** Drops spans that have this tag with exactly this value. */
+    public Builder tag(String tagKey, String tagValue) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      if (tagValue == null) throw new NullPointerException("tagValue == null");
+      Set<String> values = tags.get(tagKey);
+      if (values == ANY_VALUE) return this; // already matches any value
+      if (values == null) tags.put(tagKey, values = new LinkedHashSet<>());
+      values.add(tagValue);
+      return this;
+    }
+
+    public DropRules build() {
+      return new DropRules(this);
+    }
+  }
+
+  final Set<String> spanNames;
+  final Set<Kind> kinds;
+  final Map<String, Set<String>> tags;
+
+  DropRules(Builder builder) {
+    // Hash collections instead of linked ones as iteration order doesn't matter after building
+    spanNames = new HashSet<>(builder.spanNames);
+    kinds = builder.kinds.isEmpty() ? EnumSet.noneOf(Kind.class) : EnumSet.copyOf(builder.kinds);
+    tags = new HashMap<>();
+    for (Map.Entry<String, Set<String>> entry : builder.tags.entrySet()) {
+      Set<String> values = entry.getValue();
+      tags.put(entry.getKey(), values == ANY_VALUE ? ANY_VALUE : new HashSet<>(values));
+    }
+  }
+
+  /** Returns true if the span shouldn't be sent. */
+  public boolean matches(MutableSpan span) {
+    if (span == null) throw new NullPointerException("span == null");
+    if (!spanNames.isEmpty() && span.name() != null && spanNames.contains(span.name())) {
+      return true;
+    }
+    if (span.kind() != null && kinds.contains(span.kind())) return true;
+    if (tags.isEmpty()) return false;
+    for (int i = 0, length = span.tagCount(); i < length; i++) {
+      Set<String> values = tags.get(span.tagKeyAt(i));
+      if (values == null) continue;
+      if (values == ANY_VALUE || values.contains(span.tagValueAt(i))) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns a handler that drops matching spans, so that handlers added after it, such as {@code
+   * AsyncZipkinSpanHandler} with {@link StackdriverV2Encoder}, never see them.
+   */
+  public SpanHandler toSpanHandler() {
+    return new DropRulesHandler(this);
+  }
+
+  @Override public String toString() {
+    return "DropRules{spanNames=" + spanNames + ", kinds=" + kinds + ", tags=" + tags + "}";
+  }
+
+  static final class DropRulesHandler extends SpanHandler {
+    final DropRules dropRules;
+
+    DropRulesHandler(DropRules dropRules) {
+      this.dropRules = dropRules;
+    }
+
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      return !dropRules.matches(span);
+    }
+
+    @Override public String toString() {
+      return dropRules.toString();
+    }
+  }
+}
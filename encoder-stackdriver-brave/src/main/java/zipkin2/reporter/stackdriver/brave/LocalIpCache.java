@@ -0,0 +1,174 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import com.google.devtools.cloudtrace.v2.AttributeValue;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.toAttributeValue;
+
+/**
+ * Caches the classification and normalization of local IPs, which are added as an attribute of
+ * server spans. A process has only a few local IPs, so this avoids parsing each span's IP into an
+ * {@link java.net.InetAddress}.
+ *
+ * <p>The normalized address is the same as {@link java.net.InetAddress#getHostAddress()}: IPv6
+ * addresses are written in full, and IPv4-mapped IPv6 addresses are written as IPv4.
+ *
+ * <p>Like {@link AttributeValueCache}, this is bounded by entry count. Once full, IPs are parsed,
+ * but not cached.
+ */
+final class LocalIpCache {
+  static final int DEFAULT_MAX_ENTRIES = 16;
+
+  static final class LocalIp {
+    final boolean ipv6;
+    final String address;
+    final AttributeValue value;
+
+    LocalIp(boolean ipv6, String address) {
+      this.ipv6 = ipv6;
+      this.address = address;
+      this.value = toAttributeValue(address);
+    }
+
+    @Override public String toString() {
+      return address;
+    }
+  }
+
+  final ConcurrentHashMap<String, LocalIp> ips = new ConcurrentHashMap<>();
+  final int maxEntries;
+
+  LocalIpCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /** Returns null if the input isn't an IP literal. */
+  LocalIp get(String ip) {
+    LocalIp result = ips.get(ip);
+    if (result != null) return result;
+
+    result = parse(ip);
+    if (result != null && ips.size() < maxEntries) { // approximate, like AttributeValueCache
+      LocalIp race = ips.putIfAbsent(ip, result);
+      if (race != null) return race;
+    }
+    return result;
+  }
+
+  /** Returns null if the input isn't an IP literal. */
+  static LocalIp parse(String ip) {
+    if (ip.indexOf(':') == -1) {
+      // Valid IPv4 literals have no leading zeros, so are already normalized.
+      return parseIpv4(ip, 0, ip.length()) != -1L ? new LocalIp(false, ip) : null;
+    }
+    return parseIpv6(ip);
+  }
+
+  /** Returns the IPv4 address as an unsigned int, or -1 if the range isn't a dotted quad. */
+  static long parseIpv4(String ip, int start, int end) {
+    long result = 0L;
+    int octets = 0, i = start;
+    while (i < end) {
+      int octetEnd = i;
+      while (octetEnd < end && ip.charAt(octetEnd) != '.') octetEnd++;
+      int length = octetEnd - i;
+      if (length == 0 || length > 3) return -1L;
+      if (length > 1 && ip.charAt(i) == '0') return -1L; // leading zeros are ambiguous
+      int octet = 0;
+      for (int j = i; j < octetEnd; j++) {
+        char c = ip.charAt(j);
+        if (c < '0' || c > '9') return -1L;
+        octet = octet * 10 + (c - '0');
+      }
+      if (octet > 255 || ++octets > 4) return -1L;
+      result = (result << 8) | octet;
+      if (octetEnd == end) break;
+      i = octetEnd + 1;
+      if (i == end) return -1L; // trailing dot
+    }
+    return octets == 4 ? result : -1L;
+  }
+
+  static LocalIp parseIpv6(String ip) {
+    int end = ip.length(), percent = ip.indexOf('%');
+    String scope = "";
+    if (percent != -1) {
+      if (percent == end - 1) return null;
+      scope = ip.substring(percent);
+      end = percent;
+    }
+
+    int[] groups = new int[8];
+    int count = 0, compressAt = -1, i = 0;
+    if (end >= 2 && ip.charAt(0) == ':' && ip.charAt(1) == ':') {
+      compressAt = 0;
+      i = 2;
+    }
+    while (i < end) {
+      if (count == 8) return null;
+      int groupEnd = i;
+      while (groupEnd < end && ip.charAt(groupEnd) != ':') groupEnd++;
+
+      if (groupEnd == end && ip.lastIndexOf('.', end - 1) >= i) { // ends in a dotted quad
+        if (count > 6) return null;
+        long ipv4 = parseIpv4(ip, i, end);
+        if (ipv4 == -1L) return null;
+        groups[count++] = (int) (ipv4 >>> 16);
+        groups[count++] = (int) (ipv4 & 0xffff);
+        break;
+      }
+
+      int length = groupEnd - i;
+      if (length == 0 || length > 4) return null;
+      int group = 0;
+      for (int j = i; j < groupEnd; j++) {
+        int digit = Character.digit(ip.charAt(j), 16);
+        if (digit == -1) return null;
+        group = (group << 4) | digit;
+      }
+      groups[count++] = group;
+      if (groupEnd == end) break;
+
+      i = groupEnd + 1;
+      if (i == end) return null; // trailing colon
+      if (ip.charAt(i) == ':') {
+        if (compressAt != -1) return null; // only one "::" is allowed
+        compressAt = count;
+        i++;
+      }
+    }
+
+    if (compressAt == -1) {
+      if (count != 8) return null;
+    } else {
+      int skipped = 8 - count;
+      if (skipped < 1) return null; // "::" must replace at least one group
+      System.arraycopy(groups, compressAt, groups, compressAt + skipped, count - compressAt);
+      Arrays.fill(groups, compressAt, compressAt + skipped, 0);
+    }
+
+    if (isIpv4Mapped(groups)) {
+      return new LocalIp(false, (groups[6] >>> 8) + "." + (groups[6] & 0xff) + "."
+          + (groups[7] >>> 8) + "." + (groups[7] & 0xff));
+    }
+
+    StringBuilder result = new StringBuilder(39 + scope.length());
+    for (int g = 0; g < 8; g++) {
+      if (g > 0) result.append(':');
+      result.append(Integer.toHexString(groups[g]));
+    }
+    return new LocalIp(true, result.append(scope).toString());
+  }
+
+  static boolean isIpv4Mapped(int[] groups) {
+    for (int g = 0; g < 5; g++) {
+      if (groups[g] != 0) return false;
+    }
+    return groups[5] == 0xffff;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rules that map Brave tag keys to Stackdriver attribute names. These are compiled into a single
+ * lookup, so that each tag is renamed with one hash lookup, in the same pass that adds it.
+ *
+ * <p>{@link #DEFAULT} maps HTTP tags to Stackdriver's conventional attribute names, such as
+ * "http.method" to "/http/method". Use {@link #toBuilder()} to add rules for your own semantic
+ * conventions:
+ *
+ * <pre>{@code
+ * renameRules = RenameRules.DEFAULT.toBuilder()
+ *   .rename("rpc.method", "/rpc/method")
+ *   .build();
+ * }</pre>
+ *
+ * <p>Tags can also be dropped, or have their values redacted, in the same pass:
+ *
+ * <pre>{@code
+ * renameRules = RenameRules.DEFAULT.toBuilder()
+ *   .drop("http.request.header.cookie")
+ *   .redact("user.email", "REDACTED")
+ *   .build();
+ * }</pre>
+ *
+ * <p>Besides tag keys, renames apply to "error", which is added for failed spans, and to
+ * "endpoint.ipv4" and "endpoint.ipv6", which are added for server spans. Drops and redactions
+ * only apply to tags.
+ */
+public final class RenameRules {
+  /** The rules used unless otherwise configured. */
+  public static final RenameRules DEFAULT = newBuilder()
+      .rename("http.host", "/http/host")
+      .rename("http.method", "/http/method")
+      .rename("http.status_code", "/http/status_code")
+      .rename("http.request.size", "/request/size")
+      .rename("http.response.size", "/response/size")
+      .rename("http.url", "/http/url")
+      // Spring 6 HTTP spans need mapping to Stackdriver conventional attribute names
+      .copyIfSpanNameContains("status", "/http/status_code", "http")
+      .copyIfSpanNameContains("method", "/http/method", "http")
+      .build();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    final Map<String, Rule> rules = new LinkedHashMap<>();
+
+    Builder() {
+    }
+
+    Builder(RenameRules source) {
+      rules.putAll(source.rules);
+    }
+
+    /**
+     * Adds the tag as the given attribute name instead of its key. This replaces any previous
+     * rename of the same key, but not a {@link #drop(String) drop}.
+     */
+    public Builder rename(String tagKey, String attributeName) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      if (attributeName == null) throw new NullPointerException("attributeName == null");
+      Rule rule = rules.get(tagKey);
+      rules.put(tagKey, rule != null
+          ? new Rule(attributeName, rule.copyAttributeName, rule.copyIfSpanNameContains, rule.drop,
+          rule.redactedValue)
+          : new Rule(attributeName, null, null, false, null));
+      return this;
+    }
+
+    /**
+     * Adds the tag a second time as the given attribute name, when the span name contains the
+     * given string. Pass an empty string to always copy. This replaces any previous copy of the
+     * same key, but not a {@link #drop(String) drop}.
+     *
+     * <p>The span name is only checked for spans that have the tag.
+     */
+    public Builder copyIfSpanNameContains(String tagKey, String attributeName,
+        String spanNameSubstring) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      if (attributeName == null) throw new NullPointerException("attributeName == null");
+      if (spanNameSubstring == null) {
+        throw new NullPointerException("spanNameSubstring == null");
+      }
+      Rule rule = rules.get(tagKey);
+      rules.put(tagKey, rule != null
+          ? new Rule(rule.attributeName, attributeName, spanNameSubstring, rule.drop,
+          rule.redactedValue)
+          : new Rule(tagKey, attributeName, spanNameSubstring, false, null));
+      return this;
+    }
+
+    /**
+     * Doesn't add the tag at all. Unlike tags over Stackdriver's limits, it isn't counted as a
+     * dropped attribute. This replaces any previous rule for the same key, and later rules for it
+     * don't add the tag again. Use {@link #remove(String)} to add it again.
+     */
+    public Builder drop(String tagKey) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      rules.put(tagKey, new Rule(tagKey, null, null, true, null));
+      return this;
+    }
+
+    /**
+     * Adds the given value instead of the tag's, including in any copy. Ex. to keep that a span
+     * had a user ID without sending it. This doesn't replace a {@link #drop(String) drop}.
+     */
+    public Builder redact(String tagKey, String redactedValue) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      if (redactedValue == null) throw new NullPointerException("redactedValue == null");
+      Rule rule = rules.get(tagKey);
+      rules.put(tagKey, rule != null
+          ? new Rule(rule.attributeName, rule.copyAttributeName, rule.copyIfSpanNameContains,
+          rule.drop, redactedValue)
+          : new Rule(tagKey, null, null, false, redactedValue));
+      return this;
+    }
+
+    /** Removes any rule for the tag key. */
+    public Builder remove(String tagKey) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      rules.remove(tagKey);
+      return this;
+    }
+
+    public RenameRules build() {
+      return new RenameRules(this);
+    }
+  }
+
+  static final class Rule {
+    final String attributeName;
+    final String copyAttributeName, copyIfSpanNameContains; // null when there's no copy
+    final boolean drop;
+    final String redactedValue; // null when the tag value is added as-is
+
+    Rule(String attributeName, String copyAttributeName, String copyIfSpanNameContains,
+        boolean drop, String redactedValue) {
+      this.attributeName = attributeName;
+      this.copyAttributeName = copyAttributeName;
+      this.copyIfSpanNameContains = copyIfSpanNameContains;
+      this.drop = drop;
+      this.redactedValue = redactedValue;
+    }
+
+    /** Returns the value to add for the tag, which is only different when redacted. */
+    String value(String tagValue) {
+      return redactedValue != null ? redactedValue : tagValue;
+    }
+
+    /** Returns the attribute name to copy the tag to, or null if it shouldn't be copied. */
+    String copyAttributeName(String spanName) {
+      if (copyAttributeName == null) return null;
+      if (copyIfSpanNameContains.isEmpty()) return copyAttributeName;
+      return spanName != null && spanName.contains(copyIfSpanNameContains)
+          ? copyAttributeName : null;
+    }
+  }
+
+  final Map<String, Rule> rules;
+
+  RenameRules(Builder builder) {
+    // HashMap instead of LinkedHashMap as iteration order doesn't matter after building
+    this.rules = new HashMap<>(builder.rules);
+  }
+
+  /** Returns the rule for the tag key, or null if it is added as-is. */
+  Rule rule(String tagKey) {
+    return rules.get(tagKey);
+  }
+
+  String attributeName(String tagKey) {
+    Rule rule = rules.get(tagKey);
+    return rule != null ? rule.attributeName : tagKey;
+  }
+
+  @Override public String toString() {
+    return "RenameRules{" + rules.keySet() + "}";
+  }
+}
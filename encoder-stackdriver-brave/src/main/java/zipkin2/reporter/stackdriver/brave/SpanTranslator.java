@@ -11,44 +11,22 @@ import com.google.devtools.cloudtrace.v2.Span.TimeEvent;
 import com.google.devtools.cloudtrace.v2.Span.TimeEvents;
 import com.google.protobuf.Timestamp;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
-import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.toAttributeValue;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ANNOTATIONS;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ANNOTATION_DESCRIPTION_BYTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_DISPLAY_NAME_BYTES;
 import static zipkin2.reporter.stackdriver.brave.SpanUtil.toTruncatableString;
 
 /** SpanTranslator converts a Zipkin Span to a Stackdriver Trace Span. */
 final class SpanTranslator {
   private static final Logger LOG = Logger.getLogger(SpanTranslator.class.getName());
 
-  private static final Map<String, String> RENAMED_LABELS;
+  final AttributesExtractor attributesExtractor;
 
-  static {
-    RENAMED_LABELS = new LinkedHashMap<>();
-    RENAMED_LABELS.put("http.host", "/http/host");
-    RENAMED_LABELS.put("http.method", "/http/method");
-    RENAMED_LABELS.put("http.status_code", "/http/status_code");
-    RENAMED_LABELS.put("http.request.size", "/request/size");
-    RENAMED_LABELS.put("http.response.size", "/response/size");
-    RENAMED_LABELS.put("http.url", "/http/url");
-  }
-
-  private static final Map<String, String> SPRING6_RENAMED_HTTP_LABELS;
-
-  static {
-    Map<String, String> map = new LinkedHashMap<>();
-    map.put("status", "/http/status_code");
-    map.put("method", "/http/method");
-    SPRING6_RENAMED_HTTP_LABELS = Collections.unmodifiableMap(map);
-  }
-
-  private final AttributesExtractor attributesExtractor;
-
-  SpanTranslator(Tag<Throwable> errorTag) {
-    this.attributesExtractor = new AttributesExtractor(errorTag, RENAMED_LABELS);
+  SpanTranslator(Tag<Throwable> errorTag, RenameRules renameRules, boolean typedAttributes) {
+    this.attributesExtractor = new AttributesExtractor(errorTag, renameRules, typedAttributes);
   }
 
   /**
@@ -81,7 +59,7 @@ final class SpanTranslator {
     spanBuilder.setDisplayName(
         toTruncatableString(
             (braveSpan.name() != null && !braveSpan.name().isEmpty()) ? braveSpan.name()
-                : "unknown"));
+                : "unknown", MAX_DISPLAY_NAME_BYTES));
 
     if (braveSpan.startTimestamp() != 0L) {
       spanBuilder.setStartTime(createTimestamp(braveSpan.startTimestamp()));
@@ -90,20 +68,20 @@ final class SpanTranslator {
       }
     }
     spanBuilder.setAttributes(attributesExtractor.extract(braveSpan));
-
-    // Spring 6 HTTP spans need mapping to Stackdriver conventional attribute names
-    if (braveSpan.name() != null && braveSpan.name().contains("http")) {
-      braveSpan.tags().forEach((key, value) -> {
-        if (SPRING6_RENAMED_HTTP_LABELS.containsKey(key)) {
-          spanBuilder.getAttributesBuilder()
-                  .putAttributeMap(SPRING6_RENAMED_HTTP_LABELS.get(key), toAttributeValue(value));
-        }
-      });
+    if (braveSpan.kind() != null && attributesExtractor.typedAttributes) {
+      spanBuilder.setSpanKind(spanKind(braveSpan.kind()));
     }
 
     if (braveSpan.annotationCount() > 0) {
       TimeEvents.Builder events = TimeEvents.newBuilder();
-      braveSpan.forEachAnnotation(SpanTranslator::addAnnotation, events);
+      // Stackdriver only accepts MAX_ANNOTATIONS, so keep the earliest and count the rest.
+      int count = Math.min(braveSpan.annotationCount(), MAX_ANNOTATIONS);
+      for (int i = 0; i < count; i++) {
+        addAnnotation(events, braveSpan.annotationTimestampAt(i), braveSpan.annotationValueAt(i));
+      }
+      if (braveSpan.annotationCount() > count) {
+        events.setDroppedAnnotationsCount(braveSpan.annotationCount() - count);
+      }
       spanBuilder.setTimeEvents(events);
     }
     if (logTranslation) LOG.log(FINE, "<< translated to stackdriver span: {0}", spanBuilder);
@@ -114,7 +92,22 @@ final class SpanTranslator {
     target.addTimeEvent(TimeEvent.newBuilder()
         .setTime(createTimestamp(timestamp))
         .setAnnotation(TimeEvent.Annotation.newBuilder()
-            .setDescription(toTruncatableString(value))));
+            .setDescription(toTruncatableString(value, MAX_ANNOTATION_DESCRIPTION_BYTES))));
+  }
+
+  static Span.SpanKind spanKind(brave.Span.Kind kind) {
+    switch (kind) {
+      case CLIENT:
+        return Span.SpanKind.CLIENT;
+      case SERVER:
+        return Span.SpanKind.SERVER;
+      case PRODUCER:
+        return Span.SpanKind.PRODUCER;
+      case CONSUMER:
+        return Span.SpanKind.CONSUMER;
+      default:
+        return Span.SpanKind.SPAN_KIND_UNSPECIFIED;
+    }
   }
 
   static Timestamp createTimestamp(long microseconds) {
@@ -0,0 +1,445 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import com.google.devtools.cloudtrace.v2.AttributeValue;
+import com.google.devtools.cloudtrace.v2.Span;
+import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import com.google.devtools.cloudtrace.v2.Span.TimeEvent;
+import com.google.devtools.cloudtrace.v2.Span.TimeEvents;
+import com.google.devtools.cloudtrace.v2.TruncatableString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Timestamp;
+import java.io.IOException;
+import zipkin2.reporter.stackdriver.brave.LocalIpCache.LocalIp;
+
+import static com.google.protobuf.CodedOutputStream.computeBoolSize;
+import static com.google.protobuf.CodedOutputStream.computeEnumSize;
+import static com.google.protobuf.CodedOutputStream.computeInt32Size;
+import static com.google.protobuf.CodedOutputStream.computeInt64Size;
+import static com.google.protobuf.CodedOutputStream.computeStringSize;
+import static com.google.protobuf.CodedOutputStream.computeTagSize;
+import static com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag;
+import static com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.AGENT_NAME;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.isValidKey;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.kAgentLabelKey;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.kComponentLabelKey;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.kKindLabelKey;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.kindLabel;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.reservedAttributeCount;
+import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.serverIp;
+import static zipkin2.reporter.stackdriver.brave.SpanTranslator.spanKind;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ANNOTATIONS;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ANNOTATION_DESCRIPTION_BYTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ATTRIBUTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.MAX_DISPLAY_NAME_BYTES;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.isBool;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.isInt64;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.truncatedByteCount;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.truncatedLength;
+
+/**
+ * SpanWriter writes a Brave span directly as a Stackdriver Trace V2 Span in protobuf wire format.
+ *
+ * <p>The result parses to the same message as {@link SpanTranslator}, but no builders are
+ * allocated. This allows {@link StackdriverV2Encoder#sizeInBytes(MutableSpan)} to be computed
+ * without translating the span, so that the span is only translated once, when encoded.
+ *
+ * <p>Note: the overloads without a project ID don't write the span name, just like
+ * {@link SpanTranslator}. Attributes that map to the same key are written in order, so the last one
+ * wins when parsed, just like the builder.
+ */
+final class SpanWriter {
+  static final int NAME = Span.NAME_FIELD_NUMBER;
+  static final int SPAN_ID = Span.SPAN_ID_FIELD_NUMBER;
+  static final int PARENT_SPAN_ID = Span.PARENT_SPAN_ID_FIELD_NUMBER;
+  static final int DISPLAY_NAME = Span.DISPLAY_NAME_FIELD_NUMBER;
+  static final int START_TIME = Span.START_TIME_FIELD_NUMBER;
+  static final int END_TIME = Span.END_TIME_FIELD_NUMBER;
+  static final int ATTRIBUTES = Span.ATTRIBUTES_FIELD_NUMBER;
+  static final int TIME_EVENTS = Span.TIME_EVENTS_FIELD_NUMBER;
+  static final int SPAN_KIND = Span.SPAN_KIND_FIELD_NUMBER;
+  // Nested messages
+  static final int ATTRIBUTE_MAP = Attributes.ATTRIBUTE_MAP_FIELD_NUMBER;
+  static final int MAP_KEY = 1, MAP_VALUE = 2; // map entries have implicit field numbers
+  static final int STRING_VALUE = AttributeValue.STRING_VALUE_FIELD_NUMBER;
+  static final int INT_VALUE = AttributeValue.INT_VALUE_FIELD_NUMBER;
+  static final int BOOL_VALUE = AttributeValue.BOOL_VALUE_FIELD_NUMBER;
+  static final int DROPPED_ATTRIBUTES_COUNT = Attributes.DROPPED_ATTRIBUTES_COUNT_FIELD_NUMBER;
+  static final int TRUNCATABLE_STRING_VALUE = TruncatableString.VALUE_FIELD_NUMBER;
+  static final int TRUNCATED_BYTE_COUNT = TruncatableString.TRUNCATED_BYTE_COUNT_FIELD_NUMBER;
+  static final int TIME_EVENT = TimeEvents.TIME_EVENT_FIELD_NUMBER;
+  static final int DROPPED_ANNOTATIONS_COUNT = TimeEvents.DROPPED_ANNOTATIONS_COUNT_FIELD_NUMBER;
+  static final int TIME = TimeEvent.TIME_FIELD_NUMBER;
+  static final int ANNOTATION = TimeEvent.ANNOTATION_FIELD_NUMBER;
+  static final int DESCRIPTION = TimeEvent.Annotation.DESCRIPTION_FIELD_NUMBER;
+  static final int SECONDS = Timestamp.SECONDS_FIELD_NUMBER;
+  static final int NANOS = Timestamp.NANOS_FIELD_NUMBER;
+
+  static final String PROJECTS = "projects/", TRACES = "/traces/", SPANS = "/spans/";
+
+  /** The agent attribute of root spans, encoded once as the agent name doesn't change. */
+  static final byte[] AGENT_ATTRIBUTE = encodeAttribute(kAgentLabelKey, AGENT_NAME);
+
+  final AttributesExtractor attributesExtractor;
+
+  SpanWriter(AttributesExtractor attributesExtractor) {
+    this.attributesExtractor = attributesExtractor;
+  }
+
+  /** Returns the exact size of {@link #write(String, MutableSpan, CodedOutputStream)}. */
+  int sizeInBytes(String projectId, MutableSpan braveSpan) {
+    return lengthDelimitedFieldSize(NAME, nameSize(projectId, braveSpan)) + sizeInBytes(braveSpan);
+  }
+
+  /**
+   * Writes the Stackdriver Trace Span equivalent to the Brave span, including its name:
+   * {@code projects/[projectId]/traces/[paddedTraceId]/spans/[spanId]}.
+   *
+   * @param out where to write the span, with at least
+   * {@link #sizeInBytes(String, MutableSpan)} remaining.
+   */
+  void write(String projectId, MutableSpan braveSpan, CodedOutputStream out) throws IOException {
+    writeLengthDelimited(out, NAME, nameSize(projectId, braveSpan));
+    writeAscii(out, PROJECTS);
+    writeAscii(out, projectId);
+    writeAscii(out, TRACES);
+    String traceId = braveSpan.traceId();
+    if (traceId.length() == 16) {
+      for (int i = 0; i < 16; i++) out.writeRawByte('0');
+    }
+    writeAscii(out, traceId);
+    writeAscii(out, SPANS);
+    writeAscii(out, braveSpan.id());
+    write(braveSpan, out);
+  }
+
+  /** Returns the exact size of {@link #write(MutableSpan, CodedOutputStream)}. */
+  int sizeInBytes(MutableSpan braveSpan) {
+    int size = computeStringSize(SPAN_ID, braveSpan.id());
+    if (braveSpan.parentId() != null) {
+      size += computeStringSize(PARENT_SPAN_ID, braveSpan.parentId());
+    }
+    size += truncatableStringFieldSize(DISPLAY_NAME, displayName(braveSpan),
+        MAX_DISPLAY_NAME_BYTES);
+
+    if (braveSpan.startTimestamp() != 0L) {
+      size += timestampFieldSize(START_TIME, braveSpan.startTimestamp());
+      if (braveSpan.finishTimestamp() != 0L) {
+        size += timestampFieldSize(END_TIME, braveSpan.finishTimestamp());
+      }
+    }
+
+    size += lengthDelimitedFieldSize(ATTRIBUTES, attributesSize(braveSpan));
+
+    if (braveSpan.annotationCount() > 0) {
+      size += lengthDelimitedFieldSize(TIME_EVENTS, timeEventsSize(braveSpan));
+    }
+
+    if (braveSpan.kind() != null && attributesExtractor.typedAttributes) {
+      size += computeEnumSize(SPAN_KIND, spanKind(braveSpan.kind()).getNumber());
+    }
+    return size;
+  }
+
+  /**
+   * Writes the Stackdriver Trace Span equivalent to the Brave span, except its name.
+   *
+   * @param out where to write the span, with at least {@link #sizeInBytes(MutableSpan)} remaining.
+   */
+  void write(MutableSpan braveSpan, CodedOutputStream out) throws IOException {
+    out.writeString(SPAN_ID, braveSpan.id());
+    if (braveSpan.parentId() != null) {
+      out.writeString(PARENT_SPAN_ID, braveSpan.parentId());
+    }
+    writeTruncatableString(out, DISPLAY_NAME, displayName(braveSpan), MAX_DISPLAY_NAME_BYTES);
+
+    if (braveSpan.startTimestamp() != 0L) {
+      writeTimestamp(out, START_TIME, braveSpan.startTimestamp());
+      if (braveSpan.finishTimestamp() != 0L) {
+        writeTimestamp(out, END_TIME, braveSpan.finishTimestamp());
+      }
+    }
+
+    writeLengthDelimited(out, ATTRIBUTES, attributesSize(braveSpan));
+    attributes(braveSpan, out);
+
+    if (braveSpan.annotationCount() > 0) {
+      writeLengthDelimited(out, TIME_EVENTS, timeEventsSize(braveSpan));
+      timeEvents(braveSpan, out);
+    }
+
+    if (braveSpan.kind() != null && attributesExtractor.typedAttributes) {
+      out.writeEnum(SPAN_KIND, spanKind(braveSpan.kind()).getNumber());
+    }
+  }
+
+  static int nameSize(String projectId, MutableSpan braveSpan) {
+    return PROJECTS.length() + projectId.length() + TRACES.length() + 32 + SPANS.length()
+        + braveSpan.id().length();
+  }
+
+  static String displayName(MutableSpan braveSpan) {
+    String name = braveSpan.name();
+    return name != null && !name.isEmpty() ? name : "unknown";
+  }
+
+  int attributesSize(MutableSpan braveSpan) {
+    try {
+      return attributes(braveSpan, null);
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as nothing is written
+    }
+  }
+
+  /**
+   * Visits attributes in the same order as {@link AttributesExtractor} adds them, including its
+   * limits.
+   *
+   * @param out when null, only the size is computed.
+   * @return the size of the attributes message
+   */
+  int attributes(MutableSpan braveSpan, CodedOutputStream out) throws IOException {
+    RenameRules renameRules = attributesExtractor.renameRules;
+    int size = 0;
+    Kind kind = braveSpan.kind();
+    boolean typed = attributesExtractor.typedAttributes;
+    if (kind != null && !typed) size += attribute(out, kKindLabelKey, kindLabel(kind));
+
+    int dropped = 0;
+    String errorValue = attributesExtractor.errorTag.value(braveSpan.error(), null);
+    if (errorValue != null) {
+      String name = renameRules.attributeName("error");
+      if (isValidKey(name)) {
+        size += attribute(out, name, errorValue, typed);
+      } else {
+        dropped++;
+      }
+    }
+
+    LocalIp ip = serverIp(braveSpan);
+    int tagBudget = MAX_ATTRIBUTES - reservedAttributeCount(braveSpan, errorValue, ip, typed);
+    for (int i = 0, length = braveSpan.tagCount(); i < length; i++) {
+      String key = braveSpan.tagKeyAt(i), value = braveSpan.tagValueAt(i);
+      RenameRules.Rule rule = renameRules.rule(key);
+      if (rule != null) {
+        if (rule.drop) continue;
+        value = rule.value(value);
+      }
+      String name = rule != null ? rule.attributeName : key;
+      if (tagBudget > 0 && isValidKey(name)) {
+        size += attribute(out, name, value, typed);
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+
+      String copyName = rule != null ? rule.copyAttributeName(braveSpan.name()) : null;
+      if (copyName == null) continue;
+      if (tagBudget > 0 && isValidKey(copyName)) {
+        size += attribute(out, copyName, value, typed);
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+    }
+
+    if (ip != null) {
+      String name = renameRules.attributeName(ip.ipv6 ? "endpoint.ipv6" : "endpoint.ipv4");
+      if (isValidKey(name)) {
+        size += attribute(out, name, ip.address);
+      } else {
+        dropped++;
+      }
+    }
+
+    String localServiceName = braveSpan.localServiceName();
+    if (localServiceName != null && !localServiceName.isEmpty()) {
+      size += attribute(out, kComponentLabelKey, localServiceName);
+    }
+
+    if (braveSpan.parentId() == null) {
+      size += agentAttribute(out);
+    }
+
+    if (dropped > 0) {
+      size += computeInt32Size(DROPPED_ATTRIBUTES_COUNT, dropped);
+      if (out != null) out.writeInt32(DROPPED_ATTRIBUTES_COUNT, dropped);
+    }
+    return size;
+  }
+
+  /** Returns the size of one attribute map entry field, writing it when out is not null. */
+  static int attribute(CodedOutputStream out, String key, String value) throws IOException {
+    return attribute(out, key, value, false);
+  }
+
+  static int agentAttribute(CodedOutputStream out) throws IOException {
+    if (out != null) out.writeRawBytes(AGENT_ATTRIBUTE);
+    return AGENT_ATTRIBUTE.length;
+  }
+
+  static byte[] encodeAttribute(String key, String value) {
+    try {
+      byte[] result = new byte[attribute(null, key, value)];
+      CodedOutputStream out = CodedOutputStream.newInstance(result);
+      attribute(out, key, value);
+      out.checkNoSpaceLeft();
+      return result;
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as the array is exactly sized
+    }
+  }
+
+  /**
+   * Like {@link #attribute(CodedOutputStream, String, String)}, except when typed, integer and
+   * boolean values are written as such, like {@link AttributesExtractor#toTypedAttributeValue}.
+   */
+  static int attribute(CodedOutputStream out, String key, String value, boolean typed)
+      throws IOException {
+    int valueField = typed ? valueField(value) : STRING_VALUE;
+    int valueSize;
+    if (valueField == INT_VALUE) {
+      valueSize = computeInt64Size(INT_VALUE, Long.parseLong(value));
+    } else if (valueField == BOOL_VALUE) {
+      valueSize = computeBoolSize(BOOL_VALUE, true); // same size for false
+    } else {
+      valueSize = truncatableStringFieldSize(STRING_VALUE, value, MAX_ATTRIBUTE_VALUE_BYTES);
+    }
+    int entrySize = computeStringSize(MAP_KEY, key) + lengthDelimitedFieldSize(MAP_VALUE, valueSize);
+    if (out != null) {
+      writeLengthDelimited(out, ATTRIBUTE_MAP, entrySize);
+      out.writeString(MAP_KEY, key);
+      writeLengthDelimited(out, MAP_VALUE, valueSize);
+      if (valueField == INT_VALUE) {
+        out.writeInt64(INT_VALUE, Long.parseLong(value));
+      } else if (valueField == BOOL_VALUE) {
+        out.writeBool(BOOL_VALUE, value.equals("true"));
+      } else {
+        writeTruncatableString(out, STRING_VALUE, value, MAX_ATTRIBUTE_VALUE_BYTES);
+      }
+    }
+    return lengthDelimitedFieldSize(ATTRIBUTE_MAP, entrySize);
+  }
+
+  /** Returns the {@link AttributeValue} field a typed value is written to. */
+  static int valueField(String value) {
+    if (isInt64(value)) return INT_VALUE;
+    if (isBool(value)) return BOOL_VALUE;
+    return STRING_VALUE;
+  }
+
+  static int timeEventsSize(MutableSpan braveSpan) {
+    try {
+      return timeEvents(braveSpan, null);
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as nothing is written
+    }
+  }
+
+  /**
+   * @param out when null, only the size is computed.
+   * @return the size of the time events message
+   */
+  static int timeEvents(MutableSpan braveSpan, CodedOutputStream out) throws IOException {
+    int size = 0;
+    int count = Math.min(braveSpan.annotationCount(), MAX_ANNOTATIONS);
+    for (int i = 0; i < count; i++) {
+      long timestamp = braveSpan.annotationTimestampAt(i);
+      String value = braveSpan.annotationValueAt(i);
+      int annotationSize =
+          truncatableStringFieldSize(DESCRIPTION, value, MAX_ANNOTATION_DESCRIPTION_BYTES);
+      int eventSize =
+          timestampFieldSize(TIME, timestamp) + lengthDelimitedFieldSize(ANNOTATION, annotationSize);
+      if (out != null) {
+        writeLengthDelimited(out, TIME_EVENT, eventSize);
+        writeTimestamp(out, TIME, timestamp);
+        writeLengthDelimited(out, ANNOTATION, annotationSize);
+        writeTruncatableString(out, DESCRIPTION, value, MAX_ANNOTATION_DESCRIPTION_BYTES);
+      }
+      size += lengthDelimitedFieldSize(TIME_EVENT, eventSize);
+    }
+
+    int dropped = braveSpan.annotationCount() - count;
+    if (dropped > 0) {
+      size += computeInt32Size(DROPPED_ANNOTATIONS_COUNT, dropped);
+      if (out != null) out.writeInt32(DROPPED_ANNOTATIONS_COUNT, dropped);
+    }
+    return size;
+  }
+
+  /** Like {@link SpanUtil#toTruncatableString(String, int)} */
+  static int truncatableStringFieldSize(int fieldNumber, String value, int maxBytes) {
+    return lengthDelimitedFieldSize(fieldNumber, truncatableStringSize(value, maxBytes));
+  }
+
+  static int truncatableStringSize(String value, int maxBytes) {
+    int end = truncatedLength(value, maxBytes);
+    if (end == value.length()) {
+      return value.isEmpty() ? 0 : computeStringSize(TRUNCATABLE_STRING_VALUE, value);
+    }
+    // Only oversized values pay for the substring
+    return computeStringSize(TRUNCATABLE_STRING_VALUE, value.substring(0, end))
+        + computeInt32Size(TRUNCATED_BYTE_COUNT, truncatedByteCount(value, end));
+  }
+
+  static void writeTruncatableString(CodedOutputStream out, int fieldNumber, String value,
+      int maxBytes) throws IOException {
+    writeLengthDelimited(out, fieldNumber, truncatableStringSize(value, maxBytes));
+    int end = truncatedLength(value, maxBytes);
+    if (end == value.length()) {
+      if (!value.isEmpty()) out.writeString(TRUNCATABLE_STRING_VALUE, value);
+      return;
+    }
+    out.writeString(TRUNCATABLE_STRING_VALUE, value.substring(0, end));
+    out.writeInt32(TRUNCATED_BYTE_COUNT, truncatedByteCount(value, end));
+  }
+
+  /** Like {@link SpanTranslator#createTimestamp(long)} */
+  static int timestampFieldSize(int fieldNumber, long microseconds) {
+    return lengthDelimitedFieldSize(fieldNumber, timestampSize(microseconds));
+  }
+
+  static int timestampSize(long microseconds) {
+    long seconds = microseconds / 1000000;
+    int nanos = (int) (microseconds % 1000000) * 1000;
+    int size = 0;
+    if (seconds != 0L) size += computeInt64Size(SECONDS, seconds);
+    if (nanos != 0) size += computeInt32Size(NANOS, nanos);
+    return size;
+  }
+
+  static void writeTimestamp(CodedOutputStream out, int fieldNumber, long microseconds)
+      throws IOException {
+    writeLengthDelimited(out, fieldNumber, timestampSize(microseconds));
+    long seconds = microseconds / 1000000;
+    int nanos = (int) (microseconds % 1000000) * 1000;
+    if (seconds != 0L) out.writeInt64(SECONDS, seconds);
+    if (nanos != 0) out.writeInt32(NANOS, nanos);
+  }
+
+  static int lengthDelimitedFieldSize(int fieldNumber, int length) {
+    return computeTagSize(fieldNumber) + computeUInt32SizeNoTag(length) + length;
+  }
+
+  static void writeLengthDelimited(CodedOutputStream out, int fieldNumber, int length)
+      throws IOException {
+    out.writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    out.writeUInt32NoTag(length);
+  }
+
+  /** Writes the raw bytes of an ASCII string, such as an ID, without a length prefix. */
+  static void writeAscii(CodedOutputStream out, String ascii) throws IOException {
+    for (int i = 0, length = ascii.length(); i < length; i++) {
+      char c = ascii.charAt(i);
+      if (c >= 0x80) throw new IllegalArgumentException("expected ASCII: " + ascii);
+      out.writeRawByte((byte) c);
+    }
+  }
+}
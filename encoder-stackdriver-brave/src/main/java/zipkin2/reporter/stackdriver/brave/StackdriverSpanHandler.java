@@ -0,0 +1,318 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Tag;
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import zipkin2.reporter.ReporterMetrics;
+import zipkin2.reporter.stackdriver.StackdriverSender;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Reports Brave spans to Stackdriver Trace, without the trace ID prefixed format used by {@link
+ * StackdriverV2Encoder}.
+ *
+ * <p>When a span ends, it is written once into a compact record: the Stackdriver Trace Span,
+ * including its name. A flush thread frames these records into {@link BatchWriteSpansRequest}s as
+ * is, via {@link StackdriverSender#sendSpans(List)}. Unlike {@code AsyncZipkinSpanHandler} with
+ * {@link StackdriverV2Encoder}, spans are never parsed and re-serialized to add their name.
+ *
+ * <p>Ex.
+ *
+ * <pre>{@code
+ * spanHandler = StackdriverSpanHandler.newBuilder(sender).build();
+ * tracing = Tracing.newBuilder().addSpanHandler(spanHandler).build();
+ * }</pre>
+ */
+public final class StackdriverSpanHandler extends SpanHandler implements Closeable {
+  static final Logger LOG = Logger.getLogger(StackdriverSpanHandler.class.getName());
+
+  public static Builder newBuilder(StackdriverSender sender) {
+    return new Builder(sender);
+  }
+
+  public static final class Builder {
+    final StackdriverSender sender;
+    Tag<Throwable> errorTag = Tags.ERROR;
+    RenameRules renameRules = RenameRules.DEFAULT;
+    boolean typedAttributes;
+    DropRules dropRules = DropRules.NONE;
+    boolean alwaysReportSpans;
+    ReporterMetrics metrics = ReporterMetrics.NOOP_METRICS;
+    int queuedMaxSpans = 10000;
+    long messageTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+    Builder(StackdriverSender sender) {
+      if (sender == null) throw new NullPointerException("sender == null");
+      this.sender = sender;
+    }
+
+    /** Defaults to {@link Tags#ERROR}. */
+    public Builder errorTag(Tag<Throwable> errorTag) {
+      if (errorTag == null) throw new NullPointerException("errorTag == null");
+      this.errorTag = errorTag;
+      return this;
+    }
+
+    /** Defaults to {@link RenameRules#DEFAULT}. */
+    public Builder renameRules(RenameRules renameRules) {
+      if (renameRules == null) throw new NullPointerException("renameRules == null");
+      this.renameRules = renameRules;
+      return this;
+    }
+
+    /**
+     * When true, tag values that are integers or booleans are sent as {@code int_value} or
+     * {@code bool_value} instead of strings, and the span kind is sent as {@code span_kind} instead
+     * of a "/kind" attribute. This makes spans smaller, but changes how they are queried in Cloud
+     * Trace, so is off by default.
+     *
+     * <p>Integers are only converted when they parse back to the same text, so values like "007"
+     * or "+1" stay strings.
+     */
+    public Builder typedAttributes(boolean typedAttributes) {
+      this.typedAttributes = typedAttributes;
+      return this;
+    }
+
+    /** Spans matching these rules are dropped before they are written. Defaults to none. */
+    public Builder dropRules(DropRules dropRules) {
+      if (dropRules == null) throw new NullPointerException("dropRules == null");
+      this.dropRules = dropRules;
+      return this;
+    }
+
+    /**
+     * When true, all spans are sent to Stackdriver Trace. This defaults to false, which ignores
+     * spans that are only sampled locally, or recorded with {@code alwaysSampleLocal}, the same as
+     * {@code ZipkinSpanHandler}.
+     */
+    public Builder alwaysReportSpans(boolean alwaysReportSpans) {
+      this.alwaysReportSpans = alwaysReportSpans;
+      return this;
+    }
+
+    /**
+     * Records spans as they are queued, requests as they are sent, and either when dropped, the
+     * same as {@code AsyncReporter}. Defaults to none.
+     */
+    public Builder metrics(ReporterMetrics metrics) {
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
+    /** Maximum backlog of spans waiting to be sent. Spans ending after that are dropped. */
+    public Builder queuedMaxSpans(int queuedMaxSpans) {
+      if (queuedMaxSpans <= 0) {
+        throw new IllegalArgumentException("queuedMaxSpans <= 0");
+      }
+      this.queuedMaxSpans = queuedMaxSpans;
+      return this;
+    }
+
+    /**
+     * Maximum time a span waits for others to fill its request, before it is sent. Requests are
+     * also sent when they reach {@link StackdriverSender#messageMaxBytes()}. Defaults to 1 second.
+     */
+    public Builder messageTimeout(long timeout, TimeUnit unit) {
+      if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.messageTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    public StackdriverSpanHandler build() {
+      StackdriverSpanHandler result = new StackdriverSpanHandler(this);
+      result.flushThread.start();
+      return result;
+    }
+  }
+
+  final StackdriverSender sender;
+  final String projectId;
+  final SpanWriter spanWriter;
+  final DropRules dropRules;
+  final boolean alwaysReportSpans;
+  final ReporterMetrics metrics;
+  final BlockingQueue<byte[]> queue;
+  final int messageMaxBytes, projectNameFieldSize;
+  final long messageTimeoutNanos;
+  final Thread flushThread;
+
+  /** close is typically called from a different thread */
+  volatile boolean closed;
+
+  StackdriverSpanHandler(Builder builder) {
+    sender = builder.sender;
+    projectId = sender.projectId();
+    spanWriter = new SpanWriter(new SpanTranslator(
+        builder.errorTag, builder.renameRules, builder.typedAttributes).attributesExtractor);
+    dropRules = builder.dropRules;
+    alwaysReportSpans = builder.alwaysReportSpans;
+    metrics = builder.metrics;
+    queue = new ArrayBlockingQueue<>(builder.queuedMaxSpans);
+    messageMaxBytes = sender.messageMaxBytes();
+    projectNameFieldSize = sender.spansMessageSizeInBytes(Collections.emptyList());
+    messageTimeoutNanos = builder.messageTimeoutNanos;
+    flushThread = new Thread(this::flushLoop, "StackdriverSpanHandler{" + projectId + "}");
+    flushThread.setDaemon(true);
+  }
+
+  /** Writes the span including its name, and queues it to be sent by the flush thread. */
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    if (closed || cause == Cause.ABANDONED) return true;
+    if (!alwaysReportSpans && !Boolean.TRUE.equals(context.sampled())) return true;
+    if (dropRules.matches(span)) return true;
+
+    byte[] record = new byte[spanWriter.sizeInBytes(projectId, span)];
+    try {
+      spanWriter.write(projectId, span, CodedOutputStream.newInstance(record));
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as the array is exactly sized
+    }
+
+    metrics.incrementSpans(1);
+    metrics.incrementSpanBytes(record.length);
+    if (projectNameFieldSize + spanFieldSize(record) > messageMaxBytes) {
+      metrics.incrementSpansDropped(1);
+      LOG.log(WARNING, "Dropped span {0} as it is larger than the max message size", span.id());
+    } else if (!queue.offer(record)) {
+      metrics.incrementSpansDropped(1);
+      LOG.log(FINE, "Dropped span {0} as the queue is full", span.id());
+    } else if (closed) { // closed after the check above, so the flush thread may have returned
+      drain();
+    }
+    return true;
+  }
+
+  /**
+   * Sends queued spans in requests of up to {@link #messageMaxBytes}, waiting at most {@link
+   * #messageTimeoutNanos} for each to fill. After close, remaining spans are sent without waiting.
+   */
+  void flushLoop() {
+    List<byte[]> batch = new ArrayList<>();
+    byte[] next = null; // when not null, the span that didn't fit in the last request
+    while (true) {
+      if (next == null) next = closed ? queue.poll() : poll(messageTimeoutNanos);
+      if (next == null) {
+        if (closed) return;
+        continue;
+      }
+
+      batch.add(next);
+      int size = projectNameFieldSize + spanFieldSize(next);
+      next = null;
+      long deadline = System.nanoTime() + messageTimeoutNanos;
+      while (true) {
+        long remaining = closed ? 0L : deadline - System.nanoTime();
+        byte[] span = remaining > 0L ? poll(remaining) : queue.poll();
+        if (span == null) break;
+        int spanSize = spanFieldSize(span);
+        if (size + spanSize > messageMaxBytes) {
+          next = span;
+          break;
+        }
+        batch.add(span);
+        size += spanSize;
+      }
+
+      metrics.updateQueuedSpans(queue.size());
+      send(batch, size);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Returns the size a span adds to a request. A request without spans is {@link
+   * #projectNameFieldSize}.
+   */
+  static int spanFieldSize(byte[] span) {
+    return CodedOutputStream.computeByteArraySize(BatchWriteSpansRequest.SPANS_FIELD_NUMBER, span);
+  }
+
+  /** Sends all queued spans without waiting, for when the flush thread may have returned. */
+  void drain() {
+    List<byte[]> batch = new ArrayList<>();
+    int size = projectNameFieldSize;
+    for (byte[] span; (span = queue.poll()) != null; ) {
+      int spanSize = spanFieldSize(span);
+      if (!batch.isEmpty() && size + spanSize > messageMaxBytes) {
+        send(batch, size);
+        batch.clear();
+        size = projectNameFieldSize;
+      }
+      batch.add(span);
+      size += spanSize;
+    }
+    if (!batch.isEmpty()) send(batch, size);
+  }
+
+  /** Returns null on timeout or when interrupted, in which case remaining spans are drained. */
+  byte[] poll(long timeoutNanos) {
+    try {
+      return queue.poll(timeoutNanos, NANOSECONDS);
+    } catch (InterruptedException e) {
+      closed = true;
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  void send(List<byte[]> batch, int size) {
+    metrics.incrementMessages();
+    metrics.incrementMessageBytes(size);
+    try {
+      sender.sendSpans(batch);
+    } catch (IOException | RuntimeException e) {
+      metrics.incrementMessagesDropped(e);
+      metrics.incrementSpansDropped(batch.size());
+      LOG.log(WARNING, "Dropped " + batch.size() + " spans due to " + e.getClass().getSimpleName()
+          + "(" + (e.getMessage() == null ? "" : e.getMessage()) + ")", e);
+    }
+  }
+
+  /**
+   * Stops accepting spans and waits for the flush thread to send those already queued. This waits
+   * at most the message timeout plus {@link StackdriverSender#serverResponseTimeoutMs()}, after
+   * which the flush thread keeps sending in the background. This doesn't close the sender.
+   */
+  @Override public void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      flushThread.join(
+          NANOSECONDS.toMillis(messageTimeoutNanos) + sender.serverResponseTimeoutMs());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (flushThread.isAlive()) {
+      LOG.log(WARNING, "Timed out waiting for queued spans to send");
+    } else {
+      drain(); // spans queued after the flush thread returned
+    }
+  }
+
+  @Override public String toString() {
+    return "StackdriverSpanHandler{" + sender + "}";
+  }
+}
@@ -9,16 +9,48 @@ import brave.handler.MutableSpan;
 import com.google.devtools.cloudtrace.v2.Span;
 import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import zipkin2.reporter.BytesEncoder;
 import zipkin2.reporter.Encoding;
 
 @SuppressWarnings("ImmutableEnumChecker") // because span is immutable
 public class StackdriverV2Encoder implements BytesEncoder<MutableSpan> {
+  static final ThreadLocal<EncodeContext> ENCODE_CONTEXT =
+      ThreadLocal.withInitial(EncodeContext::new);
+
   final SpanTranslator spanTranslator;
+  final SpanWriter spanWriter;
 
   public StackdriverV2Encoder(Tag<Throwable> errorTag) {
+    this(errorTag, RenameRules.DEFAULT);
+  }
+
+  /**
+   * Like {@link #StackdriverV2Encoder(Tag)}, except tags are renamed according to the given rules.
+   *
+   * @param renameRules usually {@link RenameRules#DEFAULT} with additional rules.
+   */
+  public StackdriverV2Encoder(Tag<Throwable> errorTag, RenameRules renameRules) {
+    this(errorTag, renameRules, false);
+  }
+
+  /**
+   * Like {@link #StackdriverV2Encoder(Tag, RenameRules)}, except integer and boolean tag values
+   * can be sent as such.
+   *
+   * @param typedAttributes when true, tag values that are integers or booleans are sent as {@code
+   *                        int_value} or {@code bool_value} instead of strings, and the span kind
+   *                        as {@code span_kind} instead of a "/kind" attribute. This makes spans
+   *                        smaller, but changes how they are queried in Cloud Trace.
+   */
+  public StackdriverV2Encoder(Tag<Throwable> errorTag, RenameRules renameRules,
+      boolean typedAttributes) {
     if (errorTag == null) throw new NullPointerException("errorTag == null");
-    this.spanTranslator = new SpanTranslator(errorTag);
+    if (renameRules == null) throw new NullPointerException("renameRules == null");
+    this.spanTranslator = new SpanTranslator(errorTag, renameRules, typedAttributes);
+    this.spanWriter = new SpanWriter(spanTranslator.attributesExtractor);
   }
 
   @Override
@@ -26,16 +58,16 @@ public class StackdriverV2Encoder implements BytesEncoder<MutableSpan> {
     return Encoding.PROTO3;
   }
 
+  /** This computes the size without translating the span, as it is called before encoding. */
   @Override
   public int sizeInBytes(MutableSpan input) {
-    return 32 + translate(input).getSerializedSize();
+    return 32 + spanWriter.sizeInBytes(input);
   }
 
   /** This encodes a TraceSpan message prefixed by a potentially padded 32 character trace ID */
   @Override
   public byte[] encode(MutableSpan span) {
-    Span translated = translate(span);
-    byte[] result = new byte[32 + translated.getSerializedSize()];
+    byte[] result = new byte[32 + spanWriter.sizeInBytes(span)];
 
     // Zipkin trace ID is conditionally 16 or 32 characters, but Stackdriver needs 32
     String traceId = span.traceId();
@@ -48,13 +80,65 @@ public class StackdriverV2Encoder implements BytesEncoder<MutableSpan> {
 
     CodedOutputStream output = CodedOutputStream.newInstance(result, 32, result.length - 32);
     try {
-      translated.writeTo(output);
+      spanWriter.write(span, output);
     } catch (IOException e) {
       throw new AssertionError(e);
     }
     return result;
   }
 
+  /**
+   * Like {@link #encode(MutableSpan)}, except the result is written at the buffer's position, which
+   * is advanced by {@link #sizeInBytes(MutableSpan)}. This reuses per-thread state, so it doesn't
+   * allocate, for callers that manage their own buffers.
+   *
+   * @throws BufferOverflowException if the buffer has less than {@link #sizeInBytes(MutableSpan)}
+   * remaining. Nothing is written in this case.
+   */
+  public void encode(MutableSpan span, ByteBuffer buffer) {
+    int spanSize = spanWriter.sizeInBytes(span);
+    if (buffer.remaining() < 32 + spanSize) throw new BufferOverflowException();
+
+    String traceId = span.traceId();
+    if (traceId.length() == 16) {
+      for (int i = 0; i < 16; i++) buffer.put((byte) '0');
+    }
+    for (int i = 0, length = traceId.length(); i < length; i++) {
+      buffer.put((byte) traceId.charAt(i));
+    }
+
+    EncodeContext context = ENCODE_CONTEXT.get();
+    context.buffer = buffer;
+    try {
+      spanWriter.write(span, context.output);
+      context.output.flush();
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as the buffer was checked for space
+    } catch (RuntimeException | Error e) {
+      ENCODE_CONTEXT.remove(); // don't leave partially written data for the next span
+      throw e;
+    } finally {
+      context.buffer = null;
+    }
+  }
+
+  /**
+   * Holds a {@link CodedOutputStream} that flushes to the current {@link ByteBuffer}. Unlike one
+   * over an array, this can be reused, as flushing resets its position.
+   */
+  static final class EncodeContext extends OutputStream {
+    final CodedOutputStream output = CodedOutputStream.newInstance(this, 1024);
+    ByteBuffer buffer; // null when not encoding
+
+    @Override public void write(int b) {
+      buffer.put((byte) b);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      buffer.put(b, off, len);
+    }
+  }
+
   Span translate(MutableSpan span) {
     return spanTranslator.translate(Span.newBuilder(), span).build();
   }
@@ -9,8 +9,10 @@ import brave.Tags;
 import brave.handler.MutableSpan;
 import brave.propagation.TraceContext;
 import com.google.devtools.cloudtrace.v2.AttributeValue;
+import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import com.google.devtools.cloudtrace.v2.TruncatableString;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import org.junit.jupiter.api.Test;
 
@@ -20,7 +22,8 @@ import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.toAttribute
 
 class AttributesExtractorTest {
   @Test void testLabel() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan braveSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -33,10 +36,11 @@ class AttributesExtractorTest {
   }
 
   @Test void testLabelIsRenamed() {
-    Map<String, String> knownLabels = new LinkedHashMap<>();
-    knownLabels.put("known.1", "renamed.1");
-    knownLabels.put("known.2", "renamed.2");
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, knownLabels);
+    RenameRules knownLabels = RenameRules.newBuilder()
+        .rename("known.1", "renamed.1")
+        .rename("known.2", "renamed.2")
+        .build();
+    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, knownLabels, false);
 
     MutableSpan braveSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -51,7 +55,8 @@ class AttributesExtractorTest {
   }
 
   @Test void testAgentLabelIsSet() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan rootSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -65,15 +70,11 @@ class AttributesExtractorTest {
     assertThat(rootLabels).containsEntry("/agent", toAttributeValue("zipkin-java"));
     Map<String, AttributeValue> nonRootLabels = extractor.extract(nonRootSpan).getAttributeMapMap();
     assertThat(nonRootLabels).doesNotContainKey("/agent");
-
-    System.setProperty("stackdriver.trace.zipkin.agent", "zipkin-test");
-    rootLabels = extractor.extract(rootSpan).getAttributeMapMap();
-    assertThat(rootLabels).containsEntry("/agent", toAttributeValue("zipkin-test"));
-    System.clearProperty("stackdriver.trace.zipkin.agent");
   }
 
   @Test void testEndpointIsSetIpv4() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan serverSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -99,7 +100,8 @@ class AttributesExtractorTest {
   }
 
   @Test void testEndpointIsSetIpv6() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan serverSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -125,7 +127,8 @@ class AttributesExtractorTest {
   }
 
   @Test void testEndpointIsNotSetForNullLocalIp() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan serverSpan =
             new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -151,7 +154,8 @@ class AttributesExtractorTest {
   }
 
   @Test void testErrorTag() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan serverSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -163,7 +167,8 @@ class AttributesExtractorTest {
   }
 
   @Test void testEndpointWithNullServiceName() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan serverSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -176,7 +181,8 @@ class AttributesExtractorTest {
   }
 
   @Test void testComponentLabelIsSet() {
-    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
 
     MutableSpan clientSpan =
         new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
@@ -193,4 +199,61 @@ class AttributesExtractorTest {
     Map<String, AttributeValue> serverLabels = extractor.extract(serverSpan).getAttributeMapMap();
     assertThat(serverLabels).containsEntry("/component", toAttributeValue("service2"));
   }
+
+  @Test void testLowCardinalityValuesAreShared() {
+    AttributesExtractor extractor =
+        new AttributesExtractor(Tags.ERROR, RenameRules.newBuilder().build(), false);
+
+    MutableSpan braveSpan =
+        new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
+    braveSpan.kind(Span.Kind.SERVER);
+    braveSpan.localServiceName("service1");
+    braveSpan.tag("http.method", "GET");
+    braveSpan.tag("http.path", "/api");
+
+    Map<String, AttributeValue> first = extractor.extract(braveSpan).getAttributeMapMap();
+    Map<String, AttributeValue> second = extractor.extract(braveSpan).getAttributeMapMap();
+    for (String key : Arrays.asList("/kind", "/component", "/agent", "http.method")) {
+      assertThat(second.get(key)).isSameAs(first.get(key));
+    }
+    assertThat(second.get("http.path"))
+        .isEqualTo(first.get("http.path"))
+        .isNotSameAs(first.get("http.path"));
+  }
+
+  @Test void tagsOverLimit_keepStackdriverLabels() {
+    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, RenameRules.DEFAULT, false);
+    MutableSpan braveSpan =
+        new MutableSpan(TraceContext.newBuilder().traceId(4).spanId(5).build(), null);
+    braveSpan.kind(Span.Kind.SERVER);
+    braveSpan.localServiceName("service1");
+    braveSpan.localIp("10.0.0.1");
+    braveSpan.error(new IllegalStateException("oops"));
+    for (int i = 0; i < 40; i++) braveSpan.tag("tag" + i, "value");
+
+    Attributes attributes = extractor.extract(braveSpan);
+
+    // kind, error, ipv4, component and agent leave room for 27 tags
+    assertThat(attributes.getAttributeMapMap())
+        .hasSize(SpanUtil.MAX_ATTRIBUTES)
+        .containsKeys("/kind", "error", "endpoint.ipv4", "/component", "/agent", "tag26")
+        .doesNotContainKey("tag27");
+    assertThat(attributes.getDroppedAttributesCount()).isEqualTo(13);
+  }
+
+  @Test void longKeyIsDropped() {
+    AttributesExtractor extractor = new AttributesExtractor(Tags.ERROR, RenameRules.DEFAULT, false);
+    MutableSpan braveSpan = new MutableSpan(
+        TraceContext.newBuilder().traceId(4).parentId(3).spanId(5).build(), null);
+    braveSpan.tag(String.join("", Collections.nCopies(129, "k")), "value");
+    braveSpan.tag("tag", String.join("", Collections.nCopies(300, "v")));
+
+    Attributes attributes = extractor.extract(braveSpan);
+    assertThat(attributes.getAttributeMapMap()).containsOnlyKeys("tag");
+    assertThat(attributes.getDroppedAttributesCount()).isEqualTo(1);
+
+    TruncatableString value = attributes.getAttributeMapMap().get("tag").getStringValue();
+    assertThat(value.getValue()).hasSize(SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES);
+    assertThat(value.getTruncatedByteCount()).isEqualTo(44);
+  }
 }
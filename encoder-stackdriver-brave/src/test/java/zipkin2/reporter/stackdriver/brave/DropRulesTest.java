@@ -0,0 +1,103 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Span.Kind;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DropRulesTest {
+  DropRules dropRules = DropRules.newBuilder()
+      .spanName("get /health")
+      .kind(Kind.PRODUCER)
+      .tag("http.path", "/health")
+      .tag("http.path", "/ready")
+      .tagKey("synthetic")
+      .build();
+
+  @Test void none() {
+    assertThat(DropRules.NONE.matches(TestObjects.clientSpan())).isFalse();
+    assertThat(DropRules.NONE.matches(new MutableSpan())).isFalse();
+  }
+
+  @Test void matches_spanName() {
+    MutableSpan span = TestObjects.clientSpan();
+    assertThat(dropRules.matches(span)).isFalse();
+
+    span.name("get /health");
+    assertThat(dropRules.matches(span)).isTrue();
+
+    span.name("get /healthz");
+    assertThat(dropRules.matches(span)).isFalse();
+  }
+
+  @Test void matches_kind() {
+    MutableSpan span = TestObjects.clientSpan();
+    span.kind(Kind.PRODUCER);
+
+    assertThat(dropRules.matches(span)).isTrue();
+  }
+
+  @Test void matches_tagValue() {
+    MutableSpan span = TestObjects.clientSpan();
+    span.tag("http.path", "/ready");
+    assertThat(dropRules.matches(span)).isTrue();
+
+    span.tag("http.path", "/readyz");
+    assertThat(dropRules.matches(span)).isFalse();
+  }
+
+  @Test void matches_tagKey() {
+    MutableSpan span = TestObjects.clientSpan();
+    span.tag("synthetic", "");
+
+    assertThat(dropRules.matches(span)).isTrue();
+  }
+
+  @Test void tagKey_overridesValues() {
+    DropRules rules = DropRules.newBuilder()
+        .tag("http.path", "/health")
+        .tagKey("http.path")
+        .tag("http.path", "/ready")
+        .build();
+
+    assertThat(rules.matches(TestObjects.clientSpan())).isTrue(); // http.path=/api
+  }
+
+  @Test void toBuilder_addsRules() {
+    DropRules rules = dropRules.toBuilder().tag("http.path", "/api").build();
+
+    assertThat(rules.matches(TestObjects.clientSpan())).isTrue();
+    assertThat(dropRules.matches(TestObjects.clientSpan())).isFalse();
+  }
+
+  @Test void toSpanHandler() {
+    SpanHandler handler = dropRules.toSpanHandler();
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+    MutableSpan span = TestObjects.clientSpan();
+
+    assertThat(handler.end(context, span, Cause.FINISHED)).isTrue();
+
+    span.tag("synthetic", "true");
+    assertThat(handler.end(context, span, Cause.FINISHED)).isFalse();
+  }
+
+  @Test void builder_nullChecks() {
+    DropRules.Builder builder = DropRules.newBuilder();
+
+    assertThatThrownBy(() -> builder.spanName(null))
+        .isInstanceOf(NullPointerException.class).hasMessage("spanName == null");
+    assertThatThrownBy(() -> builder.kind(null))
+        .isInstanceOf(NullPointerException.class).hasMessage("kind == null");
+    assertThatThrownBy(() -> builder.tag("a", null))
+        .isInstanceOf(NullPointerException.class).hasMessage("tagValue == null");
+  }
+}
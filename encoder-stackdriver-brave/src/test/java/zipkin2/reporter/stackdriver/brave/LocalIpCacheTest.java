@@ -0,0 +1,75 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import com.google.common.net.InetAddresses;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import org.junit.jupiter.api.Test;
+import zipkin2.reporter.stackdriver.brave.LocalIpCache.LocalIp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocalIpCacheTest {
+  LocalIpCache cache = new LocalIpCache(2);
+
+  /** Ensures we normalize the same as we did before, when parsing to an InetAddress. */
+  @Test void parse_sameAsInetAddress() {
+    for (String ip : new String[] {
+        "0.0.0.0", "127.0.0.1", "192.168.99.101", "255.255.255.255",
+        "::", "::1", "1::", "2001:db8::c001", "2001:DB8:0:0:0:0:0:C001", "2001:db8:0:0:1::1",
+        "fe80::1:2:3:4", "1:2:3:4:5:6:7:8", "0001:0002::0003", "::ffff:1.2.3.4",
+        "::ffff:0102:0304", "::1.2.3.4", "64:ff9b::192.0.2.33", "1:2:3:4:5:6:1.2.3.4"
+    }) {
+      InetAddress expected = InetAddresses.forString(ip);
+      LocalIp parsed = LocalIpCache.parse(ip);
+
+      assertThat(parsed).as(ip).isNotNull();
+      assertThat(parsed.ipv6).as(ip).isEqualTo(expected instanceof Inet6Address);
+      assertThat(parsed.address).as(ip).isEqualTo(expected.getHostAddress());
+    }
+  }
+
+  @Test void parse_invalid() {
+    for (String ip : new String[] {
+        "", "1", "1.2.3", "1.2.3.4.5", "1.2.3.", ".1.2.3", "256.1.1.1", "01.2.3.4", "1.2.3.a",
+        ":", ":::", "1::2::3", ":1::", "1:", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+        "1:2:3:4:5:6:7::8", "12345::", "g::", "::1.2.3", "1:2:3:4:5:6:7:1.2.3.4",
+        "localhost"
+    }) {
+      assertThat(LocalIpCache.parse(ip)).as(ip).isNull();
+      assertThat(InetAddresses.isInetAddress(ip)).as(ip).isFalse();
+    }
+  }
+
+  @Test void parse_ipv4IsNotCopied() {
+    String ip = "192.168.99.101";
+
+    assertThat(LocalIpCache.parse(ip).address).isSameAs(ip);
+  }
+
+  @Test void get_cachesValues() {
+    LocalIp ip = cache.get("2001:db8::c001");
+
+    assertThat(cache.get("2001:db8::c001")).isSameAs(ip);
+    assertThat(ip.value).isEqualTo(AttributesExtractor.toAttributeValue("2001:db8:0:0:0:0:0:c001"));
+  }
+
+  @Test void get_doesntCacheInvalid() {
+    assertThat(cache.get("localhost")).isNull();
+
+    assertThat(cache.ips).isEmpty();
+  }
+
+  @Test void get_boundedByEntries() {
+    cache.get("10.0.0.1");
+    cache.get("10.0.0.2");
+    LocalIp notCached = cache.get("10.0.0.3");
+
+    assertThat(cache.ips).hasSize(2);
+    assertThat(notCached.address).isEqualTo("10.0.0.3");
+    assertThat(cache.get("10.0.0.3")).isNotSameAs(notCached);
+  }
+}
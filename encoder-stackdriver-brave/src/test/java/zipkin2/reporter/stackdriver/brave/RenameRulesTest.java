@@ -0,0 +1,122 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RenameRulesTest {
+  @Test void defaults() {
+    assertThat(RenameRules.DEFAULT.attributeName("http.method")).isEqualTo("/http/method");
+    assertThat(RenameRules.DEFAULT.attributeName("http.path")).isEqualTo("http.path");
+
+    RenameRules.Rule status = RenameRules.DEFAULT.rule("status");
+    assertThat(status.attributeName).isEqualTo("status");
+    assertThat(status.copyAttributeName("http get /")).isEqualTo("/http/status_code");
+    assertThat(status.copyAttributeName("get /")).isNull();
+    assertThat(status.copyAttributeName(null)).isNull();
+  }
+
+  @Test void toBuilder_addsRules() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder()
+        .rename("rpc.method", "/rpc/method")
+        .rename("http.method", "method")
+        .build();
+
+    assertThat(rules.attributeName("rpc.method")).isEqualTo("/rpc/method");
+    assertThat(rules.attributeName("http.method")).isEqualTo("method");
+    assertThat(rules.attributeName("http.url")).isEqualTo("/http/url");
+    assertThat(RenameRules.DEFAULT.attributeName("rpc.method")).isEqualTo("rpc.method");
+  }
+
+  @Test void renameAndCopy_sameKey() {
+    RenameRules rules = RenameRules.newBuilder()
+        .copyIfSpanNameContains("status", "/http/status_code", "")
+        .rename("status", "/status")
+        .build();
+
+    RenameRules.Rule rule = rules.rule("status");
+    assertThat(rule.attributeName).isEqualTo("/status");
+    assertThat(rule.copyAttributeName(null)).isEqualTo("/http/status_code");
+  }
+
+  @Test void remove() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder().remove("status").build();
+
+    assertThat(rules.rule("status")).isNull();
+  }
+
+  @Test void drop() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder().drop("http.method").build();
+
+    RenameRules.Rule rule = rules.rule("http.method");
+    assertThat(rule.drop).isTrue();
+    assertThat(rule.copyAttributeName("http get /")).isNull();
+    assertThat(rules.attributeName("http.method")).isEqualTo("http.method");
+
+    // only removing the rule keeps the tag again
+    rule = rules.toBuilder().remove("http.method").rename("http.method", "/method").build()
+        .rule("http.method");
+    assertThat(rule.drop).isFalse();
+    assertThat(rule.attributeName).isEqualTo("/method");
+  }
+
+  @Test void drop_beforeOtherRules() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder()
+        .drop("user.id")
+        .rename("user.id", "/user/id")
+        .copyIfSpanNameContains("user.id", "/user", "")
+        .redact("user.id", "xxx")
+        .build();
+
+    assertThat(rules.rule("user.id").drop).isTrue();
+  }
+
+  @Test void drop_afterOtherRules() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder()
+        .rename("user.id", "/user/id")
+        .copyIfSpanNameContains("user.id", "/user", "")
+        .redact("user.id", "xxx")
+        .drop("user.id")
+        .build();
+
+    assertThat(rules.rule("user.id").drop).isTrue();
+  }
+
+  @Test void redact() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder()
+        .redact("status", "xxx")
+        .redact("user.id", "xxx")
+        .build();
+
+    RenameRules.Rule status = rules.rule("status");
+    assertThat(status.value("200")).isEqualTo("xxx");
+    assertThat(status.copyAttributeName("http get /")).isEqualTo("/http/status_code");
+    assertThat(rules.rule("user.id").value("bob")).isEqualTo("xxx");
+    assertThat(rules.rule("user.id").attributeName).isEqualTo("user.id");
+    assertThat(RenameRules.DEFAULT.rule("status").value("200")).isEqualTo("200");
+
+    // renames keep the redaction
+    rules = rules.toBuilder().rename("user.id", "/user/id").build();
+    assertThat(rules.rule("user.id").value("bob")).isEqualTo("xxx");
+  }
+
+  @Test void builder_nullChecks() {
+    RenameRules.Builder builder = RenameRules.newBuilder();
+
+    assertThatThrownBy(() -> builder.rename(null, "a"))
+        .isInstanceOf(NullPointerException.class).hasMessage("tagKey == null");
+    assertThatThrownBy(() -> builder.rename("a", null))
+        .isInstanceOf(NullPointerException.class).hasMessage("attributeName == null");
+    assertThatThrownBy(() -> builder.copyIfSpanNameContains("a", "b", null))
+        .isInstanceOf(NullPointerException.class).hasMessage("spanNameSubstring == null");
+    assertThatThrownBy(() -> builder.drop(null))
+        .isInstanceOf(NullPointerException.class).hasMessage("tagKey == null");
+    assertThatThrownBy(() -> builder.redact("a", null))
+        .isInstanceOf(NullPointerException.class).hasMessage("redactedValue == null");
+  }
+}
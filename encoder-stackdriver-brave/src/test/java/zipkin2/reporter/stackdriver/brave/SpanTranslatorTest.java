@@ -8,17 +8,20 @@ import brave.Tags;
 import brave.handler.MutableSpan;
 import brave.propagation.TraceContext;
 import com.google.devtools.cloudtrace.v2.Span;
+import com.google.devtools.cloudtrace.v2.AttributeValue;
 import com.google.protobuf.Timestamp;
+import java.util.Collections;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static zipkin2.reporter.stackdriver.brave.AttributesExtractor.toAttributeValue;
 import static zipkin2.reporter.stackdriver.brave.SpanUtil.toTruncatableString;
 import static zipkin2.reporter.stackdriver.brave.TestObjects.clientSpan;
 import static zipkin2.reporter.stackdriver.brave.TestObjects.spring6ServerSpan;
 
 class SpanTranslatorTest {
-  SpanTranslator spanTranslator = new SpanTranslator(Tags.ERROR);
+  SpanTranslator spanTranslator = new SpanTranslator(Tags.ERROR, RenameRules.DEFAULT, false);
 
   /** This test is intentionally sensitive, so changing other parts makes obvious impact here */
   @Test void translate_clientSpan() {
@@ -118,4 +121,40 @@ class SpanTranslatorTest {
                                     .build())
                             .build());
   }
+
+  @Test void translate_overLimits() {
+    MutableSpan braveSpan = clientSpan();
+    braveSpan.name(String.join("", Collections.nCopies(200, "n")));
+    for (int i = 0; i < 40; i++) braveSpan.annotate(1472470996500000L + i, "annotation" + i);
+    int annotationCount = braveSpan.annotationCount();
+
+    Span translated = spanTranslator.translate(Span.newBuilder(), braveSpan).build();
+
+    assertThat(translated.getDisplayName().getValue()).hasSize(128);
+    assertThat(translated.getDisplayName().getTruncatedByteCount()).isEqualTo(72);
+    assertThat(translated.getTimeEvents().getTimeEventList()).hasSize(32);
+    assertThat(translated.getTimeEvents().getDroppedAnnotationsCount())
+        .isEqualTo(annotationCount - 32);
+  }
+
+  @Test void translate_typedAttributes() {
+    MutableSpan braveSpan = new MutableSpan(
+        TraceContext.newBuilder().traceId(3).parentId(1).spanId(2).build(), null);
+    braveSpan.name("get");
+    braveSpan.kind(brave.Span.Kind.SERVER);
+    braveSpan.tag("http.status_code", "200");
+    braveSpan.tag("http.path", "/api");
+    braveSpan.tag("zip", "02134");
+    braveSpan.error(new IllegalStateException("true"));
+
+    Span translated = new SpanTranslator(Tags.ERROR, RenameRules.DEFAULT, true)
+        .translate(Span.newBuilder(), braveSpan).build();
+
+    assertThat(translated.getSpanKind()).isEqualTo(Span.SpanKind.SERVER);
+    assertThat(translated.getAttributes().getAttributeMapMap()).containsOnly(
+        entry("/http/status_code", AttributeValue.newBuilder().setIntValue(200).build()),
+        entry("error", AttributeValue.newBuilder().setBoolValue(true).build()),
+        entry("http.path", toAttributeValue("/api")),
+        entry("zip", toAttributeValue("02134")));
+  }
 }
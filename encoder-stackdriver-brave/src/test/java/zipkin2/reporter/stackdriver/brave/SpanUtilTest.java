@@ -0,0 +1,72 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import com.google.devtools.cloudtrace.v2.TruncatableString;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.toTruncatableString;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.truncatedLength;
+import static zipkin2.reporter.stackdriver.brave.SpanUtil.utf8Length;
+
+class SpanUtilTest {
+  @Test void toTruncatableString_fits() {
+    assertThat(toTruncatableString("abc", 3))
+        .isEqualTo(TruncatableString.newBuilder().setValue("abc").build());
+  }
+
+  @Test void toTruncatableString_ascii() {
+    assertThat(toTruncatableString("abcdef", 4)).isEqualTo(
+        TruncatableString.newBuilder().setValue("abcd").setTruncatedByteCount(2).build());
+  }
+
+  /** Each Hangul syllable is 3 bytes, so only one fits in 5 bytes. */
+  @Test void toTruncatableString_doesntSplitCharacters() {
+    assertThat(toTruncatableString("조회", 5)).isEqualTo(
+        TruncatableString.newBuilder().setValue("조").setTruncatedByteCount(3).build());
+  }
+
+  /** The emoji is a surrogate pair, encoded as 4 bytes. */
+  @Test void toTruncatableString_doesntSplitSurrogatePairs() {
+    assertThat(toTruncatableString("a💩b", 4)).isEqualTo(
+        TruncatableString.newBuilder().setValue("a").setTruncatedByteCount(5).build());
+    assertThat(toTruncatableString("a💩b", 5)).isEqualTo(
+        TruncatableString.newBuilder().setValue("a💩").setTruncatedByteCount(1).build());
+  }
+
+  @Test void truncatedLength_fitsExactly() {
+    String value = "Ωa💩";
+    int bytes = value.getBytes(StandardCharsets.UTF_8).length;
+    assertThat(truncatedLength(value, bytes)).isEqualTo(value.length());
+    assertThat(truncatedLength(value, bytes - 1)).isEqualTo(value.length() - 2);
+  }
+
+  @Test void utf8Length_matchesJdk() {
+    for (String value : new String[] {"", "abc", "Ω", "조회", "💩", "a💩bΩ조"}) {
+      assertThat(utf8Length(value))
+          .isEqualTo(value.getBytes(StandardCharsets.UTF_8).length);
+    }
+  }
+
+  @Test void isInt64() {
+    for (String value : new String[] {"0", "200", "-1", "9223372036854775807",
+        "-9223372036854775808"}) {
+      assertThat(SpanUtil.isInt64(value)).as(value).isTrue();
+    }
+    for (String value : new String[] {"", "-", "-0", "007", "+1", "1.0", "1e3", " 1", "0x1",
+        "9223372036854775808", "-9223372036854775809", "12345678901234567890"}) {
+      assertThat(SpanUtil.isInt64(value)).as(value).isFalse();
+    }
+  }
+
+  @Test void isBool() {
+    assertThat(SpanUtil.isBool("true")).isTrue();
+    assertThat(SpanUtil.isBool("false")).isTrue();
+    assertThat(SpanUtil.isBool("True")).isFalse();
+    assertThat(SpanUtil.isBool("1")).isFalse();
+  }
+}
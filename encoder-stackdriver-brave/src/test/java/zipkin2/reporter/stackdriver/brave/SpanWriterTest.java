@@ -0,0 +1,178 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+import com.google.devtools.cloudtrace.v2.Span;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpanWriterTest {
+  SpanTranslator spanTranslator = new SpanTranslator(Tags.ERROR, RenameRules.DEFAULT, false);
+  SpanWriter spanWriter = new SpanWriter(spanTranslator.attributesExtractor);
+
+  @Test void write_clientSpan() throws IOException {
+    assertSameAsTranslator(TestObjects.clientSpan());
+  }
+
+  @Test void write_spring6ServerSpan() throws IOException {
+    assertSameAsTranslator(TestObjects.spring6ServerSpan());
+  }
+
+  @Test void write_serverSpan_ipv6() throws IOException {
+    MutableSpan braveSpan = TestObjects.spring6ServerSpan();
+    braveSpan.name("post");
+    braveSpan.localIp("2001:db8:0:0:0:0:0:c001"); // normalized to 2001:db8::c001
+
+    assertSameAsTranslator(braveSpan);
+  }
+
+  @Test void write_error() throws IOException {
+    MutableSpan braveSpan = TestObjects.clientSpan();
+    braveSpan.error(new IllegalStateException("oops"));
+
+    assertSameAsTranslator(braveSpan);
+  }
+
+  @Test void write_missingName() throws IOException {
+    MutableSpan braveSpan = new MutableSpan();
+    braveSpan.traceId("3");
+    braveSpan.id("2");
+
+    assertSameAsTranslator(braveSpan);
+  }
+
+  @Test void write_nonAsciiAndEmptyValues() throws IOException {
+    MutableSpan braveSpan = TestObjects.clientSpan();
+    braveSpan.name("조회");
+    braveSpan.tag("error", "");
+    braveSpan.annotate(1472470996404000L, "💩");
+
+    assertSameAsTranslator(braveSpan);
+  }
+
+  @Test void write_overLimits() throws IOException {
+    MutableSpan braveSpan = TestObjects.spring6ServerSpan();
+    braveSpan.name(String.join("", Collections.nCopies(100, "조회")));
+    braveSpan.error(new IllegalStateException("oops"));
+    braveSpan.tag(String.join("", Collections.nCopies(200, "k")), "value");
+    for (int i = 0; i < 40; i++) {
+      braveSpan.tag("tag" + i, String.join("", Collections.nCopies(100, "💩")));
+      braveSpan.annotate(1472470996500000L + i, String.join("", Collections.nCopies(100, "Ω")));
+    }
+
+    assertSameAsTranslator(braveSpan);
+  }
+
+  @Test void write_overLimits_unparseableLocalIp() throws IOException {
+    MutableSpan braveSpan = TestObjects.spring6ServerSpan();
+    braveSpan.localIp("1::2::3"); // kept by brave, but not an IP literal, so not an attribute
+    for (int i = 0; i < 40; i++) braveSpan.tag("tag" + i, "value");
+
+    assertSameAsTranslator(braveSpan);
+    assertThat(spanTranslator.translate(Span.newBuilder(), braveSpan).build()
+        .getAttributes().getAttributeMapCount()).isEqualTo(SpanUtil.MAX_ATTRIBUTES);
+  }
+
+  @Test void write_typedAttributes() throws IOException {
+    SpanTranslator typedTranslator = new SpanTranslator(Tags.ERROR, RenameRules.DEFAULT, true);
+    SpanWriter typedWriter = new SpanWriter(typedTranslator.attributesExtractor);
+    MutableSpan braveSpan = TestObjects.spring6ServerSpan();
+    braveSpan.tag("http.response.size", "-1");
+    braveSpan.tag("retry", "true");
+    braveSpan.tag("zip", "02134");
+    Span expected = typedTranslator.translate(Span.newBuilder(), braveSpan).build();
+
+    byte[] bytes = new byte[typedWriter.sizeInBytes(braveSpan)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    typedWriter.write(braveSpan, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(bytes).containsExactly(expected.toByteArray());
+    assertThat(bytes.length).isLessThan(spanWriter.sizeInBytes(braveSpan));
+  }
+
+  @Test void write_dropAndRedact() throws IOException {
+    RenameRules renameRules = RenameRules.DEFAULT.toBuilder()
+        .drop("exception")
+        .drop("uri")
+        .redact("status", "xxx") // also redacts the copy to "/http/status_code"
+        .build();
+    SpanTranslator translator = new SpanTranslator(Tags.ERROR, renameRules, false);
+    SpanWriter writer = new SpanWriter(translator.attributesExtractor);
+    MutableSpan braveSpan = TestObjects.spring6ServerSpan();
+    Span expected = translator.translate(Span.newBuilder(), braveSpan).build();
+
+    assertThat(expected.getAttributes().getAttributeMapMap())
+        .doesNotContainKeys("exception", "uri");
+    assertThat(expected.getAttributes().getAttributeMapMap().get("/http/status_code")
+        .getStringValue().getValue()).isEqualTo("xxx");
+    assertThat(expected.getAttributes().getDroppedAttributesCount()).isZero();
+
+    byte[] bytes = new byte[writer.sizeInBytes(braveSpan)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    writer.write(braveSpan, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(bytes).containsExactly(expected.toByteArray());
+  }
+
+  @Test void write_withName() throws IOException {
+    MutableSpan braveSpan = TestObjects.clientSpan();
+    braveSpan.traceId("216a2aea45d08fc9"); // 64-bit trace IDs are padded
+    Span expected = spanTranslator.translate(Span.newBuilder(), braveSpan)
+        .setName("projects/test-project/traces/0000000000000000216a2aea45d08fc9/spans/"
+            + braveSpan.id())
+        .build();
+
+    byte[] bytes = new byte[spanWriter.sizeInBytes("test-project", braveSpan)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    spanWriter.write("test-project", braveSpan, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(bytes).containsExactly(expected.toByteArray());
+  }
+
+  /** Unlike the builder, duplicate keys aren't collapsed, but they parse the same. */
+  @Test void write_duplicateKeys_lastWins() throws IOException {
+    MutableSpan braveSpan = TestObjects.spring6ServerSpan();
+    braveSpan.tag("http.method", "get"); // renamed to the same key as the spring 6 tag
+    braveSpan.tag("/kind", "producer"); // tags are added after the span kind
+
+    byte[] bytes = new byte[spanWriter.sizeInBytes(braveSpan)];
+    spanWriter.write(braveSpan, CodedOutputStream.newInstance(bytes));
+
+    assertThat(Span.parseFrom(bytes))
+        .isEqualTo(spanTranslator.translate(Span.newBuilder(), braveSpan).build());
+  }
+
+  /** The agent attribute is encoded once, so check a long agent name is truncated the same. */
+  @Test void encodeAttribute_sameAsExtractor() {
+    String agentName = String.join("", Collections.nCopies(100, "zipkin-java"));
+
+    assertThat(SpanWriter.encodeAttribute(AttributesExtractor.kAgentLabelKey, agentName))
+        .containsExactly(Span.Attributes.newBuilder()
+            .putAttributeMap(AttributesExtractor.kAgentLabelKey,
+                AttributesExtractor.toAttributeValue(agentName))
+            .build().toByteArray());
+  }
+
+  void assertSameAsTranslator(MutableSpan braveSpan) throws IOException {
+    Span expected = spanTranslator.translate(Span.newBuilder(), braveSpan).build();
+
+    byte[] bytes = new byte[spanWriter.sizeInBytes(braveSpan)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    spanWriter.write(braveSpan, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(Span.parseFrom(bytes)).isEqualTo(expected);
+    assertThat(bytes).containsExactly(expected.toByteArray());
+  }
+}
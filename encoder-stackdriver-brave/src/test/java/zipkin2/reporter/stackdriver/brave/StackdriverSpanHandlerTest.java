@@ -0,0 +1,273 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.stackdriver.brave;
+
+import brave.Tags;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler.Cause;
+import brave.propagation.TraceContext;
+import com.asarkar.grpc.test.GrpcCleanupExtension;
+import com.asarkar.grpc.test.Resources;
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.devtools.cloudtrace.v2.Span;
+import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Empty;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import zipkin2.reporter.InMemoryReporterMetrics;
+import zipkin2.reporter.stackdriver.StackdriverSender;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(GrpcCleanupExtension.class)
+class StackdriverSpanHandlerTest {
+  static final String PROJECT_ID = "test-project";
+
+  TestTraceService traceService = new TestTraceService();
+  SpanTranslator spanTranslator = new SpanTranslator(Tags.ERROR, RenameRules.DEFAULT, false);
+  TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  StackdriverSender sender;
+  StackdriverSpanHandler handler;
+
+  @BeforeEach void setUp(Resources resources) throws Exception {
+    String serverName = InProcessServerBuilder.generateName();
+
+    Server server = InProcessServerBuilder
+        .forName(serverName)
+        .directExecutor()
+        .addService(traceService)
+        .build().start();
+    resources.register(server, Duration.ofSeconds(10)); // shutdown deadline
+
+    ManagedChannel channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+    resources.register(channel, Duration.ofSeconds(10));// close deadline
+
+    sender = StackdriverSender.newBuilder(channel).projectId(PROJECT_ID).build();
+    handler = StackdriverSpanHandler.newBuilder(sender)
+        .messageTimeout(10, MILLISECONDS)
+        .build();
+  }
+
+  @AfterEach void close() {
+    handler.close();
+  }
+
+  @Test void end_sendsSpansWithNames() {
+    MutableSpan clientSpan = TestObjects.clientSpan();
+    MutableSpan serverSpan = TestObjects.spring6ServerSpan();
+    serverSpan.traceId("9e941a86a679a9d5"); // 64-bit trace IDs are padded
+
+    handler.end(context, clientSpan, Cause.FINISHED);
+    handler.end(context, serverSpan, Cause.FINISHED);
+    handler.close();
+
+    assertThat(traceService.requests).hasSize(1);
+    BatchWriteSpansRequest request = traceService.requests.get(0);
+    assertThat(request.getName()).isEqualTo("projects/" + PROJECT_ID);
+    assertThat(request.getSpansList()).containsExactly(
+        translate(clientSpan, "7180c278b62e8f6a216a2aea45d08fc9"),
+        translate(serverSpan, "00000000000000009e941a86a679a9d5"));
+  }
+
+  @Test void end_abandonedSpansArentSent() {
+    handler.end(context, TestObjects.clientSpan(), Cause.ABANDONED);
+    handler.close();
+
+    assertThat(traceService.requests).isEmpty();
+  }
+
+  @Test void end_unsampledSpansArentSent() {
+    TraceContext unsampled = context.toBuilder().sampled(false).build();
+    TraceContext sampledLocal = context.toBuilder().sampled(null).sampledLocal(true).build();
+
+    handler.end(unsampled, TestObjects.clientSpan(), Cause.FINISHED);
+    handler.end(sampledLocal, TestObjects.clientSpan(), Cause.FINISHED);
+    handler.close();
+
+    assertThat(traceService.requests).isEmpty();
+  }
+
+  @Test void end_alwaysReportSpans() {
+    handler.close();
+    handler = StackdriverSpanHandler.newBuilder(sender)
+        .alwaysReportSpans(true)
+        .messageTimeout(10, MILLISECONDS)
+        .build();
+
+    handler.end(context.toBuilder().sampled(false).build(), TestObjects.clientSpan(),
+        Cause.FINISHED);
+    handler.close();
+
+    assertThat(traceService.requests).hasSize(1);
+  }
+
+  @Test void end_typedAttributes() {
+    handler.close();
+    handler = StackdriverSpanHandler.newBuilder(sender)
+        .typedAttributes(true)
+        .messageTimeout(10, MILLISECONDS)
+        .build();
+
+    handler.end(context, TestObjects.clientSpan(), Cause.FINISHED);
+    handler.close();
+
+    assertThat(traceService.requests).hasSize(1);
+    Span span = traceService.requests.get(0).getSpans(0);
+    assertThat(span.getSpanKind()).isEqualTo(Span.SpanKind.CLIENT);
+    assertThat(span.getAttributes().getAttributeMapMap()).doesNotContainKey("/kind");
+  }
+
+  @Test void end_dropRules() {
+    handler.close();
+    handler = StackdriverSpanHandler.newBuilder(sender)
+        .dropRules(DropRules.newBuilder().spanName("get").build())
+        .build();
+
+    handler.end(context, TestObjects.clientSpan(), Cause.FINISHED); // named "get"
+    handler.end(context, TestObjects.spring6ServerSpan(), Cause.FINISHED);
+    handler.close();
+
+    assertThat(traceService.requests).hasSize(1);
+    assertThat(traceService.requests.get(0).getSpansList()).containsExactly(
+        translate(TestObjects.spring6ServerSpan(), "673adb3c54aa03af9e941a86a679a9d5"));
+  }
+
+  @Test void end_afterCloseIsDropped() {
+    handler.close();
+    handler.end(context, TestObjects.clientSpan(), Cause.FINISHED);
+
+    assertThat(traceService.requests).isEmpty();
+  }
+
+  /** Simulates a span that passed the closed check, but was queued after the flush thread. */
+  @Test void close_sendsSpansQueuedAfterFlushThreadReturned() throws Exception {
+    handler.closed = true;
+    handler.flushThread.join();
+    MutableSpan span = TestObjects.clientSpan();
+    byte[] record = new byte[handler.spanWriter.sizeInBytes(PROJECT_ID, span)];
+    handler.spanWriter.write(PROJECT_ID, span, CodedOutputStream.newInstance(record));
+    handler.queue.add(record);
+    handler.closed = false;
+
+    handler.close();
+
+    assertThat(traceService.requests).hasSize(1);
+    assertThat(traceService.requests.get(0).getSpansList()).containsExactly(
+        translate(span, "7180c278b62e8f6a216a2aea45d08fc9"));
+  }
+
+  @Test void requestsDontExceedMessageMaxBytes() {
+    List<Span> expected = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      MutableSpan span = TestObjects.spring6ServerSpan();
+      span.id(String.format("%016x", i + 1));
+      for (int j = 0; j < 32; j++) {
+        span.tag("tag" + j, String.join("", Collections.nCopies(256, "v")));
+      }
+      handler.end(context, span, Cause.FINISHED);
+      expected.add(translate(span, span.traceId()));
+    }
+    handler.close();
+
+    assertThat(traceService.requests).hasSizeGreaterThan(1);
+    List<Span> sent = new ArrayList<>();
+    for (BatchWriteSpansRequest request : traceService.requests) {
+      assertThat(request.getSerializedSize()).isLessThanOrEqualTo(sender.messageMaxBytes());
+      sent.addAll(request.getSpansList());
+    }
+    assertThat(sent).containsExactlyElementsOf(expected);
+  }
+
+  @Test void sendFailureDoesntStopTheFlushThread() throws Exception {
+    traceService.fail.set(true);
+    handler.end(context, TestObjects.clientSpan(), Cause.FINISHED);
+    while (traceService.requests.isEmpty()) Thread.sleep(1L);
+
+    traceService.fail.set(false);
+    handler.end(context, TestObjects.spring6ServerSpan(), Cause.FINISHED);
+    handler.close();
+
+    assertThat(traceService.requests).hasSize(2);
+    assertThat(traceService.requests.get(1).getSpansList()).containsExactly(
+        translate(TestObjects.spring6ServerSpan(), "673adb3c54aa03af9e941a86a679a9d5"));
+  }
+
+  @Test void metrics() {
+    InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+    handler.close();
+    handler = StackdriverSpanHandler.newBuilder(sender)
+        .metrics(metrics)
+        .messageTimeout(10, MILLISECONDS)
+        .build();
+
+    handler.end(context, TestObjects.clientSpan(), Cause.FINISHED);
+    handler.end(context, TestObjects.spring6ServerSpan(), Cause.FINISHED);
+    handler.close();
+
+    assertThat(metrics.spans()).isEqualTo(2);
+    assertThat(metrics.spanBytes()).isPositive();
+    assertThat(metrics.messages()).isEqualTo(1);
+    assertThat(metrics.messageBytes())
+        .isEqualTo(traceService.requests.get(0).getSerializedSize());
+    assertThat(metrics.spansDropped()).isZero();
+    assertThat(metrics.messagesDropped()).isZero();
+  }
+
+  @Test void metrics_sendFailure() {
+    InMemoryReporterMetrics metrics = new InMemoryReporterMetrics();
+    handler.close();
+    handler = StackdriverSpanHandler.newBuilder(sender)
+        .metrics(metrics)
+        .messageTimeout(10, MILLISECONDS)
+        .build();
+    traceService.fail.set(true);
+
+    handler.end(context, TestObjects.clientSpan(), Cause.FINISHED);
+    handler.end(context, TestObjects.spring6ServerSpan(), Cause.FINISHED);
+    handler.close();
+
+    assertThat(metrics.messages()).isEqualTo(1);
+    assertThat(metrics.messagesDropped()).isEqualTo(1);
+    assertThat(metrics.spansDropped()).isEqualTo(2);
+  }
+
+  Span translate(MutableSpan braveSpan, String paddedTraceId) {
+    return spanTranslator.translate(Span.newBuilder(), braveSpan)
+        .setName("projects/" + PROJECT_ID + "/traces/" + paddedTraceId + "/spans/" + braveSpan.id())
+        .build();
+  }
+
+  static class TestTraceService extends TraceServiceGrpc.TraceServiceImplBase {
+    final List<BatchWriteSpansRequest> requests = new CopyOnWriteArrayList<>();
+    final AtomicBoolean fail = new AtomicBoolean();
+
+    @Override public void batchWriteSpans(BatchWriteSpansRequest request,
+        StreamObserver<Empty> responseObserver) {
+      requests.add(request);
+      if (fail.get()) {
+        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(Empty.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+  }
+}
@@ -4,12 +4,18 @@
  */
 package zipkin2.reporter.stackdriver.brave;
 
+import brave.Tag;
 import brave.Tags;
 import brave.handler.MutableSpan;
+import brave.propagation.TraceContext;
 import com.google.devtools.cloudtrace.v2.Span;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class StackdriverV2EncoderTest {
   StackdriverV2Encoder encoder = new StackdriverV2Encoder(Tags.ERROR);
@@ -34,6 +40,97 @@ class StackdriverV2EncoderTest {
     assertTraceIdPrefixedSpan(encoder.encode(braveSpan), "0000000000000000216a2aea45d08fc9");
   }
 
+  @Test void renameRules() throws Exception {
+    RenameRules renameRules =
+        RenameRules.DEFAULT.toBuilder().rename("http.path", "/http/path").build();
+    encoder = new StackdriverV2Encoder(Tags.ERROR, renameRules);
+
+    byte[] serialized = encoder.encode(braveSpan);
+    assertThat(encoder.sizeInBytes(braveSpan)).isEqualTo(serialized.length);
+    assertTraceIdPrefixedSpan(serialized, braveSpan.traceId());
+
+    Span deserialized = Span.parser().parseFrom(serialized, 32, serialized.length - 32);
+    assertThat(deserialized.getAttributes().getAttributeMapMap())
+        .containsKey("/http/path")
+        .doesNotContainKey("http.path");
+  }
+
+  @Test void typedAttributes() throws Exception {
+    encoder = new StackdriverV2Encoder(Tags.ERROR, RenameRules.DEFAULT, true);
+
+    byte[] serialized = encoder.encode(braveSpan);
+    assertThat(encoder.sizeInBytes(braveSpan)).isEqualTo(serialized.length);
+
+    Span deserialized = Span.parser().parseFrom(serialized, 32, serialized.length - 32);
+    assertThat(deserialized.getSpanKind()).isEqualTo(Span.SpanKind.CLIENT);
+    assertThat(deserialized.getAttributes().getAttributeMapMap()).doesNotContainKey("/kind");
+  }
+
+  @Test void encode_byteBuffer() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+    buffer.put((byte) 'a');
+
+    encoder.encode(braveSpan, buffer);
+    braveSpan.traceId("216a2aea45d08fc9");
+    encoder.encode(braveSpan, buffer);
+
+    buffer.flip();
+    assertThat(buffer.get()).isEqualTo((byte) 'a');
+    byte[] first = new byte[encoder.sizeInBytes(braveSpan)];
+    buffer.get(first);
+    byte[] second = new byte[encoder.sizeInBytes(braveSpan)];
+    buffer.get(second);
+    assertThat(buffer.hasRemaining()).isFalse();
+
+    assertThat(first).containsExactly(encoder.encode(TestObjects.clientSpan()));
+    assertThat(second).containsExactly(encoder.encode(braveSpan));
+    assertTraceIdPrefixedSpan(second, "0000000000000000216a2aea45d08fc9");
+  }
+
+  @Test void encode_byteBuffer_direct() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(encoder.sizeInBytes(braveSpan));
+
+    encoder.encode(braveSpan, buffer);
+
+    buffer.flip();
+    byte[] encoded = new byte[buffer.remaining()];
+    buffer.get(encoded);
+    assertThat(encoded).containsExactly(encoder.encode(braveSpan));
+  }
+
+  @Test void encode_byteBuffer_overflow() {
+    ByteBuffer buffer = ByteBuffer.allocate(encoder.sizeInBytes(braveSpan) - 1);
+
+    assertThatThrownBy(() -> encoder.encode(braveSpan, buffer))
+        .isInstanceOf(BufferOverflowException.class);
+    assertThat(buffer.position()).isZero();
+  }
+
+  /** Ensures a span that failed mid-write doesn't corrupt the next one on the same thread. */
+  @Test void encode_byteBuffer_afterError() {
+    AtomicInteger calls = new AtomicInteger();
+    Tag<Throwable> failOnWrite = new Tag<Throwable>("error") {
+      @Override protected String parseValue(Throwable input, TraceContext context) {
+        // called once when checking the size, then twice when writing
+        if (calls.incrementAndGet() == 3) throw new IllegalStateException("failed");
+        return input.getMessage();
+      }
+    };
+    MutableSpan errorSpan = TestObjects.clientSpan();
+    errorSpan.error(new RuntimeException("oops"));
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    assertThatThrownBy(() -> new StackdriverV2Encoder(failOnWrite).encode(errorSpan, buffer))
+        .hasMessage("failed");
+
+    buffer.clear();
+    encoder.encode(braveSpan, buffer);
+    buffer.flip();
+    byte[] encoded = new byte[buffer.remaining()];
+    buffer.get(encoded);
+    assertThat(encoded).containsExactly(encoder.encode(braveSpan));
+  }
+
   void assertTraceIdPrefixedSpan(byte[] serialized, String expectedTraceId) throws Exception {
     char[] traceId = new char[32];
     for (int i = 0; i < 32; i++) traceId[i] = (char) serialized[i];
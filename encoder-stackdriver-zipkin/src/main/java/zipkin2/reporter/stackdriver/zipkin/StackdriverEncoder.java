@@ -9,7 +9,8 @@ import java.io.IOException;
 import zipkin2.Span;
 import zipkin2.reporter.BytesEncoder;
 import zipkin2.reporter.Encoding;
-import zipkin2.translation.stackdriver.SpanTranslator;
+import zipkin2.translation.stackdriver.RenameRules;
+import zipkin2.translation.stackdriver.SpanWriter;
 
 @SuppressWarnings("ImmutableEnumChecker") // because span is immutable
 public enum StackdriverEncoder implements BytesEncoder<Span> {
@@ -19,38 +20,109 @@ public enum StackdriverEncoder implements BytesEncoder<Span> {
       return Encoding.PROTO3;
     }
 
+    /** This computes the size without translating the span, as it is called before encoding. */
     @Override
     public int sizeInBytes(Span input) {
-      return 32 + translate(input).getSerializedSize();
+      return sizeInBytes(input, RenameRules.DEFAULT, false);
     }
 
     /** This encodes a TraceSpan message prefixed by a potentially padded 32 character trace ID */
     @Override
     public byte[] encode(Span span) {
-      com.google.devtools.cloudtrace.v2.Span translated = translate(span);
-      byte[] result = new byte[32 + translated.getSerializedSize()];
-
-      // Zipkin trace ID is conditionally 16 or 32 characters, but Stackdriver needs 32
-      String traceId = span.traceId();
-      if (traceId.length() == 16) {
-        for (int i = 0; i < 16; i++) result[i] = '0';
-        for (int i = 0; i < 16; i++) result[i + 16] = (byte) traceId.charAt(i);
-      } else {
-        for (int i = 0; i < 32; i++) result[i] = (byte) traceId.charAt(i);
-      }
-
-      CodedOutputStream output = CodedOutputStream.newInstance(result, 32, result.length - 32);
-      try {
-        translated.writeTo(output);
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-      return result;
-    }
-
-    com.google.devtools.cloudtrace.v2.Span translate(Span span) {
-      return SpanTranslator.translate(
-          com.google.devtools.cloudtrace.v2.Span.newBuilder(), span).build();
+      return encode(span, RenameRules.DEFAULT, false);
     }
+  };
+
+  /**
+   * Returns a builder of an encoder like this one, but with different options.
+   *
+   * <p>Ex.
+   *
+   * <pre>{@code
+   * encoder = StackdriverEncoder.V2.toBuilder().typedAttributes(true).build();
+   * }</pre>
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    final StackdriverEncoder delegate;
+    RenameRules renameRules = RenameRules.DEFAULT;
+    boolean typedAttributes;
+
+    Builder(StackdriverEncoder delegate) {
+      this.delegate = delegate;
+    }
+
+    /** Defaults to {@link RenameRules#DEFAULT}. */
+    public Builder renameRules(RenameRules renameRules) {
+      if (renameRules == null) throw new NullPointerException("renameRules == null");
+      this.renameRules = renameRules;
+      return this;
+    }
+
+    /**
+     * When true, tag values that are integers or booleans are sent as {@code int_value} or
+     * {@code bool_value} instead of strings, and the span kind is sent as {@code span_kind} instead
+     * of a "/kind" attribute. This makes spans smaller, but changes how they are queried in Cloud
+     * Trace, so is off by default.
+     *
+     * <p>Integers are only converted when they parse back to the same text, so values like "007"
+     * or "+1" stay strings.
+     */
+    public Builder typedAttributes(boolean typedAttributes) {
+      this.typedAttributes = typedAttributes;
+      return this;
+    }
+
+    public BytesEncoder<Span> build() {
+      if (renameRules == RenameRules.DEFAULT && !typedAttributes) return delegate;
+      StackdriverEncoder delegate = this.delegate;
+      RenameRules renameRules = this.renameRules;
+      boolean typedAttributes = this.typedAttributes;
+      return new BytesEncoder<Span>() {
+        @Override public Encoding encoding() {
+          return delegate.encoding();
+        }
+
+        @Override public int sizeInBytes(Span input) {
+          return delegate.sizeInBytes(input, renameRules, typedAttributes);
+        }
+
+        @Override public byte[] encode(Span span) {
+          return delegate.encode(span, renameRules, typedAttributes);
+        }
+
+        @Override public String toString() {
+          return delegate + "{" + renameRules + (typedAttributes ? ", typedAttributes" : "") + "}";
+        }
+      };
+    }
+  }
+
+  int sizeInBytes(Span span, RenameRules renameRules, boolean typedAttributes) {
+    return 32 + SpanWriter.sizeInBytes(span, renameRules, typedAttributes);
+  }
+
+  byte[] encode(Span span, RenameRules renameRules, boolean typedAttributes) {
+    byte[] result = new byte[32 + SpanWriter.sizeInBytes(span, renameRules, typedAttributes)];
+
+    // Zipkin trace ID is conditionally 16 or 32 characters, but Stackdriver needs 32
+    String traceId = span.traceId();
+    if (traceId.length() == 16) {
+      for (int i = 0; i < 16; i++) result[i] = '0';
+      for (int i = 0; i < 16; i++) result[i + 16] = (byte) traceId.charAt(i);
+    } else {
+      for (int i = 0; i < 32; i++) result[i] = (byte) traceId.charAt(i);
+    }
+
+    CodedOutputStream output = CodedOutputStream.newInstance(result, 32, result.length - 32);
+    try {
+      SpanWriter.write(span, renameRules, typedAttributes, output);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return result;
   }
 }
@@ -7,9 +7,12 @@ package zipkin2.reporter.stackdriver.zipkin;
 import org.junit.jupiter.api.Test;
 import zipkin2.Span;
 import zipkin2.TestObjects;
+import zipkin2.reporter.BytesEncoder;
+import zipkin2.translation.stackdriver.RenameRules;
 import zipkin2.translation.stackdriver.SpanTranslator;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class StackdriverEncoderTest {
   StackdriverEncoder encoder = StackdriverEncoder.V2;
@@ -37,6 +40,44 @@ public class StackdriverEncoderTest {
     assertTraceIdPrefixedSpan(encoder.encode(zipkinSpan), "0000000000000000216a2aea45d08fc9");
   }
 
+  @Test void renameRules() throws Exception {
+    RenameRules renameRules =
+        RenameRules.DEFAULT.toBuilder().rename("http.path", "/http/path").build();
+    BytesEncoder<Span> encoder = this.encoder.toBuilder().renameRules(renameRules).build();
+
+    byte[] serialized = encoder.encode(zipkinSpan);
+    assertThat(encoder.sizeInBytes(zipkinSpan)).isEqualTo(serialized.length);
+
+    com.google.devtools.cloudtrace.v2.Span deserialized = com.google.devtools.cloudtrace.v2.Span
+        .parser().parseFrom(serialized, 32, serialized.length - 32);
+    assertThat(deserialized.getAttributes().getAttributeMapMap())
+        .containsKey("/http/path")
+        .doesNotContainKey("http.path");
+  }
+
+  @Test void renameRules_default() {
+    assertThat(encoder.toBuilder().renameRules(RenameRules.DEFAULT).build()).isSameAs(encoder);
+  }
+
+  @Test void typedAttributes() throws Exception {
+    BytesEncoder<Span> encoder = this.encoder.toBuilder().typedAttributes(true).build();
+
+    byte[] serialized = encoder.encode(zipkinSpan);
+    assertThat(encoder.sizeInBytes(zipkinSpan)).isEqualTo(serialized.length);
+    assertThat(serialized.length).isLessThan(this.encoder.encode(zipkinSpan).length);
+
+    com.google.devtools.cloudtrace.v2.Span deserialized = com.google.devtools.cloudtrace.v2.Span
+        .parser().parseFrom(serialized, 32, serialized.length - 32);
+    assertThat(deserialized).isEqualTo(SpanTranslator.translate(
+        com.google.devtools.cloudtrace.v2.Span.newBuilder(), zipkinSpan, RenameRules.DEFAULT,
+        true).build());
+  }
+
+  @Test void toBuilder_nullChecks() {
+    assertThatThrownBy(() -> encoder.toBuilder().renameRules(null))
+        .hasMessage("renameRules == null");
+  }
+
   void assertTraceIdPrefixedSpan(byte[] serialized, String expectedTraceId) throws Exception {
     char[] traceId = new char[32];
     for (int i = 0; i < 32; i++) traceId[i] = (char) serialized[i];
@@ -109,6 +109,8 @@ public class ZipkinStackdriverStorageModule {
         .projectId(projectId)
         .strictTraceId(strictTraceId)
         .clientFactory(clientFactory)
+        .requestTimeoutMs(properties.getRequestTimeoutMs())
+        .hedgingBudgetPercent(properties.getHedgingBudgetPercent())
         .clientOptions(options
             .decorator(CredentialsDecoratingClient.newDecorator(credentials))
             .build())
@@ -25,6 +25,10 @@ public class ZipkinStackdriverStorageProperties implements Serializable { // for
   private String apiHost = "cloudtrace.googleapis.com:443";
   /** When set, controls the volume of HTTP logging of the Stackdriver Trace Api. */
   private HttpLogging httpLogging = HttpLogging.NONE;
+  /** Deadline of each BatchWriteSpans request in milliseconds. Zero means no deadline. */
+  private long requestTimeoutMs;
+  /** Percentage of slow BatchWriteSpans requests that may be hedged. Zero disables hedging. */
+  private int hedgingBudgetPercent;
 
   public String getProjectId() {
     return projectId;
@@ -49,4 +53,20 @@ public class ZipkinStackdriverStorageProperties implements Serializable { // for
   public void setHttpLogging(HttpLogging httpLogging) {
     this.httpLogging = httpLogging;
   }
+
+  public long getRequestTimeoutMs() {
+    return requestTimeoutMs;
+  }
+
+  public void setRequestTimeoutMs(long requestTimeoutMs) {
+    this.requestTimeoutMs = requestTimeoutMs;
+  }
+
+  public int getHedgingBudgetPercent() {
+    return hedgingBudgetPercent;
+  }
+
+  public void setHedgingBudgetPercent(int hedgingBudgetPercent) {
+    this.hedgingBudgetPercent = hedgingBudgetPercent;
+  }
 }
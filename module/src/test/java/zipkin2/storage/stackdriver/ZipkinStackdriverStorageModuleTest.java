@@ -74,6 +74,23 @@ public class ZipkinStackdriverStorageModuleTest {
         .isEqualTo("localhost");
   }
 
+  @Test void canOverrideProperty_requestTimeoutAndHedging() {
+    TestPropertyValues.of(
+        "zipkin.storage.type:stackdriver",
+        "zipkin.storage.stackdriver.project-id:zipkin",
+        "zipkin.storage.stackdriver.request-timeout-ms:2000",
+        "zipkin.storage.stackdriver.hedging-budget-percent:5").applyTo(context);
+    context.register(
+        PropertyPlaceholderAutoConfiguration.class,
+        ZipkinStackdriverStorageModule.class,
+        TestConfiguration.class);
+    context.refresh();
+
+    StackdriverStorage storage = context.getBean(StackdriverStorage.class);
+    assertThat(storage.requestTimeoutMs).isEqualTo(2000L);
+    assertThat(storage.hedgingPolicy).isNotNull();
+  }
+
   @Configuration
   static class TestConfiguration {
     @Bean("googleCredentials")
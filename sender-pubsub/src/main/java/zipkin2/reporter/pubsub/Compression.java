@@ -0,0 +1,55 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of the message body. When compressed, the message has the attribute {@value
+ * PubSubSender#CONTENT_ENCODING_ATTRIBUTE} set to the {@link #contentEncoding()}, which the Zipkin
+ * PubSub collector uses to decompress it.
+ */
+public enum Compression {
+  NONE(null) {
+    @Override ByteString compress(byte[] message) {
+      return UnsafeByteOperations.unsafeWrap(message);
+    }
+  },
+  GZIP("gzip") {
+    @Override ByteString compress(byte[] message) throws IOException {
+      // ByteString.Output returns its chunks without copying them into one array
+      ByteString.Output result = ByteString.newOutput(message.length / 4);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(result)) {
+        gzip.write(message);
+      }
+      return result.toByteString();
+    }
+  },
+  /** Requires "com.github.luben:zstd-jni" on the classpath. */
+  ZSTD("zstd") {
+    @Override ByteString compress(byte[] message) {
+      return UnsafeByteOperations.unsafeWrap(
+          Zstd.compress(message, Zstd.defaultCompressionLevel()));
+    }
+  };
+
+  final String contentEncoding;
+
+  Compression(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /** Returns the value of the content encoding attribute, or null for {@link #NONE}. */
+  public String contentEncoding() {
+    return contentEncoding;
+  }
+
+  /** Returns the compressed message, which may share the input array. */
+  abstract ByteString compress(byte[] message) throws IOException;
+}
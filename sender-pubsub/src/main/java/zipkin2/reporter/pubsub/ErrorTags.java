@@ -0,0 +1,51 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import zipkin2.reporter.Encoding;
+
+import static zipkin2.reporter.pubsub.TraceIds.indexOf;
+
+/** Detects the "error" tag in an encoded span, without decoding it. */
+final class ErrorTags {
+  // A key in a JSON string would have its quotes escaped, so this can only be a tag key.
+  static final byte[] JSON_ERROR_KEY = {'"', 'e', 'r', 'r', 'o', 'r', '"', ':'};
+  // Map entry key field, then the start of the value field
+  static final byte[] PROTO3_ERROR_KEY = {10, 5, 'e', 'r', 'r', 'o', 'r', 18};
+  // BinaryAnnotation.key, which is the only string field with ID 1
+  static final byte[] THRIFT_ERROR_KEY = {11, 0, 1, 0, 0, 0, 5, 'e', 'r', 'r', 'o', 'r'};
+  static final int PROTO3_TAG_KEY = (11 << 3) | 2;
+  // Stackdriver Span.Attributes.attribute_map, whose entries have the same fields as zipkin tags
+  static final int STACKDRIVER_ATTRIBUTE_KEY = (1 << 3) | 2;
+
+  static boolean hasErrorTag(Encoding encoding, byte[] span) {
+    switch (encoding) {
+      case JSON:
+        return indexOf(span, JSON_ERROR_KEY) != -1;
+      case PROTO3:
+        return hasMapEntry(span, PROTO3_TAG_KEY);
+      case THRIFT:
+        return indexOf(span, THRIFT_ERROR_KEY) != -1;
+      default:
+        return false;
+    }
+  }
+
+  /** Detects the "error" attribute of a span encoded by {@code StackdriverEncoder}. */
+  static boolean traceIdPrefixedHasErrorTag(byte[] span) {
+    return hasMapEntry(span, STACKDRIVER_ATTRIBUTE_KEY);
+  }
+
+  /** Checks the key is preceded by the field key and varint length of a map entry. */
+  static boolean hasMapEntry(byte[] span, int mapKey) {
+    int i = indexOf(span, PROTO3_ERROR_KEY);
+    if (i < 2) return false;
+    if (span[i - 2] == mapKey && span[i - 1] >= 0) return true; // one byte length
+    return i >= 3 && span[i - 3] == mapKey && span[i - 2] < 0 && span[i - 1] >= 0;
+  }
+
+  ErrorTags() {
+  }
+}
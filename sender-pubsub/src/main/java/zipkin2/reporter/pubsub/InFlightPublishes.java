@@ -0,0 +1,51 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+/**
+ * Bounds the count and size of publishes that were enqueued, but not yet completed. {@link
+ * #acquire(int)} blocks until both are under their limit.
+ *
+ * <p>A message larger than {@link #maxBytes} is allowed when nothing else is in flight, so that it
+ * can't block forever.
+ */
+final class InFlightPublishes {
+  final int maxMessages;
+  final long maxBytes;
+
+  int messages; // guarded by this
+  long bytes; // guarded by this
+
+  InFlightPublishes(int maxMessages, long maxBytes) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+  }
+
+  synchronized void acquire(int messageBytes) throws InterruptedException {
+    while (messages >= maxMessages || (messages > 0 && bytes + messageBytes > maxBytes)) {
+      wait();
+    }
+    messages++;
+    bytes += messageBytes;
+  }
+
+  synchronized void release(int messageBytes) {
+    messages--;
+    bytes -= messageBytes;
+    notifyAll();
+  }
+
+  synchronized int messages() {
+    return messages;
+  }
+
+  synchronized long bytes() {
+    return bytes;
+  }
+
+  @Override public synchronized String toString() {
+    return "InFlightPublishes{messages=" + messages + ", bytes=" + bytes + "}";
+  }
+}
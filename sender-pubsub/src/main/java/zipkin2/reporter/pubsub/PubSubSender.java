@@ -4,22 +4,70 @@
  */
 package zipkin2.reporter.pubsub;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.gax.core.ExecutorProvider;
 import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.cloud.pubsub.v1.Publisher;
 import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.pubsub.v1.PubsubMessage;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import zipkin2.Callback;
 import zipkin2.reporter.BytesMessageEncoder;
 import zipkin2.reporter.BytesMessageSender;
 import zipkin2.reporter.ClosedSenderException;
 import zipkin2.reporter.Encoding;
 
+import static java.util.logging.Level.WARNING;
+
 public class PubSubSender extends BytesMessageSender.Base {
+  /** Message attribute holding the {@link Compression#contentEncoding()} of a compressed body. */
+  public static final String CONTENT_ENCODING_ATTRIBUTE = "content-encoding";
+  /**
+   * Message attribute holding the lowercase {@link Encoding} name, when message attributes. The
+   * Zipkin PubSub collector decodes by this instead of detecting the encoding.
+   *
+   * <p>Messages of {@linkplain Builder#traceIdPrefixedSpans(boolean) trace ID prefixed spans}
+   * always have this attribute, as "stackdriver".
+   */
+  public static final String ENCODING_ATTRIBUTE = "zipkin_encoding";
+  /** Message attribute holding the count of spans in a message, when message attributes. */
+  public static final String SPAN_COUNT_ATTRIBUTE = "zipkin_span_count";
+  /**
+   * Message attribute which is "true" when any span in the message has an "error" tag, when
+   * message attributes. Otherwise, it is "false".
+   */
+  public static final String ERROR_ATTRIBUTE = "zipkin_error";
+
+  static final Logger LOG = Logger.getLogger(PubSubSender.class.getName());
+
+  /** Logs failed asynchronous publishes, which is the default {@link Builder#publishCallback}. */
+  static final Callback<String> LOGGING_CALLBACK = new Callback<String>() {
+    @Override public void onSuccess(String messageId) {
+    }
+
+    @Override public void onError(Throwable t) {
+      LOG.log(WARNING, "Failed to publish spans: " + t.getMessage(), t);
+    }
+
+    @Override public String toString() {
+      return "LoggingCallback";
+    }
+  };
 
   public static PubSubSender create(String topic) {
     return newBuilder().topic(topic).build();
@@ -30,25 +78,70 @@ public class PubSubSender extends BytesMessageSender.Base {
   }
 
   public static final class Builder {
-    String topic;
+    List<String> topics;
     int messageMaxBytes = 10 * 1024 * 1024; // 10MB PubSub limit.
     Encoding encoding = Encoding.JSON;
-    Publisher publisher;
+    List<Publisher> publishers;
+    int publisherCount = 1;
+    Sharding sharding = Sharding.ROUND_ROBIN;
     ExecutorProvider executorProvider;
     TopicAdminClient topicAdminClient;
+    boolean publishAsync;
+    int maxInFlightMessages = 100;
+    long maxInFlightBytes = 100 * 1024 * 1024; // ten messages of the max size
+    Callback<String> publishCallback = LOGGING_CALLBACK;
+    Compression compression = Compression.NONE;
+    int compressionMinBytes = 1024;
+    boolean publisherBatching = true;
+    int orderingKeyCount;
+    boolean messageAttributes;
+    boolean traceIdPrefixedSpans;
 
     Builder(PubSubSender pubSubSender) {
-      this.topic = pubSubSender.topic;
+      this.topics = pubSubSender.topics;
+      this.messageMaxBytes = pubSubSender.messageMaxBytes;
       this.encoding = pubSubSender.encoding;
-      this.publisher = pubSubSender.publisher;
+      this.publishers = pubSubSender.publishers;
+      this.publisherCount = pubSubSender.topics.size() > 1 ? 1 : pubSubSender.publishers.size();
+      this.sharding = pubSubSender.sharding;
       this.executorProvider = pubSubSender.executorProvider;
       this.topicAdminClient = pubSubSender.topicAdminClient;
+      this.publishAsync = pubSubSender.publishAsync;
+      this.maxInFlightMessages = pubSubSender.maxInFlightMessages;
+      this.maxInFlightBytes = pubSubSender.maxInFlightBytes;
+      this.publishCallback = pubSubSender.publishCallback;
+      this.compression = pubSubSender.compression;
+      this.compressionMinBytes = pubSubSender.compressionMinBytes;
+      this.publisherBatching = pubSubSender.publisherBatching;
+      this.orderingKeyCount = pubSubSender.orderingKeys.length;
+      this.messageAttributes = pubSubSender.messageAttributes;
+      this.traceIdPrefixedSpans = pubSubSender.traceIdPrefixedSpans;
     }
 
     /** PubSub topic to send spans. */
     public Builder topic(String topic) {
       if (topic == null) throw new NullPointerException("topic == null");
-      this.topic = topic;
+      this.topics = Collections.singletonList(topic);
+      return this;
+    }
+
+    /**
+     * PubSub topics to send spans to, when one topic isn't enough. Spans are routed to a topic by
+     * consistent hashing of their trace ID, so all spans of a trace go to the same topic. This
+     * spreads publish load and lets a collector pull from a subscription of each topic in
+     * parallel.
+     *
+     * <p>Each topic has one publisher, so this can't be combined with {@link
+     * #publisherCount(int)}. When {@linkplain #publishers(List) publishers are provided}, they must
+     * be in the same order as the topics.
+     */
+    public Builder topics(List<String> topics) {
+      if (topics == null) throw new NullPointerException("topics == null");
+      if (topics.isEmpty()) throw new IllegalArgumentException("topics is empty");
+      for (String topic : topics) {
+        if (topic == null) throw new NullPointerException("topic == null");
+      }
+      this.topics = Collections.unmodifiableList(new ArrayList<>(topics));
       return this;
     }
 
@@ -71,7 +164,44 @@ public class PubSubSender extends BytesMessageSender.Base {
 
     public Builder publisher(Publisher publisher) {
       if (publisher == null) throw new NullPointerException("publisher == null");
-      this.publisher = publisher;
+      this.publishers = Collections.singletonList(publisher);
+      return this;
+    }
+
+    /**
+     * Publishers to spread messages across, according to {@link #sharding(Sharding)}. They must
+     * all publish to the same topic, unless there are multiple {@linkplain #topics(List) topics}.
+     */
+    public Builder publishers(List<Publisher> publishers) {
+      if (publishers == null) throw new NullPointerException("publishers == null");
+      if (publishers.isEmpty()) throw new IllegalArgumentException("publishers is empty");
+      for (Publisher publisher : publishers) {
+        if (publisher == null) throw new NullPointerException("publisher == null");
+      }
+      this.publishers = Collections.unmodifiableList(new ArrayList<>(publishers));
+      return this;
+    }
+
+    /**
+     * Count of publishers built by this sender. Default is 1.
+     *
+     * <p>A publisher batches through internal locks, which limits throughput when many threads
+     * report. Each publisher built has its own channel. They share the limits of {@link
+     * #maxInFlightMessages(int)} and {@link #maxInFlightBytes(long)}, and are shut down together
+     * on {@link PubSubSender#close()}.
+     *
+     * <p>Note: This has no effect when {@linkplain #publishers(List) publishers are provided}.
+     */
+    public Builder publisherCount(int publisherCount) {
+      if (publisherCount <= 0) throw new IllegalArgumentException("publisherCount <= 0");
+      this.publisherCount = publisherCount;
+      return this;
+    }
+
+    /** How to spread messages across publishers. Default is {@link Sharding#ROUND_ROBIN}. */
+    public Builder sharding(Sharding sharding) {
+      if (sharding == null) throw new NullPointerException("sharding == null");
+      this.sharding = sharding;
       return this;
     }
 
@@ -88,17 +218,167 @@ public class PubSubSender extends BytesMessageSender.Base {
       return this;
     }
 
+    /**
+     * When true, {@link PubSubSender#send(List)} returns once the message is enqueued in the
+     * {@link Publisher}, instead of waiting for it to be published. This lets the publisher batch
+     * and pipeline messages, so throughput isn't limited to one message per round-trip. Default is
+     * false.
+     *
+     * <p>Results are reported to the {@link #publishCallback(Callback) publish callback}, and sends
+     * block while {@link #maxInFlightMessages(int)} or {@link #maxInFlightBytes(long)} are
+     * exceeded.
+     */
+    public Builder publishAsync(boolean publishAsync) {
+      this.publishAsync = publishAsync;
+      return this;
+    }
+
+    /** Maximum count of asynchronous publishes not yet complete. Default is 100. */
+    public Builder maxInFlightMessages(int maxInFlightMessages) {
+      if (maxInFlightMessages <= 0) {
+        throw new IllegalArgumentException("maxInFlightMessages <= 0");
+      }
+      this.maxInFlightMessages = maxInFlightMessages;
+      return this;
+    }
+
+    /**
+     * Maximum size in bytes of asynchronous publishes not yet complete. Default is 100MB. A larger
+     * message is still sent, once nothing else is in flight.
+     */
+    public Builder maxInFlightBytes(long maxInFlightBytes) {
+      if (maxInFlightBytes <= 0) throw new IllegalArgumentException("maxInFlightBytes <= 0");
+      this.maxInFlightBytes = maxInFlightBytes;
+      return this;
+    }
+
+    /**
+     * Receives the message ID or failure of each asynchronous publish. This is invoked on a
+     * publisher thread, so shouldn't block. Default logs failures.
+     */
+    public Builder publishCallback(Callback<String> publishCallback) {
+      if (publishCallback == null) throw new NullPointerException("publishCallback == null");
+      this.publishCallback = publishCallback;
+      return this;
+    }
+
+    /**
+     * Compresses message bodies, reducing their billed size. Default is {@link Compression#NONE}.
+     *
+     * <p>Note: The Zipkin PubSub collector must be of a version that decompresses messages.
+     */
+    public Builder compression(Compression compression) {
+      if (compression == null) throw new NullPointerException("compression == null");
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Messages smaller than this are sent uncompressed, as compressing them saves little. Messages
+     * are also sent uncompressed when compression wouldn't make them smaller. Default is 1024.
+     */
+    public Builder compressionMinBytes(int compressionMinBytes) {
+      if (compressionMinBytes < 0) throw new IllegalArgumentException("compressionMinBytes < 0");
+      this.compressionMinBytes = compressionMinBytes;
+      return this;
+    }
+
+    /**
+     * When false, the publisher built by this sender publishes each message as soon as it is sent,
+     * instead of waiting up to its batching delay for more. Default is true.
+     *
+     * <p>Messages are already batched by the reporter up to {@link #messageMaxBytes(int)}, so this
+     * avoids batching twice. Combine with {@link #publishAsync(boolean)}, so that messages are
+     * published concurrently instead of one round-trip at a time.
+     *
+     * <p>Note: This has no effect on a {@link #publisher(Publisher) provided publisher}.
+     */
+    public Builder publisherBatching(boolean publisherBatching) {
+      this.publisherBatching = publisherBatching;
+      return this;
+    }
+
+    /**
+     * Count of ordering keys to spread messages across, or zero to publish without them. Default
+     * is zero.
+     *
+     * <p>Spans are grouped by a hash of their trace ID into an ordering key, so a subscriber with
+     * message ordering enabled receives the spans of a trace in the order they were sent, and
+     * from one key at a time. More keys allow more parallel delivery. A failed publish pauses its
+     * key, which is resumed so that later messages can still be sent.
+     *
+     * <p>Note: {@linkplain #publishers(List) Provided publishers} must have message ordering
+     * enabled. When publishers are shared round-robin, each key is pinned to one publisher.
+     */
+    public Builder orderingKeyCount(int orderingKeyCount) {
+      if (orderingKeyCount < 0) throw new IllegalArgumentException("orderingKeyCount < 0");
+      this.orderingKeyCount = orderingKeyCount;
+      return this;
+    }
+
+    /**
+     * When true, messages have the attributes {@link #ENCODING_ATTRIBUTE}, {@link
+     * #SPAN_COUNT_ATTRIBUTE} and {@link #ERROR_ATTRIBUTE}. Compressed messages always have the
+     * {@link #CONTENT_ENCODING_ATTRIBUTE}. Default is false.
+     *
+     * <p>These let a subscription filter messages without reading them. For example, the filter
+     * {@code attributes.zipkin_error = "true"} only delivers messages with failed spans.
+     */
+    public Builder messageAttributes(boolean messageAttributes) {
+      this.messageAttributes = messageAttributes;
+      return this;
+    }
+
+    /**
+     * Set true when reporting with {@code StackdriverEncoder} or {@code StackdriverV2Encoder},
+     * which encode spans in Stackdriver Trace format, prefixed by their trace ID. This also sets
+     * the {@linkplain #encoding(Encoding) encoding} to {@link Encoding#PROTO3}, which is what those
+     * encoders use. Default is false.
+     *
+     * <p>Each span is framed as a length-delimited field 1, so that the message can be split into
+     * spans again. The Zipkin PubSub collector writes these to Stackdriver storage as is, without
+     * decoding or translating them.
+     */
+    public Builder traceIdPrefixedSpans(boolean traceIdPrefixedSpans) {
+      this.traceIdPrefixedSpans = traceIdPrefixedSpans;
+      if (traceIdPrefixedSpans) encoding = Encoding.PROTO3;
+      return this;
+    }
+
     public PubSubSender build() {
-      if (topic == null) throw new NullPointerException("topic == null");
+      if (topics == null) throw new NullPointerException("topic == null");
+      if (traceIdPrefixedSpans && encoding != Encoding.PROTO3) {
+        throw new IllegalArgumentException("traceIdPrefixedSpans requires Encoding.PROTO3");
+      }
+      List<String> publisherTopics = Collections.nCopies(publisherCount, topics.get(0));
+      if (topics.size() > 1) {
+        if (publishers == null && publisherCount > 1) {
+          throw new IllegalArgumentException("publisherCount can't be used with multiple topics");
+        }
+        if (publishers != null && publishers.size() != topics.size()) {
+          throw new IllegalArgumentException("publishers must match topics");
+        }
+        publisherTopics = topics;
+        sharding = Sharding.TRACE_ID;
+      }
 
       if (executorProvider == null) executorProvider = defaultExecutorProvider();
 
-      if (publisher == null) {
+      if (publishers == null) {
+        List<Publisher> built = new ArrayList<>(publisherTopics.size());
         try {
-          publisher = Publisher.newBuilder(topic).setExecutorProvider(executorProvider).build();
+          for (String topic : publisherTopics) {
+            built.add(Publisher.newBuilder(topic)
+                .setExecutorProvider(executorProvider)
+                .setBatchingSettings(batchingSettings(publisherBatching, messageMaxBytes))
+                .setEnableMessageOrdering(orderingKeyCount > 0)
+                .build());
+          }
         } catch (IOException e) {
+          for (Publisher publisher : built) publisher.shutdown();
           throw new PubSubSenderInitializationException(e);
         }
+        publishers = Collections.unmodifiableList(built);
       }
 
       if (topicAdminClient == null) {
@@ -122,40 +402,168 @@ public class PubSubSender extends BytesMessageSender.Base {
     }
   }
 
+  /**
+   * Returns the batching settings of a publisher built by this sender. Without publisher batching,
+   * a publish request is sent for each message, which is at most {@code messageMaxBytes}.
+   */
+  static BatchingSettings batchingSettings(boolean publisherBatching, int messageMaxBytes) {
+    BatchingSettings defaults = Publisher.Builder.getDefaultBatchingSettings();
+    if (publisherBatching) return defaults;
+    return defaults.toBuilder()
+        .setElementCountThreshold(1L)
+        .setRequestByteThreshold((long) messageMaxBytes)
+        .build();
+  }
+
   public Builder toBuilder() {
     return new Builder(this);
   }
 
-  final String topic;
+  final List<String> topics;
   final int messageMaxBytes;
-  final Publisher publisher;
+  final List<Publisher> publishers;
+  final Sharding sharding;
+  final AtomicInteger nextPublisher = new AtomicInteger();
   final ExecutorProvider executorProvider;
   final TopicAdminClient topicAdminClient;
+  final boolean publishAsync;
+  final int maxInFlightMessages;
+  final long maxInFlightBytes;
+  final Callback<String> publishCallback;
+  final InFlightPublishes inFlight; // null when not publishAsync
+  final Compression compression;
+  final int compressionMinBytes;
+  final boolean publisherBatching;
+  final BytesMessageEncoder messageEncoder;
+  final String[] orderingKeys; // empty when not using ordering keys
+  final boolean messageAttributes;
+  final String encodingName;
+  final boolean traceIdPrefixedSpans;
 
   volatile boolean closeCalled;
 
   PubSubSender(Builder builder) {
     super(builder.encoding);
-    topic = builder.topic;
+    topics = builder.topics;
     messageMaxBytes = builder.messageMaxBytes;
-    publisher = builder.publisher;
+    publishers = builder.publishers;
+    sharding = builder.sharding;
     executorProvider = builder.executorProvider;
     topicAdminClient = builder.topicAdminClient;
+    publishAsync = builder.publishAsync;
+    maxInFlightMessages = builder.maxInFlightMessages;
+    maxInFlightBytes = builder.maxInFlightBytes;
+    publishCallback = builder.publishCallback;
+    compression = builder.compression;
+    compressionMinBytes = builder.compressionMinBytes;
+    publisherBatching = builder.publisherBatching;
+    messageEncoder = BytesMessageEncoder.forEncoding(builder.encoding);
+    orderingKeys = new String[builder.orderingKeyCount];
+    for (int i = 0; i < orderingKeys.length; i++) orderingKeys[i] = Integer.toString(i);
+    messageAttributes = builder.messageAttributes;
+    traceIdPrefixedSpans = builder.traceIdPrefixedSpans;
+    encodingName = traceIdPrefixedSpans ? "stackdriver"
+        : builder.encoding.name().toLowerCase(Locale.ROOT);
+    inFlight =
+        publishAsync ? new InFlightPublishes(maxInFlightMessages, maxInFlightBytes) : null;
   }
 
   @Override public int messageMaxBytes() {
     return messageMaxBytes;
   }
 
+  @Override public int messageSizeInBytes(List<byte[]> byteList) {
+    if (!traceIdPrefixedSpans) return super.messageSizeInBytes(byteList);
+    int size = 0;
+    for (byte[] span : byteList) size += CodedOutputStream.computeByteArraySizeNoTag(span) + 1;
+    return size;
+  }
+
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    if (!traceIdPrefixedSpans) return super.messageSizeInBytes(encodedSizeInBytes);
+    return 1 + CodedOutputStream.computeUInt32SizeNoTag(encodedSizeInBytes) + encodedSizeInBytes;
+  }
+
   @Override public void send(List<byte[]> byteList) throws IOException {
     if (closeCalled) throw new ClosedSenderException();
 
-    byte[] messageBytes = BytesMessageEncoder.forEncoding(encoding()).encode(byteList);
-    PubsubMessage message =
-        PubsubMessage.newBuilder().setData(ByteString.copyFrom(messageBytes)).build();
+    int publisherCount = publishers.size();
+    int shardCount = sharding == Sharding.TRACE_ID ? publisherCount : 1;
+    if (shardCount > 1 || orderingKeys.length > 0) {
+      sendByTraceId(byteList, shardCount);
+      return;
+    }
+
+    Publisher publisher = publisherCount == 1 ? publishers.get(0)
+        : publishers.get(Math.floorMod(nextPublisher.getAndIncrement(), publisherCount));
+    ApiFuture<String> result = publish(publisher, message(byteList, ""));
+    if (!publishAsync) await(result);
+  }
+
+  /**
+   * Sends one message per group of spans whose trace ID hashes to the same shard and ordering key.
+   * Without sharding, each ordering key is pinned to a publisher, as ordering is per publisher.
+   */
+  void sendByTraceId(List<byte[]> byteList, int shardCount) throws IOException {
+    int keyCount = Math.max(orderingKeys.length, 1);
+    List<List<byte[]>> groups = new ArrayList<>(Collections.nCopies(shardCount * keyCount, null));
+    for (byte[] span : byteList) {
+      long lowerTraceId = traceIdPrefixedSpans ? TraceIds.traceIdPrefixedLowerTraceId(span)
+          : TraceIds.lowerTraceId(encoding(), span);
+      int group = TraceIds.shard(lowerTraceId, shardCount) * keyCount
+          + TraceIds.orderingKey(lowerTraceId, keyCount);
+      List<byte[]> spans = groups.get(group);
+      if (spans == null) groups.set(group, spans = new ArrayList<>());
+      spans.add(span);
+    }
+
+    List<ApiFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < groups.size(); i++) {
+      List<byte[]> spans = groups.get(i);
+      if (spans == null) continue;
+      int key = i % keyCount;
+      Publisher publisher = shardCount > 1 ? publishers.get(i / keyCount)
+          : publishers.get(key % publishers.size());
+      String orderingKey = orderingKeys.length > 0 ? orderingKeys[key] : "";
+      results.add(publish(publisher, message(spans, orderingKey)));
+    }
+    if (!publishAsync) await(ApiFutures.allAsList(results));
+  }
+
+  /** Publishes the message, tracking it as in flight when {@link #publishAsync}. */
+  ApiFuture<String> publish(Publisher publisher, PubsubMessage message) throws IOException {
+    ApiFuture<String> result = publishAsync
+        ? publishAsync(publisher, message, message.getData().size())
+        : publisher.publish(message);
+    String orderingKey = message.getOrderingKey();
+    if (!orderingKey.isEmpty()) {
+      ApiFutures.addCallback(result, new ResumePublishCallback(publisher, orderingKey),
+          MoreExecutors.directExecutor());
+    }
+    return result;
+  }
+
+  /** A failed publish pauses its ordering key, so this resumes it for the next message. */
+  static final class ResumePublishCallback implements ApiFutureCallback<String> {
+    final Publisher publisher;
+    final String orderingKey;
 
+    ResumePublishCallback(Publisher publisher, String orderingKey) {
+      this.publisher = publisher;
+      this.orderingKey = orderingKey;
+    }
+
+    @Override public void onSuccess(String messageId) {
+    }
+
+    @Override public void onFailure(Throwable t) {
+      publisher.resumePublish(orderingKey);
+    }
+  }
+
+  static void await(ApiFuture<?> result) throws IOException {
     try {
-      publisher.publish(message).get();
+      result.get();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       throw new InterruptedIOException(e.getMessage());
@@ -167,6 +575,93 @@ public class PubSubSender extends BytesMessageSender.Base {
     }
   }
 
+  /**
+   * Frames the encoded spans into a message, compressing it and adding attributes if configured.
+   *
+   * <p>The framed array is new and not shared, so it is wrapped instead of copied into the
+   * message.
+   */
+  PubsubMessage message(List<byte[]> byteList, String orderingKey) throws IOException {
+    byte[] messageBytes = traceIdPrefixedSpans ? encodeTraceIdPrefixedSpans(byteList)
+        : messageEncoder.encode(byteList);
+    PubsubMessage.Builder builder = PubsubMessage.newBuilder().setOrderingKey(orderingKey);
+    if (messageAttributes || traceIdPrefixedSpans) {
+      builder.putAttributes(ENCODING_ATTRIBUTE, encodingName);
+    }
+    if (messageAttributes) {
+      builder.putAttributes(SPAN_COUNT_ATTRIBUTE, Integer.toString(byteList.size()));
+      builder.putAttributes(ERROR_ATTRIBUTE, Boolean.toString(hasErrorTag(byteList)));
+    }
+    ByteString data = null;
+    if (compression != Compression.NONE && messageBytes.length >= compressionMinBytes) {
+      ByteString compressed = compression.compress(messageBytes);
+      if (compressed.size() < messageBytes.length) {
+        data = compressed;
+        builder.putAttributes(CONTENT_ENCODING_ATTRIBUTE, compression.contentEncoding);
+      }
+    }
+    if (data == null) data = UnsafeByteOperations.unsafeWrap(messageBytes);
+    return builder.setData(data).build();
+  }
+
+  /** Frames each span as field 1, as they can't be concatenated like zipkin.proto3 spans. */
+  byte[] encodeTraceIdPrefixedSpans(List<byte[]> byteList) throws IOException {
+    byte[] result = new byte[messageSizeInBytes(byteList)];
+    CodedOutputStream out = CodedOutputStream.newInstance(result);
+    for (byte[] span : byteList) out.writeByteArray(1, span);
+    out.checkNoSpaceLeft();
+    return result;
+  }
+
+  boolean hasErrorTag(List<byte[]> byteList) {
+    for (byte[] span : byteList) {
+      if (traceIdPrefixedSpans ? ErrorTags.traceIdPrefixedHasErrorTag(span)
+          : ErrorTags.hasErrorTag(encoding(), span)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  ApiFuture<String> publishAsync(Publisher publisher, PubsubMessage message, int messageBytes)
+      throws IOException {
+    try {
+      inFlight.acquire(messageBytes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+
+    ApiFuture<String> result;
+    try {
+      result = publisher.publish(message);
+    } catch (RuntimeException | Error e) {
+      inFlight.release(messageBytes);
+      throw e;
+    }
+    ApiFutures.addCallback(result, new PublishCallback(messageBytes),
+        MoreExecutors.directExecutor());
+    return result;
+  }
+
+  final class PublishCallback implements ApiFutureCallback<String> {
+    final int messageBytes;
+
+    PublishCallback(int messageBytes) {
+      this.messageBytes = messageBytes;
+    }
+
+    @Override public void onSuccess(String messageId) {
+      inFlight.release(messageBytes);
+      publishCallback.onSuccess(messageId);
+    }
+
+    @Override public void onFailure(Throwable t) {
+      inFlight.release(messageBytes);
+      publishCallback.onError(t);
+    }
+  }
+
   /**
    * Shutdown on Publisher is not async thus moving the synchronized block to another function in
    * order not to block until the shutdown is over.
@@ -175,7 +670,7 @@ public class PubSubSender extends BytesMessageSender.Base {
     if (!setClosed()) {
       return;
     }
-    publisher.shutdown();
+    for (Publisher publisher : publishers) publisher.shutdown();
   }
 
   private synchronized boolean setClosed() {
@@ -188,6 +683,7 @@ public class PubSubSender extends BytesMessageSender.Base {
   }
 
   @Override public final String toString() {
-    return "PubSubSender{topic=" + topic + "}";
+    if (topics.size() == 1) return "PubSubSender{topic=" + topics.get(0) + "}";
+    return "PubSubSender{topics=" + topics + "}";
   }
 }
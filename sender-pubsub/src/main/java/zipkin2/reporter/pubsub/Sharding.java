@@ -0,0 +1,16 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+/** How messages are spread across the publishers of a sender, when it has more than one. */
+public enum Sharding {
+  /** Each message goes to the next publisher. */
+  ROUND_ROBIN,
+  /**
+   * Spans are grouped into one message per publisher by the hash of their trace ID, so all spans
+   * of a trace go to the same publisher.
+   */
+  TRACE_ID
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import com.google.common.hash.Hashing;
+import zipkin2.reporter.Encoding;
+
+/**
+ * Reads the lower 64 bits of the trace ID of an encoded span, without decoding it. This is used to
+ * route all spans of a trace the same way.
+ */
+final class TraceIds {
+  static final byte[] JSON_TRACE_ID = {'"', 't', 'r', 'a', 'c', 'e', 'I', 'd', '"', ':', '"'};
+
+  /** Returns the lower 64 bits of the trace ID, or zero if it couldn't be read. */
+  static long lowerTraceId(Encoding encoding, byte[] span) {
+    switch (encoding) {
+      case JSON:
+        return jsonLowerTraceId(span);
+      case PROTO3:
+        return proto3LowerTraceId(span);
+      case THRIFT:
+        return thriftLowerTraceId(span);
+      default:
+        return 0L;
+    }
+  }
+
+  /**
+   * Routes spans of a trace to the same shard out of {@code count}. This uses consistent hashing,
+   * so that adding a shard only moves the traces that move to it.
+   */
+  static int shard(long lowerTraceId, int count) {
+    return Hashing.consistentHash(lowerTraceId, count);
+  }
+
+  /**
+   * Groups traces into one of {@code count} ordering keys. The trace ID is mixed first, so that
+   * keys are independent of the {@linkplain #shard(long, int) shard}.
+   */
+  static int orderingKey(long lowerTraceId, int count) {
+    return Math.floorMod(Long.hashCode(lowerTraceId * 0x9E3779B97F4A7C15L), count);
+  }
+
+  /** Reads the last 16 hex characters of the "traceId" field. */
+  static long jsonLowerTraceId(byte[] span) {
+    int start = indexOf(span, JSON_TRACE_ID);
+    if (start == -1) return 0L;
+    start += JSON_TRACE_ID.length;
+    int end = start;
+    while (end < span.length && span[end] != '"') end++;
+    if (end == span.length || end - start > 32) return 0L;
+    return readHex(span, Math.max(start, end - 16), end);
+  }
+
+  /**
+   * Reads the last 16 of the 32 hex characters of the trace ID, which prefix a span encoded by
+   * {@code StackdriverEncoder}.
+   */
+  static long traceIdPrefixedLowerTraceId(byte[] span) {
+    if (span.length < 32) return 0L;
+    return readHex(span, 16, 32);
+  }
+
+  /**
+   * Reads the last 8 bytes of field 1 of the span, which follows the key and length of the span in
+   * the ListOfSpans.
+   */
+  static long proto3LowerTraceId(byte[] span) {
+    int pos = 0;
+    if (span.length < 2 || span[pos++] != 10) return 0L;
+    while (pos < span.length && span[pos] < 0) pos++; // skip the varint length of the span
+    pos++;
+    if (pos + 2 > span.length || span[pos++] != 10) return 0L;
+    int length = span[pos++];
+    if ((length != 8 && length != 16) || pos + length > span.length) return 0L;
+    return readLong(span, pos + length - 8);
+  }
+
+  /** Reads field 1 (trace_id) of the span, which is an i64 encoded first by Zipkin. */
+  static long thriftLowerTraceId(byte[] span) {
+    if (span.length < 11 || span[0] != 10 || span[1] != 0 || span[2] != 1) return 0L;
+    return readLong(span, 3);
+  }
+
+  /** Returns zero if any character isn't hex. */
+  static long readHex(byte[] bytes, int start, int end) {
+    long result = 0L;
+    for (int i = start; i < end; i++) {
+      int digit = Character.digit(bytes[i], 16);
+      if (digit == -1) return 0L;
+      result = (result << 4) | digit;
+    }
+    return result;
+  }
+
+  static long readLong(byte[] bytes, int pos) {
+    long result = 0L;
+    for (int i = pos; i < pos + 8; i++) result = (result << 8) | (bytes[i] & 0xff);
+    return result;
+  }
+
+  static int indexOf(byte[] bytes, byte[] target) {
+    outer:
+    for (int i = 0, last = bytes.length - target.length; i <= last; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (bytes[i + j] != target[j]) continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  TraceIds() {
+  }
+}
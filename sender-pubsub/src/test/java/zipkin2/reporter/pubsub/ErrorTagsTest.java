@@ -0,0 +1,52 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+import zipkin2.reporter.Encoding;
+import zipkin2.reporter.SpanBytesEncoder;
+import zipkin2.reporter.stackdriver.zipkin.StackdriverEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+class ErrorTagsTest {
+  Span error = CLIENT_SPAN.toBuilder().putTag("error", "500").build();
+  Span longError = CLIENT_SPAN.toBuilder().putTag("error", "x".repeat(200)).build();
+  // "error" as an annotation or tag value isn't an error tag
+  Span notError = CLIENT_SPAN.toBuilder()
+      .addAnnotation(CLIENT_SPAN.timestampAsLong() + 1, "error")
+      .putTag("message", "error")
+      .putTag("errors", "1")
+      .build();
+
+  @Test void json() {
+    assertHasErrorTag(Encoding.JSON, SpanBytesEncoder.JSON_V2);
+  }
+
+  @Test void proto3() {
+    assertHasErrorTag(Encoding.PROTO3, SpanBytesEncoder.PROTO3);
+  }
+
+  @Test void thrift() {
+    assertHasErrorTag(Encoding.THRIFT, SpanBytesEncoder.THRIFT);
+  }
+
+  @Test void traceIdPrefixed() {
+    assertThat(ErrorTags.traceIdPrefixedHasErrorTag(StackdriverEncoder.V2.encode(error)))
+        .isTrue();
+    assertThat(ErrorTags.traceIdPrefixedHasErrorTag(StackdriverEncoder.V2.encode(longError)))
+        .isTrue();
+    assertThat(ErrorTags.traceIdPrefixedHasErrorTag(StackdriverEncoder.V2.encode(notError)))
+        .isFalse();
+  }
+
+  void assertHasErrorTag(Encoding encoding, SpanBytesEncoder encoder) {
+    assertThat(ErrorTags.hasErrorTag(encoding, encoder.encode(error))).isTrue();
+    assertThat(ErrorTags.hasErrorTag(encoding, encoder.encode(longError))).isTrue();
+    assertThat(ErrorTags.hasErrorTag(encoding, encoder.encode(notError))).isFalse();
+  }
+}
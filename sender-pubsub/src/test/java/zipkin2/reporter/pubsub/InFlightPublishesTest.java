@@ -0,0 +1,67 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InFlightPublishesTest {
+  InFlightPublishes inFlight = new InFlightPublishes(2, 100);
+
+  @Test void acquireAndRelease() throws Exception {
+    inFlight.acquire(10);
+    inFlight.acquire(20);
+    assertThat(inFlight.messages()).isEqualTo(2);
+    assertThat(inFlight.bytes()).isEqualTo(30);
+
+    inFlight.release(10);
+    inFlight.release(20);
+    assertThat(inFlight.messages()).isZero();
+    assertThat(inFlight.bytes()).isZero();
+  }
+
+  @Test void blocksOnMessageCount() throws Exception {
+    inFlight.acquire(1);
+    inFlight.acquire(1);
+
+    assertBlocksUntilRelease(1, 1);
+  }
+
+  @Test void blocksOnBytes() throws Exception {
+    inFlight.acquire(60);
+
+    assertBlocksUntilRelease(60, 50);
+  }
+
+  /** Otherwise, a message larger than the limit could never be sent. */
+  @Test void allowsLargeMessageWhenEmpty() throws Exception {
+    inFlight.acquire(1000);
+    assertThat(inFlight.bytes()).isEqualTo(1000);
+
+    assertBlocksUntilRelease(1000, 1);
+  }
+
+  void assertBlocksUntilRelease(int releaseBytes, int acquireBytes) throws Exception {
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try {
+        inFlight.acquire(acquireBytes);
+        acquired.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    thread.start();
+
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    inFlight.release(releaseBytes);
+    assertThat(acquired.await(10, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+  }
+}
@@ -6,6 +6,8 @@ package zipkin2.reporter.pubsub;
 
 import com.asarkar.grpc.test.GrpcCleanupExtension;
 import com.asarkar.grpc.test.Resources;
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.core.ExecutorProvider;
 import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.api.gax.core.NoCredentialsProvider;
@@ -19,6 +21,7 @@ import com.google.cloud.pubsub.v1.TopicAdminClient;
 import com.google.cloud.pubsub.v1.stub.GrpcPublisherStub;
 import com.google.cloud.pubsub.v1.stub.PublisherStub;
 import com.google.cloud.pubsub.v1.stub.PublisherStubSettings;
+import com.google.protobuf.CodedInputStream;
 import com.google.pubsub.v1.PublishRequest;
 import com.google.pubsub.v1.PublishResponse;
 import com.google.pubsub.v1.PublisherGrpc;
@@ -31,32 +34,48 @@ import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import zipkin2.Callback;
 import zipkin2.Span;
 import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.BytesMessageEncoder;
 import zipkin2.reporter.Encoding;
 import zipkin2.reporter.SpanBytesEncoder;
+import zipkin2.reporter.stackdriver.zipkin.StackdriverEncoder;
 
 import static java.util.stream.Collectors.toList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static zipkin2.TestObjects.CLIENT_SPAN;
 
 @ExtendWith({MockitoExtension.class, GrpcCleanupExtension.class})
 class PubSubSenderTest {
   PubSubSender sender;
+  TransportChannelProvider transportChannelProvider;
   @Spy PublisherGrpc.PublisherImplBase publisherImplBase;
 
   @BeforeEach void initSender(Resources resources) throws IOException {
@@ -73,8 +92,7 @@ class PubSubSenderTest {
     resources.register(channel, Duration.ofSeconds(10));// close deadline
 
     TransportChannel transportChannel = GrpcTransportChannel.create(channel);
-    TransportChannelProvider transportChannelProvider =
-        FixedTransportChannelProvider.create(transportChannel);
+    transportChannelProvider = FixedTransportChannelProvider.create(transportChannel);
 
     ExecutorProvider executorProvider = testExecutorProvider();
 
@@ -188,6 +206,409 @@ class PubSubSenderTest {
         .isInstanceOf(ApiException.class);
   }
 
+  @Test void sendAsync() throws Exception {
+    ArgumentCaptor<PublishRequest> requestCaptor = ArgumentCaptor.forClass(PublishRequest.class);
+
+    doAnswer(invocationOnMock -> {
+      StreamObserver<PublishResponse> responseObserver = invocationOnMock.getArgument(1);
+      responseObserver.onNext(PublishResponse.newBuilder().addMessageIds("1").build());
+      responseObserver.onCompleted();
+      return null;
+    }).when(publisherImplBase).publish(requestCaptor.capture(), any(StreamObserver.class));
+
+    FutureCallback callback = new FutureCallback();
+    sender = sender.toBuilder().publishAsync(true).publishCallback(callback).build();
+
+    sendSpans(CLIENT_SPAN, CLIENT_SPAN);
+
+    assertThat(callback.result.get(10, TimeUnit.SECONDS)).isEqualTo("1");
+    assertThat(extractSpans(requestCaptor.getValue()))
+        .containsExactly(CLIENT_SPAN, CLIENT_SPAN);
+    assertThat(sender.inFlight.messages()).isZero();
+    assertThat(sender.inFlight.bytes()).isZero();
+  }
+
+  /** Failures are reported to the callback, as the send already returned. */
+  @Test void sendAsync_failureCallsCallback() throws Exception {
+    doAnswer(invocationOnMock -> {
+      StreamObserver<PublishResponse> responseObserver = invocationOnMock.getArgument(1);
+      responseObserver.onError(new io.grpc.StatusRuntimeException(Status.NOT_FOUND));
+      return null;
+    }).when(publisherImplBase).publish(any(PublishRequest.class), any(StreamObserver.class));
+
+    FutureCallback callback = new FutureCallback();
+    sender = sender.toBuilder().publishAsync(true).publishCallback(callback).build();
+
+    sendSpans(CLIENT_SPAN);
+
+    assertThat(callback.result)
+        .failsWithin(10, TimeUnit.SECONDS)
+        .withThrowableOfType(java.util.concurrent.ExecutionException.class)
+        .withCauseInstanceOf(ApiException.class);
+    assertThat(sender.inFlight.messages()).isZero();
+  }
+
+  @Test void sendAsync_closed() {
+    sender = sender.toBuilder().publishAsync(true).build();
+    sender.close();
+
+    assertThatThrownBy(this::sendSpans)
+        .isInstanceOf(zipkin2.reporter.ClosedSenderException.class);
+  }
+
+  @Test void toBuilder_keepsAsyncSettings() {
+    FutureCallback callback = new FutureCallback();
+    sender = sender.toBuilder()
+        .publishAsync(true)
+        .maxInFlightMessages(2)
+        .maxInFlightBytes(1024)
+        .publishCallback(callback)
+        .build()
+        .toBuilder()
+        .build();
+
+    assertThat(sender.inFlight.maxMessages).isEqualTo(2);
+    assertThat(sender.inFlight.maxBytes).isEqualTo(1024);
+    assertThat(sender.publishCallback).isSameAs(callback);
+  }
+
+  @Test void maxInFlight_mustBePositive() {
+    assertThatThrownBy(() -> sender.toBuilder().maxInFlightMessages(0))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sender.toBuilder().maxInFlightBytes(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void send_gzip() throws Exception {
+    assertCompressed(Compression.GZIP);
+  }
+
+  @Test void send_zstd() throws Exception {
+    assertCompressed(Compression.ZSTD);
+  }
+
+  void assertCompressed(Compression compression) throws Exception {
+    ArgumentCaptor<PublishRequest> requestCaptor = ArgumentCaptor.forClass(PublishRequest.class);
+
+    doAnswer(invocationOnMock -> {
+      StreamObserver<PublishResponse> responseObserver = invocationOnMock.getArgument(1);
+      responseObserver.onNext(
+          PublishResponse.newBuilder().addMessageIds(UUID.randomUUID().toString()).build());
+      responseObserver.onCompleted();
+      return null;
+    }).when(publisherImplBase).publish(requestCaptor.capture(), any(StreamObserver.class));
+
+    sender = sender.toBuilder().compression(compression).build();
+
+    sendSpans(CLIENT_SPAN, CLIENT_SPAN, CLIENT_SPAN);
+
+    PubsubMessage message = requestCaptor.getValue().getMessages(0);
+    assertThat(message.getAttributesMap())
+        .containsEntry(PubSubSender.CONTENT_ENCODING_ATTRIBUTE, compression.contentEncoding());
+    assertThat(extractSpans(requestCaptor.getValue()))
+        .containsExactly(CLIENT_SPAN, CLIENT_SPAN, CLIENT_SPAN);
+  }
+
+  @Test void send_compression_skipsSmallMessages() throws Exception {
+    ArgumentCaptor<PublishRequest> requestCaptor = ArgumentCaptor.forClass(PublishRequest.class);
+
+    doAnswer(invocationOnMock -> {
+      StreamObserver<PublishResponse> responseObserver = invocationOnMock.getArgument(1);
+      responseObserver.onNext(
+          PublishResponse.newBuilder().addMessageIds(UUID.randomUUID().toString()).build());
+      responseObserver.onCompleted();
+      return null;
+    }).when(publisherImplBase).publish(requestCaptor.capture(), any(StreamObserver.class));
+
+    sender = sender.toBuilder().compression(Compression.GZIP).compressionMinBytes(10_000).build();
+
+    sendSpans(CLIENT_SPAN);
+
+    assertThat(requestCaptor.getValue().getMessages(0).getAttributesMap()).isEmpty();
+    assertThat(extractSpans(requestCaptor.getValue())).containsExactly(CLIENT_SPAN);
+  }
+
+  /** Each message is published in its own request, as soon as it is sent. */
+  @Test void sendAsync_withoutPublisherBatching() throws Exception {
+    ArgumentCaptor<PublishRequest> requestCaptor = ArgumentCaptor.forClass(PublishRequest.class);
+
+    doAnswer(invocationOnMock -> {
+      PublishRequest request = invocationOnMock.getArgument(0);
+      PublishResponse.Builder response = PublishResponse.newBuilder();
+      request.getMessagesList().forEach(m -> response.addMessageIds(UUID.randomUUID().toString()));
+      StreamObserver<PublishResponse> responseObserver = invocationOnMock.getArgument(1);
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+      return null;
+    }).when(publisherImplBase).publish(requestCaptor.capture(), any(StreamObserver.class));
+
+    Publisher publisher = Publisher.newBuilder(sender.topics.get(0))
+        .setBatchingSettings(PubSubSender.batchingSettings(false, sender.messageMaxBytes))
+        .setExecutorProvider(testExecutorProvider())
+        .setChannelProvider(transportChannelProvider)
+        .setCredentialsProvider(new NoCredentialsProvider())
+        .build();
+    sender = sender.toBuilder().publisher(publisher).publishAsync(true).build();
+
+    for (int i = 0; i < 3; i++) sendSpans(CLIENT_SPAN);
+    sender.close();
+    assertThat(publisher.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(requestCaptor.getAllValues())
+        .hasSize(3)
+        .allSatisfy(request -> assertThat(extractSpans(request)).containsExactly(CLIENT_SPAN));
+  }
+
+  @Test void batchingSettings() {
+    assertThat(PubSubSender.batchingSettings(true, 1024))
+        .isEqualTo(Publisher.Builder.getDefaultBatchingSettings());
+    assertThat(PubSubSender.batchingSettings(false, 1024)).satisfies(settings -> {
+      assertThat(settings.getElementCountThreshold()).isEqualTo(1L);
+      assertThat(settings.getRequestByteThreshold()).isEqualTo(1024L);
+    });
+  }
+
+  @Test void message_framesEachEncoding() throws IOException {
+    List<byte[]> json = List.of(SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN));
+    List<byte[]> proto3 = List.of(SpanBytesEncoder.PROTO3.encode(CLIENT_SPAN));
+    List<byte[]> thrift = List.of(SpanBytesEncoder.THRIFT.encode(CLIENT_SPAN));
+
+    assertThat(sender.message(json, "").getData().toByteArray())
+        .isEqualTo(BytesMessageEncoder.JSON.encode(json));
+    assertThat(sender.toBuilder().encoding(Encoding.PROTO3).build().message(proto3, "").getData()
+        .toByteArray())
+        .isEqualTo(BytesMessageEncoder.PROTO3.encode(proto3));
+    assertThat(sender.toBuilder().encoding(Encoding.THRIFT).build().message(thrift, "").getData()
+        .toByteArray())
+        .isEqualTo(BytesMessageEncoder.THRIFT.encode(thrift));
+  }
+
+  @Test void publishers_roundRobin() throws Exception {
+    Publisher publisher1 = mockPublisher(), publisher2 = mockPublisher();
+    sender = sender.toBuilder().publishers(List.of(publisher1, publisher2)).build();
+
+    for (int i = 0; i < 4; i++) sendSpans(CLIENT_SPAN);
+
+    verify(publisher1, times(2)).publish(any(PubsubMessage.class));
+    verify(publisher2, times(2)).publish(any(PubsubMessage.class));
+  }
+
+  /** Spans of a trace are always sent to the same publisher, even in different messages. */
+  @Test void publishers_traceId() throws Exception {
+    List<Publisher> publishers = List.of(mockPublisher(), mockPublisher(), mockPublisher());
+    sender = sender.toBuilder().publishers(publishers).sharding(Sharding.TRACE_ID).build();
+
+    List<Span> spans = Stream.of("1", "2", "3", "4", "5", "6", "7", "8")
+        .map(traceId -> CLIENT_SPAN.toBuilder().traceId(traceId).build())
+        .collect(toList());
+    sendSpans(spans.toArray(new Span[0]));
+    sendSpans(spans.get(0), spans.get(7));
+
+    for (int i = 0; i < publishers.size(); i++) {
+      ArgumentCaptor<PubsubMessage> messageCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+      verify(publishers.get(i), atLeast(0)).publish(messageCaptor.capture());
+      for (PubsubMessage message : messageCaptor.getAllValues()) {
+        int shard = i;
+        assertThat(extractSpans(message).collect(toList()))
+            .isNotEmpty()
+            .allSatisfy(span -> assertThat(
+                TraceIds.shard(Long.parseUnsignedLong(span.traceId(), 16), publishers.size()))
+                .isEqualTo(shard));
+      }
+    }
+  }
+
+  /** Spans of a trace always have the same ordering key, even in different messages. */
+  @Test void orderingKeys() throws Exception {
+    Publisher publisher = mockPublisher();
+    sender = sender.toBuilder().publisher(publisher).orderingKeyCount(3).build();
+
+    List<Span> spans = Stream.of("1", "2", "3", "4", "5", "6", "7", "8")
+        .map(traceId -> CLIENT_SPAN.toBuilder().traceId(traceId).build())
+        .collect(toList());
+    sendSpans(spans.toArray(new Span[0]));
+    sendSpans(spans.get(0), spans.get(7));
+
+    ArgumentCaptor<PubsubMessage> messageCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+    verify(publisher, atLeast(2)).publish(messageCaptor.capture());
+    for (PubsubMessage message : messageCaptor.getAllValues()) {
+      assertThat(extractSpans(message).collect(toList()))
+          .isNotEmpty()
+          .allSatisfy(span -> assertThat(Integer.toString(
+              TraceIds.orderingKey(Long.parseUnsignedLong(span.traceId(), 16), 3)))
+              .isEqualTo(message.getOrderingKey()));
+    }
+  }
+
+  @Test void orderingKeys_resumedAfterFailure() throws Exception {
+    Publisher publisher = mock(Publisher.class);
+    when(publisher.publish(any(PubsubMessage.class)))
+        .thenReturn(ApiFutures.immediateFailedFuture(new IllegalStateException("failed")));
+    sender = sender.toBuilder().publisher(publisher).orderingKeyCount(1).build();
+
+    assertThatThrownBy(() -> sendSpans(CLIENT_SPAN))
+        .isInstanceOf(IllegalStateException.class);
+
+    verify(publisher).resumePublish("0");
+  }
+
+  @Test void orderingKeys_disabledByDefault() throws Exception {
+    Publisher publisher = mockPublisher();
+    sender = sender.toBuilder().publisher(publisher).build();
+
+    sendSpans(CLIENT_SPAN);
+
+    assertThat(publishedMessage(publisher).getOrderingKey()).isEmpty();
+    assertThatThrownBy(() -> sender.toBuilder().orderingKeyCount(-1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void messageAttributes() throws Exception {
+    Publisher publisher = mockPublisher();
+    sender = sender.toBuilder().publisher(publisher).messageAttributes(true).build();
+
+    sendSpans(CLIENT_SPAN, CLIENT_SPAN.toBuilder().putTag("error", "").build());
+
+    assertThat(publishedMessage(publisher).getAttributesMap()).containsOnly(
+        entry(PubSubSender.ENCODING_ATTRIBUTE, "json"),
+        entry(PubSubSender.SPAN_COUNT_ATTRIBUTE, "2"),
+        entry(PubSubSender.ERROR_ATTRIBUTE, "true"));
+  }
+
+  @Test void messageAttributes_noError() throws Exception {
+    Publisher publisher = mockPublisher();
+    sender = sender.toBuilder().publisher(publisher).encoding(Encoding.PROTO3).messageAttributes(true).build();
+
+    sendSpans(CLIENT_SPAN);
+
+    assertThat(publishedMessage(publisher).getAttributesMap()).containsOnly(
+        entry(PubSubSender.ENCODING_ATTRIBUTE, "proto3"),
+        entry(PubSubSender.SPAN_COUNT_ATTRIBUTE, "1"),
+        entry(PubSubSender.ERROR_ATTRIBUTE, "false"));
+  }
+
+  @Test void traceIdPrefixedSpans() throws Exception {
+    Publisher publisher = mockPublisher();
+    sender = sender.toBuilder().publisher(publisher).traceIdPrefixedSpans(true).build();
+    List<byte[]> spans = Stream.of(CLIENT_SPAN, CLIENT_SPAN.toBuilder().id("2").build())
+        .map(StackdriverEncoder.V2::encode).collect(toList());
+
+    sender.send(spans);
+
+    PubsubMessage message = publishedMessage(publisher);
+    assertThat(message.getAttributesMap())
+        .containsOnly(entry(PubSubSender.ENCODING_ATTRIBUTE, "stackdriver"));
+    assertThat(message.getData().size()).isEqualTo(sender.messageSizeInBytes(spans));
+    CodedInputStream in = message.getData().newCodedInput();
+    for (byte[] span : spans) {
+      assertThat(in.readTag()).isEqualTo(10);
+      assertThat(in.readByteArray()).isEqualTo(span);
+    }
+    assertThat(in.isAtEnd()).isTrue();
+  }
+
+  @Test void traceIdPrefixedSpans_messageSizeInBytes() {
+    sender = sender.toBuilder().traceIdPrefixedSpans(true).build();
+    byte[] span = StackdriverEncoder.V2.encode(CLIENT_SPAN);
+
+    assertThat(sender.encoding()).isEqualTo(Encoding.PROTO3);
+    assertThat(sender.messageSizeInBytes(span.length))
+        .isEqualTo(sender.messageSizeInBytes(List.of(span)))
+        .isEqualTo(span.length + 3); // field key and two byte length
+  }
+
+  @Test void traceIdPrefixedSpans_messageAttributes() throws Exception {
+    Publisher publisher = mockPublisher();
+    sender = sender.toBuilder().publisher(publisher).traceIdPrefixedSpans(true)
+        .messageAttributes(true).orderingKeyCount(1).build();
+
+    sender.send(List.of(
+        StackdriverEncoder.V2.encode(CLIENT_SPAN.toBuilder().putTag("error", "").build())));
+
+    PubsubMessage message = publishedMessage(publisher);
+    assertThat(message.getOrderingKey()).isEqualTo("0");
+    assertThat(message.getAttributesMap()).containsOnly(
+        entry(PubSubSender.ENCODING_ATTRIBUTE, "stackdriver"),
+        entry(PubSubSender.SPAN_COUNT_ATTRIBUTE, "1"),
+        entry(PubSubSender.ERROR_ATTRIBUTE, "true"));
+  }
+
+  @Test void traceIdPrefixedSpans_requiresProto3() {
+    assertThatThrownBy(
+        () -> sender.toBuilder().traceIdPrefixedSpans(true).encoding(Encoding.JSON).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("traceIdPrefixedSpans requires Encoding.PROTO3");
+  }
+
+  /** Each topic has a publisher, and spans are routed to a topic by their trace ID. */
+  @Test void topics() throws Exception {
+    List<String> topics = List.of("projects/p/topics/a", "projects/p/topics/b");
+    List<Publisher> publishers = List.of(mockPublisher(), mockPublisher());
+    sender = sender.toBuilder().topics(topics).publishers(publishers).build();
+    assertThat(sender.sharding).isEqualTo(Sharding.TRACE_ID);
+    assertThat(sender).hasToString("PubSubSender{topics=" + topics + "}");
+
+    Span span1 = CLIENT_SPAN.toBuilder().traceId("1").build();
+    sendSpans(span1, span1);
+
+    Publisher expected = publishers.get(TraceIds.shard(1L, 2));
+    verify(expected).publish(any(PubsubMessage.class));
+    verify(publishers.get(publishers.indexOf(expected) ^ 1), times(0))
+        .publish(any(PubsubMessage.class));
+  }
+
+  @Test void topics_invalid() {
+    List<String> topics = List.of("projects/p/topics/a", "projects/p/topics/b");
+    assertThatThrownBy(() -> sender.toBuilder().topics(List.of()))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sender.toBuilder().topics(topics).build())
+        .hasMessage("publishers must match topics");
+    assertThatThrownBy(() -> PubSubSender.newBuilder().topics(topics).publisherCount(2).build())
+        .hasMessage("publisherCount can't be used with multiple topics");
+  }
+
+  @Test void close_shutsDownAllPublishers() {
+    Publisher publisher1 = mock(Publisher.class), publisher2 = mock(Publisher.class);
+    sender = sender.toBuilder().publishers(List.of(publisher1, publisher2)).build();
+
+    sender.close();
+
+    verify(publisher1).shutdown();
+    verify(publisher2).shutdown();
+  }
+
+  @Test void publishers_invalid() {
+    assertThatThrownBy(() -> sender.toBuilder().publishers(List.of()))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> sender.toBuilder().publisherCount(0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  static Publisher mockPublisher() {
+    Publisher publisher = mock(Publisher.class);
+    lenient().when(publisher.publish(any(PubsubMessage.class)))
+        .thenReturn(ApiFutures.immediateFuture("1"));
+    return publisher;
+  }
+
+  static PubsubMessage publishedMessage(Publisher publisher) {
+    ArgumentCaptor<PubsubMessage> messageCaptor = ArgumentCaptor.forClass(PubsubMessage.class);
+    verify(publisher).publish(messageCaptor.capture());
+    return messageCaptor.getValue();
+  }
+
+  static final class FutureCallback implements Callback<String> {
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    @Override public void onSuccess(String messageId) {
+      result.complete(messageId);
+    }
+
+    @Override public void onError(Throwable t) {
+      result.completeExceptionally(t);
+    }
+  }
+
   private List<Span> extractSpans(PublishRequest publishRequest) {
     return publishRequest.getMessagesList()
         .stream()
@@ -196,7 +617,7 @@ class PubSubSenderTest {
   }
 
   Stream<Span> extractSpans(PubsubMessage pubsubMessage) {
-    byte[] messageBytes = pubsubMessage.getData().toByteArray();
+    byte[] messageBytes = decompress(pubsubMessage);
 
     if (messageBytes[0] == '[') {
       return SpanBytesDecoder.JSON_V2.decodeList(messageBytes).stream();
@@ -204,6 +625,31 @@ class PubSubSenderTest {
     return SpanBytesDecoder.PROTO3.decodeList(messageBytes).stream();
   }
 
+  static byte[] decompress(PubsubMessage pubsubMessage) {
+    String contentEncoding =
+        pubsubMessage.getAttributesOrDefault(PubSubSender.CONTENT_ENCODING_ATTRIBUTE, "");
+    try {
+      switch (contentEncoding) {
+        case "":
+          return pubsubMessage.getData().toByteArray();
+        case "gzip":
+          return readAll(new GZIPInputStream(pubsubMessage.getData().newInput()));
+        case "zstd":
+          return readAll(new ZstdInputStream(pubsubMessage.getData().newInput()));
+        default:
+          throw new AssertionError("unexpected content encoding: " + contentEncoding);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    try (in) {
+      return in.readAllBytes();
+    }
+  }
+
   void sendSpans(zipkin2.Span... spans) throws Exception {
     SpanBytesEncoder bytesEncoder =
         sender.encoding() == Encoding.JSON ? SpanBytesEncoder.JSON_V2 : SpanBytesEncoder.PROTO3;
@@ -0,0 +1,80 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.reporter.pubsub;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+import zipkin2.reporter.Encoding;
+import zipkin2.reporter.SpanBytesEncoder;
+import zipkin2.reporter.stackdriver.zipkin.StackdriverEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+class TraceIdsTest {
+  Span span64 = CLIENT_SPAN.toBuilder().traceId("7180c278b62e8f6a").build();
+  Span span128 = CLIENT_SPAN.toBuilder().traceId("463ac35c9f6413ad7180c278b62e8f6a").build();
+
+  @Test void lowerTraceId_json() {
+    assertThat(TraceIds.lowerTraceId(Encoding.JSON, SpanBytesEncoder.JSON_V2.encode(span64)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+    assertThat(TraceIds.lowerTraceId(Encoding.JSON, SpanBytesEncoder.JSON_V2.encode(span128)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+  }
+
+  @Test void lowerTraceId_proto3() {
+    assertThat(TraceIds.lowerTraceId(Encoding.PROTO3, SpanBytesEncoder.PROTO3.encode(span64)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+    assertThat(TraceIds.lowerTraceId(Encoding.PROTO3, SpanBytesEncoder.PROTO3.encode(span128)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+  }
+
+  @Test void lowerTraceId_thrift() {
+    assertThat(TraceIds.lowerTraceId(Encoding.THRIFT, SpanBytesEncoder.THRIFT.encode(span64)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+    assertThat(TraceIds.lowerTraceId(Encoding.THRIFT, SpanBytesEncoder.THRIFT.encode(span128)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+  }
+
+  @Test void traceIdPrefixedLowerTraceId() {
+    assertThat(TraceIds.traceIdPrefixedLowerTraceId(StackdriverEncoder.V2.encode(span64)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+    assertThat(TraceIds.traceIdPrefixedLowerTraceId(StackdriverEncoder.V2.encode(span128)))
+        .isEqualTo(0x7180c278b62e8f6aL);
+    assertThat(TraceIds.traceIdPrefixedLowerTraceId(new byte[31])).isZero();
+  }
+
+  @Test void lowerTraceId_unreadable() {
+    assertThat(TraceIds.lowerTraceId(Encoding.JSON, new byte[0])).isZero();
+    assertThat(TraceIds.lowerTraceId(Encoding.JSON,
+        "{\"traceId\":\"xyz\"}".getBytes(StandardCharsets.UTF_8))).isZero();
+    assertThat(TraceIds.lowerTraceId(Encoding.PROTO3, new byte[] {10})).isZero();
+    assertThat(TraceIds.lowerTraceId(Encoding.THRIFT, new byte[] {10, 0, 1})).isZero();
+  }
+
+  @Test void shard() {
+    assertThat(TraceIds.shard(-1L, 4)).isBetween(0, 3);
+    assertThat(TraceIds.shard(0x7180c278b62e8f6aL, 1)).isZero();
+  }
+
+  /** Adding a shard only moves traces to the new shard. */
+  @Test void shard_consistent() {
+    for (long traceId = 1; traceId < 1000; traceId++) {
+      int before = TraceIds.shard(traceId, 4), after = TraceIds.shard(traceId, 5);
+      if (before != after) assertThat(after).isEqualTo(4);
+    }
+  }
+
+  /** Ordering keys are spread across the traces of a shard. */
+  @Test void orderingKey_independentOfShard() {
+    boolean[] keys = new boolean[4];
+    for (long traceId = 1; traceId < 1000; traceId++) {
+      if (TraceIds.shard(traceId, 4) != 0) continue;
+      keys[TraceIds.orderingKey(traceId, 4)] = true;
+    }
+    assertThat(keys).containsOnly(true);
+  }
+}
@@ -17,7 +17,11 @@ import io.grpc.ClientCall;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import zipkin2.reporter.BytesMessageSender;
 import zipkin2.reporter.ClosedSenderException;
@@ -80,8 +84,14 @@ public final class StackdriverSender extends BytesMessageSender.Base {
 
   static final ByteString SPAN_ID_PREFIX = ByteString.copyFromUtf8("/spans/");
 
+  /** Sends a serialized {@link BatchWriteSpansRequest} as is, so that it needn't be parsed. */
+  static final MethodDescriptor<byte[], Empty> BATCH_WRITE_SPANS_BYTES =
+      TraceServiceGrpc.getBatchWriteSpansMethod().toBuilder(
+          ByteArrayMarshaller.INSTANCE, ProtoUtils.marshaller(Empty.getDefaultInstance())).build();
+
   final Channel channel;
   final CallOptions callOptions;
+  final String projectId;
   final ByteString projectName;
   final ByteString traceIdPrefix;
   final boolean shutdownChannelOnClose;
@@ -94,6 +104,7 @@ public final class StackdriverSender extends BytesMessageSender.Base {
     super(Encoding.PROTO3);
     channel = builder.channel;
     callOptions = builder.callOptions;
+    projectId = builder.projectId;
     projectName = ByteString.copyFromUtf8("projects/" + builder.projectId);
     serverResponseTimeoutMs = builder.serverResponseTimeoutMs;
     traceIdPrefix = projectName.concat(ByteString.copyFromUtf8("/traces/"));
@@ -108,6 +119,16 @@ public final class StackdriverSender extends BytesMessageSender.Base {
         + CodedOutputStream.computeUInt32SizeNoTag(spanNameSize) + spanNameSize;
   }
 
+  /** The Google Cloud Platform project spans are written to. */
+  public String projectId() {
+    return projectId;
+  }
+
+  /** How long a request waits for a response before it fails. */
+  public long serverResponseTimeoutMs() {
+    return serverResponseTimeoutMs;
+  }
+
   @Override public int messageMaxBytes() {
     return 1024 * 1024; // 1 MiB for now
   }
@@ -141,15 +162,51 @@ public final class StackdriverSender extends BytesMessageSender.Base {
       request.addSpans(parseTraceIdPrefixedSpan(traceIdPrefixedSpan, spanNameSize, traceIdPrefix));
     }
 
-    ClientCall<BatchWriteSpansRequest, Empty> call =
-        channel.newCall(TraceServiceGrpc.getBatchWriteSpansMethod(), callOptions);
+    call(TraceServiceGrpc.getBatchWriteSpansMethod(), request.build());
+  }
+
+  /**
+   * Like {@link #send(List)}, except each element is a complete Stackdriver Trace Span, including
+   * its name: {@code projects/[projectId]/traces/[paddedTraceId]/spans/[spanId]}. As the spans
+   * needn't be parsed to add their name, they are framed into a {@link BatchWriteSpansRequest} as
+   * is.
+   *
+   * <p>The size of the request is {@link #spansMessageSizeInBytes(List)}, which should be at most
+   * {@link #messageMaxBytes()}.
+   */
+  public void sendSpans(List<byte[]> spans) throws IOException {
+    if (closeCalled) throw new ClosedSenderException();
+
+    byte[] request = new byte[spansMessageSizeInBytes(spans)];
+    CodedOutputStream out = CodedOutputStream.newInstance(request);
+    out.writeBytes(BatchWriteSpansRequest.NAME_FIELD_NUMBER, projectName);
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      out.writeByteArray(BatchWriteSpansRequest.SPANS_FIELD_NUMBER, spans.get(i));
+    }
+    out.checkNoSpaceLeft();
+
+    call(BATCH_WRITE_SPANS_BYTES, request);
+  }
+
+  /** Returns the size of the request {@link #sendSpans(List)} sends for these spans. */
+  public int spansMessageSizeInBytes(List<byte[]> spans) {
+    int size = projectNameFieldSize;
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      size += CodedOutputStream.computeByteArraySize(
+          BatchWriteSpansRequest.SPANS_FIELD_NUMBER, spans.get(i));
+    }
+    return size;
+  }
+
+  <ReqT> void call(MethodDescriptor<ReqT, Empty> method, ReqT request) throws IOException {
+    ClientCall<ReqT, Empty> call = channel.newCall(method, callOptions);
 
     AwaitableUnaryClientCallListener<Empty> listener =
         new AwaitableUnaryClientCallListener<>(serverResponseTimeoutMs);
     try {
       call.start(listener, new Metadata());
       call.request(1);
-      call.sendMessage(request.build());
+      call.sendMessage(request);
       call.halfClose();
     } catch (RuntimeException | Error t) {
       call.cancel(null, t);
@@ -202,4 +259,20 @@ public final class StackdriverSender extends BytesMessageSender.Base {
     return CodedOutputStream.computeTagSize(2)
         + computeUInt32SizeNoTag(sizeOfSpanMessage) + sizeOfSpanMessage;
   }
+
+  enum ByteArrayMarshaller implements MethodDescriptor.Marshaller<byte[]> {
+    INSTANCE;
+
+    @Override public InputStream stream(byte[] value) {
+      return new ByteArrayInputStream(value);
+    }
+
+    @Override public byte[] parse(InputStream stream) {
+      try {
+        return ByteString.readFrom(stream).toByteArray();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
 }
@@ -131,6 +131,44 @@ class StackdriverSenderTest {
     assertThat(sender.messageSizeInBytes(encodedSpans)).isEqualTo(actualSize);
   }
 
+  @Test void sendSpans() throws IOException {
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    List<com.google.devtools.cloudtrace.v2.Span> translated = SpanTranslator.translate(projectId,
+        ImmutableList.of(span, span.toBuilder().traceId("10000000000000000000000000000002").build()));
+    List<byte[]> encodedSpans = translated.stream()
+        .map(com.google.devtools.cloudtrace.v2.Span::toByteArray)
+        .collect(Collectors.toList());
+
+    sender.sendSpans(encodedSpans);
+
+    BatchWriteSpansRequest request = takeRequest();
+    assertThat(request.getName()).isEqualTo("projects/" + projectId);
+    assertThat(request.getSpansList()).containsExactlyElementsOf(translated);
+
+    // verify our estimate is correct
+    assertThat(sender.spansMessageSizeInBytes(encodedSpans))
+        .isEqualTo(request.getSerializedSize());
+  }
+
+  @Test void sendSpans_failure() {
+    onClientCall(observer -> {
+      observer.onError(new StatusRuntimeException(Status.RESOURCE_EXHAUSTED));
+    });
+
+    assertThatThrownBy(() -> sender.sendSpans(Collections.emptyList()))
+        .isInstanceOf(StatusRuntimeException.class)
+        .hasMessageContaining("RESOURCE_EXHAUSTED");
+  }
+
+  @Test void projectId() {
+    assertThat(sender.projectId()).isEqualTo(projectId);
+  }
+
   @Test void sendFailureWhenServiceFailsWithKnownGrpcFailure() {
     onClientCall(observer -> {
       observer.onError(new StatusRuntimeException(Status.RESOURCE_EXHAUSTED));
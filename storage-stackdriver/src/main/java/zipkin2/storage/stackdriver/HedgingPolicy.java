@@ -0,0 +1,195 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.stackdriver;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import zipkin2.Call;
+
+/**
+ * Sends a second copy of a request when the first has been outstanding longer than the recent
+ * 95th percentile latency of first copies, completing with whichever response arrives first.
+ *
+ * <p>Hedges are limited by a budget: each request deposits {@code budgetPercent} hundredths of a
+ * hedge, and a hedge is only sent when a whole one is available. This keeps the extra load on
+ * Stackdriver to roughly {@code budgetPercent} of requests even when the service is slow for
+ * everyone.
+ */
+final class HedgingPolicy {
+  static final int SAMPLE_COUNT = 256;
+  /** Don't hedge until we have enough samples to make a percentile meaningful. */
+  static final int MIN_SAMPLES = 32;
+  static final int RECOMPUTE_INTERVAL = 32;
+  /** The budget is accounted in hundredths of a hedge to avoid floating point. */
+  static final int HEDGE_COST = 100, MAX_BUDGET = 10 * HEDGE_COST;
+
+  final ScheduledExecutorService scheduler;
+  final int depositPerRequest;
+  final AtomicInteger budget = new AtomicInteger();
+
+  final long[] samples = new long[SAMPLE_COUNT]; // guarded by this
+  int sampleCount; // guarded by this
+  int nextSample; // guarded by this
+
+  /** -1 until {@link #MIN_SAMPLES} latencies of primary attempts were recorded */
+  volatile long hedgeDelayNanos = -1L;
+
+  HedgingPolicy(ScheduledExecutorService scheduler, int budgetPercent) {
+    if (budgetPercent <= 0 || budgetPercent > 100) {
+      throw new IllegalArgumentException("budgetPercent should be between 1 and 100");
+    }
+    this.scheduler = scheduler;
+    this.depositPerRequest = budgetPercent; // hundredths of a hedge
+  }
+
+  /**
+   * Executes the request, hedging it if it is slow.
+   *
+   * @param attempt sends one copy of the request, given its remaining timeout in milliseconds, or
+   * zero when there is no deadline.
+   * @param timeoutMs the deadline of the whole execution, or zero when there is none.
+   */
+  CompletableFuture<byte[]> execute(LongFunction<CompletableFuture<byte[]>> attempt,
+      long timeoutMs) {
+    HedgedExecution execution = new HedgedExecution(attempt, timeoutMs);
+    execution.start();
+    return execution.result;
+  }
+
+  void recordLatency(long nanos) {
+    long p95;
+    synchronized (this) {
+      samples[nextSample] = nanos;
+      nextSample = (nextSample + 1) % SAMPLE_COUNT;
+      if (sampleCount < SAMPLE_COUNT) sampleCount++;
+      if (sampleCount < MIN_SAMPLES || nextSample % RECOMPUTE_INTERVAL != 0) return;
+      long[] sorted = Arrays.copyOf(samples, sampleCount);
+      Arrays.sort(sorted);
+      p95 = sorted[(int) Math.ceil(sampleCount * 0.95) - 1];
+    }
+    hedgeDelayNanos = p95;
+  }
+
+  void depositBudget() {
+    int current;
+    do {
+      current = budget.get();
+      if (current >= MAX_BUDGET) return;
+    } while (!budget.compareAndSet(current, Math.min(MAX_BUDGET, current + depositPerRequest)));
+  }
+
+  boolean tryAcquireBudget() {
+    int current;
+    do {
+      current = budget.get();
+      if (current < HEDGE_COST) return false;
+    } while (!budget.compareAndSet(current, current - HEDGE_COST));
+    return true;
+  }
+
+  @Override public String toString() {
+    return "HedgingPolicy{budgetPercent=" + depositPerRequest + "}";
+  }
+
+  final class HedgedExecution implements Runnable {
+    final LongFunction<CompletableFuture<byte[]>> attempt;
+    final long timeoutMs, startNanos = System.nanoTime();
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    final AtomicInteger outstanding = new AtomicInteger();
+
+    volatile CompletableFuture<byte[]> primary, hedge;
+    volatile ScheduledFuture<?> timer;
+
+    HedgedExecution(LongFunction<CompletableFuture<byte[]>> attempt, long timeoutMs) {
+      this.attempt = attempt;
+      this.timeoutMs = timeoutMs;
+    }
+
+    void start() {
+      depositBudget();
+      primary = send(timeoutMs);
+      primary.whenComplete(this::onPrimaryComplete);
+
+      long delayNanos = hedgeDelayNanos;
+      if (delayNanos > 0L && !result.isDone()
+          && (timeoutMs == 0L || delayNanos < TimeUnit.MILLISECONDS.toNanos(timeoutMs))) {
+        timer = scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+      }
+      // Registered last so that anything started above is cancelled once there's a result.
+      result.whenComplete((response, error) -> cancelOutstanding());
+    }
+
+    /** Sends the hedge when the primary attempt is slower than the hedge delay. */
+    @Override public void run() {
+      if (result.isDone() || !tryAcquireBudget()) return;
+
+      long remainingMs = 0L;
+      if (timeoutMs != 0L) {
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        remainingMs = timeoutMs - elapsedMs;
+        if (remainingMs <= 0L) return;
+      }
+
+      CompletableFuture<byte[]> hedge;
+      try {
+        hedge = send(remainingMs);
+      } catch (Throwable t) {
+        Call.propagateIfFatal(t);
+        return; // the primary attempt is still in flight
+      }
+      this.hedge = hedge;
+      if (result.isDone()) hedge.cancel(true); // lost a race with the primary
+    }
+
+    CompletableFuture<byte[]> send(long timeoutMs) {
+      outstanding.incrementAndGet();
+      CompletableFuture<byte[]> future;
+      try {
+        future = attempt.apply(timeoutMs);
+      } catch (RuntimeException | Error e) {
+        outstanding.decrementAndGet();
+        throw e;
+      }
+      future.whenComplete(this::onAttemptComplete);
+      return future;
+    }
+
+    /**
+     * Records how long the primary took when it succeeded, or had taken when a hedge won, as
+     * otherwise hedging would hide the slow requests that the hedge delay is meant to catch. Other
+     * failures aren't recorded, as fast failures when Stackdriver sheds load would lower the delay,
+     * hedging most when it hurts most.
+     */
+    void onPrimaryComplete(byte[] response, Throwable error) {
+      boolean hedgeWon = error instanceof CancellationException
+          && result.isDone() && !result.isCompletedExceptionally();
+      if (error == null || hedgeWon) recordLatency(System.nanoTime() - startNanos);
+    }
+
+    void onAttemptComplete(byte[] response, Throwable error) {
+      int remaining = outstanding.decrementAndGet();
+      if (error == null) {
+        result.complete(response);
+      } else if (remaining == 0) {
+        // Only fail when there's no other attempt that could still succeed.
+        result.completeExceptionally(error);
+      }
+    }
+
+    void cancelOutstanding() {
+      ScheduledFuture<?> timer = this.timer;
+      if (timer != null) timer.cancel(false);
+      CompletableFuture<byte[]> primary = this.primary, hedge = this.hedge;
+      if (primary != null && !primary.isDone()) primary.cancel(true);
+      if (hedge != null && !hedge.isDone()) hedge.cancel(true);
+    }
+  }
+}
@@ -5,11 +5,14 @@
 package zipkin2.storage.stackdriver;
 
 import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.linecorp.armeria.client.Clients;
 import com.linecorp.armeria.client.grpc.protocol.UnaryGrpcClient;
 import com.linecorp.armeria.common.util.Exceptions;
+import com.linecorp.armeria.common.util.SafeCloseable;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import zipkin2.Call;
 import zipkin2.Callback;
 import zipkin2.Span;
@@ -24,14 +27,20 @@ final class StackdriverSpanConsumer implements SpanConsumer {
 
   static final String BATCH_WRITE_SPANS_PATH =
       "/google.devtools.cloudtrace.v2.TraceService/BatchWriteSpans";
+  static final String GRPC_TIMEOUT = "grpc-timeout";
 
   final UnaryGrpcClient grpcClient;
   final String projectId;
   final String projectName;
+  final long requestTimeoutMs;
+  final HedgingPolicy hedgingPolicy;
 
-  StackdriverSpanConsumer(UnaryGrpcClient grpcClient, String projectId) {
+  StackdriverSpanConsumer(UnaryGrpcClient grpcClient, String projectId, long requestTimeoutMs,
+      HedgingPolicy hedgingPolicy) {
     this.grpcClient = grpcClient;
     this.projectId = projectId;
+    this.requestTimeoutMs = requestTimeoutMs;
+    this.hedgingPolicy = hedgingPolicy;
     projectName = "projects/" + projectId;
   }
 
@@ -44,26 +53,33 @@ final class StackdriverSpanConsumer implements SpanConsumer {
             .setName(projectName)
             .addAllSpans(stackdriverSpans)
             .build();
-    return new BatchWriteSpansCall(grpcClient, request);
+    return new BatchWriteSpansCall(grpcClient, request.toByteArray(), requestTimeoutMs,
+        hedgingPolicy);
   }
 
+  /** Sends a serialized {@link BatchWriteSpansRequest}, which may not have been built in Java. */
   static final class BatchWriteSpansCall extends Call.Base<Void> {
     final UnaryGrpcClient grpcClient;
-    final BatchWriteSpansRequest request;
+    final byte[] payload;
+    final long requestTimeoutMs;
+    final HedgingPolicy hedgingPolicy;
 
     volatile CompletableFuture<byte[]> responseFuture;
 
-    BatchWriteSpansCall(UnaryGrpcClient grpcClient, BatchWriteSpansRequest request) {
+    BatchWriteSpansCall(UnaryGrpcClient grpcClient, byte[] payload, long requestTimeoutMs,
+        HedgingPolicy hedgingPolicy) {
       this.grpcClient = grpcClient;
-      this.request = request;
+      this.payload = payload;
+      this.requestTimeoutMs = requestTimeoutMs;
+      this.hedgingPolicy = hedgingPolicy;
     }
 
     @Override public String toString() {
-      return "BatchWriteSpansCall{" + request + "}";
+      return "BatchWriteSpansCall{" + payload.length + " bytes}";
     }
 
     @Override public BatchWriteSpansCall clone() {
-      return new BatchWriteSpansCall(grpcClient, request);
+      return new BatchWriteSpansCall(grpcClient, payload, requestTimeoutMs, hedgingPolicy);
     }
 
     @Override protected Void doExecute() {
@@ -102,10 +118,28 @@ final class StackdriverSpanConsumer implements SpanConsumer {
     }
 
     private CompletableFuture<byte[]> sendRequest() {
-      CompletableFuture<byte[]> responseFuture = grpcClient.execute(
-          BATCH_WRITE_SPANS_PATH, request.toByteArray());
+      CompletableFuture<byte[]> responseFuture = hedgingPolicy != null
+          ? hedgingPolicy.execute(timeoutMs -> execute(payload, timeoutMs), requestTimeoutMs)
+          : execute(payload, requestTimeoutMs);
       this.responseFuture = responseFuture;
       return responseFuture;
     }
+
+    /** Sends one attempt, propagating a positive timeout as the gRPC deadline. */
+    CompletableFuture<byte[]> execute(byte[] payload, long timeoutMs) {
+      if (timeoutMs == 0L) return grpcClient.execute(BATCH_WRITE_SPANS_PATH, payload);
+      try (SafeCloseable ignored = Clients.withContextCustomizer(ctx -> {
+        ctx.setResponseTimeoutMillis(timeoutMs);
+        ctx.setAdditionalRequestHeader(GRPC_TIMEOUT, grpcTimeout(timeoutMs));
+      })) {
+        return grpcClient.execute(BATCH_WRITE_SPANS_PATH, payload);
+      }
+    }
+  }
+
+  /** The gRPC wire format only allows up to 8 digits for the timeout value. */
+  static String grpcTimeout(long timeoutMs) {
+    if (timeoutMs <= 99_999_999L) return timeoutMs + "m";
+    return Math.min(TimeUnit.MILLISECONDS.toSeconds(timeoutMs), 99_999_999L) + "S";
   }
 }
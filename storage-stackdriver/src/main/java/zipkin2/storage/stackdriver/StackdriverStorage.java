@@ -25,6 +25,9 @@ import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
 import zipkin2.storage.Traces;
 import zipkin2.storage.stackdriver.StackdriverSpanConsumer.BatchWriteSpansCall;
+import zipkin2.translation.stackdriver.JsonV2Transcoder;
+import zipkin2.translation.stackdriver.Proto3Transcoder;
+import zipkin2.translation.stackdriver.TraceIdPrefixedSpans;
 
 /**
  * StackdriverStorage is a StorageComponent that consumes spans using the Stackdriver
@@ -54,6 +57,8 @@ public final class StackdriverStorage extends StorageComponent {
     String projectId;
     ClientFactory clientFactory = ClientFactory.ofDefault();
     ClientOptions clientOptions = ClientOptions.of();
+    long requestTimeoutMs;
+    int hedgingBudgetPercent;
 
     public Builder(String url) {
       if (url == null) throw new NullPointerException("url == null");
@@ -94,6 +99,31 @@ public final class StackdriverStorage extends StorageComponent {
       return this;
     }
 
+    /**
+     * Deadline of each BatchWriteSpans request in milliseconds, sent to Stackdriver as the gRPC
+     * timeout. Defaults to zero, which leaves the response timeout to {@link #clientOptions}.
+     */
+    public Builder requestTimeoutMs(long requestTimeoutMs) {
+      if (requestTimeoutMs < 0) {
+        throw new IllegalArgumentException("requestTimeoutMs < 0");
+      }
+      this.requestTimeoutMs = requestTimeoutMs;
+      return this;
+    }
+
+    /**
+     * Percentage of BatchWriteSpans requests that may be hedged. When positive, a request still
+     * outstanding after the recent 95th percentile latency is sent again, and the first response
+     * wins. Defaults to zero, which disables hedging.
+     */
+    public Builder hedgingBudgetPercent(int hedgingBudgetPercent) {
+      if (hedgingBudgetPercent < 0 || hedgingBudgetPercent > 100) {
+        throw new IllegalArgumentException("hedgingBudgetPercent should be between 0 and 100");
+      }
+      this.hedgingBudgetPercent = hedgingBudgetPercent;
+      return this;
+    }
+
     @Override public StackdriverStorage build() {
       if (projectId == null) throw new NullPointerException("projectId == null");
       return new StackdriverStorage(this);
@@ -103,7 +133,13 @@ public final class StackdriverStorage extends StorageComponent {
   final ClientFactory clientFactory;
   final UnaryGrpcClient grpcClient;
   final String projectId;
+  final long requestTimeoutMs;
+  final HedgingPolicy hedgingPolicy; // null when hedging is disabled
   final BatchWriteSpansCall healthcheckCall;
+  final Proto3Transcoder proto3Transcoder;
+  final JsonV2Transcoder jsonV2Transcoder;
+  final int healthcheckRequestSize;
+  final TraceIdPrefixedSpans traceIdPrefixedSpans;
 
   StackdriverStorage(Builder builder) {
     this.clientFactory = builder.clientFactory;
@@ -113,10 +149,20 @@ public final class StackdriverStorage extends StorageComponent {
         .options(builder.clientOptions)
         .build());
     projectId = builder.projectId;
+    requestTimeoutMs = builder.requestTimeoutMs;
+    hedgingPolicy = builder.hedgingBudgetPercent > 0
+        ? new HedgingPolicy(builder.clientFactory.eventLoopGroup(), builder.hedgingBudgetPercent)
+        : null;
     BatchWriteSpansRequest healthcheckRequest = BatchWriteSpansRequest.newBuilder()
         .setName("projects/" + builder.projectId)
         .build();
-    healthcheckCall = new BatchWriteSpansCall(grpcClient, healthcheckRequest);
+    // Health checks are not hedged, as they shouldn't skew the latency used to decide hedging.
+    healthcheckRequestSize = healthcheckRequest.getSerializedSize();
+    healthcheckCall = new BatchWriteSpansCall(grpcClient, healthcheckRequest.toByteArray(),
+        requestTimeoutMs, null);
+    proto3Transcoder = Proto3Transcoder.create(projectId);
+    jsonV2Transcoder = JsonV2Transcoder.create(projectId);
+    traceIdPrefixedSpans = TraceIdPrefixedSpans.create(projectId);
   }
 
   @Override public SpanStore spanStore() {
@@ -136,7 +182,54 @@ public final class StackdriverStorage extends StorageComponent {
   }
 
   @Override public SpanConsumer spanConsumer() {
-    return new StackdriverSpanConsumer(grpcClient, projectId);
+    return new StackdriverSpanConsumer(grpcClient, projectId, requestTimeoutMs, hedgingPolicy);
+  }
+
+  /**
+   * Stores spans encoded as a zipkin.proto3 {@code ListOfSpans}, such as a Pub/Sub message, without
+   * decoding them first. This writes the same request as {@link #spanConsumer()} would for the
+   * decoded spans.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   * @see Proto3Transcoder
+   */
+  public Call<Void> acceptProto3(byte[] listOfSpans) {
+    if (listOfSpans == null) throw new NullPointerException("listOfSpans == null");
+    if (listOfSpans.length == 0) return Call.create(null);
+    return new BatchWriteSpansCall(grpcClient, proto3Transcoder.transcode(listOfSpans),
+        requestTimeoutMs, hedgingPolicy);
+  }
+
+  /**
+   * Like {@link #acceptProto3(byte[])}, except for a JSON v2 list of spans.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   * @see JsonV2Transcoder
+   */
+  public Call<Void> acceptJsonV2(byte[] json) {
+    if (json == null) throw new NullPointerException("json == null");
+    byte[] request = jsonV2Transcoder.transcode(json);
+    // The health check request has only the project name, so is the same as an empty one.
+    if (request.length == healthcheckRequestSize) return Call.create(null);
+    return new BatchWriteSpansCall(grpcClient, request, requestTimeoutMs, hedgingPolicy);
+  }
+
+  /**
+   * Stores spans already in Stackdriver format, such as a Pub/Sub message from an application
+   * reporting with {@code StackdriverEncoder}. These are framed into a request as is, without
+   * decoding or translating them.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   * @see TraceIdPrefixedSpans
+   */
+  public Call<Void> acceptTraceIdPrefixedSpans(byte[] traceIdPrefixedSpans) {
+    if (traceIdPrefixedSpans == null) {
+      throw new NullPointerException("traceIdPrefixedSpans == null");
+    }
+    if (traceIdPrefixedSpans.length == 0) return Call.create(null);
+    return new BatchWriteSpansCall(grpcClient,
+        this.traceIdPrefixedSpans.toRequest(traceIdPrefixedSpans), requestTimeoutMs,
+        hedgingPolicy);
   }
 
   /**
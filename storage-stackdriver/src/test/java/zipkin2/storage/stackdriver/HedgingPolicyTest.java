@@ -0,0 +1,172 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.stackdriver;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+class HedgingPolicyTest {
+  ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  List<CompletableFuture<byte[]>> attempts = new CopyOnWriteArrayList<>();
+  List<Long> attemptTimeouts = new CopyOnWriteArrayList<>();
+
+  @AfterEach void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test void doesntHedgeWithoutLatencySamples() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    fillBudget(policy);
+
+    CompletableFuture<byte[]> result = policy.execute(this::attempt, 0L);
+    Thread.sleep(50L);
+
+    assertThat(attempts).hasSize(1);
+    attempts.get(0).complete(new byte[0]);
+    assertThat(result).isCompleted();
+  }
+
+  @Test void hedgesSlowRequest_firstResponseWins() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    recordLatencies(policy, TimeUnit.MILLISECONDS.toNanos(1));
+    fillBudget(policy);
+
+    CompletableFuture<byte[]> result = policy.execute(this::attempt, 0L);
+    await().atMost(1, TimeUnit.SECONDS).until(() -> attempts.size() == 2);
+
+    byte[] response = new byte[0];
+    attempts.get(1).complete(response);
+
+    assertThat(result).isCompletedWithValue(response);
+    assertThat(attempts.get(0)).isCancelled();
+  }
+
+  @Test void recordsPrimaryLatency_whenHedgeWins() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    recordLatencies(policy, TimeUnit.MILLISECONDS.toNanos(1));
+    fillBudget(policy);
+
+    policy.execute(this::attempt, 0L);
+    await().atMost(1, TimeUnit.SECONDS).until(() -> attempts.size() == 2);
+    attempts.get(1).complete(new byte[0]);
+
+    // The cancelled primary was at least as slow as the hedge delay
+    assertThat(policy.nextSample).isEqualTo(1);
+    assertThat(policy.samples[0]).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  @Test void recordsPrimaryLatency_whenPrimarySucceeds() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+
+    policy.execute(this::attempt, 0L);
+    attempts.get(0).complete(new byte[0]);
+
+    assertThat(policy.sampleCount).isEqualTo(1);
+  }
+
+  /** Fast failures, such as when Stackdriver sheds load, would otherwise lower the delay. */
+  @Test void doesntRecordPrimaryLatency_whenPrimaryFails() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+
+    policy.execute(this::attempt, 0L);
+    attempts.get(0).completeExceptionally(new IllegalStateException("oops"));
+
+    assertThat(policy.sampleCount).isZero();
+  }
+
+  @Test void hedgeGetsRemainingTimeout() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    recordLatencies(policy, TimeUnit.MILLISECONDS.toNanos(10));
+    fillBudget(policy);
+
+    policy.execute(this::attempt, 1000L);
+    await().atMost(1, TimeUnit.SECONDS).until(() -> attempts.size() == 2);
+
+    assertThat(attemptTimeouts.get(0)).isEqualTo(1000L);
+    assertThat(attemptTimeouts.get(1)).isPositive().isLessThan(1000L);
+  }
+
+  @Test void doesntHedgeWhenBudgetIsExhausted() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 1);
+    recordLatencies(policy, TimeUnit.MILLISECONDS.toNanos(1));
+
+    policy.execute(this::attempt, 0L);
+    Thread.sleep(50L);
+
+    assertThat(attempts).hasSize(1);
+  }
+
+  @Test void primaryFailure_failsWithoutWaitingForHedge() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    recordLatencies(policy, TimeUnit.SECONDS.toNanos(10));
+    fillBudget(policy);
+
+    CompletableFuture<byte[]> result = policy.execute(this::attempt, 0L);
+    attempts.get(0).completeExceptionally(new IllegalStateException("oops"));
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(IllegalStateException.class);
+    assertThat(attempts).hasSize(1);
+  }
+
+  @Test void primaryFailure_waitsForOutstandingHedge() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    recordLatencies(policy, TimeUnit.MILLISECONDS.toNanos(1));
+    fillBudget(policy);
+
+    CompletableFuture<byte[]> result = policy.execute(this::attempt, 0L);
+    await().atMost(1, TimeUnit.SECONDS).until(() -> attempts.size() == 2);
+
+    attempts.get(0).completeExceptionally(new IllegalStateException("oops"));
+    assertThat(result).isNotDone();
+
+    byte[] response = new byte[0];
+    attempts.get(1).complete(response);
+    assertThat(result).isCompletedWithValue(response);
+  }
+
+  @Test void cancel_cancelsAttempts() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+
+    CompletableFuture<byte[]> result = policy.execute(this::attempt, 0L);
+    result.cancel(true);
+
+    assertThat(attempts.get(0)).isCancelled();
+    assertThat(policy.sampleCount).isZero(); // only a hedge winning records a cancelled primary
+  }
+
+  @Test void recordLatency_computes95thPercentile() {
+    HedgingPolicy policy = new HedgingPolicy(scheduler, 100);
+    for (long i = 1; i <= 100; i++) policy.recordLatency(i);
+    for (long i = 1; i <= 28; i++) policy.recordLatency(1); // round up to a recompute interval
+
+    // 122nd of 128 sorted samples
+    assertThat(policy.hedgeDelayNanos).isEqualTo(94L);
+  }
+
+  CompletableFuture<byte[]> attempt(long timeoutMs) {
+    CompletableFuture<byte[]> attempt = new CompletableFuture<>();
+    attemptTimeouts.add(timeoutMs);
+    attempts.add(attempt);
+    return attempt;
+  }
+
+  static void recordLatencies(HedgingPolicy policy, long nanos) {
+    for (int i = 0; i < HedgingPolicy.SAMPLE_COUNT; i++) policy.recordLatency(nanos);
+  }
+
+  static void fillBudget(HedgingPolicy policy) {
+    policy.budget.set(HedgingPolicy.MAX_BUDGET);
+  }
+}
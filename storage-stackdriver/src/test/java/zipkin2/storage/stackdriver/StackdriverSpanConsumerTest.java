@@ -6,7 +6,9 @@ package zipkin2.storage.stackdriver;
 
 import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
 import com.google.devtools.cloudtrace.v2.TraceServiceGrpc;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Empty;
+import com.linecorp.armeria.client.ResponseTimeoutException;
 import com.linecorp.armeria.common.grpc.protocol.ArmeriaStatusException;
 import com.linecorp.armeria.server.ServerBuilder;
 import com.linecorp.armeria.server.grpc.GrpcService;
@@ -14,7 +16,13 @@ import com.linecorp.armeria.testing.junit5.server.ServerExtension;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -23,13 +31,18 @@ import org.junit.jupiter.api.extension.RegisterExtension;
 import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.Answer;
 import zipkin2.CheckResult;
+import zipkin2.Span;
 import zipkin2.TestObjects;
+import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.translation.stackdriver.SpanTranslator;
+import zipkin2.translation.stackdriver.SpanWriter;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
@@ -41,11 +54,18 @@ class StackdriverSpanConsumerTest {
 
   final TestTraceService traceService = spy(new TestTraceService());
 
+  final BlockingQueue<String> grpcTimeouts = new LinkedBlockingQueue<>();
+
   @RegisterExtension ServerExtension server = new ServerExtension() {
     @Override protected void configure(ServerBuilder sb) {
       sb.service(GrpcService.builder()
           .addService(traceService)
           .build());
+      sb.decorator((delegate, ctx, req) -> {
+        String grpcTimeout = req.headers().get("grpc-timeout");
+        if (grpcTimeout != null) grpcTimeouts.add(grpcTimeout);
+        return delegate.serve(ctx, req);
+      });
     }
   };
 
@@ -55,6 +75,7 @@ class StackdriverSpanConsumerTest {
 
   @BeforeEach
   void setUp() {
+    clearInvocations(traceService); // the service is shared by all tests
     storage = StackdriverStorage.newBuilder("http://localhost:" + server.httpPort())
         .projectId(projectId)
         .build();
@@ -87,6 +108,147 @@ class StackdriverSpanConsumerTest {
         .isEqualTo(SpanTranslator.translate(projectId, asList(TestObjects.CLIENT_SPAN)));
   }
 
+  @Test void acceptProto3() throws Exception {
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    storage.acceptProto3(SpanBytesEncoder.PROTO3.encodeList(TestObjects.TRACE)).execute();
+
+    ArgumentCaptor<BatchWriteSpansRequest> requestCaptor =
+        ArgumentCaptor.forClass(BatchWriteSpansRequest.class);
+
+    verify(traceService).batchWriteSpans(requestCaptor.capture(), any());
+
+    BatchWriteSpansRequest request = requestCaptor.getValue();
+    assertThat(request.getName()).isEqualTo("projects/" + projectId);
+    assertThat(request.getSpansList())
+        .isEqualTo(SpanTranslator.translate(projectId, TestObjects.TRACE));
+  }
+
+  @Test void acceptProto3_empty() throws Exception {
+    storage.acceptProto3(new byte[0]).execute();
+
+    verify(traceService, never()).batchWriteSpans(any(), any());
+  }
+
+  @Test void acceptProto3_malformed() {
+    assertThatThrownBy(() -> storage.acceptProto3(new byte[] {10, 100}))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void acceptJsonV2() throws Exception {
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    storage.acceptJsonV2(SpanBytesEncoder.JSON_V2.encodeList(TestObjects.TRACE)).execute();
+
+    ArgumentCaptor<BatchWriteSpansRequest> requestCaptor =
+        ArgumentCaptor.forClass(BatchWriteSpansRequest.class);
+
+    verify(traceService).batchWriteSpans(requestCaptor.capture(), any());
+
+    BatchWriteSpansRequest request = requestCaptor.getValue();
+    assertThat(request.getName()).isEqualTo("projects/" + projectId);
+    assertThat(request.getSpansList())
+        .isEqualTo(SpanTranslator.translate(projectId, TestObjects.TRACE));
+  }
+
+  @Test void acceptJsonV2_empty() throws Exception {
+    storage.acceptJsonV2(new byte[] {'[', ']'}).execute();
+
+    verify(traceService, never()).batchWriteSpans(any(), any());
+  }
+
+  @Test void acceptJsonV2_malformed() {
+    assertThatThrownBy(() -> storage.acceptJsonV2(new byte[] {'[', '{'}))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void acceptTraceIdPrefixedSpans() throws Exception {
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    storage.acceptTraceIdPrefixedSpans(traceIdPrefixedSpans(TestObjects.TRACE)).execute();
+
+    ArgumentCaptor<BatchWriteSpansRequest> requestCaptor =
+        ArgumentCaptor.forClass(BatchWriteSpansRequest.class);
+
+    verify(traceService).batchWriteSpans(requestCaptor.capture(), any());
+
+    BatchWriteSpansRequest request = requestCaptor.getValue();
+    assertThat(request.getName()).isEqualTo("projects/" + projectId);
+    assertThat(request.getSpansList())
+        .isEqualTo(SpanTranslator.translate(projectId, TestObjects.TRACE));
+  }
+
+  @Test void acceptTraceIdPrefixedSpans_empty() throws Exception {
+    storage.acceptTraceIdPrefixedSpans(new byte[0]).execute();
+
+    verify(traceService, never()).batchWriteSpans(any(), any());
+  }
+
+  @Test void acceptTraceIdPrefixedSpans_malformed() {
+    assertThatThrownBy(() -> storage.acceptTraceIdPrefixedSpans(new byte[] {10, 100}))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void accept_noRequestTimeoutByDefault() throws Exception {
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    spanConsumer.accept(asList(TestObjects.CLIENT_SPAN)).execute();
+
+    assertThat(grpcTimeouts).isEmpty();
+  }
+
+  @Test void accept_propagatesRequestTimeout() throws Exception {
+    onClientCall(
+        observer -> {
+          observer.onNext(Empty.getDefaultInstance());
+          observer.onCompleted();
+        });
+
+    spanConsumer = StackdriverStorage.newBuilder("http://localhost:" + server.httpPort())
+        .projectId(projectId)
+        .requestTimeoutMs(2000L)
+        .build().spanConsumer();
+    spanConsumer.accept(asList(TestObjects.CLIENT_SPAN)).execute();
+
+    assertThat(grpcTimeouts).containsExactly("2000m");
+  }
+
+  @Test void accept_failsAfterRequestTimeout() {
+    onClientCall(observer -> {
+      // never respond
+    });
+
+    spanConsumer = StackdriverStorage.newBuilder("http://localhost:" + server.httpPort())
+        .projectId(projectId)
+        .requestTimeoutMs(100L)
+        .build().spanConsumer();
+
+    assertThatThrownBy(() -> spanConsumer.accept(asList(TestObjects.CLIENT_SPAN)).execute())
+        .isInstanceOfAny(ResponseTimeoutException.class, ArmeriaStatusException.class);
+  }
+
+  @Test void grpcTimeout() {
+    assertThat(StackdriverSpanConsumer.grpcTimeout(1L)).isEqualTo("1m");
+    assertThat(StackdriverSpanConsumer.grpcTimeout(99_999_999L)).isEqualTo("99999999m");
+    assertThat(StackdriverSpanConsumer.grpcTimeout(100_000_000L)).isEqualTo("100000S");
+  }
+
   @Test void verifyCheckReturnsFailureWhenServiceFailsWithKnownGrpcFailure() {
     onClientCall(observer -> {
       observer.onError(new StatusRuntimeException(Status.RESOURCE_EXHAUSTED));
@@ -142,6 +304,22 @@ class StackdriverSpanConsumerTest {
         .batchWriteSpans(any(BatchWriteSpansRequest.class), any(StreamObserver.class));
   }
 
+  /** Frames spans the same way as StackdriverEncoder and the PubSub sender. */
+  static byte[] traceIdPrefixedSpans(List<Span> spans) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (Span span : spans) {
+      byte[] encoded = new byte[32 + SpanWriter.sizeInBytes(span)];
+      String traceId = span.traceId().length() == 16 ? "0000000000000000" + span.traceId()
+          : span.traceId();
+      System.arraycopy(traceId.getBytes(StandardCharsets.US_ASCII), 0, encoded, 0, 32);
+      SpanWriter.write(span, CodedOutputStream.newInstance(encoded, 32, encoded.length - 32));
+      CodedOutputStream out = CodedOutputStream.newInstance(result);
+      out.writeByteArray(1, encoded);
+      out.flush();
+    }
+    return result.toByteArray();
+  }
+
   static class TestTraceService extends TraceServiceGrpc.TraceServiceImplBase {
   }
 }
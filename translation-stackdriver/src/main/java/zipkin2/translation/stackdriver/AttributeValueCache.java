@@ -0,0 +1,49 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.AttributeValue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Caches immutable {@link AttributeValue} instances for values that repeat, such as HTTP methods,
+ * status codes or service names.
+ *
+ * <p>This is bounded by entry count and value length. Once full, values are built as usual, but
+ * not cached. This avoids eviction overhead and keeps a high cardinality label from churning the
+ * cache.
+ */
+final class AttributeValueCache {
+  static final int DEFAULT_MAX_ENTRIES = 1024, DEFAULT_MAX_VALUE_LENGTH = 128;
+
+  final ConcurrentHashMap<String, AttributeValue> values = new ConcurrentHashMap<>();
+  final int maxEntries, maxValueLength;
+  final Function<String, AttributeValue> factory;
+
+  AttributeValueCache(int maxEntries, int maxValueLength) {
+    this(maxEntries, maxValueLength, AttributesExtractor::toAttributeValue);
+  }
+
+  AttributeValueCache(int maxEntries, int maxValueLength,
+      Function<String, AttributeValue> factory) {
+    this.maxEntries = maxEntries;
+    this.maxValueLength = maxValueLength;
+    this.factory = factory;
+  }
+
+  AttributeValue get(String value) {
+    if (value.length() > maxValueLength) return factory.apply(value);
+    AttributeValue result = values.get(value);
+    if (result != null) return result;
+
+    result = factory.apply(value);
+    if (values.size() < maxEntries) { // approximate, so the bound may be exceeded slightly
+      AttributeValue race = values.putIfAbsent(value, result);
+      if (race != null) return race;
+    }
+    return result;
+  }
+}
@@ -6,10 +6,21 @@ package zipkin2.translation.stackdriver;
 
 import com.google.devtools.cloudtrace.v2.AttributeValue;
 import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import zipkin2.Endpoint;
 import zipkin2.Span;
 
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTE_KEY_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.isBool;
+import static zipkin2.translation.stackdriver.SpanUtil.isInt64;
 import static zipkin2.translation.stackdriver.SpanUtil.toTruncatableString;
+import static zipkin2.translation.stackdriver.SpanUtil.truncatedLength;
 
 /**
  * LabelExtractor extracts the set of Stackdriver Span labels equivalent to the annotations in a
@@ -28,14 +39,40 @@ import static zipkin2.translation.stackdriver.SpanUtil.toTruncatableString;
  */
 final class AttributesExtractor {
 
-  private static final String kAgentLabelKey = "/agent";
-  private static final String kComponentLabelKey = "/component";
-  private static final String kKindLabelKey = "/kind";
+  static final String kAgentLabelKey = "/agent";
+  static final String kComponentLabelKey = "/component";
+  static final String kKindLabelKey = "/kind";
+
+  /** Labels whose values are low cardinality, so worth caching along with the service name. */
+  static final Set<String> CACHED_LABELS = new HashSet<>(Arrays.asList(
+      "http.method", "http.status_code", "/http/method", "/http/status_code", "method", "status"));
+  static final AttributeValueCache VALUE_CACHE = new AttributeValueCache(
+      AttributeValueCache.DEFAULT_MAX_ENTRIES, AttributeValueCache.DEFAULT_MAX_VALUE_LENGTH);
+  /** Like {@link #VALUE_CACHE}, except for {@link #typedAttributes} */
+  static final AttributeValueCache TYPED_VALUE_CACHE = new AttributeValueCache(
+      AttributeValueCache.DEFAULT_MAX_ENTRIES, AttributeValueCache.DEFAULT_MAX_VALUE_LENGTH,
+      AttributesExtractor::toTypedAttributeValue);
+  static final AttributeValue TRUE_VALUE = AttributeValue.newBuilder().setBoolValue(true).build();
+  static final AttributeValue FALSE_VALUE = AttributeValue.newBuilder().setBoolValue(false).build();
+  static final Map<Span.Kind, AttributeValue> KIND_VALUES = new EnumMap<>(Span.Kind.class);
+
+  static {
+    for (Span.Kind kind : Span.Kind.values()) {
+      KIND_VALUES.put(kind, toAttributeValue(kindLabel(kind)));
+    }
+  }
+
+  /** Read once, as looking up a system property for each root span is relatively expensive. */
+  static final String AGENT_NAME =
+      System.getProperty("stackdriver.trace.zipkin.agent", "zipkin-java");
+  static final AttributeValue AGENT_VALUE = toAttributeValue(AGENT_NAME);
 
-  private final Map<String, String> renamedLabels;
+  final RenameRules renameRules;
+  final boolean typedAttributes;
 
-  AttributesExtractor(Map<String, String> renamedLabels) {
-    this.renamedLabels = renamedLabels;
+  AttributesExtractor(RenameRules renameRules, boolean typedAttributes) {
+    this.renameRules = renameRules;
+    this.typedAttributes = typedAttributes;
   }
 
   /**
@@ -47,14 +84,32 @@ final class AttributesExtractor {
   Attributes extract(Span zipkinSpan) {
     Attributes.Builder attributes = Attributes.newBuilder();
 
-    // Add Kind as a tag for now since there is no structured way of sending it with Stackdriver
-    // Trace API V2
-    if (zipkinSpan.kind() != null) {
-      attributes.putAttributeMap(kKindLabelKey, toAttributeValue(kindLabel(zipkinSpan.kind())));
+    // Add Kind as a tag unless sent as the span_kind field.
+    if (zipkinSpan.kind() != null && !typedAttributes) {
+      attributes.putAttributeMap(kKindLabelKey, KIND_VALUES.get(zipkinSpan.kind()));
     }
 
+    // Stackdriver only accepts MAX_ATTRIBUTES, so tags are capped to what remains after the labels
+    // we add ourselves. Tags past the cap, or with keys that are too long, are counted as dropped.
+    int tagBudget = MAX_ATTRIBUTES - reservedAttributeCount(zipkinSpan, typedAttributes), dropped = 0;
     for (Map.Entry<String, String> tag : zipkinSpan.tags().entrySet()) {
-      attributes.putAttributeMap(getLabelName(tag.getKey()), toAttributeValue(tag.getValue()));
+      RenameRules.Rule rule = renameRules.rule(tag.getKey());
+      String labelName = rule != null ? rule.attributeName : tag.getKey();
+      if (tagBudget > 0 && isValidKey(labelName)) {
+        attributes.putAttributeMap(labelName, tagValue(labelName, tag.getValue()));
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+
+      String copyLabelName = rule != null ? rule.copyAttributeName(zipkinSpan.name()) : null;
+      if (copyLabelName == null) continue;
+      if (tagBudget > 0 && isValidKey(copyLabelName)) {
+        attributes.putAttributeMap(copyLabelName, tagValue(copyLabelName, tag.getValue()));
+        tagBudget--;
+      } else {
+        dropped++;
+      }
     }
 
     // Only use server receive spans to extract endpoint data as spans
@@ -62,12 +117,22 @@ final class AttributesExtractor {
     // trace might not show the final destination.
     if (zipkinSpan.localEndpoint() != null && zipkinSpan.kind() == Span.Kind.SERVER) {
       if (zipkinSpan.localEndpoint().ipv4() != null) {
-        attributes.putAttributeMap(
-            getLabelName("endpoint.ipv4"), toAttributeValue(zipkinSpan.localEndpoint().ipv4()));
+        String labelName = renameRules.attributeName("endpoint.ipv4");
+        if (isValidKey(labelName)) {
+          attributes.putAttributeMap(labelName,
+              toAttributeValue(zipkinSpan.localEndpoint().ipv4()));
+        } else {
+          dropped++;
+        }
       }
       if (zipkinSpan.localEndpoint().ipv6() != null) {
-        attributes.putAttributeMap(
-            getLabelName("endpoint.ipv6"), toAttributeValue(zipkinSpan.localEndpoint().ipv6()));
+        String labelName = renameRules.attributeName("endpoint.ipv6");
+        if (isValidKey(labelName)) {
+          attributes.putAttributeMap(labelName,
+              toAttributeValue(zipkinSpan.localEndpoint().ipv6()));
+        } else {
+          dropped++;
+        }
       }
     }
 
@@ -75,29 +140,66 @@ final class AttributesExtractor {
         zipkinSpan.localEndpoint().serviceName() != null &&
         !zipkinSpan.localEndpoint().serviceName().isEmpty()) {
       attributes.putAttributeMap(
-          kComponentLabelKey, toAttributeValue(zipkinSpan.localEndpoint().serviceName()));
+          kComponentLabelKey, VALUE_CACHE.get(zipkinSpan.localEndpoint().serviceName()));
     }
 
     if (zipkinSpan.parentId() == null) {
-      String agentName = System.getProperty("stackdriver.trace.zipkin.agent", "zipkin-java");
-      attributes.putAttributeMap(kAgentLabelKey, toAttributeValue(agentName));
+      attributes.putAttributeMap(kAgentLabelKey, AGENT_VALUE);
     }
 
+    if (dropped > 0) attributes.setDroppedAttributesCount(dropped);
     return attributes.build();
   }
 
+  /**
+   * Returns the count of attributes added regardless of tags: the span kind, server addresses,
+   * component and agent. These are always kept, so tags are what's dropped when over the limit.
+   */
+  static int reservedAttributeCount(Span zipkinSpan, boolean typedAttributes) {
+    int count = 0;
+    if (zipkinSpan.kind() != null && !typedAttributes) count++;
+    Endpoint localEndpoint = zipkinSpan.localEndpoint();
+    if (localEndpoint != null) {
+      if (zipkinSpan.kind() == Span.Kind.SERVER) {
+        if (localEndpoint.ipv4() != null) count++;
+        if (localEndpoint.ipv6() != null) count++;
+      }
+      if (localEndpoint.serviceName() != null && !localEndpoint.serviceName().isEmpty()) count++;
+    }
+    if (zipkinSpan.parentId() == null) count++;
+    return count;
+  }
+
+  /** Stackdriver rejects attribute keys longer than {@link SpanUtil#MAX_ATTRIBUTE_KEY_BYTES}. */
+  static boolean isValidKey(String key) {
+    return truncatedLength(key, MAX_ATTRIBUTE_KEY_BYTES) == key.length();
+  }
+
   static AttributeValue toAttributeValue(String text) {
     return AttributeValue.newBuilder()
-        .setStringValue(toTruncatableString(text))
+        .setStringValue(toTruncatableString(text, MAX_ATTRIBUTE_VALUE_BYTES))
         .build();
   }
 
-  private String getLabelName(String zipkinName) {
-    String renamed = renamedLabels.get(zipkinName);
-    return renamed != null ? renamed : zipkinName;
+  /** Returns a cached value when the label is in {@link #CACHED_LABELS}. */
+  static AttributeValue toAttributeValue(String labelName, String text) {
+    return CACHED_LABELS.contains(labelName) ? VALUE_CACHE.get(text) : toAttributeValue(text);
+  }
+
+  /** Returns an int or bool value when the text is one, or a string value otherwise. */
+  static AttributeValue toTypedAttributeValue(String text) {
+    if (isInt64(text)) return AttributeValue.newBuilder().setIntValue(Long.parseLong(text)).build();
+    if (isBool(text)) return text.equals("true") ? TRUE_VALUE : FALSE_VALUE;
+    return toAttributeValue(text);
+  }
+
+  AttributeValue tagValue(String labelName, String text) {
+    if (!typedAttributes) return toAttributeValue(labelName, text);
+    return CACHED_LABELS.contains(labelName)
+        ? TYPED_VALUE_CACHE.get(text) : toTypedAttributeValue(text);
   }
 
-  private String kindLabel(Span.Kind kind) {
+  static String kindLabel(Span.Kind kind) {
     switch (kind) {
       case CLIENT:
         return "client";
@@ -0,0 +1,602 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * JsonV2Transcoder converts a Zipkin JSON v2 list of spans into a serialized Stackdriver Trace
+ * {@link BatchWriteSpansRequest}. The JSON is tokenized and written as Stackdriver fields, like
+ * {@link SpanWriter}, without decoding into {@link Span} objects or tag maps. ASCII tag and
+ * annotation values are copied from the input as is, without allocating strings.
+ *
+ * <p>Ex.
+ *
+ * <pre>{@code
+ * transcoder = JsonV2Transcoder.create(projectId);
+ * byte[] request = transcoder.transcode(json);
+ * }</pre>
+ *
+ * <p>The result is the same as decoding with {@link SpanBytesDecoder#JSON_V2} and translating
+ * with {@link SpanTranslator}. Spans that decoding would normalize, such as ones with short IDs or
+ * unsorted tags, are rare. These are decoded and written with {@link SpanWriter} instead.
+ */
+public final class JsonV2Transcoder {
+  public static JsonV2Transcoder create(String projectId) {
+    return create(projectId, RenameRules.DEFAULT);
+  }
+
+  /**
+   * Like {@link #create(String)}, except tags are renamed according to the given rules.
+   *
+   * @param projectId The Google Cloud Platform projectId that should be used for Stackdriver
+   *                  Trace Traces. This must be ASCII.
+   * @param renameRules usually {@link RenameRules#DEFAULT} with additional rules.
+   */
+  public static JsonV2Transcoder create(String projectId, RenameRules renameRules) {
+    return create(projectId, renameRules, false);
+  }
+
+  /**
+   * Like {@link #create(String, RenameRules)}, except integer and boolean tag values can be
+   * written as such.
+   *
+   * @param typedAttributes see {@link SpanTranslator#translate(String, java.util.List,
+   *                        RenameRules, boolean)}
+   */
+  public static JsonV2Transcoder create(String projectId, RenameRules renameRules,
+      boolean typedAttributes) {
+    if (projectId == null) throw new NullPointerException("projectId == null");
+    if (renameRules == null) throw new NullPointerException("renameRules == null");
+    return new JsonV2Transcoder(new TranscodedSpanWriter(projectId, renameRules, typedAttributes));
+  }
+
+  /**
+   * Returns the count of spans in a JSON v2 list, by counting the objects directly within the
+   * array. This doesn't read the spans, so a malformed span is only found when transcoding.
+   *
+   * @throws IllegalArgumentException if the input isn't a JSON array.
+   */
+  public static int spanCount(byte[] json) {
+    if (json == null) throw new NullPointerException("json == null");
+    int depth = 0, count = 0;
+    boolean inString = false, closed = false;
+    for (int i = 0; i < json.length; i++) {
+      byte b = json[i];
+      if (inString) {
+        if (b == '\\') {
+          i++;
+        } else if (b == '"') {
+          inString = false;
+        }
+        continue;
+      }
+      switch (b) {
+        case '"':
+          inString = true;
+          break;
+        case '[':
+        case '{':
+          if (depth == 0 && (closed || b != '[')) {
+            throw new IllegalArgumentException("Expected a JSON array");
+          }
+          if (depth++ == 1 && b == '{') count++;
+          break;
+        case ']':
+        case '}':
+          if (--depth == 0) closed = true;
+          break;
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+          break;
+        default:
+          if (depth == 0) throw new IllegalArgumentException("Expected a JSON array");
+      }
+    }
+    if (!closed || depth != 0) throw new IllegalArgumentException("Expected a JSON array");
+    return count;
+  }
+
+  final TranscodedSpanWriter writer;
+
+  JsonV2Transcoder(TranscodedSpanWriter writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Returns a serialized {@link BatchWriteSpansRequest} with the Stackdriver equivalent of each
+   * span in the JSON v2 list.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   */
+  public byte[] transcode(byte[] json) {
+    if (json == null) throw new NullPointerException("json == null");
+    // Stackdriver spans are usually smaller than the JSON ones, due to field names.
+    ByteArrayOutputStream result = new ByteArrayOutputStream(json.length + 64);
+    CodedOutputStream out = CodedOutputStream.newInstance(result, 4096);
+    JsonV2Span span = new JsonV2Span(json);
+    try {
+      writer.writeRequestName(out);
+      span.expect('[');
+      if (!span.consumeIf(']')) {
+        do {
+          int spanStart = span.skipWhitespace();
+          if (span.read()) {
+            writer.writeSpan(span, out);
+          } else { // The rare span that decoding would normalize is decoded and written as usual.
+            byte[] spanJson = Arrays.copyOfRange(json, spanStart, span.pos);
+            writer.writeSpan(SpanBytesDecoder.JSON_V2.decodeOne(spanJson), out);
+          }
+        } while (span.consumeIf(','));
+        span.expect(']');
+      }
+      if (span.skipWhitespace() != json.length) throw span.malformed();
+      out.flush();
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as the output is in memory
+    }
+    return result.toByteArray();
+  }
+
+  @Override public String toString() {
+    return "JsonV2Transcoder{" + writer.projectId + "}";
+  }
+
+  /** Tokenizes a JSON v2 span, where IDs are lowercase hex. */
+  static final class JsonV2Span extends TranscodedSpan {
+    static final byte[] TRACE_ID = ascii("traceId"), PARENT_ID = ascii("parentId"),
+        ID = ascii("id"), KIND = ascii("kind"), NAME = ascii("name"),
+        TIMESTAMP = ascii("timestamp"), DURATION = ascii("duration"),
+        LOCAL_ENDPOINT = ascii("localEndpoint"), ANNOTATIONS = ascii("annotations"),
+        TAGS = ascii("tags"), SERVICE_NAME = ascii("serviceName"), IPV4 = ascii("ipv4"),
+        IPV6 = ascii("ipv6"), VALUE = ascii("value");
+    static final Span.Kind[] KINDS = Span.Kind.values();
+    static final byte[][] KIND_NAMES = new byte[KINDS.length][];
+
+    static {
+      for (int i = 0; i < KINDS.length; i++) KIND_NAMES[i] = ascii(KINDS[i].name());
+    }
+
+    static final int MAX_DEPTH = 32; // of values skipped, such as remote endpoints
+
+    int pos;
+    // the last string scanned, excluding quotes
+    int stringStart, stringEnd;
+    boolean stringEscaped, stringAscii;
+
+    String localIpv4, localIpv6; // parsed after reading the kind, in the order they were read
+    boolean hasLocalEndpoint, hasAnnotations, hasTags, ipv6First;
+
+    JsonV2Span(byte[] buffer) {
+      super(buffer, true);
+    }
+
+    /**
+     * Reads the span object at the current position. Returns false when decoding would change
+     * it, for example by sorting its tags, or reject it. In this case, the span must be decoded
+     * instead.
+     */
+    boolean read() {
+      clear();
+      localIpv4 = localIpv6 = null;
+      hasLocalEndpoint = hasAnnotations = hasTags = false;
+
+      boolean canonical = true;
+      expect('{');
+      if (!consumeIf('}')) {
+        do {
+          scanString();
+          int nameStart = stringStart, nameLength = stringEscaped ? -1 : stringEnd - stringStart;
+          expect(':');
+          int valueStart = skipWhitespace();
+          if (canonical) canonical = readField(nameStart, nameLength);
+          if (!canonical) { // consume the rest of the value, which may be partially read
+            pos = valueStart;
+            skipValue(0);
+          }
+        } while (consumeIf(','));
+        expect('}');
+      }
+      canonical = canonical && traceIdOffset != -1 && idOffset != -1
+          // decoding drops a parent ID that's the same as the span ID
+          && (parentIdOffset == -1 || !sameId(parentIdOffset, idOffset));
+
+      if (canonical && kind == Span.Kind.SERVER) parseLocalIps();
+      return canonical;
+    }
+
+    /** Reads the value of a span field, returning false if the span must be decoded instead. */
+    boolean readField(int nameStart, int nameLength) {
+      if (nameEquals(nameStart, nameLength, TRACE_ID)) {
+        if (!readHexId()) return false;
+        traceIdOffset = stringStart;
+        traceIdLength = stringEnd - stringStart;
+        if (traceIdLength == 16) return true;
+        // decoding shortens a 128-bit trace ID with no high bits, so its lower bits can't be zero
+        return traceIdLength == 32 && !isZeroId(traceIdOffset + 16, 16);
+      } else if (nameEquals(nameStart, nameLength, PARENT_ID)) {
+        if (!readHexId() || stringEnd - stringStart != 16) return false;
+        parentIdOffset = stringStart;
+        return true;
+      } else if (nameEquals(nameStart, nameLength, ID)) {
+        if (!readHexId() || stringEnd - stringStart != 16) return false;
+        idOffset = stringStart;
+        return true;
+      } else if (nameEquals(nameStart, nameLength, KIND)) {
+        if (!readString()) return false;
+        for (int i = 0; i < KINDS.length; i++) {
+          if (stringEquals(KIND_NAMES[i])) {
+            kind = KINDS[i];
+            return true;
+          }
+        }
+        return false;
+      } else if (nameEquals(nameStart, nameLength, NAME)) {
+        if (!readString()) return false;
+        String spanName = stringValue();
+        name = spanName.isEmpty() ? null : spanName.toLowerCase(Locale.ROOT);
+        return true;
+      } else if (nameEquals(nameStart, nameLength, TIMESTAMP)) {
+        return (timestamp = readUnsignedLong()) != -1L;
+      } else if (nameEquals(nameStart, nameLength, DURATION)) {
+        return (duration = readUnsignedLong()) != -1L;
+      } else if (nameEquals(nameStart, nameLength, LOCAL_ENDPOINT)) {
+        if (hasLocalEndpoint) return false; // rather than guess how decoding merges them
+        hasLocalEndpoint = true;
+        return readLocalEndpoint();
+      } else if (nameEquals(nameStart, nameLength, ANNOTATIONS)) {
+        if (hasAnnotations) return false;
+        hasAnnotations = true;
+        return readAnnotations();
+      } else if (nameEquals(nameStart, nameLength, TAGS)) {
+        if (hasTags) return false;
+        hasTags = true;
+        return readTags();
+      }
+      skipValue(0); // such as the remote endpoint, which isn't translated
+      return true;
+    }
+
+    /** Reads a string of lowercase hex that isn't all zeros, like the ID fields of a span. */
+    boolean readHexId() {
+      if (!readString() || stringEscaped) return false;
+      int length = stringEnd - stringStart;
+      if (length != 16 && length != 32) return false; // decoding pads shorter IDs
+      for (int i = stringStart; i < stringEnd; i++) {
+        byte b = buffer[i];
+        if ((b < '0' || b > '9') && (b < 'a' || b > 'f')) return false;
+      }
+      return !isZeroId(stringStart, length);
+    }
+
+    boolean readLocalEndpoint() {
+      if (peek() != '{') return false;
+      pos++;
+      if (consumeIf('}')) return true;
+      do {
+        scanString();
+        int nameStart = stringStart, nameLength = stringEscaped ? -1 : stringEnd - stringStart;
+        expect(':');
+        if (nameEquals(nameStart, nameLength, SERVICE_NAME)) {
+          if (!readString()) return false;
+          String serviceName = stringValue();
+          localServiceName = serviceName.isEmpty() ? null : serviceName.toLowerCase(Locale.ROOT);
+        } else if (nameEquals(nameStart, nameLength, IPV4)) {
+          if (localIpv4 != null || !readString()) return false; // repeated addresses
+          localIpv4 = stringValue();
+        } else if (nameEquals(nameStart, nameLength, IPV6)) {
+          if (localIpv6 != null || !readString()) return false;
+          localIpv6 = stringValue();
+          ipv6First = localIpv4 == null;
+        } else {
+          skipValue(0); // such as the port, which isn't translated
+        }
+      } while (consumeIf(','));
+      expect('}');
+      return true;
+    }
+
+    /** Parses addresses the same way as decoding, which handles IPv4-mapped addresses. */
+    void parseLocalIps() {
+      if (localIpv4 == null && localIpv6 == null) return;
+      Endpoint.Builder builder = Endpoint.newBuilder();
+      if (ipv6First && localIpv6 != null) builder.parseIp(localIpv6);
+      if (localIpv4 != null) builder.parseIp(localIpv4);
+      if (!ipv6First && localIpv6 != null) builder.parseIp(localIpv6);
+      Endpoint endpoint = builder.build();
+      ipv4 = endpoint.ipv4();
+      ipv6 = endpoint.ipv6();
+    }
+
+    /** Returns false unless each annotation is valid and sorts after the previous one. */
+    boolean readAnnotations() {
+      if (peek() != '[') return false;
+      pos++;
+      if (consumeIf(']')) return true;
+      do {
+        if (peek() != '{') return false;
+        pos++;
+        long annotationTimestamp = 0L;
+        boolean hasValue = false;
+        String value = null;
+        int valueOffset = -1, valueLength = 0;
+        if (!consumeIf('}')) {
+          do {
+            scanString();
+            int nameStart = stringStart, nameLength = stringEscaped ? -1 : stringEnd - stringStart;
+            expect(':');
+            if (nameEquals(nameStart, nameLength, TIMESTAMP)) {
+              annotationTimestamp = readUnsignedLong();
+            } else if (nameEquals(nameStart, nameLength, VALUE)) {
+              if (hasValue || !readString()) return false;
+              hasValue = true;
+              if (stringEscaped || !stringAscii) {
+                value = stringValue();
+                valueLength = value.length();
+              } else {
+                valueOffset = stringStart;
+                valueLength = stringEnd - stringStart;
+              }
+            } else {
+              skipValue(0);
+            }
+          } while (consumeIf(','));
+          expect('}');
+        }
+        // decoding rejects or drops annotations without a timestamp or value, and sorts the rest
+        if (annotationTimestamp <= 0L || !hasValue || valueLength == 0) return false;
+        addAnnotation(annotationTimestamp, value, valueOffset, valueLength);
+        int i = annotationCount - 1;
+        if (i > 0) {
+          long previousTimestamp = annotationTimestamps[i - 1];
+          if (annotationTimestamp < previousTimestamp) return false;
+          if (annotationTimestamp == previousTimestamp
+              && annotationValue(i).compareTo(annotationValue(i - 1)) <= 0) {
+            return false;
+          }
+        }
+      } while (consumeIf(','));
+      expect(']');
+      return true;
+    }
+
+    /** Returns false unless each tag is valid and sorts after the previous one. */
+    boolean readTags() {
+      if (peek() != '{') return false;
+      pos++;
+      if (consumeIf('}')) return true;
+      do {
+        scanString();
+        String key = stringValue();
+        expect(':');
+        // decoding drops tags without a key, and sorts the rest into a map
+        if (key.isEmpty() || !readString()) return false;
+        if (tagCount > 0 && key.compareTo(tagKeys[tagCount - 1]) <= 0) return false;
+        if (stringEscaped || !stringAscii) {
+          addTag(key, stringValue(), -1, 0);
+        } else {
+          addTag(key, null, stringStart, stringEnd - stringStart);
+        }
+      } while (consumeIf(','));
+      expect('}');
+      return true;
+    }
+
+    /** Scans a string value, or returns false if the value is something else, such as null. */
+    boolean readString() {
+      if (peek() != '"') return false;
+      scanString();
+      return true;
+    }
+
+    /** Scans a string, leaving {@link #pos} after its closing quote. */
+    void scanString() {
+      expect('"');
+      stringStart = pos;
+      stringEscaped = false;
+      stringAscii = true;
+      while (true) {
+        if (pos >= buffer.length) throw malformed();
+        byte b = buffer[pos++];
+        if (b == '"') break;
+        if (b == '\\') {
+          stringEscaped = true;
+          pos++; // the escaped character, which may be a quote
+        } else if (b < 0x20) { // control characters aren't allowed unescaped, and bytes > 0x7f
+          stringAscii = false;
+        }
+      }
+      stringEnd = pos - 1;
+    }
+
+    /** Returns the last string scanned, decoding any escapes. */
+    String stringValue() {
+      if (!stringEscaped) {
+        return new String(buffer, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+      }
+      StringBuilder result = new StringBuilder(stringEnd - stringStart);
+      for (int i = stringStart; i < stringEnd; ) {
+        if (buffer[i] != '\\') { // decode the run of characters until the next escape
+          int runEnd = i + 1;
+          while (runEnd < stringEnd && buffer[runEnd] != '\\') runEnd++;
+          result.append(new String(buffer, i, runEnd - i, StandardCharsets.UTF_8));
+          i = runEnd;
+          continue;
+        }
+        if (i + 1 >= stringEnd) throw malformed();
+        byte escaped = buffer[i + 1];
+        i += 2;
+        switch (escaped) {
+          case '"':
+          case '\\':
+          case '/':
+            result.append((char) escaped);
+            break;
+          case 'b':
+            result.append('\b');
+            break;
+          case 'f':
+            result.append('\f');
+            break;
+          case 'n':
+            result.append('\n');
+            break;
+          case 'r':
+            result.append('\r');
+            break;
+          case 't':
+            result.append('\t');
+            break;
+          case 'u':
+            if (i + 4 > stringEnd) throw malformed();
+            char c = 0;
+            for (int end = i + 4; i < end; i++) {
+              int digit = Character.digit(buffer[i], 16);
+              if (digit == -1) throw malformed();
+              c = (char) ((c << 4) | digit);
+            }
+            result.append(c);
+            break;
+          default:
+            throw malformed();
+        }
+      }
+      return result.toString();
+    }
+
+    /** Returns a non-negative integer, or -1 if the value is something else, such as 1.5. */
+    long readUnsignedLong() {
+      byte b = peek();
+      if (!isNumberCharacter(b)) {
+        skipValue(0);
+        return -1L;
+      }
+      int start = pos;
+      long result = 0L;
+      boolean valid = true;
+      for (; pos < buffer.length; pos++) {
+        int digit = buffer[pos] - '0';
+        if (digit < 0 || digit > 9) break;
+        if (result > (Long.MAX_VALUE - digit) / 10) valid = false; // overflow
+        result = result * 10 + digit;
+      }
+      valid = valid && pos > start;
+      // consume the rest of the number, such as its sign, fraction or exponent
+      while (pos < buffer.length && isNumberCharacter(buffer[pos])) {
+        valid = false;
+        pos++;
+      }
+      return valid ? result : -1L;
+    }
+
+    void skipValue(int depth) {
+      if (depth > MAX_DEPTH) throw malformed();
+      byte b = peek();
+      switch (b) {
+        case '"':
+          scanString();
+          return;
+        case '{':
+          pos++;
+          if (consumeIf('}')) return;
+          do {
+            scanString();
+            expect(':');
+            skipValue(depth + 1);
+          } while (consumeIf(','));
+          expect('}');
+          return;
+        case '[':
+          pos++;
+          if (consumeIf(']')) return;
+          do {
+            skipValue(depth + 1);
+          } while (consumeIf(','));
+          expect(']');
+          return;
+        case 't':
+          expectLiteral("true");
+          return;
+        case 'f':
+          expectLiteral("false");
+          return;
+        case 'n':
+          expectLiteral("null");
+          return;
+        default:
+          if (!isNumberCharacter(b)) throw malformed();
+          while (pos < buffer.length && isNumberCharacter(buffer[pos])) pos++;
+      }
+    }
+
+    void expectLiteral(String literal) {
+      for (int i = 0, length = literal.length(); i < length; i++) {
+        if (pos >= buffer.length || buffer[pos++] != literal.charAt(i)) throw malformed();
+      }
+    }
+
+    static boolean isNumberCharacter(byte b) {
+      return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    boolean nameEquals(int nameStart, int nameLength, byte[] name) {
+      if (nameLength != name.length) return false; // escaped names have a length of -1
+      for (int i = 0; i < nameLength; i++) {
+        if (buffer[nameStart + i] != name[i]) return false;
+      }
+      return true;
+    }
+
+    boolean stringEquals(byte[] value) {
+      return nameEquals(stringStart, stringEscaped ? -1 : stringEnd - stringStart, value);
+    }
+
+    /** Returns the position of the next token. */
+    int skipWhitespace() {
+      while (pos < buffer.length) {
+        byte b = buffer[pos];
+        if (b != ' ' && b != '\n' && b != '\r' && b != '\t') break;
+        pos++;
+      }
+      return pos;
+    }
+
+    byte peek() {
+      if (skipWhitespace() == buffer.length) throw malformed();
+      return buffer[pos];
+    }
+
+    void expect(char c) {
+      if (peek() != c) throw malformed();
+      pos++;
+    }
+
+    boolean consumeIf(char c) {
+      if (skipWhitespace() == buffer.length || buffer[pos] != c) return false;
+      pos++;
+      return true;
+    }
+
+    IllegalArgumentException malformed() {
+      return new IllegalArgumentException(
+          "Malformed reading List<Span> from json at position " + pos);
+    }
+
+    static byte[] ascii(String string) {
+      return string.getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+}
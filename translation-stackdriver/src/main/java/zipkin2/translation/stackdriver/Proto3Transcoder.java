@@ -0,0 +1,333 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * Proto3Transcoder converts a zipkin.proto3 {@code ListOfSpans} into a serialized Stackdriver
+ * Trace {@link BatchWriteSpansRequest}. Zipkin fields are read from the wire and written as
+ * Stackdriver fields, like {@link SpanWriter}, without decoding into {@link Span} objects.
+ *
+ * <p>Ex.
+ *
+ * <pre>{@code
+ * transcoder = Proto3Transcoder.create(projectId);
+ * byte[] request = transcoder.transcode(listOfSpans);
+ * }</pre>
+ *
+ * <p>The result is the same as decoding with {@link SpanBytesDecoder#PROTO3} and translating with
+ * {@link SpanTranslator}. Spans that decoding would normalize, such as ones with unsorted tags or
+ * annotations, are rare. These are decoded and written with {@link SpanWriter} instead.
+ */
+public final class Proto3Transcoder {
+  // zipkin.proto3 field keys, which include the wire type
+  static final int LIST_OF_SPANS_SPANS = 10;
+  static final int TRACE_ID = 10, PARENT_ID = 18, ID = 26, KIND = 32, SPAN_NAME = 42,
+      TIMESTAMP = 49, DURATION = 56, LOCAL_ENDPOINT = 66, ANNOTATION_KEY = 82, TAG = 90;
+  static final int ENDPOINT_SERVICE_NAME = 10, ENDPOINT_IPV4 = 18, ENDPOINT_IPV6 = 26;
+  static final int ANNOTATION_TIMESTAMP = 9, ANNOTATION_VALUE = 18;
+  static final int MAP_KEY = 10, MAP_VALUE = 18;
+
+  static final Span.Kind[] KINDS = Span.Kind.values(); // zipkin.proto3 numbers these from 1
+
+  public static Proto3Transcoder create(String projectId) {
+    return create(projectId, RenameRules.DEFAULT);
+  }
+
+  /**
+   * Like {@link #create(String)}, except tags are renamed according to the given rules.
+   *
+   * @param projectId The Google Cloud Platform projectId that should be used for Stackdriver
+   *                  Trace Traces. This must be ASCII.
+   * @param renameRules usually {@link RenameRules#DEFAULT} with additional rules.
+   */
+  public static Proto3Transcoder create(String projectId, RenameRules renameRules) {
+    return create(projectId, renameRules, false);
+  }
+
+  /**
+   * Like {@link #create(String, RenameRules)}, except integer and boolean tag values can be
+   * written as such.
+   *
+   * @param typedAttributes see {@link SpanTranslator#translate(String, java.util.List,
+   *                        RenameRules, boolean)}
+   */
+  public static Proto3Transcoder create(String projectId, RenameRules renameRules,
+      boolean typedAttributes) {
+    if (projectId == null) throw new NullPointerException("projectId == null");
+    if (renameRules == null) throw new NullPointerException("renameRules == null");
+    return new Proto3Transcoder(new TranscodedSpanWriter(projectId, renameRules, typedAttributes));
+  }
+
+  /**
+   * Returns the count of spans in a zipkin.proto3 {@code ListOfSpans}, without reading them.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   */
+  public static int spanCount(byte[] listOfSpans) {
+    if (listOfSpans == null) throw new NullPointerException("listOfSpans == null");
+    CodedInputStream in = CodedInputStream.newInstance(listOfSpans);
+    int count = 0;
+    try {
+      while (!in.isAtEnd()) {
+        int key = in.readTag();
+        if (key == LIST_OF_SPANS_SPANS) count++;
+        in.skipField(key);
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed reading List<Span> from proto3", e);
+    }
+    return count;
+  }
+
+  final TranscodedSpanWriter writer;
+
+  Proto3Transcoder(TranscodedSpanWriter writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Returns a serialized {@link BatchWriteSpansRequest} with the Stackdriver equivalent of each
+   * span in the zipkin.proto3 {@code ListOfSpans}.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   */
+  public byte[] transcode(byte[] listOfSpans) {
+    if (listOfSpans == null) throw new NullPointerException("listOfSpans == null");
+    // Stackdriver spans are usually a little larger than the Zipkin ones, due to names.
+    ByteArrayOutputStream result =
+        new ByteArrayOutputStream(listOfSpans.length + listOfSpans.length / 2 + 64);
+    CodedOutputStream out = CodedOutputStream.newInstance(result, 4096);
+    CodedInputStream in = CodedInputStream.newInstance(listOfSpans);
+    Proto3Span span = new Proto3Span(listOfSpans);
+    try {
+      writer.writeRequestName(out);
+      while (!in.isAtEnd()) {
+        int fieldStart = in.getTotalBytesRead();
+        int key = in.readTag();
+        if (key != LIST_OF_SPANS_SPANS) {
+          in.skipField(key);
+          continue;
+        }
+        int limit = in.pushLimit(in.readRawVarint32());
+        boolean canonical = span.read(in);
+        in.popLimit(limit);
+        if (canonical) {
+          writer.writeSpan(span, out);
+        } else { // The rare span that decoding would normalize is decoded and written as usual.
+          byte[] singletonList =
+              Arrays.copyOfRange(listOfSpans, fieldStart, in.getTotalBytesRead());
+          writer.writeSpan(SpanBytesDecoder.PROTO3.decodeOne(singletonList), out);
+        }
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed reading List<Span> from proto3", e);
+    }
+    return result.toByteArray();
+  }
+
+  @Override public String toString() {
+    return "Proto3Transcoder{" + writer.projectId + "}";
+  }
+
+  /** Reads a zipkin.proto3 span, where IDs are binary. */
+  static final class Proto3Span extends TranscodedSpan {
+    // offsets of the local endpoint's addresses, which are parsed after reading the kind
+    int ipv4Offset, ipv4Length, ipv6Offset, ipv6Length;
+    boolean hasLocalEndpoint, ipv6First;
+
+    Proto3Span(byte[] buffer) {
+      super(buffer, false);
+    }
+
+    /**
+     * Reads the span up to the current limit. Returns false when decoding would change it, for
+     * example by sorting its tags, or reject it. In this case, the span must be decoded instead.
+     */
+    boolean read(CodedInputStream in) throws IOException {
+      clear();
+      ipv4Offset = ipv6Offset = -1;
+      hasLocalEndpoint = false;
+
+      boolean canonical = true;
+      while (canonical && !in.isAtEnd()) {
+        int key = in.readTag();
+        switch (key) {
+          case TRACE_ID:
+            traceIdLength = in.readRawVarint32();
+            traceIdOffset = in.getTotalBytesRead();
+            in.skipRawBytes(traceIdLength);
+            canonical = (traceIdLength == 8 || traceIdLength == 16)
+                && !isZeroId(traceIdOffset, traceIdLength);
+            break;
+          case PARENT_ID:
+            parentIdOffset = readId(in);
+            canonical = parentIdOffset != -1;
+            break;
+          case ID:
+            idOffset = readId(in);
+            canonical = idOffset != -1;
+            break;
+          case KIND:
+            int kindNumber = in.readRawVarint32();
+            canonical = kindNumber > 0 && kindNumber <= KINDS.length;
+            if (canonical) kind = KINDS[kindNumber - 1];
+            break;
+          case SPAN_NAME:
+            String spanName = in.readString();
+            name = spanName.isEmpty() ? null : spanName.toLowerCase(Locale.ROOT);
+            break;
+          case TIMESTAMP:
+            timestamp = in.readFixed64();
+            canonical = timestamp >= 0L;
+            break;
+          case DURATION:
+            duration = in.readUInt64();
+            canonical = duration >= 0L;
+            break;
+          case LOCAL_ENDPOINT:
+            int endpointLimit = in.pushLimit(in.readRawVarint32());
+            canonical = readLocalEndpoint(in);
+            in.popLimit(endpointLimit);
+            break;
+          case ANNOTATION_KEY:
+            int annotationLimit = in.pushLimit(in.readRawVarint32());
+            canonical = readAnnotation(in);
+            in.popLimit(annotationLimit);
+            break;
+          case TAG:
+            int tagLimit = in.pushLimit(in.readRawVarint32());
+            canonical = readTag(in);
+            in.popLimit(tagLimit);
+            break;
+          default: // such as the remote endpoint, which isn't translated
+            in.skipField(key);
+        }
+      }
+      canonical = canonical && traceIdOffset != -1 && idOffset != -1
+          // decoding drops a parent ID that's the same as the span ID
+          && (parentIdOffset == -1 || !sameId(parentIdOffset, idOffset));
+
+      in.skipRawBytes(in.getBytesUntilLimit());
+      if (canonical && kind == Span.Kind.SERVER) parseLocalIps();
+      return canonical;
+    }
+
+    /** Returns the offset of an 8-byte, non-zero ID, or -1 if decoding would change it. */
+    int readId(CodedInputStream in) throws IOException {
+      int length = in.readRawVarint32();
+      int offset = in.getTotalBytesRead();
+      in.skipRawBytes(length);
+      return length == 8 && !isZeroId(offset, 8) ? offset : -1;
+    }
+
+    boolean readLocalEndpoint(CodedInputStream in) throws IOException {
+      if (hasLocalEndpoint) return false; // rather than guess how decoding merges them
+      hasLocalEndpoint = true;
+      while (!in.isAtEnd()) {
+        int key = in.readTag();
+        switch (key) {
+          case ENDPOINT_SERVICE_NAME:
+            String serviceName = in.readString();
+            localServiceName =
+                serviceName.isEmpty() ? null : serviceName.toLowerCase(Locale.ROOT);
+            break;
+          case ENDPOINT_IPV4:
+            if (ipv4Offset != -1) return false; // repeated addresses are parsed in order
+            ipv4Length = in.readRawVarint32();
+            ipv4Offset = in.getTotalBytesRead();
+            in.skipRawBytes(ipv4Length);
+            break;
+          case ENDPOINT_IPV6:
+            if (ipv6Offset != -1) return false;
+            ipv6Length = in.readRawVarint32();
+            ipv6Offset = in.getTotalBytesRead();
+            in.skipRawBytes(ipv6Length);
+            ipv6First = ipv4Offset == -1;
+            break;
+          default: // such as the port, which isn't translated
+            in.skipField(key);
+        }
+      }
+      return true;
+    }
+
+    /** Parses addresses the same way as decoding, which handles IPv4-mapped addresses. */
+    void parseLocalIps() {
+      if (ipv4Offset == -1 && ipv6Offset == -1) return;
+      Endpoint.Builder builder = Endpoint.newBuilder();
+      if (ipv6First) parseIp(builder, ipv6Offset, ipv6Length);
+      parseIp(builder, ipv4Offset, ipv4Length);
+      if (!ipv6First) parseIp(builder, ipv6Offset, ipv6Length);
+      Endpoint endpoint = builder.build();
+      ipv4 = endpoint.ipv4();
+      ipv6 = endpoint.ipv6();
+    }
+
+    void parseIp(Endpoint.Builder builder, int offset, int length) {
+      if (offset == -1) return;
+      builder.parseIp(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    /** Returns false unless the annotation is valid and sorts after the previous one. */
+    boolean readAnnotation(CodedInputStream in) throws IOException {
+      long annotationTimestamp = 0L;
+      String value = null;
+      while (!in.isAtEnd()) {
+        int key = in.readTag();
+        if (key == ANNOTATION_TIMESTAMP) {
+          annotationTimestamp = in.readFixed64();
+        } else if (key == ANNOTATION_VALUE) {
+          value = in.readString();
+        } else {
+          in.skipField(key);
+        }
+      }
+      // decoding drops annotations without a timestamp or value, and sorts the rest
+      if (annotationTimestamp <= 0L || value == null || value.isEmpty()) return false;
+      if (annotationCount > 0) {
+        long previousTimestamp = annotationTimestamps[annotationCount - 1];
+        if (annotationTimestamp < previousTimestamp) return false;
+        if (annotationTimestamp == previousTimestamp
+            && value.compareTo(annotationValues[annotationCount - 1]) <= 0) {
+          return false;
+        }
+      }
+      addAnnotation(annotationTimestamp, value, -1, 0);
+      return true;
+    }
+
+    /** Returns false unless the tag is valid and sorts after the previous one. */
+    boolean readTag(CodedInputStream in) throws IOException {
+      String key = null, value = null;
+      while (!in.isAtEnd()) {
+        int fieldKey = in.readTag();
+        if (fieldKey == MAP_KEY) {
+          key = in.readString();
+        } else if (fieldKey == MAP_VALUE) {
+          value = in.readString();
+        } else {
+          in.skipField(fieldKey);
+        }
+      }
+      // decoding drops tags without a key, and sorts the rest into a map
+      if (key == null || key.isEmpty() || value == null) return false;
+      if (tagCount > 0 && key.compareTo(tagKeys[tagCount - 1]) <= 0) return false;
+      addTag(key, value, -1, 0);
+      return true;
+    }
+  }
+}
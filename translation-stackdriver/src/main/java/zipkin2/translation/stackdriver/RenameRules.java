@@ -0,0 +1,145 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rules that map Zipkin tag keys to Stackdriver attribute names. These are compiled into a single
+ * lookup, so that each tag is renamed with one hash lookup, in the same pass that adds it.
+ *
+ * <p>{@link #DEFAULT} maps HTTP tags to Stackdriver's conventional attribute names, such as
+ * "http.method" to "/http/method". Use {@link #toBuilder()} to add rules for your own semantic
+ * conventions:
+ *
+ * <pre>{@code
+ * renameRules = RenameRules.DEFAULT.toBuilder()
+ *   .rename("rpc.method", "/rpc/method")
+ *   .build();
+ * }</pre>
+ *
+ * <p>Besides tag keys, rules apply to "endpoint.ipv4" and "endpoint.ipv6", which are added for
+ * server spans.
+ */
+public final class RenameRules {
+  /** The rules used unless otherwise configured. */
+  public static final RenameRules DEFAULT = newBuilder()
+      .rename("http.host", "/http/host")
+      .rename("http.method", "/http/method")
+      .rename("http.status_code", "/http/status_code")
+      .rename("http.request.size", "/request/size")
+      .rename("http.response.size", "/response/size")
+      .rename("http.url", "/http/url")
+      // Spring 6 HTTP spans need mapping to Stackdriver conventional attribute names
+      .copyIfSpanNameContains("status", "/http/status_code", "http")
+      .copyIfSpanNameContains("method", "/http/method", "http")
+      .build();
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    final Map<String, Rule> rules = new LinkedHashMap<>();
+
+    Builder() {
+    }
+
+    Builder(RenameRules source) {
+      rules.putAll(source.rules);
+    }
+
+    /**
+     * Adds the tag as the given attribute name instead of its key. This replaces any previous
+     * rename of the same key.
+     */
+    public Builder rename(String tagKey, String attributeName) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      if (attributeName == null) throw new NullPointerException("attributeName == null");
+      Rule rule = rules.get(tagKey);
+      rules.put(tagKey, rule != null
+          ? new Rule(attributeName, rule.copyAttributeName, rule.copyIfSpanNameContains)
+          : new Rule(attributeName, null, null));
+      return this;
+    }
+
+    /**
+     * Adds the tag a second time as the given attribute name, when the span name contains the
+     * given string. Pass an empty string to always copy. This replaces any previous copy of the
+     * same key.
+     *
+     * <p>The span name is only checked for spans that have the tag.
+     */
+    public Builder copyIfSpanNameContains(String tagKey, String attributeName,
+        String spanNameSubstring) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      if (attributeName == null) throw new NullPointerException("attributeName == null");
+      if (spanNameSubstring == null) {
+        throw new NullPointerException("spanNameSubstring == null");
+      }
+      Rule rule = rules.get(tagKey);
+      rules.put(tagKey, new Rule(
+          rule != null ? rule.attributeName : tagKey, attributeName, spanNameSubstring));
+      return this;
+    }
+
+    /** Removes any rename or copy of the tag key. */
+    public Builder remove(String tagKey) {
+      if (tagKey == null) throw new NullPointerException("tagKey == null");
+      rules.remove(tagKey);
+      return this;
+    }
+
+    public RenameRules build() {
+      return new RenameRules(this);
+    }
+  }
+
+  static final class Rule {
+    final String attributeName;
+    final String copyAttributeName, copyIfSpanNameContains; // null when there's no copy
+
+    Rule(String attributeName, String copyAttributeName, String copyIfSpanNameContains) {
+      this.attributeName = attributeName;
+      this.copyAttributeName = copyAttributeName;
+      this.copyIfSpanNameContains = copyIfSpanNameContains;
+    }
+
+    /** Returns the attribute name to copy the tag to, or null if it shouldn't be copied. */
+    String copyAttributeName(String spanName) {
+      if (copyAttributeName == null) return null;
+      if (copyIfSpanNameContains.isEmpty()) return copyAttributeName;
+      return spanName != null && spanName.contains(copyIfSpanNameContains)
+          ? copyAttributeName : null;
+    }
+  }
+
+  final Map<String, Rule> rules;
+
+  RenameRules(Builder builder) {
+    // HashMap instead of LinkedHashMap as iteration order doesn't matter after building
+    this.rules = new HashMap<>(builder.rules);
+  }
+
+  /** Returns the rule for the tag key, or null if it is added as-is. */
+  Rule rule(String tagKey) {
+    return rules.get(tagKey);
+  }
+
+  String attributeName(String tagKey) {
+    Rule rule = rules.get(tagKey);
+    return rule != null ? rule.attributeName : tagKey;
+  }
+
+  @Override public String toString() {
+    return "RenameRules{" + rules.keySet() + "}";
+  }
+}
@@ -8,43 +8,23 @@ import com.google.devtools.cloudtrace.v2.Span.TimeEvent;
 import com.google.devtools.cloudtrace.v2.Span.TimeEvents;
 import com.google.protobuf.Timestamp;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 import zipkin2.Annotation;
 import zipkin2.Span;
 
 import static java.util.logging.Level.FINE;
-import static zipkin2.translation.stackdriver.AttributesExtractor.toAttributeValue;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ANNOTATIONS;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ANNOTATION_DESCRIPTION_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_DISPLAY_NAME_BYTES;
 import static zipkin2.translation.stackdriver.SpanUtil.toTruncatableString;
 
 /** SpanTranslator converts a Zipkin Span to a Stackdriver Trace Span. */
 public final class SpanTranslator {
   private static final Logger LOG = Logger.getLogger(SpanTranslator.class.getName());
 
-  static final AttributesExtractor ATTRIBUTES_EXTRACTOR;
-
-  static {
-    Map<String, String> renamedLabels = new LinkedHashMap<>();
-    renamedLabels.put("http.host", "/http/host");
-    renamedLabels.put("http.method", "/http/method");
-    renamedLabels.put("http.status_code", "/http/status_code");
-    renamedLabels.put("http.request.size", "/request/size");
-    renamedLabels.put("http.response.size", "/response/size");
-    renamedLabels.put("http.url", "/http/url");
-    ATTRIBUTES_EXTRACTOR = new AttributesExtractor(renamedLabels);
-  }
-
-  private static final Map<String, String> SPRING6_RENAMED_HTTP_LABELS;
-
-  static {
-    Map<String, String> map = new LinkedHashMap<>();
-    map.put("status", "/http/status_code");
-    map.put("method", "/http/method");
-    SPRING6_RENAMED_HTTP_LABELS = Collections.unmodifiableMap(map);
-  }
+  static final AttributesExtractor ATTRIBUTES_EXTRACTOR =
+      new AttributesExtractor(RenameRules.DEFAULT, false);
 
   /**
    * Convert a Collection of Zipkin Spans into a Collection of Stackdriver Trace Spans.
@@ -56,12 +36,46 @@ public final class SpanTranslator {
    */
   public static List<com.google.devtools.cloudtrace.v2.Span> translate(
       String projectId, List<Span> zipkinSpans) {
+    return translate(projectId, zipkinSpans, ATTRIBUTES_EXTRACTOR);
+  }
+
+  /**
+   * Like {@link #translate(String, List)}, except tags are renamed according to the given rules.
+   *
+   * @param renameRules usually {@link RenameRules#DEFAULT} with additional rules.
+   */
+  public static List<com.google.devtools.cloudtrace.v2.Span> translate(
+      String projectId, List<Span> zipkinSpans, RenameRules renameRules) {
+    return translate(projectId, zipkinSpans, renameRules, false);
+  }
+
+  /**
+   * Like {@link #translate(String, List, RenameRules)}, except integer and boolean tag values can
+   * be sent as such.
+   *
+   * @param typedAttributes when true, tag values that are integers or booleans are sent as {@code
+   *                        int_value} or {@code bool_value} instead of strings, and the span kind
+   *                        as {@code span_kind} instead of a "/kind" attribute. This makes spans
+   *                        smaller, but changes how they are queried in Cloud Trace. Integers are
+   *                        only converted when they parse back to the same text, so values like
+   *                        "007" or "+1" stay strings.
+   */
+  public static List<com.google.devtools.cloudtrace.v2.Span> translate(
+      String projectId, List<Span> zipkinSpans, RenameRules renameRules,
+      boolean typedAttributes) {
+    if (renameRules == null) throw new NullPointerException("renameRules == null");
+    return translate(projectId, zipkinSpans, attributesExtractor(renameRules, typedAttributes));
+  }
+
+  static List<com.google.devtools.cloudtrace.v2.Span> translate(
+      String projectId, List<Span> zipkinSpans, AttributesExtractor attributesExtractor) {
     List<com.google.devtools.cloudtrace.v2.Span> result = new ArrayList<>(zipkinSpans.size());
     for (int i = 0, len = zipkinSpans.size(); i < len; i++) {
       Span zipkinSpan = zipkinSpans.get(i);
       com.google.devtools.cloudtrace.v2.Span.Builder spanBuilder = translate(
           com.google.devtools.cloudtrace.v2.Span.newBuilder(),
-          zipkinSpan);
+          zipkinSpan,
+          attributesExtractor);
       spanBuilder.setName(
           "projects/" + projectId
               + "/traces/" + paddedTraceId(zipkinSpan.traceId())
@@ -90,6 +104,41 @@ public final class SpanTranslator {
   public static com.google.devtools.cloudtrace.v2.Span.Builder translate(
       com.google.devtools.cloudtrace.v2.Span.Builder spanBuilder,
       Span zipkinSpan) {
+    return translate(spanBuilder, zipkinSpan, ATTRIBUTES_EXTRACTOR);
+  }
+
+  /**
+   * Like {@link #translate(com.google.devtools.cloudtrace.v2.Span.Builder, Span)}, except tags
+   * are renamed according to the given rules.
+   *
+   * @param renameRules usually {@link RenameRules#DEFAULT} with additional rules.
+   */
+  public static com.google.devtools.cloudtrace.v2.Span.Builder translate(
+      com.google.devtools.cloudtrace.v2.Span.Builder spanBuilder,
+      Span zipkinSpan,
+      RenameRules renameRules) {
+    return translate(spanBuilder, zipkinSpan, renameRules, false);
+  }
+
+  /**
+   * Like {@link #translate(com.google.devtools.cloudtrace.v2.Span.Builder, Span, RenameRules)},
+   * except integer and boolean tag values can be sent as such.
+   *
+   * @param typedAttributes see {@link #translate(String, List, RenameRules, boolean)}
+   */
+  public static com.google.devtools.cloudtrace.v2.Span.Builder translate(
+      com.google.devtools.cloudtrace.v2.Span.Builder spanBuilder,
+      Span zipkinSpan,
+      RenameRules renameRules,
+      boolean typedAttributes) {
+    if (renameRules == null) throw new NullPointerException("renameRules == null");
+    return translate(spanBuilder, zipkinSpan, attributesExtractor(renameRules, typedAttributes));
+  }
+
+  static com.google.devtools.cloudtrace.v2.Span.Builder translate(
+      com.google.devtools.cloudtrace.v2.Span.Builder spanBuilder,
+      Span zipkinSpan,
+      AttributesExtractor attributesExtractor) {
     boolean logTranslation = LOG.isLoggable(FINE);
     if (logTranslation) LOG.log(FINE, ">> translating zipkin span: {0}", zipkinSpan);
 
@@ -103,7 +152,7 @@ public final class SpanTranslator {
     spanBuilder.setDisplayName(
         toTruncatableString(
             (zipkinSpan.name() != null && !zipkinSpan.name().isEmpty()) ? zipkinSpan.name()
-                : "unknown"));
+                : "unknown", MAX_DISPLAY_NAME_BYTES));
 
     if (zipkinSpan.timestampAsLong() != 0L) {
       spanBuilder.setStartTime(createTimestamp(zipkinSpan.timestampAsLong()));
@@ -113,27 +162,28 @@ public final class SpanTranslator {
         spanBuilder.setEndTime(endTime);
       }
     }
-    spanBuilder.setAttributes(ATTRIBUTES_EXTRACTOR.extract(zipkinSpan));
-
-    // Spring 6 HTTP spans need mapping to Stackdriver conventional attribute names
-    if (zipkinSpan.name() != null && zipkinSpan.name().contains("http")) {
-      zipkinSpan.tags().forEach((key, value) -> {
-        if (SPRING6_RENAMED_HTTP_LABELS.containsKey(key)) {
-          spanBuilder.getAttributesBuilder()
-                  .putAttributeMap(SPRING6_RENAMED_HTTP_LABELS.get(key), toAttributeValue(value));
-        }
-      });
+    spanBuilder.setAttributes(attributesExtractor.extract(zipkinSpan));
+    if (zipkinSpan.kind() != null && attributesExtractor.typedAttributes) {
+      spanBuilder.setSpanKind(spanKind(zipkinSpan.kind()));
     }
 
     if (!zipkinSpan.annotations().isEmpty()) {
       TimeEvents.Builder events = TimeEvents.newBuilder();
-      for (Annotation annotation : zipkinSpan.annotations()) {
+      List<Annotation> annotations = zipkinSpan.annotations();
+      // Stackdriver only accepts MAX_ANNOTATIONS, so keep the earliest and count the rest.
+      int count = Math.min(annotations.size(), MAX_ANNOTATIONS);
+      for (int i = 0; i < count; i++) {
+        Annotation annotation = annotations.get(i);
         events.addTimeEvent(TimeEvent.newBuilder()
             .setTime(createTimestamp(annotation.timestamp()))
             .setAnnotation(TimeEvent.Annotation.newBuilder()
-                .setDescription(toTruncatableString(annotation.value())))
+                .setDescription(
+                    toTruncatableString(annotation.value(), MAX_ANNOTATION_DESCRIPTION_BYTES)))
         );
       }
+      if (annotations.size() > count) {
+        events.setDroppedAnnotationsCount(annotations.size() - count);
+      }
       spanBuilder.setTimeEvents(events);
     }
 
@@ -141,6 +191,27 @@ public final class SpanTranslator {
     return spanBuilder;
   }
 
+  static AttributesExtractor attributesExtractor(RenameRules renameRules,
+      boolean typedAttributes) {
+    return renameRules == RenameRules.DEFAULT && !typedAttributes
+        ? ATTRIBUTES_EXTRACTOR : new AttributesExtractor(renameRules, typedAttributes);
+  }
+
+  static com.google.devtools.cloudtrace.v2.Span.SpanKind spanKind(Span.Kind kind) {
+    switch (kind) {
+      case CLIENT:
+        return com.google.devtools.cloudtrace.v2.Span.SpanKind.CLIENT;
+      case SERVER:
+        return com.google.devtools.cloudtrace.v2.Span.SpanKind.SERVER;
+      case PRODUCER:
+        return com.google.devtools.cloudtrace.v2.Span.SpanKind.PRODUCER;
+      case CONSUMER:
+        return com.google.devtools.cloudtrace.v2.Span.SpanKind.CONSUMER;
+      default:
+        return com.google.devtools.cloudtrace.v2.Span.SpanKind.SPAN_KIND_UNSPECIFIED;
+    }
+  }
+
   static Timestamp createTimestamp(long microseconds) {
     long seconds = (microseconds / 1000000);
     int remainderMicros = (int) (microseconds % 1000000);
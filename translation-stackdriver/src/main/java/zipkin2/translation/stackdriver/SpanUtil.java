@@ -7,6 +7,14 @@ package zipkin2.translation.stackdriver;
 import com.google.devtools.cloudtrace.v2.TruncatableString;
 
 final class SpanUtil {
+  // Limits documented on google.devtools.cloudtrace.v2.Span. Larger values are truncated or
+  // rejected server-side, so enforcing them locally saves bandwidth.
+  static final int MAX_DISPLAY_NAME_BYTES = 128;
+  static final int MAX_ATTRIBUTE_KEY_BYTES = 128;
+  static final int MAX_ATTRIBUTE_VALUE_BYTES = 256;
+  static final int MAX_ATTRIBUTES = 32;
+  static final int MAX_ANNOTATION_DESCRIPTION_BYTES = 256;
+  static final int MAX_ANNOTATIONS = 32;
 
   static TruncatableString toTruncatableString(String string) {
     // NOTE: Java and Go implementations of opencensus seem to differ in their interpretation of
@@ -21,6 +29,101 @@ final class SpanUtil {
     return TruncatableString.newBuilder().setValue(string).setTruncatedByteCount(0).build();
   }
 
+  /**
+   * Like {@link #toTruncatableString(String)}, except values whose UTF-8 encoding exceeds
+   * {@code maxBytes} are cut at a character boundary, recording how many bytes were dropped. This
+   * avoids sending data the server would truncate anyway.
+   */
+  static TruncatableString toTruncatableString(String string, int maxBytes) {
+    int end = truncatedLength(string, maxBytes);
+    if (end == string.length()) return toTruncatableString(string);
+    return TruncatableString.newBuilder()
+        .setValue(string.substring(0, end))
+        .setTruncatedByteCount(truncatedByteCount(string, end))
+        .build();
+  }
+
+  /**
+   * Returns the length in characters of the longest prefix whose UTF-8 encoding fits in
+   * {@code maxBytes}, without splitting a surrogate pair. This is the string length when it fits.
+   */
+  static int truncatedLength(String string, int maxBytes) {
+    int length = string.length();
+    if (length * 3 <= maxBytes) return length; // no character encodes to more than 3 bytes each
+    int bytes = 0;
+    for (int i = 0; i < length; i++) {
+      char c = string.charAt(i);
+      int charBytes;
+      if (c < 0x80) {
+        charBytes = 1;
+      } else if (c < 0x800) {
+        charBytes = 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        if (bytes + 4 > maxBytes) return i;
+        bytes += 4;
+        i++;
+        continue;
+      } else {
+        charBytes = 3; // unpaired surrogates count as 3, which only over-estimates
+      }
+      if (bytes + charBytes > maxBytes) return i;
+      bytes += charBytes;
+    }
+    return length;
+  }
+
+  /** Returns the UTF-8 size of the characters after {@code end}. */
+  static int truncatedByteCount(String string, int end) {
+    return utf8Length(string, end, string.length());
+  }
+
+  /** Returns the UTF-8 size of the string. */
+  static int utf8Length(String string) {
+    return utf8Length(string, 0, string.length());
+  }
+
+  static int utf8Length(String string, int begin, int end) {
+    int bytes = 0;
+    for (int i = begin; i < end; i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        bytes++;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        bytes += 4;
+        i++;
+      } else {
+        bytes += 3;
+      }
+    }
+    return bytes;
+  }
+
+  /** Returns true if the value is a decimal long that formats back to the same text. */
+  static boolean isInt64(String value) {
+    int length = value.length();
+    if (length == 0) return false;
+    boolean negative = value.charAt(0) == '-';
+    int start = negative ? 1 : 0, digits = length - start;
+    if (digits == 0 || digits > 19) return false;
+    if (value.charAt(start) == '0' && (digits > 1 || negative)) return false; // "01" or "-0"
+    for (int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') return false;
+    }
+    if (digits < 19) return true;
+    // Same length as Long.MIN_VALUE or MAX_VALUE, so compare digits to avoid overflow
+    String limit = negative ? "9223372036854775808" : "9223372036854775807";
+    return value.substring(start).compareTo(limit) <= 0;
+  }
+
+  static boolean isBool(String value) {
+    return "true".equals(value) || "false".equals(value);
+  }
+
   private SpanUtil() {
   }
 }
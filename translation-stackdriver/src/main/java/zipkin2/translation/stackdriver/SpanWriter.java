@@ -0,0 +1,525 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.AttributeValue;
+import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import com.google.devtools.cloudtrace.v2.Span.TimeEvent;
+import com.google.devtools.cloudtrace.v2.Span.TimeEvents;
+import com.google.devtools.cloudtrace.v2.TruncatableString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Timestamp;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Annotation;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static com.google.protobuf.CodedOutputStream.computeBoolSize;
+import static com.google.protobuf.CodedOutputStream.computeEnumSize;
+import static com.google.protobuf.CodedOutputStream.computeInt32Size;
+import static com.google.protobuf.CodedOutputStream.computeInt64Size;
+import static com.google.protobuf.CodedOutputStream.computeStringSize;
+import static com.google.protobuf.CodedOutputStream.computeTagSize;
+import static com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag;
+import static com.google.protobuf.WireFormat.WIRETYPE_LENGTH_DELIMITED;
+import static zipkin2.translation.stackdriver.AttributesExtractor.AGENT_NAME;
+import static zipkin2.translation.stackdriver.AttributesExtractor.isValidKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kAgentLabelKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kComponentLabelKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kKindLabelKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kindLabel;
+import static zipkin2.translation.stackdriver.AttributesExtractor.reservedAttributeCount;
+import static zipkin2.translation.stackdriver.SpanTranslator.spanKind;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ANNOTATIONS;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ANNOTATION_DESCRIPTION_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_DISPLAY_NAME_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.isBool;
+import static zipkin2.translation.stackdriver.SpanUtil.isInt64;
+import static zipkin2.translation.stackdriver.SpanUtil.truncatedByteCount;
+import static zipkin2.translation.stackdriver.SpanUtil.truncatedLength;
+
+/**
+ * SpanWriter writes a Zipkin Span directly as a Stackdriver Trace V2 Span in protobuf wire format.
+ *
+ * <p>The result is the same as serializing the output of {@link SpanTranslator}, except no
+ * builders, attribute values or timestamps are allocated along the way. The size is computed from
+ * the Zipkin span fields, so callers can allocate an exactly sized buffer.
+ *
+ * <p>Ex.
+ *
+ * <pre>{@code
+ * byte[] result = new byte[SpanWriter.sizeInBytes(projectId, zipkinSpan)];
+ * SpanWriter.write(projectId, zipkinSpan, CodedOutputStream.newInstance(result));
+ * }</pre>
+ *
+ * <p>Note: The overloads without a project ID do not write the span name, just like
+ * {@link SpanTranslator#translate(com.google.devtools.cloudtrace.v2.Span.Builder, Span)}.
+ */
+public final class SpanWriter {
+  // com.google.devtools.cloudtrace.v2.Span
+  static final int NAME = com.google.devtools.cloudtrace.v2.Span.NAME_FIELD_NUMBER;
+  static final int SPAN_ID = com.google.devtools.cloudtrace.v2.Span.SPAN_ID_FIELD_NUMBER;
+  static final int PARENT_SPAN_ID =
+      com.google.devtools.cloudtrace.v2.Span.PARENT_SPAN_ID_FIELD_NUMBER;
+  static final int DISPLAY_NAME = com.google.devtools.cloudtrace.v2.Span.DISPLAY_NAME_FIELD_NUMBER;
+  static final int START_TIME = com.google.devtools.cloudtrace.v2.Span.START_TIME_FIELD_NUMBER;
+  static final int END_TIME = com.google.devtools.cloudtrace.v2.Span.END_TIME_FIELD_NUMBER;
+  static final int ATTRIBUTES = com.google.devtools.cloudtrace.v2.Span.ATTRIBUTES_FIELD_NUMBER;
+  static final int TIME_EVENTS = com.google.devtools.cloudtrace.v2.Span.TIME_EVENTS_FIELD_NUMBER;
+  static final int SPAN_KIND = com.google.devtools.cloudtrace.v2.Span.SPAN_KIND_FIELD_NUMBER;
+  // Nested messages
+  static final int ATTRIBUTE_MAP = Attributes.ATTRIBUTE_MAP_FIELD_NUMBER;
+  static final int MAP_KEY = 1, MAP_VALUE = 2; // map entries have implicit field numbers
+  static final int STRING_VALUE = AttributeValue.STRING_VALUE_FIELD_NUMBER;
+  static final int INT_VALUE = AttributeValue.INT_VALUE_FIELD_NUMBER;
+  static final int BOOL_VALUE = AttributeValue.BOOL_VALUE_FIELD_NUMBER;
+  static final int DROPPED_ATTRIBUTES_COUNT = Attributes.DROPPED_ATTRIBUTES_COUNT_FIELD_NUMBER;
+  static final int TRUNCATABLE_STRING_VALUE = TruncatableString.VALUE_FIELD_NUMBER;
+  static final int TRUNCATED_BYTE_COUNT = TruncatableString.TRUNCATED_BYTE_COUNT_FIELD_NUMBER;
+  static final int TIME_EVENT = TimeEvents.TIME_EVENT_FIELD_NUMBER;
+  static final int DROPPED_ANNOTATIONS_COUNT = TimeEvents.DROPPED_ANNOTATIONS_COUNT_FIELD_NUMBER;
+  static final int TIME = TimeEvent.TIME_FIELD_NUMBER;
+  static final int ANNOTATION = TimeEvent.ANNOTATION_FIELD_NUMBER;
+  static final int DESCRIPTION = TimeEvent.Annotation.DESCRIPTION_FIELD_NUMBER;
+  static final int SECONDS = Timestamp.SECONDS_FIELD_NUMBER;
+  static final int NANOS = Timestamp.NANOS_FIELD_NUMBER;
+
+  static final String PROJECTS = "projects/", TRACES = "/traces/", SPANS = "/spans/";
+
+  /** The agent attribute of root spans, encoded once as the agent name doesn't change. */
+  static final byte[] AGENT_ATTRIBUTE = encodeAttribute(kAgentLabelKey, AGENT_NAME);
+
+  /**
+   * Returns the exact size of {@link #write(String, Span, CodedOutputStream)}.
+   *
+   * @param projectId The Google Cloud Platform projectId that should be used for Stackdriver
+   *                  Trace Traces. This must be ASCII.
+   * @param zipkinSpan The Zipkin Span.
+   */
+  public static int sizeInBytes(String projectId, Span zipkinSpan) {
+    return sizeInBytes(projectId, zipkinSpan, RenameRules.DEFAULT);
+  }
+
+  /** Returns the exact size of {@link #write(String, Span, RenameRules, CodedOutputStream)}. */
+  public static int sizeInBytes(String projectId, Span zipkinSpan, RenameRules renameRules) {
+    return sizeInBytes(projectId, zipkinSpan, renameRules, false);
+  }
+
+  /**
+   * Returns the exact size of {@link #write(String, Span, RenameRules, boolean,
+   * CodedOutputStream)}.
+   */
+  public static int sizeInBytes(String projectId, Span zipkinSpan, RenameRules renameRules,
+      boolean typedAttributes) {
+    return lengthDelimitedFieldSize(NAME, nameSize(projectId, zipkinSpan))
+        + sizeInBytes(zipkinSpan, renameRules, typedAttributes);
+  }
+
+  /**
+   * Writes the Stackdriver Trace Span equivalent to the Zipkin Span, including its name:
+   * {@code projects/[projectId]/traces/[paddedTraceId]/spans/[spanId]}.
+   *
+   * @param projectId The Google Cloud Platform projectId that should be used for Stackdriver
+   *                  Trace Traces. This must be ASCII.
+   * @param zipkinSpan The Zipkin Span.
+   * @param out where to write the span, with at least {@link #sizeInBytes(String, Span)} remaining.
+   */
+  public static void write(String projectId, Span zipkinSpan, CodedOutputStream out)
+      throws IOException {
+    write(projectId, zipkinSpan, RenameRules.DEFAULT, out);
+  }
+
+  /**
+   * Like {@link #write(String, Span, CodedOutputStream)}, except tags are renamed according to
+   * the given rules.
+   */
+  public static void write(String projectId, Span zipkinSpan, RenameRules renameRules,
+      CodedOutputStream out) throws IOException {
+    write(projectId, zipkinSpan, renameRules, false, out);
+  }
+
+  /**
+   * Like {@link #write(String, Span, RenameRules, CodedOutputStream)}, except integer and boolean
+   * tag values can be written as such.
+   *
+   * @param typedAttributes see {@link SpanTranslator#translate(String, List, RenameRules,
+   *                        boolean)}
+   */
+  public static void write(String projectId, Span zipkinSpan, RenameRules renameRules,
+      boolean typedAttributes, CodedOutputStream out) throws IOException {
+    writeLengthDelimited(out, NAME, nameSize(projectId, zipkinSpan));
+    writeAscii(out, PROJECTS);
+    writeAscii(out, projectId);
+    writeAscii(out, TRACES);
+    String traceId = zipkinSpan.traceId();
+    if (traceId.length() == 16) {
+      for (int i = 0; i < 16; i++) out.writeRawByte('0');
+    }
+    writeAscii(out, traceId);
+    writeAscii(out, SPANS);
+    writeAscii(out, zipkinSpan.id());
+    write(zipkinSpan, renameRules, typedAttributes, out);
+  }
+
+  /** Returns the exact size of {@link #write(Span, CodedOutputStream)}. */
+  public static int sizeInBytes(Span zipkinSpan) {
+    return sizeInBytes(zipkinSpan, RenameRules.DEFAULT);
+  }
+
+  /** Returns the exact size of {@link #write(Span, RenameRules, CodedOutputStream)}. */
+  public static int sizeInBytes(Span zipkinSpan, RenameRules renameRules) {
+    return sizeInBytes(zipkinSpan, renameRules, false);
+  }
+
+  /** Returns the exact size of {@link #write(Span, RenameRules, boolean, CodedOutputStream)}. */
+  public static int sizeInBytes(Span zipkinSpan, RenameRules renameRules,
+      boolean typedAttributes) {
+    int size = computeStringSize(SPAN_ID, zipkinSpan.id());
+    if (zipkinSpan.parentId() != null) {
+      size += computeStringSize(PARENT_SPAN_ID, zipkinSpan.parentId());
+    }
+    size += truncatableStringFieldSize(DISPLAY_NAME, displayName(zipkinSpan),
+        MAX_DISPLAY_NAME_BYTES);
+
+    long timestamp = zipkinSpan.timestampAsLong();
+    if (timestamp != 0L) {
+      size += timestampFieldSize(START_TIME, timestamp);
+      long duration = zipkinSpan.durationAsLong();
+      if (duration != 0L) size += timestampFieldSize(END_TIME, timestamp + duration);
+    }
+
+    size += lengthDelimitedFieldSize(ATTRIBUTES,
+        attributesSize(zipkinSpan, renameRules, typedAttributes));
+
+    if (!zipkinSpan.annotations().isEmpty()) {
+      size += lengthDelimitedFieldSize(TIME_EVENTS, timeEventsSize(zipkinSpan.annotations()));
+    }
+
+    if (zipkinSpan.kind() != null && typedAttributes) {
+      size += computeEnumSize(SPAN_KIND, spanKind(zipkinSpan.kind()).getNumber());
+    }
+    return size;
+  }
+
+  /**
+   * Writes the Stackdriver Trace Span equivalent to the Zipkin Span, except its name.
+   *
+   * @param zipkinSpan The Zipkin Span.
+   * @param out where to write the span, with at least {@link #sizeInBytes(Span)} remaining.
+   */
+  public static void write(Span zipkinSpan, CodedOutputStream out) throws IOException {
+    write(zipkinSpan, RenameRules.DEFAULT, out);
+  }
+
+  /**
+   * Like {@link #write(Span, CodedOutputStream)}, except tags are renamed according to the given
+   * rules.
+   */
+  public static void write(Span zipkinSpan, RenameRules renameRules, CodedOutputStream out)
+      throws IOException {
+    write(zipkinSpan, renameRules, false, out);
+  }
+
+  /**
+   * Like {@link #write(Span, RenameRules, CodedOutputStream)}, except integer and boolean tag
+   * values can be written as such.
+   *
+   * @param typedAttributes see {@link SpanTranslator#translate(String, List, RenameRules,
+   *                        boolean)}
+   */
+  public static void write(Span zipkinSpan, RenameRules renameRules, boolean typedAttributes,
+      CodedOutputStream out) throws IOException {
+    out.writeString(SPAN_ID, zipkinSpan.id());
+    if (zipkinSpan.parentId() != null) {
+      out.writeString(PARENT_SPAN_ID, zipkinSpan.parentId());
+    }
+    writeTruncatableString(out, DISPLAY_NAME, displayName(zipkinSpan), MAX_DISPLAY_NAME_BYTES);
+
+    long timestamp = zipkinSpan.timestampAsLong();
+    if (timestamp != 0L) {
+      writeTimestamp(out, START_TIME, timestamp);
+      long duration = zipkinSpan.durationAsLong();
+      if (duration != 0L) writeTimestamp(out, END_TIME, timestamp + duration);
+    }
+
+    writeLengthDelimited(out, ATTRIBUTES,
+        attributesSize(zipkinSpan, renameRules, typedAttributes));
+    attributes(zipkinSpan, renameRules, typedAttributes, out);
+
+    if (!zipkinSpan.annotations().isEmpty()) {
+      writeLengthDelimited(out, TIME_EVENTS, timeEventsSize(zipkinSpan.annotations()));
+      timeEvents(zipkinSpan.annotations(), out);
+    }
+
+    if (zipkinSpan.kind() != null && typedAttributes) {
+      out.writeEnum(SPAN_KIND, spanKind(zipkinSpan.kind()).getNumber());
+    }
+  }
+
+  static int nameSize(String projectId, Span zipkinSpan) {
+    return PROJECTS.length() + projectId.length() + TRACES.length() + 32 + SPANS.length()
+        + zipkinSpan.id().length();
+  }
+
+  static String displayName(Span zipkinSpan) {
+    String name = zipkinSpan.name();
+    return name != null && !name.isEmpty() ? name : "unknown";
+  }
+
+  static int attributesSize(Span zipkinSpan, RenameRules renameRules, boolean typed) {
+    try {
+      return attributes(zipkinSpan, renameRules, typed, null);
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as nothing is written
+    }
+  }
+
+  /**
+   * Visits attributes in the same order as {@link AttributesExtractor} adds them, including its
+   * limits. Duplicate keys are written in order, so the last one wins when parsed, just like the
+   * builder.
+   *
+   * @param out when null, only the size is computed.
+   * @return the size of the attributes message
+   */
+  static int attributes(Span zipkinSpan, RenameRules renameRules, boolean typed,
+      CodedOutputStream out) throws IOException {
+    int size = 0;
+    Span.Kind kind = zipkinSpan.kind();
+    if (kind != null && !typed) size += attribute(out, kKindLabelKey, kindLabel(kind));
+
+    int tagBudget = MAX_ATTRIBUTES - reservedAttributeCount(zipkinSpan, typed), dropped = 0;
+    for (Map.Entry<String, String> tag : zipkinSpan.tags().entrySet()) {
+      RenameRules.Rule rule = renameRules.rule(tag.getKey());
+      String name = rule != null ? rule.attributeName : tag.getKey();
+      if (tagBudget > 0 && isValidKey(name)) {
+        size += attribute(out, name, tag.getValue(), typed);
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+
+      String copyName = rule != null ? rule.copyAttributeName(zipkinSpan.name()) : null;
+      if (copyName == null) continue;
+      if (tagBudget > 0 && isValidKey(copyName)) {
+        size += attribute(out, copyName, tag.getValue(), typed);
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+    }
+
+    Endpoint localEndpoint = zipkinSpan.localEndpoint();
+    if (localEndpoint != null && kind == Span.Kind.SERVER) {
+      if (localEndpoint.ipv4() != null) {
+        String name = renameRules.attributeName("endpoint.ipv4");
+        if (isValidKey(name)) {
+          size += attribute(out, name, localEndpoint.ipv4());
+        } else {
+          dropped++;
+        }
+      }
+      if (localEndpoint.ipv6() != null) {
+        String name = renameRules.attributeName("endpoint.ipv6");
+        if (isValidKey(name)) {
+          size += attribute(out, name, localEndpoint.ipv6());
+        } else {
+          dropped++;
+        }
+      }
+    }
+
+    if (localEndpoint != null &&
+        localEndpoint.serviceName() != null &&
+        !localEndpoint.serviceName().isEmpty()) {
+      size += attribute(out, kComponentLabelKey, localEndpoint.serviceName());
+    }
+
+    if (zipkinSpan.parentId() == null) {
+      size += agentAttribute(out);
+    }
+
+    if (dropped > 0) {
+      size += computeInt32Size(DROPPED_ATTRIBUTES_COUNT, dropped);
+      if (out != null) out.writeInt32(DROPPED_ATTRIBUTES_COUNT, dropped);
+    }
+    return size;
+  }
+
+  /** Returns the size of one attribute map entry field, writing it when out is not null. */
+  static int attribute(CodedOutputStream out, String key, String value) throws IOException {
+    return attribute(out, key, value, false);
+  }
+
+  static int agentAttribute(CodedOutputStream out) throws IOException {
+    if (out != null) out.writeRawBytes(AGENT_ATTRIBUTE);
+    return AGENT_ATTRIBUTE.length;
+  }
+
+  static byte[] encodeAttribute(String key, String value) {
+    try {
+      byte[] result = new byte[attribute(null, key, value)];
+      CodedOutputStream out = CodedOutputStream.newInstance(result);
+      attribute(out, key, value);
+      out.checkNoSpaceLeft();
+      return result;
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as the array is exactly sized
+    }
+  }
+
+  /**
+   * Like {@link #attribute(CodedOutputStream, String, String)}, except when typed, integer and
+   * boolean values are written as such, like {@link AttributesExtractor#toTypedAttributeValue}.
+   */
+  static int attribute(CodedOutputStream out, String key, String value, boolean typed)
+      throws IOException {
+    int valueField = typed ? valueField(value) : STRING_VALUE;
+    int valueSize;
+    if (valueField == INT_VALUE) {
+      valueSize = computeInt64Size(INT_VALUE, Long.parseLong(value));
+    } else if (valueField == BOOL_VALUE) {
+      valueSize = computeBoolSize(BOOL_VALUE, true); // same size for false
+    } else {
+      valueSize = truncatableStringFieldSize(STRING_VALUE, value, MAX_ATTRIBUTE_VALUE_BYTES);
+    }
+    int entrySize = computeStringSize(MAP_KEY, key) + lengthDelimitedFieldSize(MAP_VALUE, valueSize);
+    if (out != null) {
+      writeLengthDelimited(out, ATTRIBUTE_MAP, entrySize);
+      out.writeString(MAP_KEY, key);
+      writeLengthDelimited(out, MAP_VALUE, valueSize);
+      if (valueField == INT_VALUE) {
+        out.writeInt64(INT_VALUE, Long.parseLong(value));
+      } else if (valueField == BOOL_VALUE) {
+        out.writeBool(BOOL_VALUE, value.equals("true"));
+      } else {
+        writeTruncatableString(out, STRING_VALUE, value, MAX_ATTRIBUTE_VALUE_BYTES);
+      }
+    }
+    return lengthDelimitedFieldSize(ATTRIBUTE_MAP, entrySize);
+  }
+
+  /** Returns the {@link AttributeValue} field a typed value is written to. */
+  static int valueField(String value) {
+    if (isInt64(value)) return INT_VALUE;
+    if (isBool(value)) return BOOL_VALUE;
+    return STRING_VALUE;
+  }
+
+  static int timeEventsSize(List<Annotation> annotations) {
+    try {
+      return timeEvents(annotations, null);
+    } catch (IOException e) {
+      throw new AssertionError(e); // unreachable as nothing is written
+    }
+  }
+
+  /**
+   * @param out when null, only the size is computed.
+   * @return the size of the time events message
+   */
+  static int timeEvents(List<Annotation> annotations, CodedOutputStream out) throws IOException {
+    int size = 0;
+    int count = Math.min(annotations.size(), MAX_ANNOTATIONS);
+    for (int i = 0; i < count; i++) {
+      Annotation annotation = annotations.get(i);
+      int annotationSize = truncatableStringFieldSize(DESCRIPTION, annotation.value(),
+          MAX_ANNOTATION_DESCRIPTION_BYTES);
+      int eventSize = timestampFieldSize(TIME, annotation.timestamp())
+          + lengthDelimitedFieldSize(ANNOTATION, annotationSize);
+      if (out != null) {
+        writeLengthDelimited(out, TIME_EVENT, eventSize);
+        writeTimestamp(out, TIME, annotation.timestamp());
+        writeLengthDelimited(out, ANNOTATION, annotationSize);
+        writeTruncatableString(out, DESCRIPTION, annotation.value(),
+            MAX_ANNOTATION_DESCRIPTION_BYTES);
+      }
+      size += lengthDelimitedFieldSize(TIME_EVENT, eventSize);
+    }
+
+    int dropped = annotations.size() - count;
+    if (dropped > 0) {
+      size += computeInt32Size(DROPPED_ANNOTATIONS_COUNT, dropped);
+      if (out != null) out.writeInt32(DROPPED_ANNOTATIONS_COUNT, dropped);
+    }
+    return size;
+  }
+
+  /** Like {@link SpanUtil#toTruncatableString(String, int)} */
+  static int truncatableStringFieldSize(int fieldNumber, String value, int maxBytes) {
+    return lengthDelimitedFieldSize(fieldNumber, truncatableStringSize(value, maxBytes));
+  }
+
+  static int truncatableStringSize(String value, int maxBytes) {
+    int end = truncatedLength(value, maxBytes);
+    if (end == value.length()) {
+      return value.isEmpty() ? 0 : computeStringSize(TRUNCATABLE_STRING_VALUE, value);
+    }
+    // Only oversized values pay for the substring
+    return computeStringSize(TRUNCATABLE_STRING_VALUE, value.substring(0, end))
+        + computeInt32Size(TRUNCATED_BYTE_COUNT, truncatedByteCount(value, end));
+  }
+
+  static void writeTruncatableString(CodedOutputStream out, int fieldNumber, String value,
+      int maxBytes) throws IOException {
+    writeLengthDelimited(out, fieldNumber, truncatableStringSize(value, maxBytes));
+    int end = truncatedLength(value, maxBytes);
+    if (end == value.length()) {
+      if (!value.isEmpty()) out.writeString(TRUNCATABLE_STRING_VALUE, value);
+      return;
+    }
+    out.writeString(TRUNCATABLE_STRING_VALUE, value.substring(0, end));
+    out.writeInt32(TRUNCATED_BYTE_COUNT, truncatedByteCount(value, end));
+  }
+
+  /** Like {@link SpanTranslator#createTimestamp(long)} */
+  static int timestampFieldSize(int fieldNumber, long microseconds) {
+    return lengthDelimitedFieldSize(fieldNumber, timestampSize(microseconds));
+  }
+
+  static int timestampSize(long microseconds) {
+    long seconds = microseconds / 1000000;
+    int nanos = (int) (microseconds % 1000000) * 1000;
+    int size = 0;
+    if (seconds != 0L) size += computeInt64Size(SECONDS, seconds);
+    if (nanos != 0) size += computeInt32Size(NANOS, nanos);
+    return size;
+  }
+
+  static void writeTimestamp(CodedOutputStream out, int fieldNumber, long microseconds)
+      throws IOException {
+    writeLengthDelimited(out, fieldNumber, timestampSize(microseconds));
+    long seconds = microseconds / 1000000;
+    int nanos = (int) (microseconds % 1000000) * 1000;
+    if (seconds != 0L) out.writeInt64(SECONDS, seconds);
+    if (nanos != 0) out.writeInt32(NANOS, nanos);
+  }
+
+  static int lengthDelimitedFieldSize(int fieldNumber, int length) {
+    return computeTagSize(fieldNumber) + computeUInt32SizeNoTag(length) + length;
+  }
+
+  static void writeLengthDelimited(CodedOutputStream out, int fieldNumber, int length)
+      throws IOException {
+    out.writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    out.writeUInt32NoTag(length);
+  }
+
+  /** Writes the raw bytes of an ASCII string, such as an ID, without a length prefix. */
+  static void writeAscii(CodedOutputStream out, String ascii) throws IOException {
+    for (int i = 0, length = ascii.length(); i < length; i++) {
+      char c = ascii.charAt(i);
+      if (c >= 0x80) throw new IllegalArgumentException("expected ASCII: " + ascii);
+      out.writeRawByte((byte) c);
+    }
+  }
+
+  private SpanWriter() {
+  }
+}
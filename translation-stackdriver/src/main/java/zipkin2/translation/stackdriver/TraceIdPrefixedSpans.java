@@ -0,0 +1,169 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.protobuf.CodedOutputStream.computeTagSize;
+import static com.google.protobuf.CodedOutputStream.computeUInt32SizeNoTag;
+import static zipkin2.translation.stackdriver.SpanWriter.NAME;
+import static zipkin2.translation.stackdriver.SpanWriter.writeLengthDelimited;
+
+/**
+ * TraceIdPrefixedSpans frames a list of spans encoded by {@code StackdriverEncoder} or {@code
+ * StackdriverV2Encoder} into a serialized {@link BatchWriteSpansRequest}, without parsing them.
+ *
+ * <p>Each of these spans is 32 lowercase hex characters of the trace ID, followed by a Stackdriver
+ * Trace Span without its name. The list has each span as a length-delimited field 1, like a
+ * message with {@code repeated bytes spans = 1}. Concatenating lists makes a list of all spans.
+ *
+ * <p>Ex.
+ *
+ * <pre>{@code
+ * framer = TraceIdPrefixedSpans.create(projectId);
+ * byte[] request = framer.toRequest(traceIdPrefixedSpans);
+ * }</pre>
+ *
+ * <p>The result is the same request as {@code StackdriverSender} sends for these spans. Only the
+ * span name is written, as it is the only field that depends on the project.
+ */
+public final class TraceIdPrefixedSpans {
+  static final int LIST_SPANS = 10; // field 1, length-delimited
+  static final int SPAN_ID_KEY = (SpanWriter.SPAN_ID << 3) | 2;
+
+  /**
+   * @param projectId The Google Cloud Platform projectId that should be used for Stackdriver
+   *                  Trace Traces. This must be ASCII.
+   */
+  public static TraceIdPrefixedSpans create(String projectId) {
+    if (projectId == null) throw new NullPointerException("projectId == null");
+    return new TraceIdPrefixedSpans(projectId);
+  }
+
+  /**
+   * Returns the count of spans in the list, without reading them.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   */
+  public static int spanCount(byte[] traceIdPrefixedSpans) {
+    if (traceIdPrefixedSpans == null) {
+      throw new NullPointerException("traceIdPrefixedSpans == null");
+    }
+    CodedInputStream in = CodedInputStream.newInstance(traceIdPrefixedSpans);
+    int count = 0;
+    try {
+      while (!in.isAtEnd()) {
+        int key = in.readTag();
+        if (key == LIST_SPANS) count++;
+        in.skipField(key);
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed reading trace ID prefixed spans", e);
+    }
+    return count;
+  }
+
+  final String projectId;
+  final byte[] traceIdPrefix, spansInfix;
+  final int spanNameSize, spanNameFieldSize;
+
+  TraceIdPrefixedSpans(String projectId) {
+    this.projectId = projectId;
+    traceIdPrefix = (SpanWriter.PROJECTS + projectId + SpanWriter.TRACES)
+        .getBytes(StandardCharsets.US_ASCII);
+    spansInfix = SpanWriter.SPANS.getBytes(StandardCharsets.US_ASCII);
+    // The trace ID is 32 hex characters, and the span ID 16.
+    spanNameSize = traceIdPrefix.length + 32 + spansInfix.length + 16;
+    spanNameFieldSize = computeTagSize(NAME) + computeUInt32SizeNoTag(spanNameSize) + spanNameSize;
+  }
+
+  /**
+   * Returns a serialized {@link BatchWriteSpansRequest} with each span of the list, named after its
+   * trace and span ID.
+   *
+   * @throws IllegalArgumentException if the list is malformed.
+   */
+  public byte[] toRequest(byte[] traceIdPrefixedSpans) {
+    if (traceIdPrefixedSpans == null) {
+      throw new NullPointerException("traceIdPrefixedSpans == null");
+    }
+    ByteArrayOutputStream result = new ByteArrayOutputStream(
+        traceIdPrefixedSpans.length + traceIdPrefixedSpans.length / 2 + 64);
+    CodedOutputStream out = CodedOutputStream.newInstance(result, 4096);
+    CodedInputStream in = CodedInputStream.newInstance(traceIdPrefixedSpans);
+    try {
+      out.writeString(BatchWriteSpansRequest.NAME_FIELD_NUMBER, SpanWriter.PROJECTS + projectId);
+      while (!in.isAtEnd()) {
+        int key = in.readTag();
+        if (key != LIST_SPANS) {
+          in.skipField(key);
+          continue;
+        }
+        int length = in.readRawVarint32();
+        int offset = in.getTotalBytesRead();
+        in.skipRawBytes(length);
+        writeSpan(traceIdPrefixedSpans, offset, length, out);
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed reading trace ID prefixed spans", e);
+    }
+    return result.toByteArray();
+  }
+
+  /** Writes the name field followed by the span fields as is, which is what parsing would do. */
+  void writeSpan(byte[] buffer, int offset, int length, CodedOutputStream out)
+      throws IOException {
+    if (length < 32 || !isLowerHex(buffer, offset, 32)) {
+      throw new IOException("Expected a span prefixed by a 32 character trace ID");
+    }
+    int spanOffset = offset + 32, spanLength = length - 32;
+    int spanIdOffset = spanIdOffset(buffer, spanOffset, spanLength);
+
+    writeLengthDelimited(out, BatchWriteSpansRequest.SPANS_FIELD_NUMBER,
+        spanNameFieldSize + spanLength);
+    writeLengthDelimited(out, NAME, spanNameSize);
+    out.writeRawBytes(traceIdPrefix);
+    out.writeRawBytes(buffer, offset, 32);
+    out.writeRawBytes(spansInfix);
+    out.writeRawBytes(buffer, spanIdOffset, 16);
+    out.writeRawBytes(buffer, spanOffset, spanLength);
+  }
+
+  /** Returns the offset of the value of the span_id field, which must be 16 hex characters. */
+  static int spanIdOffset(byte[] buffer, int offset, int length) throws IOException {
+    CodedInputStream in = CodedInputStream.newInstance(buffer, offset, length);
+    while (!in.isAtEnd()) {
+      int key = in.readTag();
+      if (key != SPAN_ID_KEY) {
+        in.skipField(key);
+        continue;
+      }
+      int spanIdOffset = offset + in.getTotalBytesRead() + 1;
+      if (in.readRawVarint32() != 16 || spanIdOffset + 16 > offset + length) break;
+      if (!isLowerHex(buffer, spanIdOffset, 16)) break;
+      return spanIdOffset;
+    }
+    throw new IOException("Expected a span ID of 16 hex characters");
+  }
+
+  static boolean isLowerHex(byte[] buffer, int offset, int length) {
+    if (offset + length > buffer.length) return false;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = buffer[i];
+      if ((b < '0' || b > '9') && (b < 'a' || b > 'f')) return false;
+    }
+    return true;
+  }
+
+  @Override public String toString() {
+    return "TraceIdPrefixedSpans{" + projectId + "}";
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import zipkin2.Span;
+
+/**
+ * The fields of one Zipkin span that affect its Stackdriver equivalent, as read by a transcoder.
+ * IDs are offsets into the buffer being read, and this is reused for each span in the list.
+ *
+ * <p>Tag and annotation values are either strings, or when their string is null, offsets of ASCII
+ * text in the buffer. The latter are written as is, without allocating a string.
+ */
+class TranscodedSpan {
+  final byte[] buffer;
+  final boolean hexIds; // true when IDs in the buffer are lowercase hex, false when binary
+
+  int traceIdOffset, traceIdLength, idOffset, parentIdOffset; // offsets are -1 when unset
+  Span.Kind kind; // null when unset
+  String name; // lowercase, null when unset or empty, like Span.name()
+  long timestamp, duration;
+  String localServiceName; // lowercase, null when unset or empty
+  String ipv4, ipv6; // of the local endpoint, only read for server spans
+
+  int annotationCount;
+  long[] annotationTimestamps = new long[8];
+  String[] annotationValues = new String[8];
+  int[] annotationValueOffsets = new int[8], annotationValueLengths = new int[8];
+  int tagCount;
+  String[] tagKeys = new String[8], tagValues = new String[8];
+  int[] tagValueOffsets = new int[8], tagValueLengths = new int[8];
+
+  // sizes cached between computing the span size and writing it
+  int attributesSize, timeEventsSize;
+
+  TranscodedSpan(byte[] buffer, boolean hexIds) {
+    this.buffer = buffer;
+    this.hexIds = hexIds;
+  }
+
+  void clear() {
+    traceIdOffset = idOffset = parentIdOffset = -1;
+    kind = null;
+    name = localServiceName = ipv4 = ipv6 = null;
+    timestamp = duration = 0L;
+    annotationCount = tagCount = 0;
+  }
+
+  /** Returns the length of a span ID in the buffer. */
+  int idLength() {
+    return hexIds ? 16 : 8;
+  }
+
+  String displayName() {
+    return name != null ? name : "unknown";
+  }
+
+  /** Adds an annotation with either a value or the offset of ASCII text in the buffer. */
+  void addAnnotation(long timestamp, String value, int valueOffset, int valueLength) {
+    if (annotationCount == annotationTimestamps.length) {
+      int newLength = annotationCount * 2;
+      annotationTimestamps = Arrays.copyOf(annotationTimestamps, newLength);
+      annotationValues = Arrays.copyOf(annotationValues, newLength);
+      annotationValueOffsets = Arrays.copyOf(annotationValueOffsets, newLength);
+      annotationValueLengths = Arrays.copyOf(annotationValueLengths, newLength);
+    }
+    annotationTimestamps[annotationCount] = timestamp;
+    annotationValues[annotationCount] = value;
+    annotationValueOffsets[annotationCount] = valueOffset;
+    annotationValueLengths[annotationCount++] = valueLength;
+  }
+
+  /** Adds a tag with either a value or the offset of ASCII text in the buffer. */
+  void addTag(String key, String value, int valueOffset, int valueLength) {
+    if (tagCount == tagKeys.length) {
+      int newLength = tagCount * 2;
+      tagKeys = Arrays.copyOf(tagKeys, newLength);
+      tagValues = Arrays.copyOf(tagValues, newLength);
+      tagValueOffsets = Arrays.copyOf(tagValueOffsets, newLength);
+      tagValueLengths = Arrays.copyOf(tagValueLengths, newLength);
+    }
+    tagKeys[tagCount] = key;
+    tagValues[tagCount] = value;
+    tagValueOffsets[tagCount] = valueOffset;
+    tagValueLengths[tagCount++] = valueLength;
+  }
+
+  String annotationValue(int i) {
+    String value = annotationValues[i];
+    return value != null ? value : ascii(annotationValueOffsets[i], annotationValueLengths[i]);
+  }
+
+  String tagValue(int i) {
+    String value = tagValues[i];
+    return value != null ? value : ascii(tagValueOffsets[i], tagValueLengths[i]);
+  }
+
+  String ascii(int offset, int length) {
+    return new String(buffer, offset, length, StandardCharsets.US_ASCII);
+  }
+
+  /** Returns true if the ID is all zeros, which decoding rejects or drops. */
+  boolean isZeroId(int offset, int length) {
+    byte zero = hexIds ? (byte) '0' : 0;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      if (buffer[i] != zero) return false;
+    }
+    return true;
+  }
+
+  boolean sameId(int offset, int otherOffset) {
+    for (int i = 0, length = idLength(); i < length; i++) {
+      if (buffer[offset + i] != buffer[otherOffset + i]) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import zipkin2.Span;
+
+import static com.google.protobuf.CodedOutputStream.computeEnumSize;
+import static com.google.protobuf.CodedOutputStream.computeInt32Size;
+import static com.google.protobuf.CodedOutputStream.computeStringSize;
+import static zipkin2.translation.stackdriver.AttributesExtractor.isValidKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kComponentLabelKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kKindLabelKey;
+import static zipkin2.translation.stackdriver.AttributesExtractor.kindLabel;
+import static zipkin2.translation.stackdriver.SpanTranslator.spanKind;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ANNOTATIONS;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ANNOTATION_DESCRIPTION_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES;
+import static zipkin2.translation.stackdriver.SpanUtil.MAX_DISPLAY_NAME_BYTES;
+import static zipkin2.translation.stackdriver.SpanWriter.ANNOTATION;
+import static zipkin2.translation.stackdriver.SpanWriter.ATTRIBUTES;
+import static zipkin2.translation.stackdriver.SpanWriter.ATTRIBUTE_MAP;
+import static zipkin2.translation.stackdriver.SpanWriter.DESCRIPTION;
+import static zipkin2.translation.stackdriver.SpanWriter.DISPLAY_NAME;
+import static zipkin2.translation.stackdriver.SpanWriter.DROPPED_ANNOTATIONS_COUNT;
+import static zipkin2.translation.stackdriver.SpanWriter.DROPPED_ATTRIBUTES_COUNT;
+import static zipkin2.translation.stackdriver.SpanWriter.END_TIME;
+import static zipkin2.translation.stackdriver.SpanWriter.MAP_KEY;
+import static zipkin2.translation.stackdriver.SpanWriter.MAP_VALUE;
+import static zipkin2.translation.stackdriver.SpanWriter.NAME;
+import static zipkin2.translation.stackdriver.SpanWriter.PARENT_SPAN_ID;
+import static zipkin2.translation.stackdriver.SpanWriter.PROJECTS;
+import static zipkin2.translation.stackdriver.SpanWriter.SPANS;
+import static zipkin2.translation.stackdriver.SpanWriter.SPAN_ID;
+import static zipkin2.translation.stackdriver.SpanWriter.SPAN_KIND;
+import static zipkin2.translation.stackdriver.SpanWriter.START_TIME;
+import static zipkin2.translation.stackdriver.SpanWriter.STRING_VALUE;
+import static zipkin2.translation.stackdriver.SpanWriter.TIME;
+import static zipkin2.translation.stackdriver.SpanWriter.TIME_EVENT;
+import static zipkin2.translation.stackdriver.SpanWriter.TIME_EVENTS;
+import static zipkin2.translation.stackdriver.SpanWriter.TRACES;
+import static zipkin2.translation.stackdriver.SpanWriter.TRUNCATABLE_STRING_VALUE;
+import static zipkin2.translation.stackdriver.SpanWriter.agentAttribute;
+import static zipkin2.translation.stackdriver.SpanWriter.attribute;
+import static zipkin2.translation.stackdriver.SpanWriter.lengthDelimitedFieldSize;
+import static zipkin2.translation.stackdriver.SpanWriter.timestampFieldSize;
+import static zipkin2.translation.stackdriver.SpanWriter.truncatableStringFieldSize;
+import static zipkin2.translation.stackdriver.SpanWriter.writeAscii;
+import static zipkin2.translation.stackdriver.SpanWriter.writeLengthDelimited;
+import static zipkin2.translation.stackdriver.SpanWriter.writeTimestamp;
+import static zipkin2.translation.stackdriver.SpanWriter.writeTruncatableString;
+
+/**
+ * Writes {@link TranscodedSpan}s into a {@link BatchWriteSpansRequest}, the same way as {@link
+ * SpanWriter} writes the equivalent {@link Span}.
+ */
+final class TranscodedSpanWriter {
+  static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  final String projectId;
+  final RenameRules renameRules;
+  final boolean typedAttributes;
+  final String projectName;
+  final int spanNameSize;
+
+  TranscodedSpanWriter(String projectId, RenameRules renameRules, boolean typedAttributes) {
+    this.projectId = projectId;
+    this.renameRules = renameRules;
+    this.typedAttributes = typedAttributes;
+    this.projectName = PROJECTS + projectId;
+    // The span ID is always 16 hex characters, and the trace ID is padded to 32.
+    this.spanNameSize = projectName.length() + TRACES.length() + 32 + SPANS.length() + 16;
+  }
+
+  /** Writes the name field of the request, which precedes its spans. */
+  void writeRequestName(CodedOutputStream out) throws IOException {
+    out.writeString(BatchWriteSpansRequest.NAME_FIELD_NUMBER, projectName);
+  }
+
+  /** Writes the span as a field of the request. */
+  void writeSpan(TranscodedSpan span, CodedOutputStream out) throws IOException {
+    writeLengthDelimited(out, BatchWriteSpansRequest.SPANS_FIELD_NUMBER, spanSize(span));
+
+    writeLengthDelimited(out, NAME, spanNameSize);
+    writeAscii(out, projectName);
+    writeAscii(out, TRACES);
+    if (span.traceIdLength == span.idLength()) {
+      for (int i = 0; i < 16; i++) out.writeRawByte('0');
+    }
+    writeId(out, span, span.traceIdOffset, span.traceIdLength);
+    writeAscii(out, SPANS);
+    writeId(out, span, span.idOffset, span.idLength());
+
+    writeLengthDelimited(out, SPAN_ID, 16);
+    writeId(out, span, span.idOffset, span.idLength());
+    if (span.parentIdOffset != -1) {
+      writeLengthDelimited(out, PARENT_SPAN_ID, 16);
+      writeId(out, span, span.parentIdOffset, span.idLength());
+    }
+    writeTruncatableString(out, DISPLAY_NAME, span.displayName(), MAX_DISPLAY_NAME_BYTES);
+
+    if (span.timestamp != 0L) {
+      writeTimestamp(out, START_TIME, span.timestamp);
+      if (span.duration != 0L) writeTimestamp(out, END_TIME, span.timestamp + span.duration);
+    }
+
+    writeLengthDelimited(out, ATTRIBUTES, span.attributesSize);
+    attributes(span, out);
+
+    if (span.annotationCount > 0) {
+      writeLengthDelimited(out, TIME_EVENTS, span.timeEventsSize);
+      timeEvents(span, out);
+    }
+
+    if (span.kind != null && typedAttributes) {
+      out.writeEnum(SPAN_KIND, spanKind(span.kind).getNumber());
+    }
+  }
+
+  /** Writes a span that was decoded instead of transcoded as a field of the request. */
+  void writeSpan(Span zipkinSpan, CodedOutputStream out) throws IOException {
+    writeLengthDelimited(out, BatchWriteSpansRequest.SPANS_FIELD_NUMBER,
+        SpanWriter.sizeInBytes(projectId, zipkinSpan, renameRules, typedAttributes));
+    SpanWriter.write(projectId, zipkinSpan, renameRules, typedAttributes, out);
+  }
+
+  /** Returns the size of the span message, caching the size of its nested messages. */
+  int spanSize(TranscodedSpan span) throws IOException {
+    int size = lengthDelimitedFieldSize(NAME, spanNameSize);
+    size += lengthDelimitedFieldSize(SPAN_ID, 16);
+    if (span.parentIdOffset != -1) size += lengthDelimitedFieldSize(PARENT_SPAN_ID, 16);
+    size += truncatableStringFieldSize(DISPLAY_NAME, span.displayName(), MAX_DISPLAY_NAME_BYTES);
+
+    if (span.timestamp != 0L) {
+      size += timestampFieldSize(START_TIME, span.timestamp);
+      if (span.duration != 0L) size += timestampFieldSize(END_TIME, span.timestamp + span.duration);
+    }
+
+    span.attributesSize = attributes(span, null);
+    size += lengthDelimitedFieldSize(ATTRIBUTES, span.attributesSize);
+
+    if (span.annotationCount > 0) {
+      span.timeEventsSize = timeEvents(span, null);
+      size += lengthDelimitedFieldSize(TIME_EVENTS, span.timeEventsSize);
+    }
+
+    if (span.kind != null && typedAttributes) {
+      size += computeEnumSize(SPAN_KIND, spanKind(span.kind).getNumber());
+    }
+    return size;
+  }
+
+  /**
+   * Visits attributes in the same order as {@link SpanWriter#attributes}, including its limits.
+   *
+   * @param out when null, only the size is computed.
+   * @return the size of the attributes message
+   */
+  int attributes(TranscodedSpan span, CodedOutputStream out) throws IOException {
+    int size = 0;
+    Span.Kind kind = span.kind;
+    boolean typed = typedAttributes;
+    if (kind != null && !typed) size += attribute(out, kKindLabelKey, kindLabel(kind));
+
+    int tagBudget = MAX_ATTRIBUTES - reservedAttributeCount(span), dropped = 0;
+    for (int i = 0; i < span.tagCount; i++) {
+      String key = span.tagKeys[i];
+      RenameRules.Rule rule = renameRules.rule(key);
+      String name = rule != null ? rule.attributeName : key;
+      if (tagBudget > 0 && isValidKey(name)) {
+        size += tagAttribute(out, name, span, i, typed);
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+
+      String copyName = rule != null ? rule.copyAttributeName(span.name) : null;
+      if (copyName == null) continue;
+      if (tagBudget > 0 && isValidKey(copyName)) {
+        size += tagAttribute(out, copyName, span, i, typed);
+        tagBudget--;
+      } else {
+        dropped++;
+      }
+    }
+
+    if (kind == Span.Kind.SERVER) {
+      if (span.ipv4 != null) {
+        String name = renameRules.attributeName("endpoint.ipv4");
+        if (isValidKey(name)) {
+          size += attribute(out, name, span.ipv4);
+        } else {
+          dropped++;
+        }
+      }
+      if (span.ipv6 != null) {
+        String name = renameRules.attributeName("endpoint.ipv6");
+        if (isValidKey(name)) {
+          size += attribute(out, name, span.ipv6);
+        } else {
+          dropped++;
+        }
+      }
+    }
+
+    if (span.localServiceName != null) {
+      size += attribute(out, kComponentLabelKey, span.localServiceName);
+    }
+
+    if (span.parentIdOffset == -1) {
+      size += agentAttribute(out);
+    }
+
+    if (dropped > 0) {
+      size += computeInt32Size(DROPPED_ATTRIBUTES_COUNT, dropped);
+      if (out != null) out.writeInt32(DROPPED_ATTRIBUTES_COUNT, dropped);
+    }
+    return size;
+  }
+
+  /** Like {@link AttributesExtractor#reservedAttributeCount} */
+  int reservedAttributeCount(TranscodedSpan span) {
+    int count = 0;
+    if (span.kind != null && !typedAttributes) count++;
+    if (span.kind == Span.Kind.SERVER) {
+      if (span.ipv4 != null) count++;
+      if (span.ipv6 != null) count++;
+    }
+    if (span.localServiceName != null) count++;
+    if (span.parentIdOffset == -1) count++;
+    return count;
+  }
+
+  /**
+   * Like {@link SpanWriter#attribute(CodedOutputStream, String, String, boolean)}, except ASCII
+   * values short enough not to be truncated are written directly from the buffer.
+   */
+  static int tagAttribute(CodedOutputStream out, String key, TranscodedSpan span, int i,
+      boolean typed) throws IOException {
+    int length = span.tagValueLengths[i];
+    if (span.tagValues[i] != null || typed || length > MAX_ATTRIBUTE_VALUE_BYTES) {
+      return attribute(out, key, span.tagValue(i), typed);
+    }
+    int valueSize = lengthDelimitedFieldSize(STRING_VALUE, asciiSize(length));
+    int entrySize = computeStringSize(MAP_KEY, key) + lengthDelimitedFieldSize(MAP_VALUE, valueSize);
+    if (out != null) {
+      writeLengthDelimited(out, ATTRIBUTE_MAP, entrySize);
+      out.writeString(MAP_KEY, key);
+      writeLengthDelimited(out, MAP_VALUE, valueSize);
+      writeAsciiValue(out, STRING_VALUE, span.buffer, span.tagValueOffsets[i], length);
+    }
+    return lengthDelimitedFieldSize(ATTRIBUTE_MAP, entrySize);
+  }
+
+  /** Like {@link SpanWriter#timeEvents} */
+  static int timeEvents(TranscodedSpan span, CodedOutputStream out) throws IOException {
+    int size = 0;
+    int count = Math.min(span.annotationCount, MAX_ANNOTATIONS);
+    for (int i = 0; i < count; i++) {
+      long timestamp = span.annotationTimestamps[i];
+      String value = span.annotationValues[i];
+      int length = span.annotationValueLengths[i];
+      boolean ascii = value == null && length <= MAX_ANNOTATION_DESCRIPTION_BYTES;
+      if (value == null && !ascii) value = span.annotationValue(i);
+
+      int annotationSize = ascii
+          ? lengthDelimitedFieldSize(DESCRIPTION, asciiSize(length))
+          : truncatableStringFieldSize(DESCRIPTION, value, MAX_ANNOTATION_DESCRIPTION_BYTES);
+      int eventSize = timestampFieldSize(TIME, timestamp)
+          + lengthDelimitedFieldSize(ANNOTATION, annotationSize);
+      if (out != null) {
+        writeLengthDelimited(out, TIME_EVENT, eventSize);
+        writeTimestamp(out, TIME, timestamp);
+        writeLengthDelimited(out, ANNOTATION, annotationSize);
+        if (ascii) {
+          writeAsciiValue(out, DESCRIPTION, span.buffer, span.annotationValueOffsets[i], length);
+        } else {
+          writeTruncatableString(out, DESCRIPTION, value, MAX_ANNOTATION_DESCRIPTION_BYTES);
+        }
+      }
+      size += lengthDelimitedFieldSize(TIME_EVENT, eventSize);
+    }
+
+    int dropped = span.annotationCount - count;
+    if (dropped > 0) {
+      size += computeInt32Size(DROPPED_ANNOTATIONS_COUNT, dropped);
+      if (out != null) out.writeInt32(DROPPED_ANNOTATIONS_COUNT, dropped);
+    }
+    return size;
+  }
+
+  /** Like {@link SpanWriter#truncatableStringSize} for ASCII that isn't truncated. */
+  static int asciiSize(int length) {
+    return length == 0 ? 0 : lengthDelimitedFieldSize(TRUNCATABLE_STRING_VALUE, length);
+  }
+
+  /** Like {@link SpanWriter#writeTruncatableString} for ASCII that isn't truncated. */
+  static void writeAsciiValue(CodedOutputStream out, int fieldNumber, byte[] buffer, int offset,
+      int length) throws IOException {
+    writeLengthDelimited(out, fieldNumber, asciiSize(length));
+    if (length == 0) return;
+    writeLengthDelimited(out, TRUNCATABLE_STRING_VALUE, length);
+    out.writeRawBytes(buffer, offset, length);
+  }
+
+  /** Writes the ID as lowercase hex, converting it when binary. */
+  static void writeId(CodedOutputStream out, TranscodedSpan span, int offset, int length)
+      throws IOException {
+    if (span.hexIds) {
+      out.writeRawBytes(span.buffer, offset, length);
+      return;
+    }
+    for (int i = offset, end = offset + length; i < end; i++) {
+      byte b = span.buffer[i];
+      out.writeRawByte(HEX_DIGITS[(b >> 4) & 0xf]);
+      out.writeRawByte(HEX_DIGITS[b & 0xf]);
+    }
+  }
+}
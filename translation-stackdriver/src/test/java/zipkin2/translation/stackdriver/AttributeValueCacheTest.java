@@ -0,0 +1,37 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.translation.stackdriver.AttributesExtractor.toAttributeValue;
+
+class AttributeValueCacheTest {
+  AttributeValueCache cache = new AttributeValueCache(2, 4);
+
+  @Test void get_returnsSameInstance() {
+    assertThat(cache.get("GET"))
+        .isEqualTo(toAttributeValue("GET"))
+        .isSameAs(cache.get("GET"));
+  }
+
+  @Test void get_doesntCacheLongValues() {
+    assertThat(cache.get("DELETE"))
+        .isEqualTo(toAttributeValue("DELETE"))
+        .isNotSameAs(cache.get("DELETE"));
+    assertThat(cache.values).isEmpty();
+  }
+
+  @Test void get_boundedByEntryCount() {
+    cache.get("GET");
+    cache.get("PUT");
+
+    assertThat(cache.get("POST"))
+        .isEqualTo(toAttributeValue("POST"))
+        .isNotSameAs(cache.get("POST"));
+    assertThat(cache.values).containsOnlyKeys("GET", "PUT");
+  }
+}
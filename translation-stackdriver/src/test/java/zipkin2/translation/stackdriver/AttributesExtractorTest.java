@@ -5,8 +5,10 @@
 package zipkin2.translation.stackdriver;
 
 import com.google.devtools.cloudtrace.v2.AttributeValue;
+import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import com.google.devtools.cloudtrace.v2.TruncatableString;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import org.junit.jupiter.api.Test;
 import zipkin2.Endpoint;
@@ -19,7 +21,8 @@ import static zipkin2.translation.stackdriver.AttributesExtractor.toAttributeVal
 
 public class AttributesExtractorTest {
   @Test void testLabel() {
-    AttributesExtractor extractor = new AttributesExtractor(Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
     Span zipkinSpan =
         Span.newBuilder()
             .traceId("4")
@@ -33,10 +36,11 @@ public class AttributesExtractorTest {
   }
 
   @Test void testLabelIsRenamed() {
-    Map<String, String> knownLabels = new LinkedHashMap<>();
-    knownLabels.put("known.1", "renamed.1");
-    knownLabels.put("known.2", "renamed.2");
-    AttributesExtractor extractor = new AttributesExtractor(knownLabels);
+    RenameRules knownLabels = RenameRules.newBuilder()
+        .rename("known.1", "renamed.1")
+        .rename("known.2", "renamed.2")
+        .build();
+    AttributesExtractor extractor = new AttributesExtractor(knownLabels, false);
     Span zipkinSpan =
         Span.newBuilder()
             .traceId("4")
@@ -52,7 +56,8 @@ public class AttributesExtractorTest {
   }
 
   @Test void testAgentLabelIsSet() {
-    AttributesExtractor extractor = new AttributesExtractor(Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
     Span rootSpan = Span.newBuilder().traceId("4").name("test-span").id("5").build();
     Span nonRootSpan =
         Span.newBuilder().traceId("4").name("child-span").id("6").parentId("5").build();
@@ -61,11 +66,6 @@ public class AttributesExtractorTest {
     assertThat(rootLabels).containsEntry("/agent", toAttributeValue("zipkin-java"));
     Map<String, AttributeValue> nonRootLabels = extractor.extract(nonRootSpan).getAttributeMapMap();
     assertThat(nonRootLabels).doesNotContainKey("/agent");
-
-    System.setProperty("stackdriver.trace.zipkin.agent", "zipkin-test");
-    rootLabels = extractor.extract(rootSpan).getAttributeMapMap();
-    assertThat(rootLabels).containsEntry("/agent", toAttributeValue("zipkin-test"));
-    System.clearProperty("stackdriver.trace.zipkin.agent");
   }
 
   @Test void testEndpointIsSetIpv4() {
@@ -93,7 +93,8 @@ public class AttributesExtractorTest {
             .localEndpoint(clientEndpoint)
             .build();
 
-    AttributesExtractor extractor = new AttributesExtractor(Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
     Map<String, AttributeValue> serverLabels = extractor.extract(serverSpan).getAttributeMapMap();
     assertThat(serverLabels).containsEntry("endpoint.ipv4", toAttributeValue("10.0.0.1"));
     assertThat(serverLabels).doesNotContainKey("endpoint.ipv6");
@@ -126,7 +127,8 @@ public class AttributesExtractorTest {
             .localEndpoint(clientEndpoint)
             .build();
 
-    AttributesExtractor extractor = new AttributesExtractor(Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
     Map<String, AttributeValue> serverLabels = extractor.extract(serverSpan).getAttributeMapMap();
     assertThat(serverLabels).doesNotContainKey("endpoint.ipv4");
     assertThat(serverLabels).containsEntry("endpoint.ipv6", toAttributeValue("::1"));
@@ -146,13 +148,15 @@ public class AttributesExtractorTest {
             .localEndpoint(serverEndpoint)
             .build();
 
-    AttributesExtractor extractor = new AttributesExtractor(Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
     Map<String, AttributeValue> serverLabels = extractor.extract(serverSpan).getAttributeMapMap();
     assertThat(serverLabels).doesNotContainKey("endpoint.serviceName");
   }
 
   @Test void testComponentLabelIsSet() {
-    AttributesExtractor extractor = new AttributesExtractor(Collections.emptyMap());
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
     Span clientSpan =
         Span.newBuilder()
             .traceId("4")
@@ -173,4 +177,74 @@ public class AttributesExtractorTest {
     Map<String, AttributeValue> serverLabels = extractor.extract(serverSpan).getAttributeMapMap();
     assertThat(serverLabels).containsEntry("/component", toAttributeValue("service2"));
   }
+
+  @Test void testLowCardinalityValuesAreShared() {
+    AttributesExtractor extractor =
+        new AttributesExtractor(RenameRules.newBuilder().build(), false);
+    Span zipkinSpan = Span.newBuilder()
+        .traceId("4")
+        .id("5")
+        .kind(Kind.SERVER)
+        .localEndpoint(Endpoint.newBuilder().serviceName("service1").build())
+        .putTag("http.method", "GET")
+        .putTag("http.path", "/api")
+        .build();
+
+    Map<String, AttributeValue> first = extractor.extract(zipkinSpan).getAttributeMapMap();
+    Map<String, AttributeValue> second = extractor.extract(zipkinSpan).getAttributeMapMap();
+    for (String key : Arrays.asList("/kind", "/component", "/agent", "http.method")) {
+      assertThat(second.get(key)).isSameAs(first.get(key));
+    }
+    assertThat(second.get("http.path"))
+        .isEqualTo(first.get("http.path"))
+        .isNotSameAs(first.get("http.path"));
+  }
+
+  @Test void tagsOverLimit_keepStackdriverLabels() {
+    AttributesExtractor extractor = new AttributesExtractor(RenameRules.DEFAULT, false);
+    Span.Builder builder = Span.newBuilder()
+        .traceId("4")
+        .name("test-span")
+        .id("5")
+        .kind(Kind.SERVER)
+        .localEndpoint(Endpoint.newBuilder().serviceName("service1").ip("10.0.0.1").build());
+    for (int i = 0; i < 40; i++) builder.putTag("tag" + (char) ('A' + i), "value");
+
+    Attributes attributes = extractor.extract(builder.build());
+
+    // kind, ipv4, component and agent leave room for 28 tags
+    assertThat(attributes.getAttributeMapMap())
+        .hasSize(SpanUtil.MAX_ATTRIBUTES)
+        .containsKeys("/kind", "endpoint.ipv4", "/component", "/agent", "tagA")
+        .doesNotContainKey("tag" + (char) ('A' + 28));
+    assertThat(attributes.getDroppedAttributesCount()).isEqualTo(12);
+  }
+
+  @Test void longKeyIsDropped() {
+    AttributesExtractor extractor = new AttributesExtractor(RenameRules.DEFAULT, false);
+    String longKey = String.join("", Collections.nCopies(129, "k"));
+    Span zipkinSpan = Span.newBuilder()
+        .traceId("4")
+        .id("5")
+        .parentId("3")
+        .putTag(longKey, "value")
+        .putTag("tag", "value")
+        .build();
+
+    Attributes attributes = extractor.extract(zipkinSpan);
+    assertThat(attributes.getAttributeMapMap()).containsOnlyKeys("tag");
+    assertThat(attributes.getDroppedAttributesCount()).isEqualTo(1);
+  }
+
+  @Test void longValueIsTruncated() {
+    AttributesExtractor extractor = new AttributesExtractor(RenameRules.DEFAULT, false);
+    String longValue = String.join("", Collections.nCopies(300, "v"));
+    Span zipkinSpan =
+        Span.newBuilder().traceId("4").id("5").parentId("3").putTag("tag", longValue).build();
+
+    TruncatableString value =
+        extractor.extract(zipkinSpan).getAttributeMapMap().get("tag").getStringValue();
+    assertThat(value.getValue()).hasSize(SpanUtil.MAX_ATTRIBUTE_VALUE_BYTES);
+    assertThat(value.getTruncatedByteCount()).isEqualTo(44);
+  }
 }
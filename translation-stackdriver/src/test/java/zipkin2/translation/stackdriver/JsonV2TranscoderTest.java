@@ -0,0 +1,169 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.translation.stackdriver.Proto3TranscoderTest.PROJECT_ID;
+import static zipkin2.translation.stackdriver.Proto3TranscoderTest.translate;
+
+class JsonV2TranscoderTest {
+  JsonV2Transcoder transcoder = JsonV2Transcoder.create(PROJECT_ID);
+  Proto3TranscoderTest spans = new Proto3TranscoderTest();
+
+  @Test void transcode_sameAsTranslator() {
+    assertSameAsTranslator(transcoder, spans.clientSpan, spans.serverSpan);
+  }
+
+  @Test void transcode_empty() {
+    assertSameAsTranslator(transcoder);
+    assertSameAsTranslator(transcoder, RenameRules.DEFAULT, false, " [ ] ");
+  }
+
+  @Test void transcode_minimalSpan() {
+    assertSameAsTranslator(transcoder, Span.newBuilder().traceId("1").id("2").build());
+  }
+
+  @Test void transcode_serverSpanWithMappedIpv4() {
+    assertSameAsTranslator(transcoder, spans.serverSpan.toBuilder()
+        .localEndpoint(Endpoint.newBuilder().ip("::ffff:192.168.99.101").build())
+        .build());
+  }
+
+  @Test void transcode_manyAnnotationsAndTags() {
+    Span.Builder builder = spans.clientSpan.toBuilder();
+    for (int i = 0; i < 40; i++) {
+      builder.addAnnotation(2_000_000L + i, "annotation" + i);
+      builder.putTag("tag" + i, String.join("", Collections.nCopies(300, "v")));
+    }
+    assertSameAsTranslator(transcoder, builder.build());
+  }
+
+  @Test void transcode_nonAsciiAndEscapedValues() {
+    assertSameAsTranslator(transcoder, spans.clientSpan.toBuilder()
+        .name("Gruß \"Gott\"")
+        .addAnnotation(2_000_000L, "line\nbreak")
+        .addAnnotation(2_000_001L, "😀")
+        .putTag("error", "\u0000\t\\/")
+        .putTag("http.url", "https://例え.jp/?q=\"a\"")
+        .build());
+  }
+
+  @Test void transcode_renameRules() {
+    RenameRules renameRules = RenameRules.DEFAULT.toBuilder()
+        .rename("http.path", "/http/path")
+        .copyIfSpanNameContains("clnt/finagle.version", "/finagle", "ge")
+        .build();
+
+    assertSameAsTranslator(JsonV2Transcoder.create(PROJECT_ID, renameRules), renameRules, false,
+        new String(SpanBytesEncoder.JSON_V2.encodeList(
+            Arrays.asList(spans.clientSpan, spans.serverSpan)), StandardCharsets.UTF_8));
+  }
+
+  @Test void transcode_typedAttributes() {
+    assertSameAsTranslator(JsonV2Transcoder.create(PROJECT_ID, RenameRules.DEFAULT, true),
+        RenameRules.DEFAULT, true, new String(SpanBytesEncoder.JSON_V2.encodeList(
+            Arrays.asList(spans.clientSpan, spans.serverSpan)), StandardCharsets.UTF_8));
+  }
+
+  /** Other senders may not write JSON the same way as the Zipkin encoder. */
+  @Test void transcode_formatting() {
+    assertSameAsTranslator(transcoder, RenameRules.DEFAULT, false, "[\n"
+        + "  {\n"
+        + "    \"id\" : \"5b4185666d50f68b\",\n"
+        + "    \"unknown\" : {\"nested\": [1, 2.5e3, true, false, null, {}]},\n"
+        + "    \"traceId\" : \"000000000000000007180c278b62e8f6\",\n"
+        + "    \"kind\" : \"SERVER\",\n"
+        + "    \"timestamp\" : 1000000,\n"
+        + "    \"remoteEndpoint\" : {\"ipv4\" : \"1.2.3.4\"},\n"
+        + "    \"localEndpoint\" : {\"ipv6\" : \"2001:DB8::C001\", \"ipv4\" : \"192.168.99.101\","
+        + " \"port\": 8080, \"serviceName\" : \"Backend\"},\n"
+        + "    \"debug\" : true,\n"
+        + "    \"tags\" : {\"a\" : \"1\", \"b\" : \"\"},\n"
+        + "    \"annotations\" : [{\"value\" : \"foo\", \"timestamp\" : 1000001}]\n"
+        + "  }\n"
+        + "]\n");
+  }
+
+  /** These are rare, and decoded instead of transcoded, so that the result is still the same. */
+  @Test void transcode_decodesNonCanonicalSpans() {
+    String clientSpan =
+        new String(SpanBytesEncoder.JSON_V2.encode(spans.clientSpan), StandardCharsets.UTF_8);
+    for (String span : Arrays.asList(
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"2\"}", // short ID
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"parentId\":\"0000000000000002\"}",
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"tags\":{\"z\":\"1\",\"a\":\"2\"}}",
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"tags\":{\"a\":\"1\",\"a\":\"2\"}}",
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"annotations\":["
+            + "{\"timestamp\":2,\"value\":\"b\"},{\"timestamp\":1,\"value\":\"a\"}]}",
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"annotations\":["
+            + "{\"timestamp\":1,\"value\":\"b\"},{\"timestamp\":1,\"value\":\"a\"}]}",
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"kind\":null}",
+        "{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\",\"timestamp\":1.0E6}")) {
+      assertSameAsTranslator(transcoder, RenameRules.DEFAULT, false,
+          "[" + clientSpan + "," + span + "," + clientSpan + "]");
+    }
+  }
+
+  @Test void transcode_malformed() {
+    for (String json : Arrays.asList(
+        "", "[", "{}", "[{}", "[{\"traceId\":\"7180c278b62e8f6a\"]", "[]]", "[{\"a\":tru}]",
+        "[{\"traceId\":\"7180c278b62e8f6a\",\"id\":\"0000000000000002\"},]")) {
+      assertThatThrownBy(() -> transcoder.transcode(json.getBytes(StandardCharsets.UTF_8)))
+          .as(json)
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  @Test void spanCount() {
+    assertThat(JsonV2Transcoder.spanCount(" [ ] ".getBytes(StandardCharsets.UTF_8))).isZero();
+    assertThat(JsonV2Transcoder.spanCount(SpanBytesEncoder.JSON_V2.encodeList(
+        Arrays.asList(spans.clientSpan, spans.serverSpan)))).isEqualTo(2);
+    // nested objects and brackets in strings aren't spans
+    assertThat(JsonV2Transcoder.spanCount(("[{\"tags\":{\"a\":\"{[\\\"\"},"
+        + "\"localEndpoint\":{}}]").getBytes(StandardCharsets.UTF_8))).isEqualTo(1);
+
+    for (String json : Arrays.asList("", "{}", "[", "[{}", "1", "[]]", "[][]")) {
+      assertThatThrownBy(() -> JsonV2Transcoder.spanCount(json.getBytes(StandardCharsets.UTF_8)))
+          .as(json)
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  @Test void create_nullChecks() {
+    assertThatThrownBy(() -> JsonV2Transcoder.create(null))
+        .hasMessage("projectId == null");
+    assertThatThrownBy(() -> JsonV2Transcoder.create(PROJECT_ID, null))
+        .hasMessage("renameRules == null");
+  }
+
+  static void assertSameAsTranslator(JsonV2Transcoder transcoder, Span... spans) {
+    assertSameAsTranslator(transcoder, RenameRules.DEFAULT, false, new String(
+        SpanBytesEncoder.JSON_V2.encodeList(Arrays.asList(spans)), StandardCharsets.UTF_8));
+  }
+
+  static void assertSameAsTranslator(JsonV2Transcoder transcoder, RenameRules renameRules,
+      boolean typedAttributes, String json) {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    try {
+      assertThat(BatchWriteSpansRequest.parseFrom(transcoder.transcode(bytes)))
+          .isEqualTo(translate(renameRules, typedAttributes,
+              SpanBytesDecoder.JSON_V2.decodeList(bytes)));
+    } catch (InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class Proto3TranscoderTest {
+  static final String PROJECT_ID = "test-project";
+
+  Proto3Transcoder transcoder = Proto3Transcoder.create(PROJECT_ID);
+
+  Span clientSpan = Span.newBuilder()
+      .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+      .parentId("6b221d5bc9e6496c")
+      .id("5b4185666d50f68b")
+      .name("get")
+      .kind(Span.Kind.CLIENT)
+      .localEndpoint(Endpoint.newBuilder().serviceName("frontend").build())
+      .remoteEndpoint(
+          Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build())
+      .timestamp(1_000_000L) // 1 second after epoch
+      .duration(123_456L)
+      .addAnnotation(1_123_000L, "foo")
+      .putTag("http.path", "/api")
+      .putTag("clnt/finagle.version", "6.45.0")
+      .build();
+
+  Span serverSpan = Span.newBuilder()
+      .traceId("216a2aea45d08fc9")
+      .id("5b4185666d50f68b")
+      .name("post /api")
+      .kind(Span.Kind.SERVER)
+      .localEndpoint(Endpoint.newBuilder()
+          .serviceName("backend")
+          .ip("192.168.99.101")
+          .ip("2001:db8::c001")
+          .port(8080)
+          .build())
+      .timestamp(1_000_001L)
+      .duration(1L)
+      .putTag("http.method", "POST")
+      .putTag("http.url", "http://backend/api")
+      .putTag("http.status_code", "201")
+      .debug(true)
+      .shared(true)
+      .build();
+
+  @Test void transcode_sameAsTranslator() {
+    assertSameAsTranslator(transcoder, clientSpan, serverSpan);
+  }
+
+  @Test void transcode_empty() {
+    assertSameAsTranslator(transcoder);
+  }
+
+  @Test void transcode_minimalSpan() {
+    assertSameAsTranslator(transcoder, Span.newBuilder().traceId("1").id("2").build());
+  }
+
+  @Test void transcode_serverSpanWithMappedIpv4() {
+    assertSameAsTranslator(transcoder, serverSpan.toBuilder()
+        .localEndpoint(Endpoint.newBuilder().ip("::ffff:192.168.99.101").build())
+        .build());
+  }
+
+  @Test void transcode_manyAnnotationsAndTags() {
+    Span.Builder builder = clientSpan.toBuilder();
+    for (int i = 0; i < 40; i++) {
+      builder.addAnnotation(2_000_000L + i, "annotation" + i);
+      builder.putTag("tag" + i, String.join("", Collections.nCopies(300, "v")));
+    }
+    assertSameAsTranslator(transcoder, builder.build());
+  }
+
+  @Test void transcode_renameRules() {
+    RenameRules renameRules = RenameRules.DEFAULT.toBuilder()
+        .rename("http.path", "/http/path")
+        .copyIfSpanNameContains("clnt/finagle.version", "/finagle", "ge")
+        .build();
+
+    assertSameAsTranslator(Proto3Transcoder.create(PROJECT_ID, renameRules), renameRules, false,
+        clientSpan, serverSpan);
+  }
+
+  @Test void transcode_typedAttributes() {
+    assertSameAsTranslator(Proto3Transcoder.create(PROJECT_ID, RenameRules.DEFAULT, true),
+        RenameRules.DEFAULT, true, clientSpan, serverSpan);
+  }
+
+  /** Unlike the encoder, other senders may not sort tags, or may use uppercase names. */
+  @Test void transcode_decodesNonCanonicalSpans() throws IOException {
+    ByteArrayOutputStream span = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(span);
+    out.writeByteArray(1, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    out.writeByteArray(3, new byte[] {8, 7, 6, 5, 4, 3, 2, 1});
+    out.writeString(5, "GET /API");
+    out.writeByteArray(11, tag("z", "1"));
+    out.writeByteArray(11, tag("a", "2"));
+    out.writeByteArray(11, tag("", "3"));
+    out.flush();
+
+    ByteArrayOutputStream listOfSpans = new ByteArrayOutputStream();
+    listOfSpans.write(SpanBytesEncoder.PROTO3.encode(clientSpan)); // a list of one span
+    out = CodedOutputStream.newInstance(listOfSpans);
+    out.writeByteArray(1, span.toByteArray());
+    out.flush();
+    listOfSpans.write(SpanBytesEncoder.PROTO3.encode(serverSpan));
+
+    byte[] request = transcoder.transcode(listOfSpans.toByteArray());
+    assertThat(BatchWriteSpansRequest.parseFrom(request)).isEqualTo(translate(RenameRules.DEFAULT,
+        SpanBytesDecoder.PROTO3.decodeList(listOfSpans.toByteArray())));
+  }
+
+  @Test void transcode_malformed() {
+    byte[] truncated = SpanBytesEncoder.PROTO3.encode(clientSpan);
+    byte[] listOfSpans = Arrays.copyOf(truncated, truncated.length - 1);
+
+    assertThatThrownBy(() -> transcoder.transcode(listOfSpans))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void spanCount() {
+    assertThat(Proto3Transcoder.spanCount(new byte[0])).isZero();
+    assertThat(Proto3Transcoder.spanCount(
+        SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(clientSpan, serverSpan)))).isEqualTo(2);
+  }
+
+  @Test void create_nullChecks() {
+    assertThatThrownBy(() -> Proto3Transcoder.create(null))
+        .hasMessage("projectId == null");
+    assertThatThrownBy(() -> Proto3Transcoder.create(PROJECT_ID, null))
+        .hasMessage("renameRules == null");
+  }
+
+  static void assertSameAsTranslator(Proto3Transcoder transcoder, Span... spans) {
+    assertSameAsTranslator(transcoder, RenameRules.DEFAULT, false, spans);
+  }
+
+  static void assertSameAsTranslator(Proto3Transcoder transcoder, RenameRules renameRules,
+      boolean typedAttributes, Span... spans) {
+    byte[] listOfSpans = SpanBytesEncoder.PROTO3.encodeList(Arrays.asList(spans));
+    try {
+      assertThat(BatchWriteSpansRequest.parseFrom(transcoder.transcode(listOfSpans)))
+          .isEqualTo(translate(renameRules, typedAttributes, Arrays.asList(spans)));
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static BatchWriteSpansRequest translate(RenameRules renameRules, List<Span> spans) {
+    return translate(renameRules, false, spans);
+  }
+
+  static BatchWriteSpansRequest translate(RenameRules renameRules, boolean typedAttributes,
+      List<Span> spans) {
+    return BatchWriteSpansRequest.newBuilder()
+        .setName("projects/" + PROJECT_ID)
+        .addAllSpans(SpanTranslator.translate(PROJECT_ID, spans, renameRules, typedAttributes))
+        .build();
+  }
+
+  static byte[] tag(String key, String value) throws IOException {
+    ByteArrayOutputStream entry = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(entry);
+    out.writeString(1, key);
+    out.writeString(2, value);
+    out.flush();
+    return entry.toByteArray();
+  }
+}
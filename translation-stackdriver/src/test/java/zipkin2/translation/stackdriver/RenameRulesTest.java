@@ -0,0 +1,63 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RenameRulesTest {
+  @Test void defaults() {
+    assertThat(RenameRules.DEFAULT.attributeName("http.method")).isEqualTo("/http/method");
+    assertThat(RenameRules.DEFAULT.attributeName("http.path")).isEqualTo("http.path");
+
+    RenameRules.Rule status = RenameRules.DEFAULT.rule("status");
+    assertThat(status.attributeName).isEqualTo("status");
+    assertThat(status.copyAttributeName("http get /")).isEqualTo("/http/status_code");
+    assertThat(status.copyAttributeName("get /")).isNull();
+    assertThat(status.copyAttributeName(null)).isNull();
+  }
+
+  @Test void toBuilder_addsRules() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder()
+        .rename("rpc.method", "/rpc/method")
+        .rename("http.method", "method")
+        .build();
+
+    assertThat(rules.attributeName("rpc.method")).isEqualTo("/rpc/method");
+    assertThat(rules.attributeName("http.method")).isEqualTo("method");
+    assertThat(rules.attributeName("http.url")).isEqualTo("/http/url");
+    assertThat(RenameRules.DEFAULT.attributeName("rpc.method")).isEqualTo("rpc.method");
+  }
+
+  @Test void renameAndCopy_sameKey() {
+    RenameRules rules = RenameRules.newBuilder()
+        .copyIfSpanNameContains("status", "/http/status_code", "")
+        .rename("status", "/status")
+        .build();
+
+    RenameRules.Rule rule = rules.rule("status");
+    assertThat(rule.attributeName).isEqualTo("/status");
+    assertThat(rule.copyAttributeName(null)).isEqualTo("/http/status_code");
+  }
+
+  @Test void remove() {
+    RenameRules rules = RenameRules.DEFAULT.toBuilder().remove("status").build();
+
+    assertThat(rules.rule("status")).isNull();
+  }
+
+  @Test void builder_nullChecks() {
+    RenameRules.Builder builder = RenameRules.newBuilder();
+
+    assertThatThrownBy(() -> builder.rename(null, "a"))
+        .isInstanceOf(NullPointerException.class).hasMessage("tagKey == null");
+    assertThatThrownBy(() -> builder.rename("a", null))
+        .isInstanceOf(NullPointerException.class).hasMessage("attributeName == null");
+    assertThatThrownBy(() -> builder.copyIfSpanNameContains("a", "b", null))
+        .isInstanceOf(NullPointerException.class).hasMessage("spanNameSubstring == null");
+  }
+}
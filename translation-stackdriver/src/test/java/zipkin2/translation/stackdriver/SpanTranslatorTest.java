@@ -4,8 +4,10 @@
  */
 package zipkin2.translation.stackdriver;
 
+import com.google.devtools.cloudtrace.v2.AttributeValue;
 import com.google.protobuf.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.junit.jupiter.api.Test;
 import zipkin2.Endpoint;
@@ -13,6 +15,7 @@ import zipkin2.Span;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static zipkin2.translation.stackdriver.AttributesExtractor.toAttributeValue;
 import static zipkin2.translation.stackdriver.SpanTranslator.createTimestamp;
 import static zipkin2.translation.stackdriver.SpanUtil.toTruncatableString;
@@ -171,4 +174,74 @@ public class SpanTranslatorTest {
                                     .build())
                             .build());
   }
+
+  @Test void translate_customRenameRules() {
+    RenameRules renameRules = RenameRules.DEFAULT.toBuilder()
+        .rename("rpc.method", "/rpc/method")
+        .copyIfSpanNameContains("rpc.service", "/rpc/service", "")
+        .build();
+    Span zipkinSpan = Span.newBuilder()
+        .traceId("3")
+        .parentId("1")
+        .id("2")
+        .name("get")
+        .putTag("rpc.method", "Get")
+        .putTag("rpc.service", "Users")
+        .putTag("http.method", "GET")
+        .build();
+
+    com.google.devtools.cloudtrace.v2.Span translated = SpanTranslator.translate(
+        com.google.devtools.cloudtrace.v2.Span.newBuilder(), zipkinSpan, renameRules).build();
+
+    assertThat(translated.getAttributes().getAttributeMapMap()).containsOnly(
+        entry("/rpc/method", toAttributeValue("Get")),
+        entry("rpc.service", toAttributeValue("Users")),
+        entry("/rpc/service", toAttributeValue("Users")),
+        entry("/http/method", toAttributeValue("GET")));
+  }
+
+  @Test void translate_overLimits() {
+    Span.Builder builder = Span.newBuilder()
+        .traceId("3")
+        .parentId("1")
+        .id("2")
+        .name(String.join("", Collections.nCopies(200, "n")));
+    for (int i = 0; i < 40; i++) builder.addAnnotation(i + 1L, "annotation" + i);
+
+    com.google.devtools.cloudtrace.v2.Span translated = SpanTranslator.translate(
+        com.google.devtools.cloudtrace.v2.Span.newBuilder(), builder.build()).build();
+
+    assertThat(translated.getDisplayName().getValue()).hasSize(128);
+    assertThat(translated.getDisplayName().getTruncatedByteCount()).isEqualTo(72);
+    assertThat(translated.getTimeEvents().getTimeEventList()).hasSize(32);
+    assertThat(translated.getTimeEvents().getTimeEvent(31).getAnnotation().getDescription()
+        .getValue()).isEqualTo("annotation31");
+    assertThat(translated.getTimeEvents().getDroppedAnnotationsCount()).isEqualTo(8);
+  }
+
+  @Test void translate_typedAttributes() {
+    Span zipkinSpan = Span.newBuilder()
+        .traceId("3")
+        .parentId("1")
+        .id("2")
+        .name("get")
+        .kind(Span.Kind.SERVER)
+        .putTag("http.status_code", "200")
+        .putTag("error", "true")
+        .putTag("http.path", "/api")
+        .putTag("zip", "02134")
+        .build();
+
+    com.google.devtools.cloudtrace.v2.Span translated = SpanTranslator.translate(
+        com.google.devtools.cloudtrace.v2.Span.newBuilder(), zipkinSpan, RenameRules.DEFAULT,
+        true).build();
+
+    assertThat(translated.getSpanKind())
+        .isEqualTo(com.google.devtools.cloudtrace.v2.Span.SpanKind.SERVER);
+    assertThat(translated.getAttributes().getAttributeMapMap()).containsOnly(
+        entry("/http/status_code", AttributeValue.newBuilder().setIntValue(200).build()),
+        entry("error", AttributeValue.newBuilder().setBoolValue(true).build()),
+        entry("http.path", toAttributeValue("/api")),
+        entry("zip", toAttributeValue("02134")));
+  }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.Span.Attributes;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SpanWriterTest {
+  static final String PROJECT_ID = "test-project";
+
+  Span clientSpan = Span.newBuilder()
+      .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+      .parentId("6b221d5bc9e6496c")
+      .id("5b4185666d50f68b")
+      .name("get")
+      .kind(Span.Kind.CLIENT)
+      .localEndpoint(Endpoint.newBuilder().serviceName("frontend").build())
+      .remoteEndpoint(
+          Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build())
+      .timestamp(1_000_000L) // 1 second after epoch
+      .duration(123_456L)
+      .addAnnotation(1_123_000L, "foo")
+      .putTag("http.path", "/api")
+      .putTag("clnt/finagle.version", "6.45.0")
+      .build();
+
+  @Test void write_clientSpan() throws IOException {
+    assertSameAsTranslator(clientSpan);
+  }
+
+  @Test void write_serverSpan() throws IOException {
+    assertSameAsTranslator(Span.newBuilder()
+        .traceId("216a2aea45d08fc9")
+        .id("5b4185666d50f68b")
+        .name("post /api")
+        .kind(Span.Kind.SERVER)
+        .localEndpoint(Endpoint.newBuilder()
+            .serviceName("backend")
+            .ip("192.168.99.101")
+            .ip("2001:db8::c001")
+            .build())
+        .timestamp(1_000_001L)
+        .duration(1L)
+        .putTag("http.method", "POST")
+        .putTag("http.url", "http://backend/api")
+        .putTag("http.status_code", "201")
+        .build());
+  }
+
+  @Test void write_spring6HttpSpan() throws IOException {
+    assertSameAsTranslator(Span.newBuilder()
+        .traceId("216a2aea45d08fc9")
+        .id("5b4185666d50f68b")
+        .name("http get /")
+        .kind(Span.Kind.SERVER)
+        .localEndpoint(Endpoint.newBuilder().serviceName("backend").build())
+        .putTag("method", "GET")
+        .putTag("status", "200")
+        .build());
+  }
+
+  /** Unlike the builder, duplicate keys aren't collapsed, but they parse the same. */
+  @Test void write_duplicateKeys_lastWins() throws IOException {
+    Span zipkinSpan = Span.newBuilder()
+        .traceId("216a2aea45d08fc9")
+        .id("5b4185666d50f68b")
+        .name("http get /")
+        .putTag("method", "GET")
+        .putTag("http.method", "get") // renamed to the same key as the spring 6 tag
+        .putTag("/kind", "producer") // overwritten by the span kind
+        .kind(Span.Kind.CLIENT)
+        .build();
+
+    byte[] bytes = new byte[SpanWriter.sizeInBytes(zipkinSpan)];
+    SpanWriter.write(zipkinSpan, CodedOutputStream.newInstance(bytes));
+
+    assertThat(com.google.devtools.cloudtrace.v2.Span.parseFrom(bytes)).isEqualTo(
+        SpanTranslator.translate(com.google.devtools.cloudtrace.v2.Span.newBuilder(), zipkinSpan)
+            .build());
+  }
+
+  @Test void write_customRenameRules() throws IOException {
+    RenameRules renameRules = RenameRules.DEFAULT.toBuilder()
+        .rename("clnt/finagle.version", "/finagle/version")
+        .copyIfSpanNameContains("http.path", "/http/path", "get")
+        .build();
+    com.google.devtools.cloudtrace.v2.Span expected = SpanTranslator.translate(
+        PROJECT_ID, Collections.singletonList(clientSpan), renameRules).get(0);
+
+    byte[] bytes = new byte[SpanWriter.sizeInBytes(PROJECT_ID, clientSpan, renameRules)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    SpanWriter.write(PROJECT_ID, clientSpan, renameRules, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(bytes).containsExactly(expected.toByteArray());
+  }
+
+  @Test void write_typedAttributes() throws IOException {
+    RenameRules renameRules = RenameRules.DEFAULT;
+    Span zipkinSpan = clientSpan.toBuilder()
+        .putTag("http.status_code", "200")
+        .putTag("http.response.size", "-1")
+        .putTag("error", "false")
+        .putTag("retry", "true")
+        .putTag("zip", "02134")
+        .build();
+    com.google.devtools.cloudtrace.v2.Span expected = SpanTranslator.translate(
+        PROJECT_ID, Collections.singletonList(zipkinSpan), renameRules, true).get(0);
+
+    byte[] bytes = new byte[SpanWriter.sizeInBytes(PROJECT_ID, zipkinSpan, renameRules, true)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    SpanWriter.write(PROJECT_ID, zipkinSpan, renameRules, true, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(bytes).containsExactly(expected.toByteArray());
+    assertThat(bytes.length).isLessThan(SpanWriter.sizeInBytes(PROJECT_ID, zipkinSpan));
+  }
+
+  @Test void write_missingName() throws IOException {
+    assertSameAsTranslator(Span.newBuilder().traceId("3").id("2").build());
+  }
+
+  @Test void write_emptyValues() throws IOException {
+    assertSameAsTranslator(Span.newBuilder()
+        .traceId("3")
+        .id("2")
+        .putTag("error", "")
+        .addAnnotation(1L, "")
+        .build());
+  }
+
+  @Test void write_multipleAnnotations() throws IOException {
+    assertSameAsTranslator(clientSpan.toBuilder()
+        .addAnnotation(1_000_000L, "ws")
+        .addAnnotation(1_100_000L, "wr")
+        .addAnnotation(-1L, "before epoch")
+        .build());
+  }
+
+  @Test void write_nonAscii() throws IOException {
+    assertSameAsTranslator(clientSpan.toBuilder()
+        .name("조회")
+        .putTag("error", "💩")
+        .clearAnnotations()
+        .addAnnotation(1_123_000L, "Ω")
+        .build());
+  }
+
+  @Test void write_largeSpan() throws IOException {
+    Span.Builder builder = clientSpan.toBuilder();
+    String value = String.join("", Collections.nCopies(200, "value"));
+    for (int i = 0; i < 100; i++) builder.putTag("tag" + i, value);
+    assertSameAsTranslator(builder.build());
+  }
+
+  @Test void write_overLimits() throws IOException {
+    Span.Builder builder = clientSpan.toBuilder()
+        .name(String.join("", Collections.nCopies(100, "조회")))
+        .putTag(String.join("", Collections.nCopies(200, "k")), "value");
+    for (int i = 0; i < 40; i++) {
+      builder.putTag("tag" + i, String.join("", Collections.nCopies(100, "💩")));
+      builder.addAnnotation(i + 1L, String.join("", Collections.nCopies(100, "Ω")));
+    }
+    assertSameAsTranslator(builder.build());
+  }
+
+  /** The agent attribute is encoded once, so check a long agent name is truncated the same. */
+  @Test void encodeAttribute_sameAsExtractor() {
+    String agentName = String.join("", Collections.nCopies(100, "zipkin-java"));
+
+    assertThat(SpanWriter.encodeAttribute(AttributesExtractor.kAgentLabelKey, agentName))
+        .containsExactly(Attributes.newBuilder()
+            .putAttributeMap(AttributesExtractor.kAgentLabelKey,
+                AttributesExtractor.toAttributeValue(agentName))
+            .build().toByteArray());
+  }
+
+  @Test void write_nonAsciiProjectId() {
+    byte[] result = new byte[1024];
+    assertThatThrownBy(
+        () -> SpanWriter.write("π", clientSpan, CodedOutputStream.newInstance(result)))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  static void assertSameAsTranslator(Span zipkinSpan) throws IOException {
+    com.google.devtools.cloudtrace.v2.Span expected = SpanTranslator.translate(
+        com.google.devtools.cloudtrace.v2.Span.newBuilder(), zipkinSpan).build();
+
+    byte[] bytes = new byte[SpanWriter.sizeInBytes(zipkinSpan)];
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    SpanWriter.write(zipkinSpan, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(com.google.devtools.cloudtrace.v2.Span.parseFrom(bytes)).isEqualTo(expected);
+    assertThat(bytes).containsExactly(expected.toByteArray());
+
+    // Now, with a name
+    expected = SpanTranslator.translate(PROJECT_ID, Collections.singletonList(zipkinSpan)).get(0);
+
+    bytes = new byte[SpanWriter.sizeInBytes(PROJECT_ID, zipkinSpan)];
+    out = CodedOutputStream.newInstance(bytes);
+    SpanWriter.write(PROJECT_ID, zipkinSpan, out);
+    out.checkNoSpaceLeft();
+
+    assertThat(com.google.devtools.cloudtrace.v2.Span.parseFrom(bytes)).isEqualTo(expected);
+    assertThat(bytes).containsExactly(expected.toByteArray());
+  }
+}
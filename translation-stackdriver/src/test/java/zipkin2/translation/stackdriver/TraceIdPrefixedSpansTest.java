@@ -0,0 +1,107 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.translation.stackdriver;
+
+import com.google.devtools.cloudtrace.v2.BatchWriteSpansRequest;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.translation.stackdriver.Proto3TranscoderTest.PROJECT_ID;
+import static zipkin2.translation.stackdriver.Proto3TranscoderTest.translate;
+
+class TraceIdPrefixedSpansTest {
+  TraceIdPrefixedSpans framer = TraceIdPrefixedSpans.create(PROJECT_ID);
+  Proto3TranscoderTest spans = new Proto3TranscoderTest();
+
+  @Test void toRequest_sameAsTranslator() throws Exception {
+    List<Span> trace = Arrays.asList(spans.clientSpan, spans.serverSpan);
+
+    assertThat(BatchWriteSpansRequest.parseFrom(framer.toRequest(encodeList(trace))))
+        .isEqualTo(translate(RenameRules.DEFAULT, trace));
+  }
+
+  @Test void toRequest_empty() throws Exception {
+    assertThat(BatchWriteSpansRequest.parseFrom(framer.toRequest(new byte[0])))
+        .isEqualTo(translate(RenameRules.DEFAULT, Arrays.asList()));
+  }
+
+  @Test void toRequest_concatenatedLists() throws Exception {
+    byte[] client = encodeList(Arrays.asList(spans.clientSpan));
+    byte[] server = encodeList(Arrays.asList(spans.serverSpan));
+    byte[] both = Arrays.copyOf(client, client.length + server.length);
+    System.arraycopy(server, 0, both, client.length, server.length);
+
+    assertThat(TraceIdPrefixedSpans.spanCount(both)).isEqualTo(2);
+    assertThat(BatchWriteSpansRequest.parseFrom(framer.toRequest(both)))
+        .isEqualTo(translate(RenameRules.DEFAULT, Arrays.asList(spans.clientSpan,
+            spans.serverSpan)));
+  }
+
+  @Test void toRequest_malformed() throws Exception {
+    byte[] span = encode(spans.clientSpan);
+    byte[] noSpanId = encode(spans.clientSpan.toBuilder().traceId("1").id("2").build());
+    // The span ID is the first field after the trace ID, so drop it.
+    byte[] withoutSpanId = new byte[noSpanId.length - 18];
+    System.arraycopy(noSpanId, 0, withoutSpanId, 0, 32);
+    System.arraycopy(noSpanId, 50, withoutSpanId, 32, withoutSpanId.length - 32);
+    byte[] upperCaseTraceId = span.clone();
+    upperCaseTraceId[0] = 'A';
+
+    for (byte[] list : Arrays.asList(
+        new byte[] {10, 100}, // truncated
+        frame(Arrays.copyOf(span, 31)), // shorter than the trace ID
+        frame(upperCaseTraceId),
+        frame(withoutSpanId))) {
+      assertThatThrownBy(() -> framer.toRequest(list))
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  @Test void spanCount() throws Exception {
+    assertThat(TraceIdPrefixedSpans.spanCount(new byte[0])).isZero();
+    assertThat(TraceIdPrefixedSpans.spanCount(
+        encodeList(Arrays.asList(spans.clientSpan, spans.serverSpan)))).isEqualTo(2);
+    assertThatThrownBy(() -> TraceIdPrefixedSpans.spanCount(new byte[] {10, 100}))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void create_nullChecks() {
+    assertThatThrownBy(() -> TraceIdPrefixedSpans.create(null))
+        .hasMessage("projectId == null");
+  }
+
+  /** Frames spans like the PubSub sender does. */
+  static byte[] encodeList(List<Span> spans) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (Span span : spans) result.write(frame(encode(span)));
+    return result.toByteArray();
+  }
+
+  static byte[] frame(byte[] traceIdPrefixedSpan) throws IOException {
+    byte[] result = new byte[CodedOutputStream.computeByteArraySize(1, traceIdPrefixedSpan)];
+    CodedOutputStream out = CodedOutputStream.newInstance(result);
+    out.writeByteArray(1, traceIdPrefixedSpan);
+    out.checkNoSpaceLeft();
+    return result;
+  }
+
+  /** Same as StackdriverEncoder.V2 */
+  static byte[] encode(Span span) throws IOException {
+    String traceId = span.traceId().length() == 16 ? "0000000000000000" + span.traceId()
+        : span.traceId();
+    byte[] result = new byte[32 + SpanWriter.sizeInBytes(span)];
+    System.arraycopy(traceId.getBytes(StandardCharsets.US_ASCII), 0, result, 0, 32);
+    SpanWriter.write(span, CodedOutputStream.newInstance(result, 32, result.length - 32));
+    return result;
+  }
+}